@@ -0,0 +1,159 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package org.intelligentsia.dowsers.core;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+
+/**
+ * <code>BoundedCompletionService</code> submit tasks to an
+ * {@link ExecutorService} with a bounded number of pending tasks: when bound
+ * is reached, submitting thread first waits for a completed task. Results are
+ * given to an {@link Handler} in calling thread, in completion order.
+ * 
+ * <pre>
+ * final BoundedCompletionService&lt;T&gt; service = new BoundedCompletionService&lt;T&gt;(executorService, maxPending, handler);
+ * try {
+ * 	for (...) {
+ * 		service.submit(task);
+ * 	}
+ * 	service.complete();
+ * } finally {
+ * 	service.close();
+ * }
+ * </pre>
+ * 
+ * Not thread safe: a single thread submit tasks and handle their results.
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
+ * 
+ * @param <T>
+ *            result type
+ */
+public class BoundedCompletionService<T> {
+
+	private final CompletionService<T> completionService;
+
+	private final int maxPending;
+
+	private final Handler<T> handler;
+
+	private int pending = 0;
+
+	/**
+	 * Build a new instance of <code>BoundedCompletionService</code>.
+	 * 
+	 * @param executorService
+	 *            executor of tasks
+	 * @param maxPending
+	 *            maximum number of pending tasks
+	 * @param handler
+	 *            handler of results
+	 * @throws NullPointerException
+	 *             if executorService or handler is null
+	 * @throws IllegalArgumentException
+	 *             if maxPending is not positive
+	 */
+	public BoundedCompletionService(final ExecutorService executorService, final int maxPending, final Handler<T> handler) throws NullPointerException, IllegalArgumentException {
+		super();
+		Preconditions.checkArgument(maxPending > 0);
+		this.completionService = new ExecutorCompletionService<T>(Preconditions.checkNotNull(executorService));
+		this.maxPending = maxPending;
+		this.handler = Preconditions.checkNotNull(handler);
+	}
+
+	/**
+	 * Submit specified task, after handling result of a completed task if
+	 * there is too many pending tasks.
+	 * 
+	 * @param task
+	 * @throws DowsersException
+	 *             if a completed task failed, or if interrupted
+	 */
+	public void submit(final Callable<T> task) throws DowsersException {
+		if (pending == maxPending) {
+			handle();
+		}
+		completionService.submit(task);
+		pending++;
+	}
+
+	/**
+	 * Handle results of all pending tasks.
+	 * 
+	 * @throws DowsersException
+	 *             if a task failed, or if interrupted
+	 */
+	public void complete() throws DowsersException {
+		while (pending > 0) {
+			handle();
+		}
+	}
+
+	/**
+	 * Wait, without handling their results, termination of pending tasks,
+	 * so that none is running after a failure. Return immediately if
+	 * interrupted.
+	 */
+	public void close() {
+		while (pending > 0) {
+			try {
+				completionService.take();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			pending--;
+		}
+	}
+
+	/**
+	 * Wait for a completed task and handle its result. Task is no more pending
+	 * once taken, even if it failed.
+	 */
+	private void handle() throws DowsersException {
+		final Future<T> future;
+		try {
+			future = completionService.take();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DowsersException(e);
+		}
+		pending--;
+		final T result;
+		try {
+			result = future.get();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DowsersException(e);
+		} catch (final ExecutionException e) {
+			Throwables.propagateIfPossible(e.getCause());
+			throw new DowsersException(e.getCause());
+		}
+		handler.handle(result);
+	}
+}
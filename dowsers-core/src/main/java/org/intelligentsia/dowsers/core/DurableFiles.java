@@ -0,0 +1,146 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package org.intelligentsia.dowsers.core;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import com.google.common.io.Closeables;
+
+/**
+ * <code>DurableFiles</code> gather fsync helpers for files which must survive
+ * a crash.
+ * 
+ * <p>
+ * A rename, a creation or a deletion is only durable once the directory which
+ * holds the entry is fsynced, see {@link #syncDirectory(File)}.
+ * </p>
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
+ */
+public enum DurableFiles {
+	;
+
+	/**
+	 * Suffix of temporary files.
+	 */
+	public static final String TEMPORARY = ".tmp";
+
+	private static final boolean WINDOWS = System.getProperty("os.name").startsWith("Windows");
+
+	/**
+	 * Fsync content and metadata of specified file.
+	 * 
+	 * @param file
+	 * @throws DowsersException
+	 *             if file cannot be fsynced
+	 */
+	public static void sync(final File file) throws DowsersException {
+		RandomAccessFile randomAccessFile = null;
+		try {
+			randomAccessFile = new RandomAccessFile(file, "rw");
+			randomAccessFile.getFD().sync();
+		} catch (final IOException e) {
+			throw new DowsersException("unable to sync '" + file + "'", e);
+		} finally {
+			Closeables.closeQuietly(randomAccessFile);
+		}
+	}
+
+	/**
+	 * Fsync specified directory, so that creations, renames and deletions of
+	 * its entries are durable.
+	 * 
+	 * <p>
+	 * This is best effort: Windows cannot open a directory, and journals its
+	 * entries itself, so a failure to open it is ignored there. On other
+	 * platforms, a failure is an error.
+	 * </p>
+	 * 
+	 * @param directory
+	 * @throws DowsersException
+	 *             if directory cannot be fsynced
+	 */
+	public static void syncDirectory(final File directory) throws DowsersException {
+		FileChannel channel = null;
+		try {
+			channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+			channel.force(true);
+		} catch (final IOException e) {
+			if (!WINDOWS || (channel != null)) {
+				throw new DowsersException("unable to sync directory '" + directory + "'", e);
+			}
+		} finally {
+			Closeables.closeQuietly(channel);
+		}
+	}
+
+	/**
+	 * Rename a file, replacing target atomically if it exists: after a crash,
+	 * target is either previous or new file, never missing. Rename is durable
+	 * once parent directory of target is fsynced.
+	 * 
+	 * @param source
+	 * @param target
+	 * @throws DowsersException
+	 *             if file cannot be renamed
+	 */
+	public static void rename(final File source, final File target) throws DowsersException {
+		try {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (final IOException e) {
+			throw new DowsersException("unable to rename '" + source + "'", e);
+		}
+	}
+
+	/**
+	 * Write specified content in a temporary file and fsync it, rename it to
+	 * specified file, then fsync its directory. Once this method returns, file
+	 * is durable, and after a crash, file is either previous or complete.
+	 * 
+	 * @param content
+	 * @param file
+	 * @throws DowsersException
+	 *             if file cannot be written
+	 */
+	public static void write(final byte[] content, final File file) throws DowsersException {
+		final File temporary = new File(file.getParentFile(), file.getName() + TEMPORARY);
+		FileOutputStream output = null;
+		try {
+			output = new FileOutputStream(temporary);
+			output.write(content);
+			output.getFD().sync();
+			output.close();
+			output = null;
+		} catch (final IOException e) {
+			throw new DowsersException("unable to write '" + temporary + "'", e);
+		} finally {
+			Closeables.closeQuietly(output);
+		}
+		rename(temporary, file);
+		syncDirectory(file.getParentFile());
+	}
+}
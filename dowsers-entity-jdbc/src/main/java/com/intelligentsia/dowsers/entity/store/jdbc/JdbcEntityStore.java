@@ -0,0 +1,721 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store.jdbc;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.intelligentsia.dowsers.core.DowsersException;
+import org.intelligentsia.dowsers.core.Sequence;
+import org.intelligentsia.keystone.kernel.api.StringUtils;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.intelligentsia.dowsers.entity.Entity;
+import com.intelligentsia.dowsers.entity.reference.Reference;
+import com.intelligentsia.dowsers.entity.reference.References;
+import com.intelligentsia.dowsers.entity.serializer.EntityMapper;
+import com.intelligentsia.dowsers.entity.store.AbstractEntityStore;
+import com.intelligentsia.dowsers.entity.store.ConcurrencyException;
+import com.intelligentsia.dowsers.entity.store.EntityNotFoundException;
+import com.intelligentsia.dowsers.entity.store.EntityStore;
+import com.intelligentsia.dowsers.entity.store.VersionedEntityStore;
+import com.intelligentsia.dowsers.entity.store.Versions;
+
+/**
+ * <code>JdbcEntityStore</code> implements {@link EntityStore} on a relational
+ * database.
+ * 
+ * <p>
+ * Entities are stored in two tables, created if they do not exist:
+ * </p>
+ * <ul>
+ * <li><code>${prefix}ENTITY (REFERENCE, CLASS_NAME, VERSION, PAYLOAD)</code>:
+ * one row per entity, payload is its serialized form,</li>
+ * <li><code>${prefix}ATTRIBUTE (REFERENCE, CLASS_NAME, NAME, VALUE)</code>:
+ * one row per {@link String} attribute (not longer than
+ * {@link #MAX_VALUE_LENGTH}), used to answer {@link #find(Reference)} with an
+ * index lookup.</li>
+ * </ul>
+ * <p>
+ * A connection is borrowed from {@link DataSource} for each operation and
+ * closed (given back to the pool) when it ends. {@link #storeAll(Iterable)}
+ * and {@link #removeAll(Iterable)} run in a single transaction with batched
+ * statements. {@link #find(Class)} stream references by pages of fetch size,
+ * each page being read with its own connection: an iteration never hold a
+ * connection, even if it is not consumed up to its end.
+ * </p>
+ * <p>
+ * Store is a compare and set on entity version (see {@link Versions}) with an
+ * update on expected version.
+ * </p>
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
+ */
+public class JdbcEntityStore extends AbstractEntityStore implements VersionedEntityStore {
+
+	/**
+	 * Default table name prefix.
+	 */
+	public static final String DEFAULT_PREFIX = "DOWSERS_";
+
+	/**
+	 * Default fetch size of cursors.
+	 */
+	public static final int DEFAULT_FETCH_SIZE = 100;
+
+	/**
+	 * Default batch size.
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 100;
+
+	/**
+	 * Maximum length of an indexed attribute value.
+	 */
+	public static final int MAX_VALUE_LENGTH = 1024;
+
+	private final DataSource dataSource;
+
+	private final EntityMapper entityMapper;
+
+	private final int fetchSize;
+
+	private final int batchSize;
+
+	private final String entityTable;
+
+	private final String attributeTable;
+
+	/**
+	 * Build a new instance of <code>JdbcEntityStore</code> with
+	 * {@link #DEFAULT_PREFIX}, {@link #DEFAULT_FETCH_SIZE} and
+	 * {@link #DEFAULT_BATCH_SIZE}.
+	 * 
+	 * @param dataSource
+	 *            {@link DataSource} instance
+	 * @param entityMapper
+	 *            {@link EntityMapper} instance
+	 * @throws NullPointerException
+	 *             if dataSource or entityMapper is null
+	 * @throws DowsersException
+	 *             if tables cannot be created
+	 */
+	public JdbcEntityStore(final DataSource dataSource, final EntityMapper entityMapper) throws NullPointerException, DowsersException {
+		this(dataSource, entityMapper, DEFAULT_PREFIX, DEFAULT_FETCH_SIZE, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * Build a new instance of <code>JdbcEntityStore</code>.
+	 * 
+	 * @param dataSource
+	 *            {@link DataSource} instance
+	 * @param entityMapper
+	 *            {@link EntityMapper} instance
+	 * @param prefix
+	 *            table name prefix
+	 * @param fetchSize
+	 *            number of references read per page by {@link #find(Class)}
+	 * @param batchSize
+	 *            maximum number of statements in a batch
+	 * @throws NullPointerException
+	 *             if dataSource, entityMapper or prefix is null
+	 * @throws IllegalArgumentException
+	 *             if fetchSize or batchSize is not positive
+	 * @throws DowsersException
+	 *             if tables cannot be created
+	 */
+	public JdbcEntityStore(final DataSource dataSource, final EntityMapper entityMapper, final String prefix, final int fetchSize, final int batchSize) throws NullPointerException, IllegalArgumentException, DowsersException {
+		super();
+		this.dataSource = Preconditions.checkNotNull(dataSource);
+		this.entityMapper = Preconditions.checkNotNull(entityMapper);
+		Preconditions.checkArgument(fetchSize > 0);
+		Preconditions.checkArgument(batchSize > 0);
+		this.fetchSize = fetchSize;
+		this.batchSize = batchSize;
+		entityTable = Preconditions.checkNotNull(prefix) + "ENTITY";
+		attributeTable = prefix + "ATTRIBUTE";
+		createTables();
+	}
+
+	@Override
+	public Iterable<Reference> find(final Class<?> expectedType) throws NullPointerException {
+		final String className = expectedType.getName();
+		return new Iterable<Reference>() {
+
+			@Override
+			public Iterator<Reference> iterator() {
+				return new Cursor(className);
+			}
+		};
+	}
+
+	/**
+	 * Lookup on attribute table, or scan of entities of the class if value is
+	 * too long to be indexed.
+	 */
+	@Override
+	public Iterable<Reference> find(final Reference reference) throws NullPointerException {
+		if (reference.getIdentity().length() > MAX_VALUE_LENGTH) {
+			return super.find(reference);
+		}
+		final List<Reference> result = Lists.newArrayList();
+		Connection connection = null;
+		PreparedStatement statement = null;
+		ResultSet resultSet = null;
+		try {
+			connection = dataSource.getConnection();
+			statement = connection.prepareStatement(StringUtils.format("SELECT REFERENCE FROM %s WHERE CLASS_NAME = ? AND NAME = ? AND VALUE = ? ORDER BY REFERENCE", attributeTable));
+			statement.setString(1, reference.getEntityClassName());
+			statement.setString(2, reference.getAttributeName());
+			statement.setString(3, reference.getIdentity());
+			resultSet = statement.executeQuery();
+			while (resultSet.next()) {
+				result.add(Reference.parseString(resultSet.getString(1)));
+			}
+		} catch (final SQLException e) {
+			throw new DowsersException(e);
+		} finally {
+			close(connection, statement, resultSet);
+		}
+		return ImmutableList.copyOf(result);
+	}
+
+	@Override
+	public <T> T find(final Class<T> expectedType, final Reference reference) throws EntityNotFoundException, NullPointerException, IllegalArgumentException {
+		Preconditions.checkNotNull(expectedType);
+		final T result = findAll(expectedType, ImmutableList.of(Preconditions.checkNotNull(reference))).get(reference);
+		if (result == null) {
+			throw new EntityNotFoundException();
+		}
+		return result;
+	}
+
+	/**
+	 * Entities are read with one query per batch of references.
+	 */
+	@Override
+	public <T> Map<Reference, T> findAll(final Class<T> expectedType, final Iterable<Reference> references) throws NullPointerException, IllegalArgumentException {
+		Preconditions.checkNotNull(expectedType);
+		final Map<Reference, T> found = Maps.newHashMap();
+		final List<Reference> all = Lists.newArrayList(Preconditions.checkNotNull(references));
+		if (all.isEmpty()) {
+			return Maps.newLinkedHashMap();
+		}
+		Connection connection = null;
+		try {
+			connection = dataSource.getConnection();
+			for (final List<Reference> partition : Lists.partition(all, batchSize)) {
+				PreparedStatement statement = null;
+				ResultSet resultSet = null;
+				try {
+					statement = connection.prepareStatement(StringUtils.format("SELECT REFERENCE, PAYLOAD FROM %s WHERE REFERENCE IN (%s)", entityTable, parameters(partition.size())));
+					int index = 1;
+					for (final Reference reference : partition) {
+						statement.setString(index++, reference.toString());
+					}
+					resultSet = statement.executeQuery();
+					while (resultSet.next()) {
+						final Reader reader = resultSet.getCharacterStream(2);
+						found.put(Reference.parseString(resultSet.getString(1)), entityMapper.readValue(reader, expectedType));
+					}
+				} finally {
+					close(null, statement, resultSet);
+				}
+			}
+		} catch (final SQLException e) {
+			throw new DowsersException(e);
+		} finally {
+			close(connection, null, null);
+		}
+		final Map<Reference, T> result = Maps.newLinkedHashMap();
+		for (final Reference reference : all) {
+			final T entity = found.get(reference);
+			if (entity != null) {
+				result.put(reference, entity);
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public <T> void store(final T entity) throws NullPointerException, ConcurrencyException, IllegalArgumentException {
+		store(entity, false);
+	}
+
+	@Override
+	public <T> void restore(final T entity) throws NullPointerException, IllegalArgumentException {
+		store(entity, true);
+	}
+
+	private <T> void store(final T entity, final boolean keep) throws NullPointerException, ConcurrencyException, IllegalArgumentException {
+		final long expected = Versions.version(Preconditions.checkNotNull(entity));
+		while (true) {
+			try {
+				storeAll(ImmutableList.of(entity), keep);
+				return;
+			} catch (final ConcurrencyException e) {
+				// an unchecked or kept version is retried on concurrent write
+				if ((!keep && Versions.isChecked(expected)) || !(e instanceof ConcurrentWriteException)) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * All entities are checked and written in a single transaction, with
+	 * batched statements: a version conflict or a failure leave the store
+	 * untouched.
+	 */
+	@Override
+	public <T> void storeAll(final Iterable<T> entities) throws NullPointerException, ConcurrencyException, IllegalArgumentException {
+		storeAll(entities, false);
+	}
+
+	private <T> void storeAll(final Iterable<T> entities, final boolean keep) throws NullPointerException, ConcurrencyException, IllegalArgumentException {
+		final Map<Reference, Content> contents = Maps.newLinkedHashMap();
+		for (final T entity : Preconditions.checkNotNull(entities)) {
+			contents.put(References.identify(entity), new Content(entity));
+		}
+		if (contents.isEmpty()) {
+			return;
+		}
+		Connection connection = null;
+		boolean committed = false;
+		try {
+			connection = dataSource.getConnection();
+			connection.setAutoCommit(false);
+			// check versions and serialize
+			final Map<Reference, Long> versions = versions(connection, contents.keySet());
+			for (final Map.Entry<Reference, Content> entry : contents.entrySet()) {
+				final Content content = entry.getValue();
+				final Long observed = versions.get(entry.getKey());
+				content.observed = observed != null ? observed : Sequence.forInitialSequence();
+				content.insert = observed == null;
+				content.version = Versions.next(entry.getKey(), content.expected, content.observed, keep);
+				Versions.version(content.entity, content.version);
+				final StringWriter writer = new StringWriter();
+				entityMapper.writeValue(writer, content.entity);
+				content.payload = writer.toString();
+			}
+			// write entities
+			write(connection, contents);
+			// write attributes
+			delete(connection, attributeTable, contents.keySet());
+			insertAttributes(connection, contents);
+			connection.commit();
+			committed = true;
+		} catch (final SQLException e) {
+			if (isIntegrityViolation(e)) {
+				throw new ConcurrentWriteException(StringUtils.format("entities were inserted meanwhile: %s", contents.keySet()));
+			}
+			throw new DowsersException(e);
+		} finally {
+			if (!committed) {
+				for (final Content content : contents.values()) {
+					Versions.version(content.entity, content.expected);
+				}
+				rollback(connection);
+			}
+			close(connection, null, null);
+		}
+	}
+
+	@Override
+	public <T> void remove(final T entity) throws NullPointerException, IllegalArgumentException {
+		remove(References.identify(entity));
+	}
+
+	@Override
+	public void remove(final Reference reference) throws NullPointerException, IllegalArgumentException {
+		removeAll(ImmutableList.of(Preconditions.checkNotNull(reference)));
+	}
+
+	@Override
+	public void removeAll(final Iterable<Reference> references) throws NullPointerException, IllegalArgumentException {
+		final List<Reference> all = Lists.newArrayList(Preconditions.checkNotNull(references));
+		if (all.isEmpty()) {
+			return;
+		}
+		Connection connection = null;
+		boolean committed = false;
+		try {
+			connection = dataSource.getConnection();
+			connection.setAutoCommit(false);
+			delete(connection, attributeTable, all);
+			delete(connection, entityTable, all);
+			connection.commit();
+			committed = true;
+		} catch (final SQLException e) {
+			throw new DowsersException(e);
+		} finally {
+			if (!committed) {
+				rollback(connection);
+			}
+			close(connection, null, null);
+		}
+	}
+
+	/**
+	 * Create tables and indexes if they do not exist.
+	 * 
+	 * @throws DowsersException
+	 */
+	private void createTables() throws DowsersException {
+		Connection connection = null;
+		Statement statement = null;
+		try {
+			connection = dataSource.getConnection();
+			statement = connection.createStatement();
+			if (!exists(connection, entityTable)) {
+				statement.execute(StringUtils.format("CREATE TABLE %s (REFERENCE VARCHAR(512) NOT NULL PRIMARY KEY, CLASS_NAME VARCHAR(255) NOT NULL, VERSION BIGINT NOT NULL, PAYLOAD CLOB NOT NULL)", entityTable));
+				statement.execute(StringUtils.format("CREATE INDEX %s_CLASS ON %s (CLASS_NAME, REFERENCE)", entityTable, entityTable));
+			}
+			if (!exists(connection, attributeTable)) {
+				statement.execute(StringUtils.format("CREATE TABLE %s (REFERENCE VARCHAR(512) NOT NULL, CLASS_NAME VARCHAR(255) NOT NULL, NAME VARCHAR(255) NOT NULL, VALUE VARCHAR(%s) NOT NULL)", attributeTable, MAX_VALUE_LENGTH));
+				statement.execute(StringUtils.format("CREATE INDEX %s_VALUE ON %s (CLASS_NAME, NAME, VALUE)", attributeTable, attributeTable));
+				statement.execute(StringUtils.format("CREATE INDEX %s_REFERENCE ON %s (REFERENCE)", attributeTable, attributeTable));
+			}
+			if (!connection.getAutoCommit()) {
+				connection.commit();
+			}
+		} catch (final SQLException e) {
+			throw new DowsersException(e);
+		} finally {
+			close(connection, statement, null);
+		}
+	}
+
+	private static boolean exists(final Connection connection, final String table) throws SQLException {
+		final DatabaseMetaData metaData = connection.getMetaData();
+		for (final String name : new String[] { table, table.toUpperCase(), table.toLowerCase() }) {
+			final ResultSet resultSet = metaData.getTables(null, null, name, null);
+			try {
+				if (resultSet.next()) {
+					return true;
+				}
+			} finally {
+				resultSet.close();
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param connection
+	 * @param references
+	 * @return stored version of specified references, unknown references are
+	 *         not included.
+	 * @throws SQLException
+	 */
+	private Map<Reference, Long> versions(final Connection connection, final Iterable<Reference> references) throws SQLException {
+		final Map<Reference, Long> versions = Maps.newHashMap();
+		for (final List<Reference> partition : Iterables.partition(references, batchSize)) {
+			PreparedStatement statement = null;
+			ResultSet resultSet = null;
+			try {
+				statement = connection.prepareStatement(StringUtils.format("SELECT REFERENCE, VERSION FROM %s WHERE REFERENCE IN (%s)", entityTable, parameters(partition.size())));
+				int index = 1;
+				for (final Reference reference : partition) {
+					statement.setString(index++, reference.toString());
+				}
+				resultSet = statement.executeQuery();
+				while (resultSet.next()) {
+					versions.put(Reference.parseString(resultSet.getString(1)), resultSet.getLong(2));
+				}
+			} finally {
+				close(null, statement, resultSet);
+			}
+		}
+		return versions;
+	}
+
+	/**
+	 * Insert new entities and update others on their observed version, with
+	 * batched statements.
+	 * 
+	 * @throws ConcurrentWriteException
+	 *             if an entity was updated meanwhile
+	 */
+	private void write(final Connection connection, final Map<Reference, Content> contents) throws SQLException, ConcurrencyException {
+		PreparedStatement insert = null;
+		PreparedStatement update = null;
+		try {
+			insert = connection.prepareStatement(StringUtils.format("INSERT INTO %s (REFERENCE, CLASS_NAME, VERSION, PAYLOAD) VALUES (?, ?, ?, ?)", entityTable));
+			update = connection.prepareStatement(StringUtils.format("UPDATE %s SET VERSION = ?, PAYLOAD = ? WHERE REFERENCE = ? AND VERSION = ?", entityTable));
+			final List<Reference> updated = Lists.newArrayList();
+			int inserts = 0;
+			for (final Map.Entry<Reference, Content> entry : contents.entrySet()) {
+				final Content content = entry.getValue();
+				if (content.insert) {
+					insert.setString(1, entry.getKey().toString());
+					insert.setString(2, entry.getKey().getEntityClassName());
+					insert.setLong(3, content.version);
+					insert.setCharacterStream(4, new StringReader(content.payload), content.payload.length());
+					insert.addBatch();
+					if (++inserts % batchSize == 0) {
+						insert.executeBatch();
+					}
+				} else {
+					update.setLong(1, content.version);
+					update.setCharacterStream(2, new StringReader(content.payload), content.payload.length());
+					update.setString(3, entry.getKey().toString());
+					update.setLong(4, content.observed);
+					update.addBatch();
+					updated.add(entry.getKey());
+					if (updated.size() % batchSize == 0) {
+						check(update.executeBatch(), updated.subList(updated.size() - batchSize, updated.size()));
+					}
+				}
+			}
+			if (inserts % batchSize != 0) {
+				insert.executeBatch();
+			}
+			if (updated.size() % batchSize != 0) {
+				check(update.executeBatch(), updated.subList(updated.size() - (updated.size() % batchSize), updated.size()));
+			}
+		} finally {
+			close(null, insert, null);
+			close(null, update, null);
+		}
+	}
+
+	/**
+	 * Check that each update of a batch changed one row.
+	 */
+	private static void check(final int[] counts, final List<Reference> references) throws ConcurrentWriteException {
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] == 0) {
+				throw new ConcurrentWriteException(StringUtils.format("entity '%s' was updated meanwhile", references.get(i)));
+			}
+		}
+	}
+
+	private void insertAttributes(final Connection connection, final Map<Reference, Content> contents) throws SQLException {
+		PreparedStatement statement = null;
+		try {
+			statement = connection.prepareStatement(StringUtils.format("INSERT INTO %s (REFERENCE, CLASS_NAME, NAME, VALUE) VALUES (?, ?, ?, ?)", attributeTable));
+			int count = 0;
+			for (final Map.Entry<Reference, Content> entry : contents.entrySet()) {
+				final Entity entity = References.discover(entry.getValue().entity);
+				for (final String name : entity.attributeNames()) {
+					final Object value = entity.attribute(name);
+					if ((value instanceof String) && (((String) value).length() <= MAX_VALUE_LENGTH)) {
+						statement.setString(1, entry.getKey().toString());
+						statement.setString(2, entry.getKey().getEntityClassName());
+						statement.setString(3, name);
+						statement.setString(4, (String) value);
+						statement.addBatch();
+						if (++count % batchSize == 0) {
+							statement.executeBatch();
+						}
+					}
+				}
+			}
+			if (count % batchSize != 0) {
+				statement.executeBatch();
+			}
+		} finally {
+			close(null, statement, null);
+		}
+	}
+
+	private void delete(final Connection connection, final String table, final Iterable<Reference> references) throws SQLException {
+		PreparedStatement statement = null;
+		try {
+			statement = connection.prepareStatement(StringUtils.format("DELETE FROM %s WHERE REFERENCE = ?", table));
+			int count = 0;
+			for (final Reference reference : references) {
+				statement.setString(1, reference.toString());
+				statement.addBatch();
+				if (++count % batchSize == 0) {
+					statement.executeBatch();
+				}
+			}
+			if (count % batchSize != 0) {
+				statement.executeBatch();
+			}
+		} finally {
+			close(null, statement, null);
+		}
+	}
+
+	private static String parameters(final int count) {
+		final StringBuilder builder = new StringBuilder("?");
+		for (int i = 1; i < count; i++) {
+			builder.append(", ?");
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * @param e
+	 * @return true if specified exception is an integrity constraint violation
+	 *         (SQL state class 23), like a duplicate primary key.
+	 */
+	private static boolean isIntegrityViolation(final SQLException e) {
+		SQLException exception = e;
+		while (exception != null) {
+			if ((exception.getSQLState() != null) && exception.getSQLState().startsWith("23")) {
+				return true;
+			}
+			exception = exception.getNextException();
+		}
+		return false;
+	}
+
+	private static void rollback(final Connection connection) {
+		if (connection != null) {
+			try {
+				connection.rollback();
+			} catch (final SQLException e) {
+				// connection is closed anyway
+			}
+		}
+	}
+
+	private static void close(final Connection connection, final Statement statement, final ResultSet resultSet) {
+		if (resultSet != null) {
+			try {
+				resultSet.close();
+			} catch (final SQLException e) {
+				// ignored
+			}
+		}
+		if (statement != null) {
+			try {
+				statement.close();
+			} catch (final SQLException e) {
+				// ignored
+			}
+		}
+		if (connection != null) {
+			try {
+				connection.close();
+			} catch (final SQLException e) {
+				// ignored
+			}
+		}
+	}
+
+	/**
+	 * <code>Content</code> of an entity to write.
+	 */
+	private static final class Content {
+		private final Object entity;
+		private final long expected;
+		private long observed;
+		private long version;
+		private boolean insert;
+		private String payload;
+
+		public Content(final Object entity) {
+			super();
+			this.entity = entity;
+			expected = Versions.version(entity);
+		}
+	}
+
+	/**
+	 * <code>ConcurrentWriteException</code> is thrown when a row changed
+	 * between version check and write.
+	 */
+	private static final class ConcurrentWriteException extends ConcurrencyException {
+
+		private static final long serialVersionUID = 6434163521207404651L;
+
+		public ConcurrentWriteException(final String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * <code>Cursor</code> stream references of a class, page after page. A
+	 * page start after last reference of previous one (keyset pagination), and
+	 * its connection is released as soon as it is read.
+	 */
+	private final class Cursor extends AbstractIterator<Reference> {
+
+		private final String className;
+		private Iterator<Reference> page = Iterators.emptyIterator();
+		private String last = null;
+		private boolean exhausted = false;
+
+		public Cursor(final String className) {
+			super();
+			this.className = className;
+		}
+
+		@Override
+		protected Reference computeNext() {
+			if (!page.hasNext() && !exhausted) {
+				page = read();
+			}
+			return page.hasNext() ? page.next() : endOfData();
+		}
+
+		private Iterator<Reference> read() throws DowsersException {
+			final List<Reference> references = Lists.newArrayListWithCapacity(fetchSize);
+			Connection connection = null;
+			PreparedStatement statement = null;
+			ResultSet resultSet = null;
+			try {
+				connection = dataSource.getConnection();
+				if (last == null) {
+					statement = connection.prepareStatement(StringUtils.format("SELECT REFERENCE FROM %s WHERE CLASS_NAME = ? ORDER BY REFERENCE", entityTable));
+				} else {
+					statement = connection.prepareStatement(StringUtils.format("SELECT REFERENCE FROM %s WHERE CLASS_NAME = ? AND REFERENCE > ? ORDER BY REFERENCE", entityTable));
+					statement.setString(2, last);
+				}
+				statement.setString(1, className);
+				statement.setMaxRows(fetchSize);
+				statement.setFetchSize(fetchSize);
+				resultSet = statement.executeQuery();
+				while (resultSet.next()) {
+					last = resultSet.getString(1);
+					references.add(Reference.parseString(last));
+				}
+			} catch (final SQLException e) {
+				throw new DowsersException(e);
+			} finally {
+				close(connection, statement, resultSet);
+			}
+			exhausted = references.size() < fetchSize;
+			return references.iterator();
+		}
+	}
+}
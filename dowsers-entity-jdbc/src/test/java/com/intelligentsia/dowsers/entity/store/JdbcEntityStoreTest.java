@@ -0,0 +1,121 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.intelligentsia.dowsers.core.Sequence;
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.intelligentsia.dowsers.entity.model.Person;
+import com.intelligentsia.dowsers.entity.reference.Reference;
+import com.intelligentsia.dowsers.entity.reference.References;
+import com.intelligentsia.dowsers.entity.store.jdbc.JdbcEntityStore;
+
+/**
+ * <code>JdbcEntityStoreTest</code>.
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com">Jerome Guibert</a>
+ * 
+ */
+public class JdbcEntityStoreTest extends StoreBaseTest {
+
+	private JdbcConnectionPool dataSource;
+
+	@Override
+	public EntityStore instanciateEntityStore() {
+		dataSource = JdbcConnectionPool.create("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", "sa", "");
+		return new JdbcEntityStore(dataSource, entityMapper, JdbcEntityStore.DEFAULT_PREFIX, 3, 2);
+	}
+
+	@After
+	public void close() {
+		dataSource.dispose();
+	}
+
+	@Test
+	public void testStreaming() {
+		final List<Reference> references = Lists.newArrayList();
+		final List<Person> persons = Lists.newArrayList();
+		for (int i = 0; i < 10; i++) {
+			final Person person = getMario("Fusco" + i);
+			persons.add(person);
+			references.add(References.identify(person));
+		}
+		entityStore.storeAll(persons);
+		final List<Reference> found = Lists.newArrayList(entityStore.find(Person.class));
+		assertEquals(10, found.size());
+		assertTrue(found.containsAll(references));
+		assertEquals(10, entityStore.findAll(Person.class, references).size());
+		// connections are given back to the pool
+		assertEquals(0, dataSource.getActiveConnections());
+		// a partial iteration does not keep a connection
+		final Iterator<Reference> iterator = entityStore.find(Person.class).iterator();
+		for (int i = 0; i < 4; i++) {
+			iterator.next();
+			assertEquals(0, dataSource.getActiveConnections());
+		}
+	}
+
+	@Test
+	public void testAttributeTable() {
+		final Person mario = getMario("A");
+		entityStore.store(mario);
+		final Reference query = new Reference(Person.class, "lastName", "A");
+		assertEquals(Lists.newArrayList(References.identify(mario)), Lists.newArrayList(entityStore.find(query)));
+		mario.setLastName("B");
+		entityStore.store(mario);
+		assertTrue(Lists.newArrayList(entityStore.find(query)).isEmpty());
+		entityStore.remove(mario);
+		assertTrue(Lists.newArrayList(entityStore.find(new Reference(Person.class, "lastName", "B"))).isEmpty());
+	}
+
+	@Test
+	public void testStoreAllIsAtomic() {
+		final Person mario = getMario("A");
+		entityStore.store(mario);
+		final StringWriter writer = new StringWriter();
+		entityMapper.writeValue(writer, mario);
+		final Person stale = entityMapper.readValue(new StringReader(writer.toString()), Person.class);
+		entityStore.store(mario);
+		final Person luigi = getMario("B");
+		stale.setLastName("C");
+		try {
+			entityStore.storeAll(Lists.newArrayList(luigi, stale));
+			fail();
+		} catch (final ConcurrencyException e) {
+			// ok
+		}
+		assertTrue(entityStore.findAll(Person.class, Lists.newArrayList(References.identify(luigi))).isEmpty());
+		assertEquals("A", entityStore.find(Person.class, References.identify(mario)).getLastName());
+		assertEquals(Sequence.forInitialSequence(), Versions.version(luigi));
+	}
+}
@@ -21,13 +21,22 @@ package com.intelligentsia.dowsers.entity.manager;
 
 import java.util.Map;
 
+import javax.sql.DataSource;
+
 import org.springframework.beans.factory.FactoryBean;
 
+import com.google.common.base.Strings;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheBuilderSpec;
 import com.intelligentsia.dowsers.entity.reference.Reference;
+import com.intelligentsia.dowsers.entity.serializer.EntityMapper;
 import com.intelligentsia.dowsers.entity.store.CachedEntityStore;
 import com.intelligentsia.dowsers.entity.store.EntityStore;
+import com.intelligentsia.dowsers.entity.store.InvalidationChannel;
 import com.intelligentsia.dowsers.entity.store.MetaEntityStore;
+import com.intelligentsia.dowsers.entity.store.OffHeapEntityCache;
 import com.intelligentsia.dowsers.entity.store.ShardingEntityStore;
+import com.intelligentsia.dowsers.entity.store.jdbc.JdbcEntityStore;
 
 /**
  * MetaEntityStoreFactory implements {@link FactoryBean} for
@@ -43,6 +52,40 @@ public class EntityStoreFactory implements FactoryBean<EntityStore> {
 
 	private boolean enableCachedEntities = Boolean.TRUE;
 
+	/**
+	 * First level cache specification (see {@link CacheBuilderSpec}),
+	 * statistics are always recorded.
+	 */
+	private String cacheSpecification = CachedEntityStore.DEFAULT_CACHE;
+
+	/**
+	 * Negative cache specification (see {@link CacheBuilderSpec}), null or
+	 * empty to disable.
+	 */
+	private String negativeCacheSpecification = CachedEntityStore.DEFAULT_NEGATIVE_CACHE;
+
+	/**
+	 * Capacity in bytes of off heap cache, 0 to disable.
+	 */
+	private long offHeapCacheCapacity = 0;
+
+	/**
+	 * {@link DataSource} of a {@link JdbcEntityStore} used when no entity
+	 * store is defined, or null.
+	 */
+	private DataSource dataSource;
+
+	/**
+	 * {@link EntityMapper} needed by off heap cache and
+	 * {@link JdbcEntityStore}.
+	 */
+	private EntityMapper entityMapper;
+
+	/**
+	 * {@link InvalidationChannel} shared with other nodes, or null.
+	 */
+	private InvalidationChannel invalidationChannel;
+
 	private EntityStore store = null;
 
 	public EntityStoreFactory() {
@@ -51,7 +94,13 @@ public class EntityStoreFactory implements FactoryBean<EntityStore> {
 	@Override
 	public EntityStore getObject() throws Exception {
 		if (store == null) {
-			store = enableCachedEntities ? new CachedEntityStore(entityStore) : entityStore;
+			if ((entityStore == null) && (dataSource != null)) {
+				if (entityMapper == null) {
+					throw new IllegalStateException("No entity mapper defined for jdbc entity store");
+				}
+				entityStore = new JdbcEntityStore(dataSource, entityMapper);
+			}
+			store = enableCachedEntities ? newCachedEntityStore() : entityStore;
 			if (stores != null) {
 				store = ShardingEntityStore.builder().addAll(stores).build(store);
 			}
@@ -59,6 +108,15 @@ public class EntityStoreFactory implements FactoryBean<EntityStore> {
 		return store;
 	}
 
+	private CachedEntityStore newCachedEntityStore() {
+		final CacheBuilder<Object, Object> negativeCacheBuilder = Strings.isNullOrEmpty(negativeCacheSpecification) ? null : CacheBuilder.from(negativeCacheSpecification);
+		final OffHeapEntityCache offHeapEntityCache = offHeapCacheCapacity > 0 ? new OffHeapEntityCache(offHeapCacheCapacity) : null;
+		if ((offHeapEntityCache != null) && (entityMapper == null)) {
+			throw new IllegalStateException("No entity mapper defined for off heap cache");
+		}
+		return new CachedEntityStore(entityStore, CacheBuilder.from(cacheSpecification).recordStats(), negativeCacheBuilder, offHeapEntityCache, entityMapper, invalidationChannel);
+	}
+
 	@Override
 	public Class<?> getObjectType() {
 		return EntityStore.class;
@@ -93,4 +151,52 @@ public class EntityStoreFactory implements FactoryBean<EntityStore> {
 		this.enableCachedEntities = enableCachedEntities;
 	}
 
+	public String getCacheSpecification() {
+		return cacheSpecification;
+	}
+
+	public void setCacheSpecification(final String cacheSpecification) {
+		this.cacheSpecification = cacheSpecification;
+	}
+
+	public String getNegativeCacheSpecification() {
+		return negativeCacheSpecification;
+	}
+
+	public void setNegativeCacheSpecification(final String negativeCacheSpecification) {
+		this.negativeCacheSpecification = negativeCacheSpecification;
+	}
+
+	public long getOffHeapCacheCapacity() {
+		return offHeapCacheCapacity;
+	}
+
+	public void setOffHeapCacheCapacity(final long offHeapCacheCapacity) {
+		this.offHeapCacheCapacity = offHeapCacheCapacity;
+	}
+
+	public EntityMapper getEntityMapper() {
+		return entityMapper;
+	}
+
+	public void setEntityMapper(final EntityMapper entityMapper) {
+		this.entityMapper = entityMapper;
+	}
+
+	public DataSource getDataSource() {
+		return dataSource;
+	}
+
+	public void setDataSource(final DataSource dataSource) {
+		this.dataSource = dataSource;
+	}
+
+	public InvalidationChannel getInvalidationChannel() {
+		return invalidationChannel;
+	}
+
+	public void setInvalidationChannel(final InvalidationChannel invalidationChannel) {
+		this.invalidationChannel = invalidationChannel;
+	}
+
 }
@@ -34,6 +34,7 @@ public class MetaAttributeFactory implements FactoryBean<MetaAttribute> {
 	private Reference identity;
 	private String name;
 	private Class<?> valueClass;
+	private boolean indexed = false;
 
 	public MetaAttributeFactory() {
 		super();
@@ -41,7 +42,7 @@ public class MetaAttributeFactory implements FactoryBean<MetaAttribute> {
 
 	@Override
 	public MetaAttribute getObject() throws Exception {
-		final MetaAttribute.Builder builder = MetaAttribute.builder().name(name).valueClass(valueClass);
+		final MetaAttribute.Builder builder = MetaAttribute.builder().name(name).valueClass(valueClass).indexed(indexed);
 		if (identity != null) {
 			builder.identity(identity);
 		}
@@ -82,4 +83,12 @@ public class MetaAttributeFactory implements FactoryBean<MetaAttribute> {
 		this.valueClass = valueClass;
 	}
 
+	public boolean isIndexed() {
+		return indexed;
+	}
+
+	public void setIndexed(final boolean indexed) {
+		this.indexed = indexed;
+	}
+
 }
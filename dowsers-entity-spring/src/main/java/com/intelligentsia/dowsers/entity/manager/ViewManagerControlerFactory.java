@@ -24,6 +24,7 @@ import org.springframework.beans.factory.BeanFactory;
 import org.springframework.beans.factory.BeanFactoryAware;
 import org.springframework.beans.factory.FactoryBean;
 
+import com.intelligentsia.dowsers.entity.store.change.ChangeLog;
 import com.intelligentsia.dowsers.entity.view.ViewManager;
 import com.intelligentsia.dowsers.entity.view.ViewManagerControler;
 import com.intelligentsia.dowsers.entity.view.ViewManagerControler.Behavior;
@@ -37,6 +38,10 @@ public class ViewManagerControlerFactory implements FactoryBean<ViewManagerContr
 
 	private EntityManager entityManager;
 
+	private ChangeLog changeLog;
+
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+
 	@Override
 	public ViewManagerControler getObject() throws Exception {
 		if (entityManager == null) {
@@ -45,7 +50,7 @@ public class ViewManagerControlerFactory implements FactoryBean<ViewManagerContr
 		if (viewManager == null) {
 			viewManager = beanFactory.getBean(ViewManager.class);
 		}
-		return new ViewManagerControler(entityManager, viewManager, behavior);
+		return new ViewManagerControler(entityManager, viewManager, behavior, changeLog, parallelism);
 	}
 
 	@Override
@@ -79,6 +84,22 @@ public class ViewManagerControlerFactory implements FactoryBean<ViewManagerContr
 		this.entityManager = entityManager;
 	}
 
+	public ChangeLog getChangeLog() {
+		return changeLog;
+	}
+
+	public void setChangeLog(final ChangeLog changeLog) {
+		this.changeLog = changeLog;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	public void setParallelism(final int parallelism) {
+		this.parallelism = parallelism;
+	}
+
 	public ViewManager getViewManager() {
 		return viewManager;
 	}
@@ -25,6 +25,7 @@ import java.util.LinkedHashMap;
 import java.util.Map;
 
 import org.intelligentsia.dowsers.core.ReadOnlyIterator;
+import org.intelligentsia.dowsers.core.Sequence;
 
 import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
@@ -37,7 +38,7 @@ import com.intelligentsia.dowsers.entity.reference.Reference;
  * 
  * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
  */
-public class EntityDynamic implements Entity, Comparable<Entity>, Serializable, Iterable<Object> {
+public class EntityDynamic implements Entity, Versioned, Comparable<Entity>, Serializable, Iterable<Object> {
 	/**
 	 * serialVersionUID:long
 	 */
@@ -56,6 +57,11 @@ public class EntityDynamic implements Entity, Comparable<Entity>, Serializable,
 	 */
 	protected final transient MetaEntityContext metaEntityContext;
 
+	/**
+	 * Version of last stored state.
+	 */
+	private transient long version = Sequence.forInitialSequence();
+
 	/**
 	 * Build a new instance of EntityDynamic.java.
 	 * 
@@ -112,6 +118,16 @@ public class EntityDynamic implements Entity, Comparable<Entity>, Serializable,
 		return this;
 	}
 
+	@Override
+	public long version() {
+		return version;
+	}
+
+	@Override
+	public void version(final long version) throws IllegalArgumentException {
+		this.version = Sequence.forSpecificSequence(version);
+	}
+
 	/**
 	 * hashCode based on identity.
 	 * 
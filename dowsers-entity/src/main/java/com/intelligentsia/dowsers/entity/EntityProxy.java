@@ -23,6 +23,7 @@ import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 
+import org.intelligentsia.dowsers.core.Sequence;
 import org.intelligentsia.dowsers.core.reflection.Reflection;
 
 import com.google.common.base.Objects;
@@ -38,7 +39,7 @@ import com.intelligentsia.dowsers.entity.serializer.EntityProxyHandler;
  * 
  * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
  */
-public class EntityProxy implements InvocationHandler, EntityProxyHandler {
+public class EntityProxy implements InvocationHandler, EntityProxyHandler, Versioned {
 
 	/**
 	 * Exposed interface.
@@ -168,6 +169,22 @@ public class EntityProxy implements InvocationHandler, EntityProxyHandler {
 		return entity.contains(name);
 	}
 
+	/**
+	 * @return version of inner entity, or {@link Sequence#LATEST} if it is not
+	 *         {@link Versioned}.
+	 */
+	@Override
+	public long version() {
+		return entity instanceof Versioned ? ((Versioned) entity).version() : Sequence.forLatestSequence();
+	}
+
+	@Override
+	public void version(final long version) throws IllegalArgumentException {
+		if (entity instanceof Versioned) {
+			((Versioned) entity).version(version);
+		}
+	}
+
 	@Override
 	public int hashCode() {
 		return Objects.hashCode(entity, interfaceName.getName());
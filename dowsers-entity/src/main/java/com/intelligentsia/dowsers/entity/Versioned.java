@@ -0,0 +1,54 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity;
+
+import org.intelligentsia.dowsers.core.Sequence;
+
+/**
+ * <code>Versioned</code> is implemented by entities carrying the version of
+ * their last stored state.
+ * 
+ * <p>
+ * Version is a {@link Sequence} value maintained by
+ * {@link com.intelligentsia.dowsers.entity.store.EntityStore}: each store
+ * compare entity version with the stored one, and increment it. An entity
+ * which has never been stored, or stored before versions was introduced, has
+ * {@link Sequence#INITIAL} version and is written without check. An entity
+ * with {@link Sequence#LATEST} version overwrite any stored state.
+ * </p>
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
+ */
+public interface Versioned {
+
+	/**
+	 * @return version of last stored state.
+	 */
+	public long version();
+
+	/**
+	 * Set version.
+	 * 
+	 * @param version
+	 * @throws IllegalArgumentException
+	 *             if version is lower than {@link Sequence#INITIAL}
+	 */
+	public void version(long version) throws IllegalArgumentException;
+}
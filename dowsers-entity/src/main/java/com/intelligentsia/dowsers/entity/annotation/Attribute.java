@@ -39,4 +39,9 @@ public @interface Attribute {
 	 * @return {@link Class} of target attribute
 	 */
 	Class<?> type() default void.class;
+
+	/**
+	 * @return true if a secondary index should be maintained on this attribute
+	 */
+	boolean indexed() default false;
 }
@@ -0,0 +1,119 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.manager;
+
+import java.util.Map;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.intelligentsia.dowsers.entity.reference.Reference;
+import com.intelligentsia.dowsers.entity.serializer.EntityMapper;
+import com.intelligentsia.dowsers.entity.store.AsyncEntityStore;
+import com.intelligentsia.dowsers.entity.store.EntityNotFoundException;
+
+/**
+ * <code>AsyncEntityManager</code> is the non blocking counterpart of
+ * {@link EntityManager}: operations which reach the store return a
+ * {@link ListenableFuture}.
+ * 
+ * {@link EntityManager.Listener} are notified when an operation completes
+ * successfully, before returned future completes.
+ * 
+ * @see AsyncEntityStore
+ * @author <a href="mailto:jguibert@intelligents-ia.com">Jerome Guibert</a>
+ */
+public interface AsyncEntityManager {
+
+	/**
+	 * @see EntityManager#newInstance(Class)
+	 */
+	public <T> T newInstance(Class<T> expectedType) throws NullPointerException;
+
+	/**
+	 * @see EntityManager#newInstance(Class, Reference)
+	 */
+	public <T> T newInstance(Class<T> expectedType, Reference reference) throws NullPointerException, IllegalArgumentException;
+
+	/**
+	 * @see EntityManager#find(Class)
+	 */
+	public ListenableFuture<Iterable<Reference>> find(Class<?> expectedType) throws NullPointerException;
+
+	/**
+	 * @see EntityManager#find(Class, Reference)
+	 * @return a {@link ListenableFuture} which fails with
+	 *         {@link EntityNotFoundException} if no entity with specified
+	 *         identity and type exists.
+	 */
+	public <T> ListenableFuture<T> find(Class<T> expectedType, Reference reference) throws NullPointerException;
+
+	/**
+	 * @see EntityManager#find(Reference)
+	 */
+	public <T> ListenableFuture<T> find(Reference reference) throws NullPointerException, IllegalArgumentException;
+
+	/**
+	 * @see EntityManager#findAll(Class, Iterable)
+	 */
+	public <T> ListenableFuture<Map<Reference, T>> findAll(Class<T> expectedType, Iterable<Reference> references) throws NullPointerException;
+
+	/**
+	 * @see EntityManager#store(Object)
+	 */
+	public <T> ListenableFuture<T> store(T entity) throws NullPointerException;
+
+	/**
+	 * @see EntityManager#storeAll(Iterable)
+	 */
+	public <T> ListenableFuture<Iterable<T>> storeAll(Iterable<T> entities) throws NullPointerException;
+
+	/**
+	 * @see EntityManager#remove(Object)
+	 */
+	public <T> ListenableFuture<T> remove(T entity) throws NullPointerException;
+
+	/**
+	 * @see EntityManager#remove(Reference)
+	 */
+	public ListenableFuture<Reference> remove(Reference reference) throws NullPointerException, IllegalArgumentException;
+
+	/**
+	 * @see EntityManager#removeAll(Iterable)
+	 */
+	public ListenableFuture<Iterable<Reference>> removeAll(Iterable<Reference> references) throws NullPointerException;
+
+	/**
+	 * Add {@link EntityManager.Listener} instance.
+	 * 
+	 * @param listener
+	 */
+	public void addListener(EntityManager.Listener listener);
+
+	/**
+	 * Remove {@link EntityManager.Listener} instance.
+	 * 
+	 * @param listener
+	 */
+	public void removeListener(EntityManager.Listener listener);
+
+	/**
+	 * @return {@link EntityMapper}.
+	 */
+	EntityMapper getEntityMapper();
+}
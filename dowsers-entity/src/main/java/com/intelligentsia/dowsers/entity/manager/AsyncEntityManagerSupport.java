@@ -0,0 +1,244 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.manager;
+
+import java.util.Map;
+
+import org.intelligentsia.dowsers.core.reflection.ClassInformation;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.intelligentsia.dowsers.entity.EntityFactoryProvider;
+import com.intelligentsia.dowsers.entity.manager.EntityManager.Listener;
+import com.intelligentsia.dowsers.entity.reference.Reference;
+import com.intelligentsia.dowsers.entity.reference.References;
+import com.intelligentsia.dowsers.entity.serializer.EntityMapper;
+import com.intelligentsia.dowsers.entity.store.AsyncEntityStore;
+
+/**
+ * AsyncEntityManagerSupport implements {@link AsyncEntityManager}.
+ * 
+ * Listener is called by the thread which completes the store operation.
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com">Jerome Guibert</a>
+ */
+public class AsyncEntityManagerSupport implements AsyncEntityManager {
+	/**
+	 * {@link EntityFactoryProvider} instance.
+	 */
+	private final EntityFactoryProvider entityFactoryProvider;
+	/**
+	 * {@link AsyncEntityStore} instance.
+	 */
+	private final AsyncEntityStore entityStore;
+	/**
+	 * {@link Listener} instance.
+	 */
+	private volatile Listener listener;
+	/**
+	 * {@link EntityMapper} instance;
+	 */
+	private final EntityMapper entityMapper;
+
+	/**
+	 * Build a new instance of AsyncEntityManagerSupport.
+	 * 
+	 * @param entityFactoryProvider
+	 * @param entityStore
+	 * @param entityMapper
+	 * @throws NullPointerException
+	 *             if entityFactoryProvider or entityStore is null
+	 */
+	public AsyncEntityManagerSupport(final EntityFactoryProvider entityFactoryProvider, final AsyncEntityStore entityStore, final EntityMapper entityMapper) throws NullPointerException {
+		this(entityFactoryProvider, entityStore, entityMapper, null);
+	}
+
+	/**
+	 * Build a new instance of AsyncEntityManagerSupport.
+	 * 
+	 * @param entityFactoryProvider
+	 * @param entityStore
+	 * @param entityMapper
+	 * @param listener
+	 * @throws NullPointerException
+	 *             if entityFactoryProvider or entityStore is null
+	 */
+	public AsyncEntityManagerSupport(final EntityFactoryProvider entityFactoryProvider, final AsyncEntityStore entityStore, final EntityMapper entityMapper, final Listener listener) throws NullPointerException {
+		super();
+		this.entityFactoryProvider = Preconditions.checkNotNull(entityFactoryProvider);
+		this.entityStore = Preconditions.checkNotNull(entityStore);
+		this.listener = listener;
+		this.entityMapper = entityMapper;
+	}
+
+	@Override
+	public <T> T newInstance(final Class<T> expectedType) throws NullPointerException {
+		final T entity = entityFactoryProvider.newInstance(expectedType).newInstance();
+		final Listener listener = this.listener;
+		if (listener != null) {
+			listener.entityInstantiated(entity);
+		}
+		return entity;
+	}
+
+	@Override
+	public <T> T newInstance(final Class<T> expectedType, final Reference reference) throws NullPointerException, IllegalArgumentException {
+		Preconditions.checkArgument(Reference.newReferenceOnEntityClass(expectedType).equals(Preconditions.checkNotNull(reference).getEntityClassReference()));
+		final T entity = entityFactoryProvider.newInstance(expectedType).newInstance(reference);
+		final Listener listener = this.listener;
+		if (listener != null) {
+			listener.entityInstantiated(entity);
+		}
+		return entity;
+	}
+
+	@Override
+	public ListenableFuture<Iterable<Reference>> find(final Class<?> expectedType) throws NullPointerException {
+		return entityStore.find(expectedType);
+	}
+
+	@Override
+	public <T> ListenableFuture<T> find(final Class<T> expectedType, final Reference reference) throws NullPointerException {
+		return Futures.transform(entityStore.find(expectedType, reference), new Function<T, T>() {
+			@Override
+			public T apply(final T entity) {
+				final Listener listener = AsyncEntityManagerSupport.this.listener;
+				if (listener != null) {
+					listener.entityFinded(entity);
+				}
+				return entity;
+			}
+		});
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T> ListenableFuture<T> find(final Reference reference) throws NullPointerException, IllegalArgumentException {
+		return find((Class<T>) ClassInformation.parse(reference.getEntityClassName()).getType(), reference);
+	}
+
+	@Override
+	public <T> ListenableFuture<Map<Reference, T>> findAll(final Class<T> expectedType, final Iterable<Reference> references) throws NullPointerException {
+		return Futures.transform(entityStore.findAll(expectedType, references), new Function<Map<Reference, T>, Map<Reference, T>>() {
+			@Override
+			public Map<Reference, T> apply(final Map<Reference, T> entities) {
+				final Listener listener = AsyncEntityManagerSupport.this.listener;
+				if (listener != null) {
+					for (final T entity : entities.values()) {
+						listener.entityFinded(entity);
+					}
+				}
+				return entities;
+			}
+		});
+	}
+
+	@Override
+	public <T> ListenableFuture<T> store(final T entity) throws NullPointerException {
+		return Futures.transform(entityStore.store(entity), new Function<T, T>() {
+			@Override
+			public T apply(final T entity) {
+				final Listener listener = AsyncEntityManagerSupport.this.listener;
+				if (listener != null) {
+					listener.entityStored(entity);
+				}
+				return entity;
+			}
+		});
+	}
+
+	@Override
+	public <T> ListenableFuture<Iterable<T>> storeAll(final Iterable<T> entities) throws NullPointerException {
+		return Futures.transform(entityStore.storeAll(entities), new Function<Iterable<T>, Iterable<T>>() {
+			@Override
+			public Iterable<T> apply(final Iterable<T> entities) {
+				final Listener listener = AsyncEntityManagerSupport.this.listener;
+				if (listener != null) {
+					for (final T entity : entities) {
+						listener.entityStored(entity);
+					}
+				}
+				return entities;
+			}
+		});
+	}
+
+	@Override
+	public <T> ListenableFuture<T> remove(final T entity) throws NullPointerException {
+		return Futures.transform(entityStore.remove(entity), new Function<T, T>() {
+			@Override
+			public T apply(final T entity) {
+				final Listener listener = AsyncEntityManagerSupport.this.listener;
+				if (listener != null) {
+					listener.entityRemoved(References.identify(entity));
+				}
+				return entity;
+			}
+		});
+	}
+
+	@Override
+	public ListenableFuture<Reference> remove(final Reference reference) throws NullPointerException, IllegalArgumentException {
+		return Futures.transform(entityStore.remove(reference), new Function<Reference, Reference>() {
+			@Override
+			public Reference apply(final Reference reference) {
+				final Listener listener = AsyncEntityManagerSupport.this.listener;
+				if (listener != null) {
+					listener.entityRemoved(reference);
+				}
+				return reference;
+			}
+		});
+	}
+
+	@Override
+	public ListenableFuture<Iterable<Reference>> removeAll(final Iterable<Reference> references) throws NullPointerException {
+		return Futures.transform(entityStore.removeAll(references), new Function<Iterable<Reference>, Iterable<Reference>>() {
+			@Override
+			public Iterable<Reference> apply(final Iterable<Reference> references) {
+				final Listener listener = AsyncEntityManagerSupport.this.listener;
+				if (listener != null) {
+					for (final Reference reference : references) {
+						listener.entityRemoved(reference);
+					}
+				}
+				return references;
+			}
+		});
+	}
+
+	@Override
+	public void addListener(final Listener listener) {
+		this.listener = listener;
+	}
+
+	@Override
+	public void removeListener(final Listener listener) {
+		this.listener = null;
+	}
+
+	@Override
+	public EntityMapper getEntityMapper() {
+		return entityMapper;
+	}
+
+}
@@ -19,6 +19,8 @@
  */
 package com.intelligentsia.dowsers.entity.manager;
 
+import java.util.Map;
+
 import org.intelligentsia.dowsers.core.reflection.ClassInformation;
 
 import com.google.common.base.Preconditions;
@@ -148,6 +150,35 @@ public class EntityManagerSupport implements EntityManager {
 		notifyRemove(reference);
 	}
 
+	@Override
+	public <T> Map<Reference, T> findAll(final Class<T> expectedType, final Iterable<Reference> references) throws NullPointerException, IllegalArgumentException {
+		final Map<Reference, T> result = entityStore.findAll(expectedType, references);
+		if (listener != null) {
+			for (final T entity : result.values()) {
+				listener.entityFinded(entity);
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public <T> void storeAll(final Iterable<T> entities) throws NullPointerException, ConcurrencyException {
+		entityStore.storeAll(entities);
+		if (listener != null) {
+			for (final T entity : entities) {
+				listener.entityStored(entity);
+			}
+		}
+	}
+
+	@Override
+	public void removeAll(final Iterable<Reference> references) throws NullPointerException, IllegalArgumentException {
+		entityStore.removeAll(references);
+		for (final Reference reference : references) {
+			notifyRemove(reference);
+		}
+	}
+
 	@Override
 	public void addListener(final Listener listener) {
 		this.listener = listener;
@@ -40,6 +40,8 @@ import com.intelligentsia.dowsers.entity.reference.References;
  * <li>name: attribute's name</li>
  * <li>valueClass: attribute's class name</li>
  * <li>defaultValue: attribute's default value</li>
+ * <li>indexed: true if stores should maintain a secondary index on attribute's
+ * value</li>
  * </ul>
  * 
  * 
@@ -67,6 +69,9 @@ public class MetaAttribute implements Identified<Reference>, Serializable {
 	@JsonProperty
 	private final ClassInformation valueClass;
 
+	@JsonProperty
+	private final boolean indexed;
+
 	/**
 	 * Build a new instance of <code>MetaAttribute</code>.
 	 * 
@@ -76,6 +81,9 @@ public class MetaAttribute implements Identified<Reference>, Serializable {
 	 *            attribute name
 	 * @param valueClass
 	 *            value class
+	 * @param indexed
+	 *            true if attribute is indexed (null is read as false, for
+	 *            definition written before this property)
 	 * 
 	 * @throws NullPointerException
 	 *             if name or identity or valueClass is null
@@ -83,14 +91,14 @@ public class MetaAttribute implements Identified<Reference>, Serializable {
 	 *             if name or identity is empty
 	 */
 	@JsonCreator
-	private MetaAttribute(@JsonProperty("identity") final Reference identity, @JsonProperty("name") final String name, @JsonProperty("valueClass") final ClassInformation valueClass) throws NullPointerException, IllegalArgumentException {
+	private MetaAttribute(@JsonProperty("identity") final Reference identity, @JsonProperty("name") final String name, @JsonProperty("valueClass") final ClassInformation valueClass, @JsonProperty("indexed") final Boolean indexed) throws NullPointerException, IllegalArgumentException {
 		super();
 		Preconditions.checkArgument(Preconditions.checkNotNull(identity).isIdentifier());
 		this.identity = identity;
 		Preconditions.checkArgument(!"".equals(Preconditions.checkNotNull(name)));
 		this.name = name;
 		this.valueClass = Preconditions.checkNotNull(valueClass);
-
+		this.indexed = indexed != null && indexed.booleanValue();
 	}
 
 	@Override
@@ -118,9 +126,19 @@ public class MetaAttribute implements Identified<Reference>, Serializable {
 		return valueClass;
 	}
 
+	/**
+	 * Returns true if stores should maintain a secondary index on this
+	 * attribute. Index declaration is not part of attribute equality.
+	 * 
+	 * @return true if attribute is indexed.
+	 */
+	public boolean indexed() {
+		return indexed;
+	}
+
 	@Override
 	public String toString() {
-		return Objects.toStringHelper(getClass()).add("identity", identity()).add("name", name()).add("valueClass", valueClass()).toString();
+		return Objects.toStringHelper(getClass()).add("identity", identity()).add("name", name()).add("valueClass", valueClass()).add("indexed", indexed()).toString();
 	}
 
 	@Override
@@ -160,6 +178,7 @@ public class MetaAttribute implements Identified<Reference>, Serializable {
 		private Reference identity;
 		private String name;
 		private ClassInformation valueClass;
+		private boolean indexed = false;
 
 		/**
 		 * Build a new instance of MetaEntityContextBuilder.
@@ -170,7 +189,7 @@ public class MetaAttribute implements Identified<Reference>, Serializable {
 		}
 
 		public MetaAttribute build() {
-			return new MetaAttribute(identity, name, valueClass);
+			return new MetaAttribute(identity, name, valueClass, indexed);
 		}
 
 		/**
@@ -231,6 +250,17 @@ public class MetaAttribute implements Identified<Reference>, Serializable {
 			return this;
 		}
 
+		/**
+		 * Set indexed.
+		 * 
+		 * @param indexed
+		 * @return this instance.
+		 */
+		public Builder indexed(final boolean indexed) {
+			this.indexed = indexed;
+			return this;
+		}
+
 	}
 
 }
@@ -80,7 +80,7 @@ public enum MetaModel {
 				name("identity").valueClass(Reference.class).build();
 
 		final MetaAttribute name = MetaAttribute.builder().identity(Reference.parseString("urn:dowsers:com.intelligentsia.dowsers.entity.meta.MetaAttribute:identity#c2d720af-55eb-468d-adda-477b824d872c")).//
-				name("name").valueClass(String.class).build();
+				name("name").valueClass(String.class).indexed(true).build();
 
 		final MetaAttribute valueClass = MetaAttribute.builder().identity(Reference.parseString("urn:dowsers:com.intelligentsia.dowsers.entity.meta.MetaAttribute:identity#cd607a66-1e85-4bcc-b83e-e6494c0a1f09")).//
 				name("valueClass").valueClass(ClassInformation.class).build();
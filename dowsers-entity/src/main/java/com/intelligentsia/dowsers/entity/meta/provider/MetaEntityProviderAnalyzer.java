@@ -134,10 +134,15 @@ public class MetaEntityProviderAnalyzer implements MetaEntityProvider {
 		for (final Method method : clazz.getMethods()) {
 			if (hasAttributeSignature(method, autoDiscovering)) {
 				final String name = extractName(method);
+				final boolean indexed = extractIndexed(method);
 				if (!attributes.containsKey(name)) {
 					final Class<?> valueClass = extractValueClass(method);
 					logger.debug("Find attribute {}:{}", name, valueClass.getName());
-					attributes.put(name, MetaAttribute.builder().name(name).valueClass(valueClass).build());
+					attributes.put(name, MetaAttribute.builder().name(name).valueClass(valueClass).indexed(indexed).build());
+				} else if (indexed && !attributes.get(name).indexed()) {
+					// index declared on the other accessor
+					final MetaAttribute attribute = attributes.get(name);
+					attributes.put(name, MetaAttribute.builder().identity(attribute.identity()).name(name).valueClass(attribute.valueClass()).indexed(indexed).build());
 				}
 			}
 		}
@@ -189,6 +194,16 @@ public class MetaEntityProviderAnalyzer implements MetaEntityProvider {
 		return method.getReturnType();
 	}
 
+	/**
+	 * @param method
+	 * @return true if attribute is declared as indexed
+	 */
+	@VisibleForTesting
+	static boolean extractIndexed(final Method method) {
+		final Attribute attribute = method.getAnnotation(Attribute.class);
+		return attribute != null && attribute.indexed();
+	}
+
 	/**
 	 * Check if the specified method can be an attribute.
 	 * 
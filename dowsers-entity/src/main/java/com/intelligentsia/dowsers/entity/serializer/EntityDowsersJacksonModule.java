@@ -26,6 +26,7 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 
+import org.intelligentsia.dowsers.core.Sequence;
 import org.intelligentsia.dowsers.core.reflection.ClassInformation;
 import org.intelligentsia.dowsers.core.serializers.jackson.DowsersJacksonModule;
 import org.intelligentsia.keystone.kernel.api.artifacts.Version;
@@ -48,11 +49,13 @@ import com.google.common.collect.Sets;
 import com.intelligentsia.dowsers.entity.Entity;
 import com.intelligentsia.dowsers.entity.EntityDynamic;
 import com.intelligentsia.dowsers.entity.EntityProxy;
+import com.intelligentsia.dowsers.entity.Versioned;
 import com.intelligentsia.dowsers.entity.meta.MetaAttribute;
 import com.intelligentsia.dowsers.entity.meta.MetaEntityContext;
 import com.intelligentsia.dowsers.entity.meta.MetaEntityContextProvider;
 import com.intelligentsia.dowsers.entity.reference.Reference;
 import com.intelligentsia.dowsers.entity.reference.References;
+import com.intelligentsia.dowsers.entity.store.Versions;
 
 /**
  * EntityDowsersJacksonModule.
@@ -158,6 +161,14 @@ public class EntityDowsersJacksonModule extends DowsersJacksonModule {
 		public void serializeEntity(final T value, final JsonGenerator jgen) throws IOException, JsonProcessingException, JsonGenerationException {
 			// WRITE IDENTITY
 			jgen.writeObjectField("@identity", value.identity());
+			// WRITE VERSION IF ANY
+			final Entity entity = References.discover(value);
+			if (entity instanceof Versioned) {
+				final long version = ((Versioned) entity).version();
+				if (!Sequence.isForInitialSequence(version) && Sequence.isForSpecificSequence(version)) {
+					jgen.writeNumberField(Versions.VERSION, version);
+				}
+			}
 			// WRITE META IF NECESSARY
 			// CHECK META NOT IN CONTEXT
 			final MetaEntityContext context = metaEntityContextProvider.find(value.identity());
@@ -226,6 +237,7 @@ public class EntityDowsersJacksonModule extends DowsersJacksonModule {
 		public EntityDynamic deserialize(final JsonParser jp, final DeserializationContext ctxt) throws IOException, JsonProcessingException {
 			final Map<String, Object> attributes = Maps.newLinkedHashMap();
 			Reference identity = null;
+			long version = Sequence.forInitialSequence();
 			MetaEntityContext context = null;
 			final Map<String, ClassInformation> extraMeta = Maps.newHashMap();
 
@@ -236,6 +248,10 @@ public class EntityDowsersJacksonModule extends DowsersJacksonModule {
 					identity = jp.readValueAs(Reference.class);
 					context = metaEntityContextProvider.find(identity);
 				}
+				if (Versions.VERSION.equals(fieldname)) {
+					jp.nextToken();
+					version = jp.getLongValue();
+				}
 				if ("@meta".equals(fieldname)) {
 					jp.nextToken();
 					String name = null;
@@ -271,7 +287,9 @@ public class EntityDowsersJacksonModule extends DowsersJacksonModule {
 					}
 				}
 			}
-			return identity != null ? new EntityDynamic(identity, attributes, context) : new EntityDynamic(References.newReference(EntityDynamic.class), attributes, context);
+			final EntityDynamic entity = identity != null ? new EntityDynamic(identity, attributes, context) : new EntityDynamic(References.newReference(EntityDynamic.class), attributes, context);
+			entity.version(version);
+			return entity;
 		}
 
 	}
@@ -20,18 +20,22 @@
 package com.intelligentsia.dowsers.entity.store;
 
 import java.util.Iterator;
+import java.util.Map;
 
 import org.intelligentsia.dowsers.core.reflection.ClassInformation;
 
+import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.collect.Iterators;
+import com.google.common.collect.Maps;
 import com.intelligentsia.dowsers.entity.Entity;
 import com.intelligentsia.dowsers.entity.reference.Reference;
 import com.intelligentsia.dowsers.entity.reference.References;
 
 /**
  * AbstractEntityStore implement some behaviour like
- * {@link EntityStore#find(Reference)}.
+ * {@link EntityStore#find(Reference)}, and batch operations as a loop on single
+ * entity operations.
  * 
  * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
  */
@@ -65,4 +69,32 @@ public abstract class AbstractEntityStore implements EntityStore {
 		};
 	}
 
+	@Override
+	public <T> Map<Reference, T> findAll(final Class<T> expectedType, final Iterable<Reference> references) throws NullPointerException, IllegalArgumentException {
+		Preconditions.checkNotNull(expectedType);
+		final Map<Reference, T> result = Maps.newLinkedHashMap();
+		for (final Reference reference : Preconditions.checkNotNull(references)) {
+			try {
+				result.put(reference, find(expectedType, reference));
+			} catch (final EntityNotFoundException e) {
+				// not included
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public <T> void storeAll(final Iterable<T> entities) throws NullPointerException, ConcurrencyException, IllegalArgumentException {
+		for (final T entity : Preconditions.checkNotNull(entities)) {
+			store(entity);
+		}
+	}
+
+	@Override
+	public void removeAll(final Iterable<Reference> references) throws NullPointerException, IllegalArgumentException {
+		for (final Reference reference : Preconditions.checkNotNull(references)) {
+			remove(reference);
+		}
+	}
+
 }
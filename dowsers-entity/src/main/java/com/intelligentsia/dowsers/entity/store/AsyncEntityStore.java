@@ -0,0 +1,91 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store;
+
+import java.util.Map;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.intelligentsia.dowsers.entity.reference.Reference;
+
+/**
+ * <code>AsyncEntityStore</code> declare a non blocking version of
+ * {@link EntityStore}: each operation return a {@link ListenableFuture} which
+ * completes with operation result, or fails with exception declared by
+ * {@link EntityStore}.
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
+ */
+public interface AsyncEntityStore {
+
+	/**
+	 * @see EntityStore#find(Class)
+	 */
+	public ListenableFuture<Iterable<Reference>> find(Class<?> expectedType) throws NullPointerException;
+
+	/**
+	 * @see EntityStore#find(Reference)
+	 */
+	public ListenableFuture<Iterable<Reference>> find(Reference reference) throws NullPointerException;
+
+	/**
+	 * @see EntityStore#find(Class, Reference)
+	 * @return a {@link ListenableFuture} which fails with
+	 *         {@link EntityNotFoundException} if no entity with specified
+	 *         identity and type exists.
+	 */
+	public <T> ListenableFuture<T> find(Class<T> expectedType, Reference reference) throws NullPointerException;
+
+	/**
+	 * @see EntityStore#findAll(Class, Iterable)
+	 */
+	public <T> ListenableFuture<Map<Reference, T>> findAll(Class<T> expectedType, Iterable<Reference> references) throws NullPointerException;
+
+	/**
+	 * @see EntityStore#store(Object)
+	 * @return a {@link ListenableFuture} of stored entity, which fails with
+	 *         {@link ConcurrencyException} if entity to store is old dated.
+	 */
+	public <T> ListenableFuture<T> store(T entity) throws NullPointerException;
+
+	/**
+	 * @see EntityStore#storeAll(Iterable)
+	 * @return a {@link ListenableFuture} of stored entities.
+	 */
+	public <T> ListenableFuture<Iterable<T>> storeAll(Iterable<T> entities) throws NullPointerException;
+
+	/**
+	 * @see EntityStore#remove(Object)
+	 * @return a {@link ListenableFuture} of removed entity.
+	 */
+	public <T> ListenableFuture<T> remove(T entity) throws NullPointerException;
+
+	/**
+	 * @see EntityStore#remove(Reference)
+	 * @return a {@link ListenableFuture} of removed reference.
+	 */
+	public ListenableFuture<Reference> remove(Reference reference) throws NullPointerException;
+
+	/**
+	 * @see EntityStore#removeAll(Iterable)
+	 * @return a {@link ListenableFuture} of removed references.
+	 */
+	public ListenableFuture<Iterable<Reference>> removeAll(Iterable<Reference> references) throws NullPointerException;
+
+}
@@ -0,0 +1,91 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store;
+
+import com.intelligentsia.dowsers.entity.meta.MetaAttribute;
+import com.intelligentsia.dowsers.entity.reference.Reference;
+
+/**
+ * <code>AttributeIndex</code> maintains a secondary index from (entity class,
+ * attribute name, value) to a set of entity {@link Reference}, in order to
+ * answer {@link EntityStore#find(Reference)} without scanning all entities of
+ * a class.
+ * 
+ * Which attributes are indexed is declared with
+ * {@link MetaAttribute#indexed()} or by implementation specific declaration.
+ * An attribute can become indexed after some entities of its class were
+ * indexed: they are only found by this attribute once indexed again.
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
+ */
+public interface AttributeIndex {
+
+	/**
+	 * @param reference
+	 *            attribute reference (entity class and attribute name)
+	 * @return true if specified attribute is indexed.
+	 * @throws NullPointerException
+	 *             if reference is null
+	 */
+	public boolean isIndexed(Reference reference) throws NullPointerException;
+
+	/**
+	 * Find all entity's reference which attribute value is equal to the
+	 * identity of specified reference.
+	 * 
+	 * @param reference
+	 *            attribute reference like 'urn:dowsers:class:attribute#value'
+	 * @return an {@link Iterable} of matching entity {@link Reference}, may be
+	 *         empty.
+	 * @throws NullPointerException
+	 *             if reference is null
+	 * @throws IllegalArgumentException
+	 *             if reference attribute is not indexed
+	 */
+	public Iterable<Reference> find(Reference reference) throws NullPointerException, IllegalArgumentException;
+
+	/**
+	 * Index (or re-index) specified entity: all previous entries of this entity
+	 * are replaced.
+	 * 
+	 * @param entity
+	 *            entity instance
+	 * @throws NullPointerException
+	 *             if entity is null
+	 * @throws IllegalArgumentException
+	 *             if entity is not identifiable
+	 */
+	public <T> void index(T entity) throws NullPointerException, IllegalArgumentException;
+
+	/**
+	 * Remove all entries of specified entity.
+	 * 
+	 * @param reference
+	 *            entity reference
+	 * @throws NullPointerException
+	 *             if reference is null
+	 */
+	public void remove(Reference reference) throws NullPointerException;
+
+	/**
+	 * Remove all entries.
+	 */
+	public void clear();
+}
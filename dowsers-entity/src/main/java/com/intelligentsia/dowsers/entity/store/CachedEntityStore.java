@@ -19,24 +19,73 @@
  */
 package com.intelligentsia.dowsers.entity.store;
 
-import java.util.concurrent.TimeUnit;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
 import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.intelligentsia.dowsers.entity.reference.Reference;
 import com.intelligentsia.dowsers.entity.reference.References;
+import com.intelligentsia.dowsers.entity.serializer.EntityMapper;
 
 /**
  * <code>CachedEntityStore</code> adding cache functionality.
  * 
+ * <p>
+ * Entities are looked up in a first level heap cache of deserialized
+ * instances, then, if configured, in a second level {@link OffHeapEntityCache}
+ * of serialized entities, and at last in delegate {@link EntityStore}.
+ * </p>
+ * <p>
+ * First level is keyed by reference and expected type: the same reference
+ * read as a proxy interface and as an {@link com.intelligentsia.dowsers.entity.EntityDynamic}
+ * gives two distinct instances.
+ * </p>
+ * <p>
+ * Unknown references are remembered in a bounded negative cache, so repeated
+ * misses do not reach delegate. A loaded entity, in both cache levels, and a
+ * miss are only kept if no write occurs while they are loaded.
+ * </p>
+ * <p>
+ * With an {@link InvalidationChannel}, each written reference is published to
+ * peers once delegate is written, and references invalidated by peers are
+ * evicted from both cache levels and from negative cache.
+ * </p>
+ * 
  * @author <a href="mailto:jguibert@intelligents-ia.com">Jerome Guibert</a>
  * 
  */
 public class CachedEntityStore implements EntityStore {
 
+	/**
+	 * Default first level cache specification: maximum size of 1000 elements,
+	 * expire after 1 hour without access.
+	 */
+	public static final String DEFAULT_CACHE = "maximumSize=1000,expireAfterAccess=1h";
+
+	/**
+	 * Default negative cache specification: maximum size of 1000 elements,
+	 * expire 1 minute after write.
+	 */
+	public static final String DEFAULT_NEGATIVE_CACHE = "maximumSize=1000,expireAfterWrite=1m";
+
 	/**
 	 * Delegate {@link EntityStore}.
 	 */
@@ -44,39 +93,152 @@ public class CachedEntityStore implements EntityStore {
 
 	private final LoadingCache<KeyCache, Object> entities;
 
+	/**
+	 * Expected types requested on first level cache, used to invalidate all
+	 * keys of a reference.
+	 */
+	private final Set<Class<?>> expectedTypes = Collections.newSetFromMap(new ConcurrentHashMap<Class<?>, Boolean>());
+
+	/**
+	 * Negative cache, or null.
+	 */
+	private final Cache<Reference, Boolean> missing;
+
+	/**
+	 * Write counter.
+	 */
+	private final AtomicLong writes = new AtomicLong();
+
+	/**
+	 * Second level cache, or null.
+	 */
+	private final OffHeapEntityCache offHeapCache;
+
+	/**
+	 * {@link EntityMapper} used with second level cache, or null.
+	 */
+	private final EntityMapper entityMapper;
+
+	/**
+	 * {@link InvalidationChannel}, or null.
+	 */
+	private final InvalidationChannel invalidationChannel;
+
 	/**
 	 * Build a new instance of <code>CachedEntityStore</code> with default
 	 * cache:
 	 * <ul>
 	 * <li>Maximum size : 1000 elements</li>
 	 * <li>expire after access : 1 hour</li>
+	 * <li>statistics recorded</li>
 	 * </ul>
+	 * and default negative cache ({@link #DEFAULT_NEGATIVE_CACHE}).
 	 * 
 	 * @param entityStore
 	 * @throws NullPointerException
 	 */
 	public CachedEntityStore(final EntityStore entityStore) throws NullPointerException {
-		this(entityStore, CacheBuilder.newBuilder().maximumSize(1000).expireAfterAccess(1, TimeUnit.HOURS));
+		this(entityStore, CacheBuilder.from(DEFAULT_CACHE).recordStats());
 	}
 
 	/**
-	 * Build a new instance of <code>CachedEntityStore</code>.
+	 * Build a new instance of <code>CachedEntityStore</code> with default
+	 * negative cache ({@link #DEFAULT_NEGATIVE_CACHE}).
 	 * 
 	 * @param entityStore
 	 * @param cacheBuilder
 	 */
 	public CachedEntityStore(final EntityStore entityStore, final CacheBuilder<Object, Object> cacheBuilder) {
+		this(entityStore, cacheBuilder, null, null);
+	}
+
+	/**
+	 * Build a new instance of <code>CachedEntityStore</code> with a second
+	 * level off heap cache and default negative cache (
+	 * {@link #DEFAULT_NEGATIVE_CACHE}).
+	 * 
+	 * @param entityStore
+	 * @param cacheBuilder
+	 *            first level cache builder
+	 * @param offHeapCache
+	 *            second level cache, or null
+	 * @param entityMapper
+	 *            {@link EntityMapper} used to (de)serialize entities of second
+	 *            level cache
+	 * @throws NullPointerException
+	 *             if entityStore or cacheBuilder is null, or if entityMapper is
+	 *             null with an offHeapCache
+	 */
+	public CachedEntityStore(final EntityStore entityStore, final CacheBuilder<Object, Object> cacheBuilder, final OffHeapEntityCache offHeapCache, final EntityMapper entityMapper) throws NullPointerException {
+		this(entityStore, cacheBuilder, CacheBuilder.from(DEFAULT_NEGATIVE_CACHE), offHeapCache, entityMapper);
+	}
+
+	/**
+	 * Build a new instance of <code>CachedEntityStore</code>.
+	 * 
+	 * @param entityStore
+	 * @param cacheBuilder
+	 *            first level cache builder
+	 * @param negativeCacheBuilder
+	 *            negative cache builder, or null to disable negative cache
+	 * @param offHeapCache
+	 *            second level cache, or null
+	 * @param entityMapper
+	 *            {@link EntityMapper} used to (de)serialize entities of second
+	 *            level cache
+	 * @throws NullPointerException
+	 *             if entityStore or cacheBuilder is null, or if entityMapper is
+	 *             null with an offHeapCache
+	 */
+	public CachedEntityStore(final EntityStore entityStore, final CacheBuilder<Object, Object> cacheBuilder, final CacheBuilder<Object, Object> negativeCacheBuilder, final OffHeapEntityCache offHeapCache, final EntityMapper entityMapper)
+			throws NullPointerException {
+		this(entityStore, cacheBuilder, negativeCacheBuilder, offHeapCache, entityMapper, null);
+	}
+
+	/**
+	 * Build a new instance of <code>CachedEntityStore</code>.
+	 * 
+	 * @param entityStore
+	 * @param cacheBuilder
+	 *            first level cache builder
+	 * @param negativeCacheBuilder
+	 *            negative cache builder, or null to disable negative cache
+	 * @param offHeapCache
+	 *            second level cache, or null
+	 * @param entityMapper
+	 *            {@link EntityMapper} used to (de)serialize entities of second
+	 *            level cache
+	 * @param invalidationChannel
+	 *            {@link InvalidationChannel} shared with peers, or null
+	 * @throws NullPointerException
+	 *             if entityStore or cacheBuilder is null, or if entityMapper is
+	 *             null with an offHeapCache
+	 */
+	public CachedEntityStore(final EntityStore entityStore, final CacheBuilder<Object, Object> cacheBuilder, final CacheBuilder<Object, Object> negativeCacheBuilder, final OffHeapEntityCache offHeapCache, final EntityMapper entityMapper,
+			final InvalidationChannel invalidationChannel) throws NullPointerException {
 		super();
 		this.entityStore = Preconditions.checkNotNull(entityStore);
+		this.missing = negativeCacheBuilder != null ? negativeCacheBuilder.<Reference, Boolean> build() : null;
+		this.offHeapCache = offHeapCache;
+		this.entityMapper = offHeapCache != null ? Preconditions.checkNotNull(entityMapper) : entityMapper;
 		/**
 		 * Add specific cache loader.
 		 */
 		entities = cacheBuilder.build(new CacheLoader<KeyCache, Object>() {
 			@Override
 			public Object load(final KeyCache key) throws Exception {
-				return entityStore.find(key.expectedType, key.reference);
+				return CachedEntityStore.this.load(key.expectedType, key.reference);
 			}
 		});
+		this.invalidationChannel = invalidationChannel;
+		if (invalidationChannel != null) {
+			invalidationChannel.addListener(new InvalidationChannel.Listener() {
+				@Override
+				public void invalidated(final Iterable<Reference> references) {
+					evict(references);
+				}
+			});
+		}
 	}
 
 	@Override
@@ -92,29 +254,302 @@ public class CachedEntityStore implements EntityStore {
 	@SuppressWarnings("unchecked")
 	@Override
 	public <T> T find(final Class<T> expectedType, final Reference reference) throws EntityNotFoundException, NullPointerException, IllegalArgumentException {
+		if (isMissing(reference)) {
+			throw new EntityNotFoundException();
+		}
+		expectedTypes.add(Preconditions.checkNotNull(expectedType));
+		final long stamp = writes.get();
+		final KeyCache key = new KeyCache(expectedType, reference);
 		try {
-			return (T) entities.getUnchecked(new KeyCache(expectedType, reference));
+			final T entity = (T) entities.getUnchecked(key);
+			if (stamp != writes.get()) {
+				// may be loaded before a write
+				entities.invalidate(key);
+			}
+			return entity;
 		} catch (final UncheckedExecutionException e) {
+			if (e.getCause() instanceof EntityNotFoundException) {
+				remember(reference, stamp);
+			}
 			throw new EntityNotFoundException(e);
 		}
 	}
 
 	@Override
 	public <T> void store(final T entity) throws NullPointerException, ConcurrencyException, IllegalArgumentException {
-		entities.invalidate(new KeyCache(null, References.identify(entity)));
+		final Reference reference = References.identify(entity);
+		invalidate(reference);
 		entityStore.store(entity);
+		written(reference);
 	}
 
 	@Override
 	public <T> void remove(final T entity) throws NullPointerException, IllegalArgumentException {
-		entities.invalidate(new KeyCache(null, References.identify(entity)));
+		final Reference reference = References.identify(entity);
+		invalidate(reference);
 		entityStore.remove(entity);
+		written(reference);
 	}
 
 	@Override
 	public void remove(final Reference reference) throws NullPointerException, IllegalArgumentException {
-		entities.invalidate(new KeyCache(null, reference));
+		invalidate(reference);
 		entityStore.remove(reference);
+		written(reference);
+	}
+
+	/**
+	 * Resolve hits from caches, then fetch all misses with a single call to
+	 * delegate {@link EntityStore#findAll(Class, Iterable)}.
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T> Map<Reference, T> findAll(final Class<T> expectedType, final Iterable<Reference> references) throws NullPointerException, IllegalArgumentException {
+		expectedTypes.add(Preconditions.checkNotNull(expectedType));
+		final List<KeyCache> keys = Lists.newArrayList();
+		for (final Reference reference : Preconditions.checkNotNull(references)) {
+			if (!isMissing(reference)) {
+				keys.add(new KeyCache(expectedType, reference));
+			}
+		}
+		final Map<KeyCache, Object> hits = entities.getAllPresent(keys);
+		Map<Reference, T> loaded = Collections.emptyMap();
+		if (hits.size() < keys.size()) {
+			final List<Reference> misses = Lists.newArrayList();
+			for (final KeyCache key : keys) {
+				if (!hits.containsKey(key)) {
+					misses.add(key.reference);
+				}
+			}
+			final long stamp = writes.get();
+			loaded = loadAll(expectedType, misses, stamp);
+			for (final Reference reference : misses) {
+				final T entity = loaded.get(reference);
+				if (entity != null) {
+					final KeyCache key = new KeyCache(expectedType, reference);
+					entities.put(key, entity);
+					if (stamp != writes.get()) {
+						entities.invalidate(key);
+					}
+				} else {
+					remember(reference, stamp);
+				}
+			}
+		}
+		// keep order
+		final Map<Reference, T> result = Maps.newLinkedHashMap();
+		for (final KeyCache key : keys) {
+			final T entity = hits.containsKey(key) ? (T) hits.get(key) : loaded.get(key.reference);
+			if (entity != null) {
+				result.put(key.reference, entity);
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public <T> void storeAll(final Iterable<T> entities) throws NullPointerException, ConcurrencyException, IllegalArgumentException {
+		final List<Reference> references = Lists.newArrayList();
+		for (final T entity : Preconditions.checkNotNull(entities)) {
+			references.add(References.identify(entity));
+		}
+		invalidateAll(references);
+		entityStore.storeAll(entities);
+		writtenAll(references);
+	}
+
+	@Override
+	public void removeAll(final Iterable<Reference> references) throws NullPointerException, IllegalArgumentException {
+		invalidateAll(Preconditions.checkNotNull(references));
+		entityStore.removeAll(references);
+		writtenAll(references);
+	}
+
+	/**
+	 * @return statistics of first level cache (only if recorded by cache
+	 *         builder).
+	 */
+	public CacheStats stats() {
+		return entities.stats();
+	}
+
+	/**
+	 * @return statistics of second level cache (zero if none is configured).
+	 */
+	public CacheStats offHeapStats() {
+		return offHeapCache != null ? offHeapCache.stats() : new CacheStats(0, 0, 0, 0, 0, 0);
+	}
+
+	/**
+	 * Evict specified references from all caches, without publishing them on
+	 * {@link InvalidationChannel}.
+	 * 
+	 * @param references
+	 * @throws NullPointerException
+	 *             if references is null
+	 */
+	public void evict(final Iterable<Reference> references) throws NullPointerException {
+		invalidateAll(Preconditions.checkNotNull(references));
+		writes.incrementAndGet();
+		if (missing != null) {
+			missing.invalidateAll(references);
+		}
+	}
+
+	/**
+	 * Load an entity from second level cache, or from delegate.
+	 */
+	private <T> T load(final Class<T> expectedType, final Reference reference) {
+		final long stamp = writes.get();
+		if (offHeapCache != null) {
+			final byte[] payload = offHeapCache.get(reference);
+			if (payload != null) {
+				return read(expectedType, payload);
+			}
+		}
+		final T entity = entityStore.find(expectedType, reference);
+		cacheOffHeap(reference, entity, stamp);
+		return entity;
+	}
+
+	/**
+	 * Load entities from second level cache, then all others with one call to
+	 * delegate.
+	 * 
+	 * @param stamp
+	 *            write counter value before loading
+	 */
+	private <T> Map<Reference, T> loadAll(final Class<T> expectedType, final List<Reference> references, final long stamp) {
+		if (offHeapCache == null) {
+			return entityStore.findAll(expectedType, references);
+		}
+		final Map<Reference, T> result = Maps.newHashMap();
+		final List<Reference> misses = Lists.newArrayList();
+		for (final Reference reference : references) {
+			final byte[] payload = offHeapCache.get(reference);
+			if (payload != null) {
+				result.put(reference, read(expectedType, payload));
+			} else {
+				misses.add(reference);
+			}
+		}
+		if (!misses.isEmpty()) {
+			final Map<Reference, T> loaded = entityStore.findAll(expectedType, misses);
+			for (final Map.Entry<Reference, T> entry : loaded.entrySet()) {
+				cacheOffHeap(entry.getKey(), entry.getValue(), stamp);
+			}
+			result.putAll(loaded);
+		}
+		return result;
+	}
+
+	private <T> T read(final Class<T> expectedType, final byte[] payload) {
+		return entityMapper.readValue(new InputStreamReader(new ByteArrayInputStream(payload), Charsets.UTF_8), expectedType);
+	}
+
+	private byte[] write(final Object entity) {
+		final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		entityMapper.writeValue(new OutputStreamWriter(outputStream, Charsets.UTF_8), entity);
+		return outputStream.toByteArray();
+	}
+
+	/**
+	 * Invalidate both cache levels, for all expected types.
+	 */
+	private void invalidate(final Reference reference) {
+		for (final Class<?> expectedType : expectedTypes) {
+			entities.invalidate(new KeyCache(expectedType, reference));
+		}
+		invalidateOffHeap(reference);
+	}
+
+	private void invalidateAll(final Iterable<Reference> references) {
+		final List<KeyCache> keys = Lists.newArrayList();
+		for (final Reference reference : references) {
+			for (final Class<?> expectedType : expectedTypes) {
+				keys.add(new KeyCache(expectedType, reference));
+			}
+		}
+		entities.invalidateAll(keys);
+		for (final Reference reference : references) {
+			invalidateOffHeap(reference);
+		}
+	}
+
+	/**
+	 * Called once delegate is written. Both cache levels and negative cache
+	 * are invalidated again, as a concurrent load may have put the previous
+	 * version meanwhile.
+	 */
+	private void written(final Reference reference) {
+		writes.incrementAndGet();
+		invalidate(reference);
+		if (missing != null) {
+			missing.invalidate(reference);
+		}
+		if (invalidationChannel != null) {
+			invalidationChannel.publish(reference);
+		}
+	}
+
+	private void writtenAll(final Iterable<Reference> references) {
+		writes.incrementAndGet();
+		invalidateAll(references);
+		if (missing != null) {
+			missing.invalidateAll(references);
+		}
+		if (invalidationChannel != null) {
+			invalidationChannel.publishAll(references);
+		}
+	}
+
+	/**
+	 * Put an entity in second level cache, unless a write occurs since stamp
+	 * was taken.
+	 * 
+	 * @param reference
+	 * @param entity
+	 * @param stamp
+	 *            write counter value before loading
+	 */
+	private void cacheOffHeap(final Reference reference, final Object entity, final long stamp) {
+		if (offHeapCache != null) {
+			offHeapCache.put(reference, write(entity));
+			if (stamp != writes.get()) {
+				offHeapCache.invalidate(reference);
+			}
+		}
+	}
+
+	private void invalidateOffHeap(final Reference reference) {
+		if (offHeapCache != null) {
+			offHeapCache.invalidate(reference);
+		}
+	}
+
+	/**
+	 * @param reference
+	 * @return true if reference is in negative cache.
+	 */
+	private boolean isMissing(final Reference reference) {
+		return (missing != null) && (missing.getIfPresent(Preconditions.checkNotNull(reference)) != null);
+	}
+
+	/**
+	 * Remember a missing reference, unless a write occurs since stamp was
+	 * taken.
+	 * 
+	 * @param reference
+	 * @param stamp
+	 *            write counter value before loading
+	 */
+	private void remember(final Reference reference, final long stamp) {
+		if (missing != null) {
+			missing.put(reference, Boolean.TRUE);
+			if (stamp != writes.get()) {
+				missing.invalidate(reference);
+			}
+		}
 	}
 
 	/**
@@ -135,10 +570,7 @@ public class CachedEntityStore implements EntityStore {
 
 		@Override
 		public int hashCode() {
-			final int prime = 31;
-			int result = 1;
-			result = (prime * result) + ((reference == null) ? 0 : reference.hashCode());
-			return result;
+			return Objects.hashCode(expectedType, reference);
 		}
 
 		@Override
@@ -153,14 +585,7 @@ public class CachedEntityStore implements EntityStore {
 				return false;
 			}
 			final KeyCache other = (KeyCache) obj;
-			if (reference == null) {
-				if (other.reference != null) {
-					return false;
-				}
-			} else if (!reference.equals(other.reference)) {
-				return false;
-			}
-			return true;
+			return Objects.equal(expectedType, other.expectedType) && Objects.equal(reference, other.reference);
 		}
 	}
 
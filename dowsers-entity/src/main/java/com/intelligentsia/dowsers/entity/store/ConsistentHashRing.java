@@ -0,0 +1,182 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * <code>ConsistentHashRing</code> assign keys to named nodes.
+ * 
+ * <p>
+ * Each node is placed on a ring of 64 bits hash values at many positions
+ * (virtual nodes), and a key belongs to the first node found clockwise from
+ * its own hash. Adding or removing a node only moves keys from or to this
+ * node, about <code>1/N</code> of all keys.
+ * </p>
+ * <p>
+ * Hash function is murmur3: positions only depend on node names, so every
+ * process configured with the same names computes the same assignment. This
+ * class is not thread safe.
+ * </p>
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
+ */
+public class ConsistentHashRing<T> {
+
+	/**
+	 * Default number of virtual nodes per node.
+	 */
+	public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+	private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+	private final int virtualNodes;
+
+	/**
+	 * Ring positions and node names.
+	 */
+	private final NavigableMap<Long, String> ring = new TreeMap<Long, String>();
+
+	/**
+	 * Nodes by name, in insertion order.
+	 */
+	private final Map<String, T> nodes = Maps.newLinkedHashMap();
+
+	/**
+	 * Build a new instance of <code>ConsistentHashRing</code> with
+	 * {@link #DEFAULT_VIRTUAL_NODES}.
+	 */
+	public ConsistentHashRing() {
+		this(DEFAULT_VIRTUAL_NODES);
+	}
+
+	/**
+	 * Build a new instance of <code>ConsistentHashRing</code>.
+	 * 
+	 * @param virtualNodes
+	 *            number of virtual nodes per node
+	 * @throws IllegalArgumentException
+	 *             if virtualNodes is not positive
+	 */
+	public ConsistentHashRing(final int virtualNodes) throws IllegalArgumentException {
+		super();
+		Preconditions.checkArgument(virtualNodes > 0);
+		this.virtualNodes = virtualNodes;
+	}
+
+	/**
+	 * Build a copy of specified ring.
+	 * 
+	 * @param other
+	 * @throws NullPointerException
+	 *             if other is null
+	 */
+	public ConsistentHashRing(final ConsistentHashRing<T> other) throws NullPointerException {
+		this(Preconditions.checkNotNull(other).virtualNodes);
+		ring.putAll(other.ring);
+		nodes.putAll(other.nodes);
+	}
+
+	/**
+	 * Add a node.
+	 * 
+	 * @param name
+	 *            node name, which define its positions
+	 * @param node
+	 * @return this instance
+	 * @throws NullPointerException
+	 *             if name or node is null
+	 * @throws IllegalArgumentException
+	 *             if a node with the same name exists
+	 */
+	public ConsistentHashRing<T> add(final String name, final T node) throws NullPointerException, IllegalArgumentException {
+		Preconditions.checkArgument(!nodes.containsKey(Preconditions.checkNotNull(name)), "node '%s' already exists", name);
+		nodes.put(name, Preconditions.checkNotNull(node));
+		for (int i = 0; i < virtualNodes; i++) {
+			final Long position = hash(name + "#" + i);
+			// on collision, first name in natural order win
+			final String previous = ring.get(position);
+			if ((previous == null) || (name.compareTo(previous) < 0)) {
+				ring.put(position, name);
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Remove a node.
+	 * 
+	 * @param name
+	 *            node name
+	 * @return removed node or null if none
+	 */
+	public T remove(final String name) {
+		final T node = nodes.remove(name);
+		if (node != null) {
+			ring.values().removeAll(Collections.singleton(name));
+		}
+		return node;
+	}
+
+	/**
+	 * @param key
+	 * @return node owning specified key.
+	 * @throws NullPointerException
+	 *             if key is null
+	 * @throws IllegalStateException
+	 *             if ring is empty
+	 */
+	public T get(final String key) throws NullPointerException, IllegalStateException {
+		Preconditions.checkState(!ring.isEmpty(), "empty ring");
+		Map.Entry<Long, String> entry = ring.ceilingEntry(hash(Preconditions.checkNotNull(key)));
+		if (entry == null) {
+			entry = ring.firstEntry();
+		}
+		return nodes.get(entry.getValue());
+	}
+
+	/**
+	 * @return all nodes, in insertion order.
+	 */
+	public Collection<T> nodes() {
+		return Collections.unmodifiableCollection(nodes.values());
+	}
+
+	/**
+	 * @return number of nodes.
+	 */
+	public int size() {
+		return nodes.size();
+	}
+
+	private static long hash(final String value) {
+		return HASH_FUNCTION.hashString(value, Charsets.UTF_8).asLong();
+	}
+}
@@ -19,6 +19,8 @@
  */
 package com.intelligentsia.dowsers.entity.store;
 
+import java.util.Map;
+
 import com.intelligentsia.dowsers.entity.Entity;
 import com.intelligentsia.dowsers.entity.reference.Reference;
 
@@ -123,4 +125,47 @@ public interface EntityStore {
 	 */
 	public void remove(Reference reference) throws NullPointerException, IllegalArgumentException;
 
+	/**
+	 * Find all entities with the specified identities.
+	 * 
+	 * @param expectedType
+	 *            expected type entity
+	 * @param references
+	 *            references what we looking for.
+	 * @return a {@link Map} of {@link Reference} and entity instance, in
+	 *         iteration order of specified references. Unknown references are
+	 *         not included.
+	 * @throws NullPointerException
+	 *             if expectedType or references is null
+	 * @throws IllegalArgumentException
+	 *             if a reference is not an identifier
+	 */
+	public <T> Map<Reference, T> findAll(Class<T> expectedType, Iterable<Reference> references) throws NullPointerException, IllegalArgumentException;
+
+	/**
+	 * Store all specified entities.
+	 * 
+	 * @param entities
+	 *            entities to store
+	 * @throws NullPointerException
+	 *             if entities is null
+	 * @throws ConcurrencyException
+	 *             if an entity to store is old dated
+	 * @throws IllegalArgumentException
+	 *             if an entity is not an {@link Entity} representation
+	 */
+	public <T> void storeAll(Iterable<T> entities) throws NullPointerException, ConcurrencyException, IllegalArgumentException;
+
+	/**
+	 * Remove all specified referenced entities.
+	 * 
+	 * @param references
+	 *            entity references
+	 * @throws NullPointerException
+	 *             if references is null
+	 * @throws IllegalArgumentException
+	 *             if a reference is not an identifier
+	 */
+	public void removeAll(Iterable<Reference> references) throws NullPointerException, IllegalArgumentException;
+
 }
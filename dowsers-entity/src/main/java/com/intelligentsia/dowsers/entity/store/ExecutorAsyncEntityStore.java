@@ -0,0 +1,255 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.intelligentsia.dowsers.entity.reference.Reference;
+
+/**
+ * <code>ExecutorAsyncEntityStore</code> implements {@link AsyncEntityStore} by
+ * running a blocking {@link EntityStore} on an executor.
+ * 
+ * Default executor is bounded, in thread count and in pending operations. When
+ * queue is full, operation is run by caller thread: this slow down callers
+ * rather than buffering an unbounded amount of work.
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
+ */
+public class ExecutorAsyncEntityStore implements AsyncEntityStore, Closeable {
+
+	/**
+	 * Default number of I/O threads.
+	 */
+	public static final int DEFAULT_THREADS = 4;
+	/**
+	 * Default maximum number of pending operations.
+	 */
+	public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+	/**
+	 * Delegate {@link EntityStore}.
+	 */
+	private final EntityStore entityStore;
+
+	private final ListeningExecutorService executorService;
+
+	/**
+	 * Build a new instance of <code>ExecutorAsyncEntityStore</code> with
+	 * {@link #DEFAULT_THREADS} threads and {@link #DEFAULT_QUEUE_CAPACITY}
+	 * pending operations.
+	 * 
+	 * @param entityStore
+	 *            delegate
+	 * @throws NullPointerException
+	 *             if entityStore is null
+	 */
+	public ExecutorAsyncEntityStore(final EntityStore entityStore) throws NullPointerException {
+		this(entityStore, DEFAULT_THREADS, DEFAULT_QUEUE_CAPACITY);
+	}
+
+	/**
+	 * Build a new instance of <code>ExecutorAsyncEntityStore</code> with a
+	 * bounded executor of daemon threads.
+	 * 
+	 * @param entityStore
+	 *            delegate
+	 * @param threads
+	 *            number of I/O threads
+	 * @param queueCapacity
+	 *            maximum number of pending operations
+	 * @throws NullPointerException
+	 *             if entityStore is null
+	 * @throws IllegalArgumentException
+	 *             if threads or queueCapacity is not positive
+	 */
+	public ExecutorAsyncEntityStore(final EntityStore entityStore, final int threads, final int queueCapacity) throws NullPointerException, IllegalArgumentException {
+		this(entityStore, MoreExecutors.listeningDecorator(new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+			private final ThreadFactory delegate = Executors.defaultThreadFactory();
+
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				final Thread thread = delegate.newThread(runnable);
+				thread.setDaemon(true);
+				return thread;
+			}
+		}, new RejectedExecutionHandler() {
+			@Override
+			public void rejectedExecution(final Runnable runnable, final ThreadPoolExecutor executor) {
+				if (executor.isShutdown()) {
+					throw new RejectedExecutionException("closed");
+				}
+				// caller runs
+				runnable.run();
+			}
+		})));
+	}
+
+	/**
+	 * Build a new instance of <code>ExecutorAsyncEntityStore</code>.
+	 * 
+	 * @param entityStore
+	 *            delegate
+	 * @param executorService
+	 *            executor to use
+	 * @throws NullPointerException
+	 *             if one of parameters is null
+	 */
+	public ExecutorAsyncEntityStore(final EntityStore entityStore, final ListeningExecutorService executorService) throws NullPointerException {
+		super();
+		this.entityStore = Preconditions.checkNotNull(entityStore);
+		this.executorService = Preconditions.checkNotNull(executorService);
+	}
+
+	@Override
+	public ListenableFuture<Iterable<Reference>> find(final Class<?> expectedType) throws NullPointerException {
+		Preconditions.checkNotNull(expectedType);
+		return executorService.submit(new Callable<Iterable<Reference>>() {
+			@Override
+			public Iterable<Reference> call() throws Exception {
+				return entityStore.find(expectedType);
+			}
+		});
+	}
+
+	@Override
+	public ListenableFuture<Iterable<Reference>> find(final Reference reference) throws NullPointerException {
+		Preconditions.checkNotNull(reference);
+		return executorService.submit(new Callable<Iterable<Reference>>() {
+			@Override
+			public Iterable<Reference> call() throws Exception {
+				return entityStore.find(reference);
+			}
+		});
+	}
+
+	@Override
+	public <T> ListenableFuture<T> find(final Class<T> expectedType, final Reference reference) throws NullPointerException {
+		Preconditions.checkNotNull(expectedType);
+		Preconditions.checkNotNull(reference);
+		return executorService.submit(new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				return entityStore.find(expectedType, reference);
+			}
+		});
+	}
+
+	@Override
+	public <T> ListenableFuture<Map<Reference, T>> findAll(final Class<T> expectedType, final Iterable<Reference> references) throws NullPointerException {
+		Preconditions.checkNotNull(expectedType);
+		Preconditions.checkNotNull(references);
+		return executorService.submit(new Callable<Map<Reference, T>>() {
+			@Override
+			public Map<Reference, T> call() throws Exception {
+				return entityStore.findAll(expectedType, references);
+			}
+		});
+	}
+
+	@Override
+	public <T> ListenableFuture<T> store(final T entity) throws NullPointerException {
+		Preconditions.checkNotNull(entity);
+		return executorService.submit(new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				entityStore.store(entity);
+				return entity;
+			}
+		});
+	}
+
+	@Override
+	public <T> ListenableFuture<Iterable<T>> storeAll(final Iterable<T> entities) throws NullPointerException {
+		Preconditions.checkNotNull(entities);
+		return executorService.submit(new Callable<Iterable<T>>() {
+			@Override
+			public Iterable<T> call() throws Exception {
+				entityStore.storeAll(entities);
+				return entities;
+			}
+		});
+	}
+
+	@Override
+	public <T> ListenableFuture<T> remove(final T entity) throws NullPointerException {
+		Preconditions.checkNotNull(entity);
+		return executorService.submit(new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				entityStore.remove(entity);
+				return entity;
+			}
+		});
+	}
+
+	@Override
+	public ListenableFuture<Reference> remove(final Reference reference) throws NullPointerException {
+		Preconditions.checkNotNull(reference);
+		return executorService.submit(new Callable<Reference>() {
+			@Override
+			public Reference call() throws Exception {
+				entityStore.remove(reference);
+				return reference;
+			}
+		});
+	}
+
+	@Override
+	public ListenableFuture<Iterable<Reference>> removeAll(final Iterable<Reference> references) throws NullPointerException {
+		Preconditions.checkNotNull(references);
+		return executorService.submit(new Callable<Iterable<Reference>>() {
+			@Override
+			public Iterable<Reference> call() throws Exception {
+				entityStore.removeAll(references);
+				return references;
+			}
+		});
+	}
+
+	/**
+	 * @return delegate {@link EntityStore}.
+	 */
+	public EntityStore getEntityStore() {
+		return entityStore;
+	}
+
+	/**
+	 * Shutdown executor: pending operations are completed, new ones are
+	 * rejected with {@link RejectedExecutionException}.
+	 */
+	@Override
+	public void close() {
+		executorService.shutdown();
+	}
+}
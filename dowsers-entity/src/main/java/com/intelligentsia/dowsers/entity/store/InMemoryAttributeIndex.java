@@ -0,0 +1,217 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import org.intelligentsia.keystone.kernel.api.StringUtils;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.intelligentsia.dowsers.entity.Entity;
+import com.intelligentsia.dowsers.entity.meta.MetaAttribute;
+import com.intelligentsia.dowsers.entity.meta.MetaEntityContext;
+import com.intelligentsia.dowsers.entity.meta.MetaEntityContextProvider;
+import com.intelligentsia.dowsers.entity.reference.Reference;
+import com.intelligentsia.dowsers.entity.reference.References;
+
+/**
+ * <code>InMemoryAttributeIndex</code> implements {@link AttributeIndex} with
+ * hash maps.
+ * 
+ * Indexed attributes of a class are the union of:
+ * <ul>
+ * <li>explicit declaration ({@link #declare(Class, String)})</li>
+ * <li>{@link MetaAttribute#indexed()} of the {@link MetaEntityContext} given by
+ * an optional {@link MetaEntityContextProvider}</li>
+ * <li>{@link MetaAttribute#indexed()} of the {@link MetaEntityContext} of each
+ * indexed entity</li>
+ * </ul>
+ * 
+ * As {@link AbstractEntityStore#find(Reference)} compare attribute value with
+ * reference identity, only {@link String} values are indexed: others values
+ * can never match.
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
+ */
+public class InMemoryAttributeIndex implements AttributeIndex {
+
+	private final MetaEntityContextProvider metaEntityContextProvider;
+
+	/**
+	 * Indexed attribute names per class name.
+	 */
+	private final Map<String, Set<String>> indexedAttributes = Maps.newHashMap();
+
+	/**
+	 * Entries: attribute key, value, references.
+	 */
+	private final Map<String, Map<String, Set<Reference>>> entries = Maps.newHashMap();
+
+	/**
+	 * Reverse entries: reference, attribute key, value.
+	 */
+	private final Map<Reference, Map<String, String>> reverse = Maps.newHashMap();
+
+	/**
+	 * Build a new instance of <code>InMemoryAttributeIndex</code> without
+	 * {@link MetaEntityContextProvider}.
+	 */
+	public InMemoryAttributeIndex() {
+		this(null);
+	}
+
+	/**
+	 * Build a new instance of <code>InMemoryAttributeIndex</code>.
+	 * 
+	 * @param metaEntityContextProvider
+	 *            {@link MetaEntityContextProvider} instance or null
+	 */
+	public InMemoryAttributeIndex(final MetaEntityContextProvider metaEntityContextProvider) {
+		super();
+		this.metaEntityContextProvider = metaEntityContextProvider;
+	}
+
+	/**
+	 * Declare an indexed attribute. Entities of this class indexed before are
+	 * not found by this attribute until they are indexed again.
+	 * 
+	 * @param entityClass
+	 *            entity class
+	 * @param attributeName
+	 *            attribute name
+	 * @return this instance
+	 * @throws NullPointerException
+	 *             if entityClass or attributeName is null
+	 */
+	public synchronized InMemoryAttributeIndex declare(final Class<?> entityClass, final String attributeName) throws NullPointerException {
+		indexedAttributes(Preconditions.checkNotNull(entityClass).getName()).add(Preconditions.checkNotNull(attributeName));
+		return this;
+	}
+
+	@Override
+	public synchronized boolean isIndexed(final Reference reference) throws NullPointerException {
+		return indexedAttributes(reference.getEntityClassName()).contains(reference.getAttributeName());
+	}
+
+	@Override
+	public synchronized Iterable<Reference> find(final Reference reference) throws NullPointerException, IllegalArgumentException {
+		Preconditions.checkArgument(isIndexed(reference), StringUtils.format("attribute '%s' is not indexed", reference));
+		final Map<String, Set<Reference>> values = entries.get(key(reference.getEntityClassName(), reference.getAttributeName()));
+		if (values != null) {
+			final Set<Reference> references = values.get(reference.getIdentity());
+			if (references != null) {
+				return ImmutableSet.copyOf(references);
+			}
+		}
+		return Collections.emptySet();
+	}
+
+	@Override
+	public synchronized <T> void index(final T object) throws NullPointerException, IllegalArgumentException {
+		final Reference reference = References.identify(object);
+		final Entity entity = References.discover(object);
+		remove(reference);
+		final String className = reference.getEntityClassName();
+		final Set<String> names = indexedAttributes(className);
+		learn(names, entity.metaEntityContext());
+		final Map<String, String> indexed = Maps.newHashMap();
+		for (final String name : names) {
+			final Object value = entity.attribute(name);
+			if (value instanceof String) {
+				final String key = key(className, name);
+				Map<String, Set<Reference>> values = entries.get(key);
+				if (values == null) {
+					values = Maps.newHashMap();
+					entries.put(key, values);
+				}
+				Set<Reference> references = values.get(value);
+				if (references == null) {
+					references = Sets.newHashSet();
+					values.put((String) value, references);
+				}
+				references.add(reference);
+				indexed.put(key, (String) value);
+			}
+		}
+		if (!indexed.isEmpty()) {
+			reverse.put(reference, indexed);
+		}
+	}
+
+	@Override
+	public synchronized void remove(final Reference reference) throws NullPointerException {
+		final Map<String, String> indexed = reverse.remove(Preconditions.checkNotNull(reference));
+		if (indexed != null) {
+			for (final Map.Entry<String, String> entry : indexed.entrySet()) {
+				final Map<String, Set<Reference>> values = entries.get(entry.getKey());
+				final Set<Reference> references = values.get(entry.getValue());
+				references.remove(reference);
+				if (references.isEmpty()) {
+					values.remove(entry.getValue());
+				}
+			}
+		}
+	}
+
+	@Override
+	public synchronized void clear() {
+		entries.clear();
+		reverse.clear();
+	}
+
+	/**
+	 * @param className
+	 * @return indexed attribute names of specified class.
+	 */
+	private Set<String> indexedAttributes(final String className) {
+		Set<String> names = indexedAttributes.get(className);
+		if (names == null) {
+			names = Sets.newHashSet();
+			if (metaEntityContextProvider != null) {
+				try {
+					learn(names, metaEntityContextProvider.find(Reference.parseString(Reference.URN_DOWSERS + className + Reference.URN_SEPARATOR)));
+				} catch (final IllegalArgumentException e) {
+					// no context for this class
+				}
+			}
+			indexedAttributes.put(className, names);
+		}
+		return names;
+	}
+
+	private static void learn(final Set<String> names, final MetaEntityContext context) {
+		if (context != null) {
+			for (final MetaAttribute metaAttribute : context) {
+				if (metaAttribute.indexed()) {
+					names.add(metaAttribute.name());
+				}
+			}
+		}
+	}
+
+	private static String key(final String className, final String attributeName) {
+		return className + Reference.URN_SEPARATOR + attributeName;
+	}
+}
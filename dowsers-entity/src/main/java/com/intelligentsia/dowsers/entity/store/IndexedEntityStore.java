@@ -0,0 +1,223 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.intelligentsia.dowsers.core.reflection.ClassInformation;
+
+import com.google.common.base.Preconditions;
+import com.intelligentsia.dowsers.entity.meta.MetaEntityContextProvider;
+import com.intelligentsia.dowsers.entity.meta.MetaEntityContextProviderSupport;
+import com.intelligentsia.dowsers.entity.reference.Reference;
+import com.intelligentsia.dowsers.entity.reference.References;
+
+/**
+ * <code>IndexedEntityStore</code> maintains an {@link AttributeIndex} on
+ * {@link #store(Object)} and {@link #remove(Reference)}, and answers
+ * {@link #find(Reference)} on indexed attributes with an index lookup rather
+ * than a scan of all entities of the class.
+ * 
+ * Index of an attribute is built from delegate store on its first lookup
+ * (entities stored before this instance was created, or before the attribute
+ * was indexed, are not known), then maintained on each write. Lookup on a non
+ * indexed attribute is delegated.
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
+ */
+public class IndexedEntityStore implements EntityStore {
+
+	/**
+	 * Delegate {@link EntityStore}.
+	 */
+	protected final EntityStore entityStore;
+
+	private final AttributeIndex attributeIndex;
+
+	/**
+	 * Class and attribute names with a built index.
+	 */
+	private final Set<String> built = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/**
+	 * Writes hold read lock, index building holds write lock.
+	 */
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * Build a new instance of <code>IndexedEntityStore</code> using
+	 * {@link InMemoryAttributeIndex} with the meta model context (
+	 * {@link MetaEntityContextProviderSupport}).
+	 * 
+	 * @param entityStore
+	 *            delegate
+	 * @throws NullPointerException
+	 *             if entityStore is null
+	 */
+	public IndexedEntityStore(final EntityStore entityStore) throws NullPointerException {
+		this(entityStore, MetaEntityContextProviderSupport.builder().build());
+	}
+
+	/**
+	 * Build a new instance of <code>IndexedEntityStore</code> using
+	 * {@link InMemoryAttributeIndex}.
+	 * 
+	 * @param entityStore
+	 *            delegate
+	 * @param metaEntityContextProvider
+	 *            {@link MetaEntityContextProvider} used to know indexed
+	 *            attributes
+	 * @throws NullPointerException
+	 *             if entityStore is null
+	 */
+	public IndexedEntityStore(final EntityStore entityStore, final MetaEntityContextProvider metaEntityContextProvider) throws NullPointerException {
+		this(entityStore, new InMemoryAttributeIndex(metaEntityContextProvider));
+	}
+
+	/**
+	 * Build a new instance of <code>IndexedEntityStore</code>.
+	 * 
+	 * @param entityStore
+	 *            delegate
+	 * @param attributeIndex
+	 *            {@link AttributeIndex} instance
+	 * @throws NullPointerException
+	 *             if entityStore or attributeIndex is null
+	 */
+	public IndexedEntityStore(final EntityStore entityStore, final AttributeIndex attributeIndex) throws NullPointerException {
+		super();
+		this.entityStore = Preconditions.checkNotNull(entityStore);
+		this.attributeIndex = Preconditions.checkNotNull(attributeIndex);
+	}
+
+	@Override
+	public Iterable<Reference> find(final Class<?> expectedType) throws NullPointerException {
+		return entityStore.find(expectedType);
+	}
+
+	@Override
+	public Iterable<Reference> find(final Reference reference) throws NullPointerException {
+		if (!attributeIndex.isIndexed(reference)) {
+			return entityStore.find(reference);
+		}
+		build(reference);
+		return attributeIndex.find(reference);
+	}
+
+	@Override
+	public <T> T find(final Class<T> expectedType, final Reference reference) throws EntityNotFoundException, NullPointerException, IllegalArgumentException {
+		return entityStore.find(expectedType, reference);
+	}
+
+	@Override
+	public <T> void store(final T entity) throws NullPointerException, ConcurrencyException, IllegalArgumentException {
+		lock.readLock().lock();
+		try {
+			entityStore.store(entity);
+			attributeIndex.index(entity);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public <T> void remove(final T entity) throws NullPointerException, IllegalArgumentException {
+		remove(References.identify(entity));
+	}
+
+	@Override
+	public void remove(final Reference reference) throws NullPointerException, IllegalArgumentException {
+		lock.readLock().lock();
+		try {
+			entityStore.remove(reference);
+			attributeIndex.remove(reference);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public <T> Map<Reference, T> findAll(final Class<T> expectedType, final Iterable<Reference> references) throws NullPointerException, IllegalArgumentException {
+		return entityStore.findAll(expectedType, references);
+	}
+
+	@Override
+	public <T> void storeAll(final Iterable<T> entities) throws NullPointerException, ConcurrencyException, IllegalArgumentException {
+		lock.readLock().lock();
+		try {
+			entityStore.storeAll(entities);
+			for (final T entity : entities) {
+				attributeIndex.index(entity);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void removeAll(final Iterable<Reference> references) throws NullPointerException, IllegalArgumentException {
+		lock.readLock().lock();
+		try {
+			entityStore.removeAll(references);
+			for (final Reference reference : references) {
+				attributeIndex.remove(reference);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Build index of specified attribute if not already done: all entities of
+	 * its class are indexed again, as an attribute can become indexed after
+	 * some of them were written.
+	 * 
+	 * @param reference
+	 *            attribute reference
+	 */
+	private void build(final Reference reference) {
+		final String key = reference.getEntityClassName() + Reference.URN_SEPARATOR + reference.getAttributeName();
+		if (built.contains(key)) {
+			return;
+		}
+		lock.writeLock().lock();
+		try {
+			if (built.contains(key)) {
+				return;
+			}
+			final Class<?> expectedType = ClassInformation.parse(reference.getEntityClassName()).getType();
+			for (final Reference entity : entityStore.find(expectedType)) {
+				try {
+					attributeIndex.index(entityStore.find(expectedType, entity));
+				} catch (final EntityNotFoundException e) {
+					// removed meanwhile
+				}
+			}
+			built.add(key);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+}
@@ -0,0 +1,96 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store;
+
+import java.io.Closeable;
+
+import com.intelligentsia.dowsers.entity.reference.Reference;
+
+/**
+ * <code>InvalidationChannel</code> broadcast invalidated {@link Reference} to
+ * peers sharing the same underlying {@link EntityStore}, in order to keep
+ * their {@link CachedEntityStore} coherent.
+ * 
+ * <p>
+ * A channel never delivers to its own listeners the references it publishes.
+ * Implementations may batch published references, delivery is asynchronous
+ * and best effort.
+ * </p>
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com">Jerome Guibert</a>
+ */
+public interface InvalidationChannel extends Closeable {
+
+	/**
+	 * Publish specified invalidated reference.
+	 * 
+	 * @param reference
+	 * @throws NullPointerException
+	 *             if reference is null
+	 */
+	public void publish(Reference reference) throws NullPointerException;
+
+	/**
+	 * Publish all specified invalidated references.
+	 * 
+	 * @param references
+	 * @throws NullPointerException
+	 *             if references is null
+	 */
+	public void publishAll(Iterable<Reference> references) throws NullPointerException;
+
+	/**
+	 * Add specified {@link Listener}.
+	 * 
+	 * @param listener
+	 * @throws NullPointerException
+	 *             if listener is null
+	 */
+	public void addListener(Listener listener) throws NullPointerException;
+
+	/**
+	 * Remove specified {@link Listener}.
+	 * 
+	 * @param listener
+	 */
+	public void removeListener(Listener listener);
+
+	/**
+	 * Close this channel: pending references are flushed, and no more
+	 * references are received.
+	 */
+	@Override
+	public void close();
+
+	/**
+	 * Listener.
+	 * 
+	 * @author <a href="mailto:jguibert@intelligents-ia.com">Jerome Guibert</a>
+	 */
+	public interface Listener {
+
+		/**
+		 * Call when a peer has invalidated specified references.
+		 * 
+		 * @param references
+		 */
+		void invalidated(Iterable<Reference> references);
+	}
+}
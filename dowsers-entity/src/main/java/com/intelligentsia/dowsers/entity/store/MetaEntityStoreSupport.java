@@ -42,13 +42,17 @@ public class MetaEntityStoreSupport implements MetaEntityStore {
 	/**
 	 * Build a new instance of MetaEntityStoreSupport.java.
 	 * 
+	 * Specified {@link EntityStore} is decorated with an
+	 * {@link IndexedEntityStore} (if not already), so lookup on 'name'
+	 * attribute did not scan all {@link MetaEntity}.
+	 * 
 	 * @param entityStore
 	 * @throws NullPointerException
 	 *             if entityStore is null
 	 */
 	public MetaEntityStoreSupport(final EntityStore entityStore) throws NullPointerException {
 		super();
-		this.entityStore = Preconditions.checkNotNull(entityStore);
+		this.entityStore = Preconditions.checkNotNull(entityStore) instanceof IndexedEntityStore ? entityStore : new IndexedEntityStore(entityStore);
 	}
 
 	@Override
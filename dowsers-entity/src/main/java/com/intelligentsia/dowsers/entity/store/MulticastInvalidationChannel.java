@@ -0,0 +1,361 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.intelligentsia.dowsers.core.DowsersException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.intelligentsia.dowsers.entity.reference.Reference;
+
+/**
+ * <code>MulticastInvalidationChannel</code> implements
+ * {@link InvalidationChannel} with UDP multicast datagrams.
+ * 
+ * <p>
+ * Published references are queued and sent in batch every flush interval, or
+ * as soon as a datagram is full. Each datagram carries the identifier of its
+ * sender, in order to ignore our own messages looped back by the group.
+ * </p>
+ * <p>
+ * Datagram format: magic number, sender identifier (two longs), reference
+ * count (short) and references in modified UTF-8.
+ * </p>
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
+ */
+public class MulticastInvalidationChannel implements InvalidationChannel {
+
+	/**
+	 * Default flush interval in milliseconds.
+	 */
+	public static final long DEFAULT_FLUSH_INTERVAL = 50;
+
+	/**
+	 * Default maximum datagram size in bytes, fitting in usual MTU.
+	 */
+	public static final int DEFAULT_MAX_PACKET_SIZE = 1400;
+
+	private static final int MAGIC = 0x444f5753;
+
+	/**
+	 * Datagram header size: magic, sender identifier and count.
+	 */
+	private static final int HEADER_SIZE = 4 + 16 + 2;
+
+	private static final Logger logger = LoggerFactory.getLogger(MulticastInvalidationChannel.class);
+
+	private final InetAddress group;
+
+	private final int port;
+
+	private final int maxPacketSize;
+
+	private final MulticastSocket socket;
+
+	private final UUID sender = UUID.randomUUID();
+
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	/**
+	 * Pending references (guarded by itself).
+	 */
+	private final Collection<String> pending = new LinkedHashSet<String>();
+
+	private int pendingSize = 0;
+
+	private final ScheduledExecutorService flusher;
+
+	private final Thread receiver;
+
+	private volatile boolean closed = false;
+
+	/**
+	 * Build a new instance of <code>MulticastInvalidationChannel</code> with
+	 * default flush interval and datagram size, on default network interface.
+	 * 
+	 * @param group
+	 *            multicast group address
+	 * @param port
+	 *            port number
+	 * @throws NullPointerException
+	 *             if group is null
+	 * @throws DowsersException
+	 *             if socket cannot be opened
+	 */
+	public MulticastInvalidationChannel(final InetAddress group, final int port) throws NullPointerException, DowsersException {
+		this(group, port, null, DEFAULT_FLUSH_INTERVAL, DEFAULT_MAX_PACKET_SIZE);
+	}
+
+	/**
+	 * Build a new instance of <code>MulticastInvalidationChannel</code>.
+	 * 
+	 * @param group
+	 *            multicast group address
+	 * @param port
+	 *            port number
+	 * @param networkInterface
+	 *            network interface to use, or null for default
+	 * @param flushInterval
+	 *            flush interval in milliseconds
+	 * @param maxPacketSize
+	 *            maximum datagram size in bytes
+	 * @throws NullPointerException
+	 *             if group is null
+	 * @throws IllegalArgumentException
+	 *             if group is not a multicast address, if flushInterval is
+	 *             not positive, or if maxPacketSize is too small
+	 * @throws DowsersException
+	 *             if socket cannot be opened
+	 */
+	public MulticastInvalidationChannel(final InetAddress group, final int port, final NetworkInterface networkInterface, final long flushInterval, final int maxPacketSize) throws NullPointerException, IllegalArgumentException,
+			DowsersException {
+		super();
+		this.group = Preconditions.checkNotNull(group);
+		Preconditions.checkArgument(group.isMulticastAddress(), "not a multicast address: %s", group);
+		Preconditions.checkArgument(flushInterval > 0);
+		Preconditions.checkArgument(maxPacketSize > HEADER_SIZE + 256 && maxPacketSize <= 65507);
+		this.port = port;
+		this.maxPacketSize = maxPacketSize;
+		try {
+			socket = new MulticastSocket(port);
+			if (networkInterface != null) {
+				socket.setNetworkInterface(networkInterface);
+			}
+			socket.setLoopbackMode(false);
+			socket.joinGroup(group);
+		} catch (final IOException e) {
+			throw new DowsersException(e);
+		}
+		final ThreadFactory threadFactory = new ThreadFactory() {
+			private final ThreadFactory delegate = Executors.defaultThreadFactory();
+
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				final Thread thread = delegate.newThread(runnable);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+		flusher = Executors.newSingleThreadScheduledExecutor(threadFactory);
+		flusher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+		receiver = threadFactory.newThread(new Runnable() {
+			@Override
+			public void run() {
+				receive();
+			}
+		});
+		receiver.start();
+	}
+
+	@Override
+	public void publish(final Reference reference) throws NullPointerException {
+		final String value = Preconditions.checkNotNull(reference).toString();
+		Preconditions.checkState(!closed, "closed");
+		boolean full;
+		synchronized (pending) {
+			if (pending.add(value)) {
+				pendingSize += sizeOf(value);
+			}
+			full = pendingSize + HEADER_SIZE >= maxPacketSize;
+		}
+		if (full) {
+			flusher.execute(new Runnable() {
+				@Override
+				public void run() {
+					flush();
+				}
+			});
+		}
+	}
+
+	@Override
+	public void publishAll(final Iterable<Reference> references) throws NullPointerException {
+		for (final Reference reference : Preconditions.checkNotNull(references)) {
+			publish(reference);
+		}
+	}
+
+	@Override
+	public void addListener(final Listener listener) throws NullPointerException {
+		listeners.add(Preconditions.checkNotNull(listener));
+	}
+
+	@Override
+	public void removeListener(final Listener listener) {
+		listeners.remove(listener);
+	}
+
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		flusher.shutdown();
+		try {
+			flusher.awaitTermination(1, TimeUnit.SECONDS);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flush();
+		try {
+			socket.leaveGroup(group);
+		} catch (final IOException e) {
+			logger.debug("leave group", e);
+		}
+		socket.close();
+	}
+
+	/**
+	 * Send all pending references, in as many datagrams as needed.
+	 */
+	void flush() {
+		final List<String> references;
+		synchronized (pending) {
+			if (pending.isEmpty()) {
+				return;
+			}
+			references = Lists.newArrayList(pending);
+			pending.clear();
+			pendingSize = 0;
+		}
+		int from = 0;
+		int size = HEADER_SIZE;
+		for (int i = 0; i < references.size(); i++) {
+			final int length = sizeOf(references.get(i));
+			if ((size + length > maxPacketSize) && (i > from)) {
+				send(references.subList(from, i));
+				from = i;
+				size = HEADER_SIZE;
+			}
+			size += length;
+		}
+		send(references.subList(from, references.size()));
+	}
+
+	private void send(final List<String> references) {
+		final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(maxPacketSize);
+		final DataOutputStream output = new DataOutputStream(outputStream);
+		try {
+			output.writeInt(MAGIC);
+			output.writeLong(sender.getMostSignificantBits());
+			output.writeLong(sender.getLeastSignificantBits());
+			output.writeShort(references.size());
+			for (final String reference : references) {
+				output.writeUTF(reference);
+			}
+			output.flush();
+			final byte[] data = outputStream.toByteArray();
+			socket.send(new DatagramPacket(data, data.length, group, port));
+		} catch (final IOException e) {
+			// best effort: peers will rely on cache expiration
+			logger.warn("unable to send invalidation of " + references.size() + " references", e);
+		}
+	}
+
+	private void receive() {
+		final byte[] buffer = new byte[65535];
+		while (!closed) {
+			final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+			try {
+				socket.receive(packet);
+			} catch (final IOException e) {
+				if (!closed) {
+					logger.warn("unable to receive invalidation", e);
+				}
+				continue;
+			}
+			final List<Reference> references = parse(packet);
+			if ((references != null) && !references.isEmpty()) {
+				for (final Listener listener : listeners) {
+					try {
+						listener.invalidated(references);
+					} catch (final RuntimeException e) {
+						logger.error("invalidation listener failed", e);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param packet
+	 * @return references of packet, or null if packet is ours or is not an
+	 *         invalidation message.
+	 */
+	private List<Reference> parse(final DatagramPacket packet) {
+		final DataInputStream input = new DataInputStream(new ByteArrayInputStream(packet.getData(), packet.getOffset(), packet.getLength()));
+		try {
+			if (input.readInt() != MAGIC) {
+				return null;
+			}
+			if ((input.readLong() == sender.getMostSignificantBits()) & (input.readLong() == sender.getLeastSignificantBits())) {
+				return null;
+			}
+			final int count = input.readUnsignedShort();
+			final List<Reference> references = Lists.newArrayListWithCapacity(count);
+			for (int i = 0; i < count; i++) {
+				references.add(Reference.parseString(input.readUTF()));
+			}
+			return references;
+		} catch (final IOException e) {
+			logger.debug("malformed invalidation message", e);
+		} catch (final IllegalArgumentException e) {
+			logger.debug("malformed invalidation message", e);
+		}
+		return null;
+	}
+
+	/**
+	 * @return encoded size of specified reference.
+	 */
+	private static int sizeOf(final String reference) {
+		return 2 + reference.getBytes(Charsets.UTF_8).length;
+	}
+
+}
@@ -0,0 +1,268 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheStats;
+import com.intelligentsia.dowsers.entity.reference.Reference;
+
+/**
+ * <code>OffHeapEntityCache</code> keeps serialized entities outside of java
+ * heap, in direct {@link ByteBuffer} slabs.
+ * 
+ * <p>
+ * Slabs are split in fixed size blocks: an entry uses as many blocks as needed
+ * by its size, and blocks are given back to a free list on removal. Only the
+ * index (reference to block numbers) lives on heap.
+ * </p>
+ * <p>
+ * When there is not enough free blocks, least recently used entries are
+ * evicted. An entry larger than the whole capacity is not cached.
+ * </p>
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
+ */
+public class OffHeapEntityCache {
+
+	/**
+	 * Default block size in bytes.
+	 */
+	public static final int DEFAULT_BLOCK_SIZE = 512;
+
+	/**
+	 * Maximum size of a slab (1 Go).
+	 */
+	private static final int MAX_SLAB_SIZE = 1 << 30;
+
+	private final int blockSize;
+
+	private final int blocksPerSlab;
+
+	private final ByteBuffer[] slabs;
+
+	/**
+	 * Stack of free block numbers.
+	 */
+	private final int[] freeBlocks;
+
+	private int freeCount;
+
+	/**
+	 * Index in access order (LRU first).
+	 */
+	private final LinkedHashMap<Reference, Entry> entries = new LinkedHashMap<Reference, Entry>(16, 0.75f, true);
+
+	private long hitCount = 0;
+	private long missCount = 0;
+	private long evictionCount = 0;
+
+	/**
+	 * Build a new instance of <code>OffHeapEntityCache</code> with
+	 * {@link #DEFAULT_BLOCK_SIZE}.
+	 * 
+	 * @param capacity
+	 *            capacity in bytes
+	 * @throws IllegalArgumentException
+	 *             if capacity is lower than block size
+	 */
+	public OffHeapEntityCache(final long capacity) throws IllegalArgumentException {
+		this(capacity, DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * Build a new instance of <code>OffHeapEntityCache</code>.
+	 * 
+	 * @param capacity
+	 *            capacity in bytes
+	 * @param blockSize
+	 *            size of block in bytes
+	 * @throws IllegalArgumentException
+	 *             if blockSize is not positive or capacity is lower than block
+	 *             size
+	 */
+	public OffHeapEntityCache(final long capacity, final int blockSize) throws IllegalArgumentException {
+		super();
+		Preconditions.checkArgument(blockSize > 0);
+		Preconditions.checkArgument(capacity >= blockSize);
+		final long blockCount = capacity / blockSize;
+		Preconditions.checkArgument(blockCount <= Integer.MAX_VALUE, "capacity too large");
+		this.blockSize = blockSize;
+		blocksPerSlab = Math.max(1, MAX_SLAB_SIZE / blockSize);
+		slabs = new ByteBuffer[(int) ((blockCount + blocksPerSlab - 1) / blocksPerSlab)];
+		for (int i = 0; i < slabs.length; i++) {
+			final long blocks = Math.min(blocksPerSlab, blockCount - ((long) i * blocksPerSlab));
+			slabs[i] = ByteBuffer.allocateDirect((int) (blocks * blockSize));
+		}
+		freeBlocks = new int[(int) blockCount];
+		for (int i = 0; i < freeBlocks.length; i++) {
+			freeBlocks[i] = freeBlocks.length - 1 - i;
+		}
+		freeCount = freeBlocks.length;
+	}
+
+	/**
+	 * @param reference
+	 * @return serialized entity or null if not cached.
+	 */
+	public synchronized byte[] get(final Reference reference) {
+		final Entry entry = entries.get(reference);
+		if (entry == null) {
+			missCount++;
+			return null;
+		}
+		hitCount++;
+		final byte[] payload = new byte[entry.length];
+		int offset = 0;
+		for (final int block : entry.blocks) {
+			final int length = Math.min(blockSize, entry.length - offset);
+			final ByteBuffer slab = position(block);
+			slab.get(payload, offset, length);
+			offset += length;
+		}
+		return payload;
+	}
+
+	/**
+	 * Put specified serialized entity, evicting least recently used entries if
+	 * needed.
+	 * 
+	 * @param reference
+	 * @param payload
+	 * @return true if payload is cached.
+	 */
+	public synchronized boolean put(final Reference reference, final byte[] payload) {
+		Preconditions.checkNotNull(reference);
+		invalidate(reference);
+		final int needed = Math.max(1, (payload.length + blockSize - 1) / blockSize);
+		if (needed > freeBlocks.length) {
+			return false;
+		}
+		// evict
+		final Iterator<Entry> iterator = entries.values().iterator();
+		while (freeCount < needed) {
+			release(iterator.next());
+			iterator.remove();
+			evictionCount++;
+		}
+		// write
+		final int[] blocks = new int[needed];
+		int offset = 0;
+		for (int i = 0; i < needed; i++) {
+			blocks[i] = freeBlocks[--freeCount];
+			final int length = Math.min(blockSize, payload.length - offset);
+			position(blocks[i]).put(payload, offset, length);
+			offset += length;
+		}
+		entries.put(reference, new Entry(blocks, payload.length));
+		return true;
+	}
+
+	/**
+	 * Remove specified entry.
+	 * 
+	 * @param reference
+	 */
+	public synchronized void invalidate(final Reference reference) {
+		final Entry entry = entries.remove(reference);
+		if (entry != null) {
+			release(entry);
+		}
+	}
+
+	/**
+	 * Remove all entries.
+	 */
+	public synchronized void invalidateAll() {
+		for (final Entry entry : entries.values()) {
+			release(entry);
+		}
+		entries.clear();
+	}
+
+	/**
+	 * @return number of cached entries.
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return used bytes (rounded to block size).
+	 */
+	public synchronized long usedBytes() {
+		return (long) (freeBlocks.length - freeCount) * blockSize;
+	}
+
+	/**
+	 * @return capacity in bytes (rounded to block size).
+	 */
+	public long capacity() {
+		return (long) freeBlocks.length * blockSize;
+	}
+
+	/**
+	 * @return a {@link CacheStats} with hit, miss and eviction counts (no load
+	 *         statistics: this cache does not load).
+	 */
+	public synchronized CacheStats stats() {
+		return new CacheStats(hitCount, missCount, 0, 0, 0, evictionCount);
+	}
+
+	private void release(final Entry entry) {
+		for (final int block : entry.blocks) {
+			freeBlocks[freeCount++] = block;
+		}
+	}
+
+	/**
+	 * @param block
+	 * @return slab of specified block positioned at block start.
+	 */
+	private ByteBuffer position(final int block) {
+		final ByteBuffer slab = slabs[block / blocksPerSlab];
+		slab.position((block % blocksPerSlab) * blockSize);
+		return slab;
+	}
+
+	@Override
+	public String toString() {
+		return Objects.toStringHelper(getClass()).add("size", size()).add("usedBytes", usedBytes()).add("capacity", capacity()).add("stats", stats()).toString();
+	}
+
+	/**
+	 * <code>Entry</code> on heap information of an entry.
+	 */
+	private static final class Entry {
+		private final int[] blocks;
+		private final int length;
+
+		public Entry(final int[] blocks, final int length) {
+			super();
+			this.blocks = blocks;
+			this.length = length;
+		}
+	}
+
+}
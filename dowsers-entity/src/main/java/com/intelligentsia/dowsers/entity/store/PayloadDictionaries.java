@@ -0,0 +1,365 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.intelligentsia.dowsers.core.DowsersException;
+import org.intelligentsia.dowsers.core.DurableFiles;
+import org.intelligentsia.keystone.kernel.api.StringUtils;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.io.Files;
+
+/**
+ * <code>PayloadDictionaries</code> compress serialized entities with a preset
+ * deflate dictionary per entity class.
+ * 
+ * <p>
+ * Serialized entities of a same class repeat the same keys, attribute names and
+ * class names: a dictionary trained from sample entities (see
+ * {@link #train(String, Iterable)}) let small payloads compress well. Each
+ * dictionary is stored alongside meta model of its class (see
+ * {@link com.intelligentsia.dowsers.entity.meta.provider.MetaEntityProviderFileSystem}
+ * ):
+ * </p>
+ * <code>
+ * ${root}/${entity class name}/payload-0000000001.dict
+ * </code>
+ * <p>
+ * A compressed payload is a zlib stream which carries identifier of its
+ * dictionary: retraining a class keeps previous dictionaries, so payloads
+ * written with them remain readable. A payload starting with '{' is plain JSON:
+ * stores can switch compression on without rewriting existing entities.
+ * </p>
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
+ */
+public class PayloadDictionaries {
+
+	/**
+	 * Maximum dictionary size: deflate window.
+	 */
+	public static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+	private static final String PREFIX = "payload-";
+	private static final String EXTENSION = ".dict";
+
+	/**
+	 * Quoted strings, with the colon of keys.
+	 */
+	private static final Pattern TOKEN = Pattern.compile("\"(?:[^\"\\\\]|\\\\.)*\"\\s*:?");
+
+	private final File root;
+
+	/**
+	 * Dictionaries by entity class name (loaded lazily).
+	 */
+	private final ConcurrentMap<String, Dictionaries> dictionaries = new ConcurrentHashMap<String, Dictionaries>();
+
+	/**
+	 * Build a new instance of <code>PayloadDictionaries</code>.
+	 * 
+	 * @param root
+	 *            root directory of dictionaries, usually meta model directory
+	 * @throws NullPointerException
+	 *             if root is null
+	 * @throws IllegalStateException
+	 *             if root is not a directory of if it cannot be created
+	 */
+	public PayloadDictionaries(final File root) throws NullPointerException, IllegalStateException {
+		super();
+		this.root = Preconditions.checkNotNull(root);
+		if (!root.exists()) {
+			if (!root.mkdirs()) {
+				throw new IllegalStateException(StringUtils.format("unable to create directory '%s'", root));
+			}
+		}
+		if (!root.isDirectory()) {
+			throw new IllegalStateException(StringUtils.format("'%s' is not a directory", root));
+		}
+	}
+
+	/**
+	 * Train a new dictionary for specified entity class. Quoted strings (keys,
+	 * attribute names, class names, values) found in at least two samples are
+	 * kept, most valuable last as deflate prefers closest matches. New
+	 * dictionary is used for next compressions.
+	 * 
+	 * @param className
+	 *            entity class name
+	 * @param samples
+	 *            serialized sample entities
+	 * @return dictionary identifier, or 0 if samples have nothing in common
+	 * @throws NullPointerException
+	 *             if a parameter is null
+	 * @throws DowsersException
+	 *             if dictionary cannot be written
+	 */
+	public int train(final String className, final Iterable<byte[]> samples) throws NullPointerException, DowsersException {
+		Preconditions.checkNotNull(className);
+		final Map<String, Integer> frequencies = new HashMap<String, Integer>();
+		for (final byte[] sample : Preconditions.checkNotNull(samples)) {
+			final Set<String> tokens = new HashSet<String>();
+			final Matcher matcher = TOKEN.matcher(new String(decompress(className, sample), Charsets.UTF_8));
+			while (matcher.find()) {
+				tokens.add(matcher.group());
+			}
+			for (final String token : tokens) {
+				final Integer frequency = frequencies.get(token);
+				frequencies.put(token, frequency == null ? 1 : frequency + 1);
+			}
+		}
+		final List<Map.Entry<String, Integer>> candidates = new ArrayList<Map.Entry<String, Integer>>();
+		for (final Map.Entry<String, Integer> entry : frequencies.entrySet()) {
+			if (entry.getValue() > 1) {
+				candidates.add(entry);
+			}
+		}
+		if (candidates.isEmpty()) {
+			return 0;
+		}
+		// by saved bytes, descending
+		Collections.sort(candidates, new Comparator<Map.Entry<String, Integer>>() {
+			@Override
+			public int compare(final Map.Entry<String, Integer> o1, final Map.Entry<String, Integer> o2) {
+				final long s1 = (long) o1.getKey().length() * o1.getValue();
+				final long s2 = (long) o2.getKey().length() * o2.getValue();
+				return s1 < s2 ? 1 : s1 > s2 ? -1 : o1.getKey().compareTo(o2.getKey());
+			}
+		});
+		final List<byte[]> selected = new ArrayList<byte[]>();
+		int size = 0;
+		for (final Map.Entry<String, Integer> entry : candidates) {
+			final byte[] token = entry.getKey().getBytes(Charsets.UTF_8);
+			if ((size + token.length) <= MAX_DICTIONARY_SIZE) {
+				selected.add(token);
+				size += token.length;
+			}
+		}
+		final ByteArrayOutputStream dictionary = new ByteArrayOutputStream(size);
+		for (int i = selected.size() - 1; i >= 0; i--) {
+			dictionary.write(selected.get(i), 0, selected.get(i).length);
+		}
+		return dictionaries(className).add(dictionary.toByteArray());
+	}
+
+	/**
+	 * Compress specified payload with current dictionary of its class.
+	 * 
+	 * @param className
+	 *            entity class name
+	 * @param payload
+	 *            serialized entity
+	 * @return compressed payload, or payload itself if class has no dictionary
+	 *         or if compression does not save space.
+	 */
+	public byte[] compress(final String className, final byte[] payload) {
+		final Dictionary dictionary = dictionaries(className).current();
+		if (dictionary == null) {
+			return payload;
+		}
+		final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+		try {
+			deflater.setDictionary(dictionary.content);
+			deflater.setInput(payload);
+			deflater.finish();
+			final byte[] buffer = new byte[payload.length];
+			int length = 0;
+			while (!deflater.finished() && (length < buffer.length)) {
+				length += deflater.deflate(buffer, length, buffer.length - length);
+			}
+			if (!deflater.finished()) {
+				return payload;
+			}
+			final byte[] result = new byte[length];
+			System.arraycopy(buffer, 0, result, 0, length);
+			return result;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Decompress specified payload.
+	 * 
+	 * @param className
+	 *            entity class name
+	 * @param payload
+	 *            compressed or plain payload
+	 * @return plain payload
+	 * @throws DowsersException
+	 *             if payload is corrupted or if its dictionary is unknown
+	 */
+	public byte[] decompress(final String className, final byte[] payload) throws DowsersException {
+		if (!isCompressed(payload)) {
+			return payload;
+		}
+		final Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(payload);
+			final ByteArrayOutputStream output = new ByteArrayOutputStream(payload.length * 4);
+			final byte[] buffer = new byte[4096];
+			while (!inflater.finished()) {
+				final int length = inflater.inflate(buffer);
+				if (length == 0) {
+					if (inflater.needsDictionary()) {
+						final Dictionary dictionary = dictionaries(className).get(inflater.getAdler());
+						if (dictionary == null) {
+							throw new DowsersException(StringUtils.format("unknown dictionary '%s' of class '%s'", Integer.toHexString(inflater.getAdler()), className));
+						}
+						inflater.setDictionary(dictionary.content);
+					} else if (inflater.needsInput()) {
+						throw new DowsersException("truncated payload");
+					}
+				}
+				output.write(buffer, 0, length);
+			}
+			return output.toByteArray();
+		} catch (final DataFormatException e) {
+			throw new DowsersException(e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * @param payload
+	 * @return true if payload is compressed: plain JSON starts with '{'.
+	 */
+	public static boolean isCompressed(final byte[] payload) {
+		return (payload.length > 0) && (payload[0] != '{');
+	}
+
+	private Dictionaries dictionaries(final String className) {
+		Dictionaries result = dictionaries.get(className);
+		if (result == null) {
+			final Dictionaries loaded = new Dictionaries(new File(root, className));
+			result = dictionaries.putIfAbsent(className, loaded);
+			if (result == null) {
+				result = loaded;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Dictionaries of a class.
+	 */
+	private static final class Dictionaries {
+		private final File directory;
+		private final Map<Integer, Dictionary> byIdentifier = new ConcurrentHashMap<Integer, Dictionary>();
+		private volatile Dictionary current;
+		private int sequence = 0;
+
+		Dictionaries(final File directory) {
+			super();
+			this.directory = directory;
+			final String[] names = directory.list(new FilenameFilter() {
+				@Override
+				public boolean accept(final File dir, final String name) {
+					return name.startsWith(PREFIX) && name.endsWith(EXTENSION);
+				}
+			});
+			if (names != null) {
+				Arrays.sort(names);
+				for (final String name : names) {
+					try {
+						current = new Dictionary(Files.toByteArray(new File(directory, name)));
+					} catch (final IOException e) {
+						throw new DowsersException(StringUtils.format("unable to read dictionary '%s'", name), e);
+					}
+					byIdentifier.put(current.identifier, current);
+					sequence = Integer.parseInt(name.substring(PREFIX.length(), name.length() - EXTENSION.length()));
+				}
+			}
+		}
+
+		Dictionary current() {
+			return current;
+		}
+
+		Dictionary get(final int identifier) {
+			return byIdentifier.get(identifier);
+		}
+
+		/**
+		 * Write a new dictionary and make it current. Dictionary is durable
+		 * before any payload is compressed with it: a store which logs a
+		 * compressed payload can always read it back after a crash.
+		 */
+		synchronized int add(final byte[] content) {
+			final Dictionary dictionary = new Dictionary(content);
+			if ((current != null) && (current.identifier == dictionary.identifier)) {
+				return dictionary.identifier;
+			}
+			if (!directory.exists()) {
+				if (!directory.mkdirs()) {
+					throw new DowsersException(StringUtils.format("unable to create directory '%s'", directory));
+				}
+				DurableFiles.syncDirectory(directory.getParentFile());
+			}
+			sequence++;
+			final File file = new File(directory, new StringBuilder(PREFIX).append(String.format("%010d", sequence)).append(EXTENSION).toString());
+			DurableFiles.write(content, file);
+			byIdentifier.put(dictionary.identifier, dictionary);
+			current = dictionary;
+			return dictionary.identifier;
+		}
+	}
+
+	/**
+	 * A dictionary and its identifier (adler32 checksum, as carried by zlib
+	 * stream).
+	 */
+	private static final class Dictionary {
+		private final byte[] content;
+		private final int identifier;
+
+		Dictionary(final byte[] content) {
+			super();
+			this.content = content;
+			final Adler32 adler32 = new Adler32();
+			adler32.update(content);
+			identifier = (int) adler32.getValue();
+		}
+	}
+}
@@ -0,0 +1,353 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.intelligentsia.dowsers.core.DowsersException;
+import org.intelligentsia.keystone.kernel.api.StringUtils;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+/**
+ * <code>ScatterGather</code> iterate several sources in parallel on an
+ * executor, and merge their elements in arrival order.
+ * 
+ * <p>
+ * Each call to {@link Iterable#iterator()} of a gathered {@link Iterable}
+ * submit one task per source. Tasks push elements in a bounded queue, which
+ * is consumed lazily by the returned iterator.
+ * </p>
+ * <p>
+ * Each source has its own deadline: it must be exhausted within timeout after
+ * its task was submitted, time spent waiting for the iterator to consume its
+ * elements (queue full) excepted. When a deadline expires, remaining tasks are
+ * cancelled and iterator throws a {@link DowsersException} caused by a
+ * {@link TimeoutException}. A failing source (any {@link Throwable}) stops
+ * iteration with its exception. A task also gives up if its elements are not
+ * consumed within timeout, so an abandoned iteration does not leak threads:
+ * iteration then fails if it is resumed.
+ * </p>
+ * <p>
+ * Queue capacity is shared by elements of all sources, each task always finds
+ * room for its end (or failure) message, which is sent whatever the way the
+ * task terminates.
+ * </p>
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
+ */
+public class ScatterGather {
+
+	/**
+	 * Default capacity of queue between sources and iterator.
+	 */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	private final ExecutorService executorService;
+
+	private final long timeout;
+
+	private final TimeUnit unit;
+
+	private final int capacity;
+
+	/**
+	 * Build a new instance of <code>ScatterGather</code> with
+	 * {@link #DEFAULT_CAPACITY}.
+	 * 
+	 * @param executorService
+	 *            executor running sources
+	 * @param timeout
+	 *            timeout per source
+	 * @param unit
+	 *            timeout unit
+	 * @throws NullPointerException
+	 *             if executorService or unit is null
+	 * @throws IllegalArgumentException
+	 *             if timeout is not positive
+	 */
+	public ScatterGather(final ExecutorService executorService, final long timeout, final TimeUnit unit) throws NullPointerException, IllegalArgumentException {
+		this(executorService, timeout, unit, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Build a new instance of <code>ScatterGather</code>.
+	 * 
+	 * @param executorService
+	 *            executor running sources
+	 * @param timeout
+	 *            timeout per source
+	 * @param unit
+	 *            timeout unit
+	 * @param capacity
+	 *            capacity of queue between sources and iterator
+	 * @throws NullPointerException
+	 *             if executorService or unit is null
+	 * @throws IllegalArgumentException
+	 *             if timeout or capacity is not positive
+	 */
+	public ScatterGather(final ExecutorService executorService, final long timeout, final TimeUnit unit, final int capacity) throws NullPointerException, IllegalArgumentException {
+		super();
+		this.executorService = Preconditions.checkNotNull(executorService);
+		Preconditions.checkArgument(timeout > 0);
+		Preconditions.checkArgument(capacity > 0);
+		this.timeout = timeout;
+		this.unit = Preconditions.checkNotNull(unit);
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @param sources
+	 * @return a lazy {@link Iterable} on elements of all sources, iterated in
+	 *         parallel.
+	 * @throws NullPointerException
+	 *             if sources is null
+	 */
+	public <T> Iterable<T> gather(final Iterable<? extends Iterable<? extends T>> sources) throws NullPointerException {
+		final List<Iterable<? extends T>> list = ImmutableList.copyOf(Preconditions.checkNotNull(sources));
+		return new Iterable<T>() {
+			@Override
+			public Iterator<T> iterator() {
+				return new GatherIterator<T>(list);
+			}
+		};
+	}
+
+	/**
+	 * Message from a source task.
+	 */
+	private static final class Message {
+		private final Task<?> task;
+		private final Object element;
+		private final boolean end;
+		private final Throwable failure;
+
+		public Message(final Task<?> task, final Object element, final boolean end, final Throwable failure) {
+			super();
+			this.task = task;
+			this.element = element;
+			this.end = end;
+			this.failure = failure;
+		}
+	}
+
+	/**
+	 * <code>Task</code> push elements of a source.
+	 */
+	private final class Task<T> implements Runnable {
+
+		private final GatherIterator<T> iterator;
+
+		private final Iterable<? extends T> source;
+
+		/**
+		 * Deadline in nanoseconds, extended by time spent waiting for room in
+		 * queue. Written by task only.
+		 */
+		private volatile long deadline;
+
+		/**
+		 * Start of current wait for room in queue, 0 if none.
+		 */
+		private volatile long waiting = 0;
+
+		/**
+		 * True once end message was received, read by iterator only.
+		 */
+		private boolean ended = false;
+
+		Task(final GatherIterator<T> iterator, final Iterable<? extends T> source) {
+			super();
+			this.iterator = iterator;
+			this.source = source;
+			deadline = System.nanoTime() + unit.toNanos(timeout);
+		}
+
+		@Override
+		public void run() {
+			Throwable failure = null;
+			try {
+				for (final T element : source) {
+					if (!offer(element)) {
+						failure = new DowsersException(StringUtils.format("elements were not consumed within %s %s", timeout, unit), new TimeoutException());
+						return;
+					}
+				}
+			} catch (final Throwable throwable) {
+				failure = throwable;
+			} finally {
+				try {
+					// a slot is always free for end message
+					iterator.queue.put(new Message(this, null, true, failure));
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		/**
+		 * @param now
+		 * @return deadline, including current wait for room in queue.
+		 */
+		long deadline(final long now) {
+			final long since = waiting;
+			return since != 0 ? deadline + (now - since) : deadline;
+		}
+
+		/**
+		 * @return false if element cannot be pushed (cancelled, interrupted,
+		 *         or not consumed within timeout).
+		 */
+		private boolean offer(final T element) {
+			if (iterator.cancelled) {
+				return false;
+			}
+			final long start = System.nanoTime();
+			waiting = start;
+			try {
+				if (!iterator.slots.tryAcquire(timeout, unit)) {
+					return false;
+				}
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			} finally {
+				deadline += System.nanoTime() - start;
+				waiting = 0;
+			}
+			iterator.queue.add(new Message(this, element, false, null));
+			return true;
+		}
+	}
+
+	/**
+	 * <code>GatherIterator</code> submit sources on creation and consume their
+	 * messages.
+	 */
+	private final class GatherIterator<T> extends AbstractIterator<T> {
+
+		/**
+		 * Messages, bounded by slots for elements.
+		 */
+		private final BlockingQueue<Message> queue = new LinkedBlockingQueue<Message>();
+
+		/**
+		 * Free slots for elements in queue.
+		 */
+		private final Semaphore slots = new Semaphore(capacity);
+
+		private final List<Task<T>> tasks = Lists.newArrayList();
+
+		private final List<Future<?>> futures = Lists.newArrayList();
+
+		private int running;
+
+		private volatile boolean cancelled = false;
+
+		public GatherIterator(final List<Iterable<? extends T>> sources) {
+			super();
+			running = sources.size();
+			for (final Iterable<? extends T> source : sources) {
+				final Task<T> task = new Task<T>(this, source);
+				tasks.add(task);
+				futures.add(executorService.submit(task));
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		protected T computeNext() {
+			while (running > 0) {
+				Message message = queue.poll();
+				if (message == null) {
+					final long now = System.nanoTime();
+					final long wait = deadline(now) - now;
+					if (wait <= 0) {
+						final int late = running;
+						cancel();
+						throw new DowsersException(StringUtils.format("%s source(s) did not answer within %s %s", late, timeout, unit), new TimeoutException());
+					}
+					try {
+						message = queue.poll(wait, TimeUnit.NANOSECONDS);
+					} catch (final InterruptedException e) {
+						Thread.currentThread().interrupt();
+						cancel();
+						throw new DowsersException(e);
+					}
+					if (message == null) {
+						// deadline could have been extended
+						continue;
+					}
+				}
+				if (message.failure != null) {
+					cancel();
+					throw Throwables.propagate(message.failure);
+				}
+				if (message.end) {
+					message.task.ended = true;
+					running--;
+				} else {
+					slots.release();
+					return (T) message.element;
+				}
+			}
+			return endOfData();
+		}
+
+		/**
+		 * @return earliest deadline of running tasks.
+		 */
+		private long deadline(final long now) {
+			boolean found = false;
+			long deadline = 0;
+			for (final Task<T> task : tasks) {
+				if (!task.ended) {
+					final long candidate = task.deadline(now);
+					// nanoTime must be compared by difference
+					if (!found || ((candidate - deadline) < 0)) {
+						deadline = candidate;
+						found = true;
+					}
+				}
+			}
+			return deadline;
+		}
+
+		private void cancel() {
+			cancelled = true;
+			running = 0;
+			for (final Future<?> future : futures) {
+				future.cancel(true);
+			}
+		}
+	}
+}
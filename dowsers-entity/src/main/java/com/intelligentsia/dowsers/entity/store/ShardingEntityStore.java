@@ -19,20 +19,57 @@
  */
 package com.intelligentsia.dowsers.entity.store;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 
+import org.intelligentsia.dowsers.core.reflection.ClassInformation;
+
+import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Striped;
 import com.intelligentsia.dowsers.entity.reference.Reference;
 import com.intelligentsia.dowsers.entity.reference.References;
 
 /**
  * ShardingEntityStore implements a sharding {@link EntityStore}.
  * 
+ * <p>
+ * An entity is routed to the store declared for its exact reference, then to
+ * the store declared for its class. Instances of a class can also be spread
+ * over several shards: each identity is assigned by a
+ * {@link ConsistentHashRing} of named shards. {@link #find(Class)} and
+ * {@link #find(Reference)} then concatenate lazily results of all shards, or,
+ * with a {@link ScatterGather}, query all shards in parallel and merge results
+ * as they arrive.
+ * </p>
+ * <p>
+ * A shard can be added online with {@link #addShard(Class, String, EntityStore)}:
+ * until {@link #rebalance(Class)} has moved all references to their new owner,
+ * reads fall back on other shards and writes go to the shard which holds the
+ * entity. Writes choose their shard under a lock on reference shared with
+ * moves, and a moved entity keeps its version: shards of a rebalanced class
+ * must be {@link VersionedEntityStore}.
+ * </p>
  * 
  * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
  */
-public class ShardingEntityStore implements EntityStore {
+public class ShardingEntityStore extends AbstractEntityStore implements VersionedEntityStore {
+	/**
+	 * Name of shard which hold instances of a class before it was sharded.
+	 */
+	public static final String INITIAL_SHARD = "initial";
 	/**
 	 * {@link Map} of URI and {@link EntityStore}.
 	 */
@@ -41,6 +78,18 @@ public class ShardingEntityStore implements EntityStore {
 	 * Default {@link EntityStore}.
 	 */
 	protected final EntityStore defaultEntityStore;
+	/**
+	 * Rings and rebalancing classes, published together (copy on write).
+	 */
+	private volatile State state;
+	/**
+	 * Locks on references shared by writers and moves.
+	 */
+	private final Striped<Lock> locks = Striped.lock(64);
+	/**
+	 * {@link ScatterGather} used to query shards in parallel, or null.
+	 */
+	private final ScatterGather scatterGather;
 
 	/**
 	 * Build a new instance of ShardingEntityStore.java.
@@ -56,36 +105,283 @@ public class ShardingEntityStore implements EntityStore {
 		super();
 		this.defaultEntityStore = Preconditions.checkNotNull(defaultEntityStore);
 		this.stores = Preconditions.checkNotNull(stores);
+		this.state = new State(ImmutableMap.<Reference, ConsistentHashRing<EntityStore>> of(), ImmutableSet.<Reference> of());
+		this.scatterGather = null;
+	}
+
+	/**
+	 * Build a new instance of ShardingEntityStore.java.
+	 * 
+	 * @param defaultEntityStore
+	 *            default {@link EntityStore}
+	 * @param stores
+	 *            a Map of {@link Reference}, {@link EntityStore}
+	 * @param rings
+	 *            a Map of entity class {@link Reference} and
+	 *            {@link ConsistentHashRing} of shards
+	 * @throws NullPointerException
+	 *             if one of parameters is null
+	 */
+	public ShardingEntityStore(final EntityStore defaultEntityStore, final Map<Reference, EntityStore> stores, final Map<Reference, ConsistentHashRing<EntityStore>> rings) throws NullPointerException {
+		this(defaultEntityStore, stores, rings, null);
+	}
+
+	/**
+	 * Build a new instance of ShardingEntityStore.java.
+	 * 
+	 * @param defaultEntityStore
+	 *            default {@link EntityStore}
+	 * @param stores
+	 *            a Map of {@link Reference}, {@link EntityStore}
+	 * @param rings
+	 *            a Map of entity class {@link Reference} and
+	 *            {@link ConsistentHashRing} of shards
+	 * @param scatterGather
+	 *            {@link ScatterGather} used to query shards in parallel, or
+	 *            null to query them one after the other
+	 * @throws NullPointerException
+	 *             if defaultEntityStore, stores or rings is null
+	 */
+	public ShardingEntityStore(final EntityStore defaultEntityStore, final Map<Reference, EntityStore> stores, final Map<Reference, ConsistentHashRing<EntityStore>> rings, final ScatterGather scatterGather) throws NullPointerException {
+		super();
+		this.defaultEntityStore = Preconditions.checkNotNull(defaultEntityStore);
+		this.stores = Preconditions.checkNotNull(stores);
+		this.scatterGather = scatterGather;
+		final ImmutableMap.Builder<Reference, ConsistentHashRing<EntityStore>> builder = ImmutableMap.builder();
+		for (final Map.Entry<Reference, ConsistentHashRing<EntityStore>> entry : Preconditions.checkNotNull(rings).entrySet()) {
+			builder.put(entry.getKey(), new ConsistentHashRing<EntityStore>(entry.getValue()));
+		}
+		this.state = new State(builder.build(), ImmutableSet.<Reference> of());
 	}
 
 	@Override
 	public Iterable<Reference> find(final Class<?> expectedType) throws NullPointerException {
-		return findEntityStore(Reference.newReferenceOnEntityClass(expectedType)).find(expectedType);
+		final Reference entityClassReference = Reference.newReferenceOnEntityClass(expectedType);
+		final ConsistentHashRing<EntityStore> ring = state.rings.get(entityClassReference);
+		if (ring != null) {
+			return gather(ring.nodes(), new Function<EntityStore, Iterable<Reference>>() {
+				@Override
+				public Iterable<Reference> apply(final EntityStore input) {
+					return input.find(expectedType);
+				}
+			});
+		}
+		return findEntityStore(entityClassReference).find(expectedType);
 	}
 
 	@Override
 	public Iterable<Reference> find(final Reference reference) throws NullPointerException {
+		final ConsistentHashRing<EntityStore> ring = state.rings.get(reference.getEntityClassReference());
+		if (ring != null) {
+			return gather(ring.nodes(), new Function<EntityStore, Iterable<Reference>>() {
+				@Override
+				public Iterable<Reference> apply(final EntityStore input) {
+					return input.find(reference);
+				}
+			});
+		}
 		return findEntityStore(reference.getEntityClassReference()).find(reference);
 	}
 
 	@Override
 	public <T> T find(final Class<T> expectedType, final Reference reference) throws EntityNotFoundException, NullPointerException, IllegalArgumentException {
-		return findEntityStore(reference).find(expectedType, reference);
+		final State current = state;
+		final EntityStore entityStore = findEntityStore(current, reference);
+		try {
+			return entityStore.find(expectedType, reference);
+		} catch (final EntityNotFoundException e) {
+			if (current.isRebalancing(reference, stores)) {
+				for (final EntityStore shard : current.rings.get(reference.getEntityClassReference()).nodes()) {
+					if (shard != entityStore) {
+						try {
+							return shard.find(expectedType, reference);
+						} catch (final EntityNotFoundException notFound) {
+							// next
+						}
+					}
+				}
+			}
+			throw e;
+		}
 	}
 
 	@Override
 	public <T> void store(final T entity) throws NullPointerException, ConcurrencyException, IllegalArgumentException {
-		findEntityStore(References.identify(entity)).store(entity);
+		store(entity, false);
+	}
+
+	/**
+	 * @throws IllegalStateException
+	 *             if shard of entity is not a {@link VersionedEntityStore}
+	 */
+	@Override
+	public <T> void restore(final T entity) throws NullPointerException, IllegalArgumentException, IllegalStateException {
+		store(entity, true);
+	}
+
+	private <T> void store(final T entity, final boolean keep) throws NullPointerException, ConcurrencyException, IllegalArgumentException {
+		final Reference reference = References.identify(entity);
+		final Lock lock = locks.get(reference);
+		lock.lock();
+		try {
+			// read under lock: a move of this reference is either done or not
+			// started
+			final State current = state;
+			final EntityStore entityStore = current.isRebalancing(reference, stores) ? holder(current, reference) : findEntityStore(current, reference);
+			if (keep) {
+				versioned(entityStore).restore(entity);
+			} else {
+				entityStore.store(entity);
+			}
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	@Override
 	public <T> void remove(final T entity) throws NullPointerException, IllegalArgumentException {
-		findEntityStore(References.identify(entity)).remove(entity);
+		remove(References.identify(entity));
 	}
 
 	@Override
 	public void remove(final Reference reference) throws NullPointerException, IllegalArgumentException {
-		findEntityStore(reference).remove(reference);
+		final Lock lock = locks.get(reference);
+		lock.lock();
+		try {
+			final State current = state;
+			if (current.isRebalancing(reference, stores)) {
+				for (final EntityStore shard : current.rings.get(reference.getEntityClassReference()).nodes()) {
+					shard.remove(reference);
+				}
+			} else {
+				findEntityStore(current, reference).remove(reference);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Group references by shard and call
+	 * {@link EntityStore#findAll(Class, Iterable)} once per shard.
+	 */
+	@Override
+	public <T> Map<Reference, T> findAll(final Class<T> expectedType, final Iterable<Reference> references) throws NullPointerException, IllegalArgumentException {
+		final State current = state;
+		if (!current.rebalancing.isEmpty()) {
+			return super.findAll(expectedType, references);
+		}
+		final Map<Reference, T> found = Maps.newHashMap();
+		for (final Map.Entry<EntityStore, List<Reference>> entry : groupByEntityStore(current, Preconditions.checkNotNull(references)).entrySet()) {
+			found.putAll(entry.getKey().findAll(expectedType, entry.getValue()));
+		}
+		// keep order
+		final Map<Reference, T> result = Maps.newLinkedHashMap();
+		for (final Reference reference : references) {
+			final T entity = found.get(reference);
+			if (entity != null) {
+				result.put(reference, entity);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Group entities by shard and call {@link EntityStore#storeAll(Iterable)}
+	 * once per shard.
+	 */
+	@Override
+	public <T> void storeAll(final Iterable<T> entities) throws NullPointerException, ConcurrencyException, IllegalArgumentException {
+		final List<Reference> references = Lists.newArrayList();
+		for (final T entity : Preconditions.checkNotNull(entities)) {
+			references.add(References.identify(entity));
+		}
+		final List<Lock> held = lock(references);
+		try {
+			final State current = state;
+			if (!current.rebalancing.isEmpty()) {
+				super.storeAll(entities);
+				return;
+			}
+			final Map<EntityStore, List<T>> groups = Maps.newLinkedHashMap();
+			int index = 0;
+			for (final T entity : entities) {
+				final EntityStore entityStore = findEntityStore(current, references.get(index++));
+				List<T> group = groups.get(entityStore);
+				if (group == null) {
+					group = Lists.newArrayList();
+					groups.put(entityStore, group);
+				}
+				group.add(entity);
+			}
+			for (final Map.Entry<EntityStore, List<T>> entry : groups.entrySet()) {
+				entry.getKey().storeAll(entry.getValue());
+			}
+		} finally {
+			unlock(held);
+		}
+	}
+
+	/**
+	 * Group references by shard and call
+	 * {@link EntityStore#removeAll(Iterable)} once per shard.
+	 */
+	@Override
+	public void removeAll(final Iterable<Reference> references) throws NullPointerException, IllegalArgumentException {
+		final List<Lock> held = lock(Preconditions.checkNotNull(references));
+		try {
+			final State current = state;
+			if (!current.rebalancing.isEmpty()) {
+				super.removeAll(references);
+				return;
+			}
+			for (final Map.Entry<EntityStore, List<Reference>> entry : groupByEntityStore(current, references).entrySet()) {
+				entry.getKey().removeAll(entry.getValue());
+			}
+		} finally {
+			unlock(held);
+		}
+	}
+
+	/**
+	 * Lock specified references, in a consistent order. Locks are reentrant,
+	 * so single entity operations can be called while they are held.
+	 * 
+	 * @param references
+	 * @return held locks.
+	 */
+	private List<Lock> lock(final Iterable<Reference> references) {
+		final List<Lock> held = Lists.newArrayList();
+		for (final Lock lock : locks.bulkGet(references)) {
+			lock.lock();
+			held.add(lock);
+		}
+		return held;
+	}
+
+	private static void unlock(final List<Lock> held) {
+		for (int i = held.size() - 1; i >= 0; i--) {
+			held.get(i).unlock();
+		}
+	}
+
+	/**
+	 * @param current
+	 * @param references
+	 * @return a {@link Map} of {@link EntityStore} and references to use with.
+	 */
+	private Map<EntityStore, List<Reference>> groupByEntityStore(final State current, final Iterable<Reference> references) {
+		final Map<EntityStore, List<Reference>> groups = Maps.newLinkedHashMap();
+		for (final Reference reference : references) {
+			final EntityStore entityStore = findEntityStore(current, reference);
+			List<Reference> group = groups.get(entityStore);
+			if (group == null) {
+				group = Lists.newArrayList();
+				groups.put(entityStore, group);
+			}
+			group.add(reference);
+		}
+		return groups;
 	}
 
 	/**
@@ -95,9 +391,18 @@ public class ShardingEntityStore implements EntityStore {
 	 * @return {@link EntityStore} instance.
 	 */
 	public EntityStore findEntityStore(final Reference reference) {
+		return findEntityStore(state, reference);
+	}
+
+	private EntityStore findEntityStore(final State current, final Reference reference) {
 		EntityStore result = stores.get(reference);
 		if (result == null) {
-			result = stores.get(reference.getEntityClassReference());
+			final Reference entityClassReference = reference.getEntityClassReference();
+			final ConsistentHashRing<EntityStore> ring = current.rings.get(entityClassReference);
+			if ((ring != null) && reference.isIdentifier()) {
+				return ring.get(reference.getIdentity());
+			}
+			result = stores.get(entityClassReference);
 			if (result == null) {
 				result = defaultEntityStore;
 			}
@@ -105,6 +410,203 @@ public class ShardingEntityStore implements EntityStore {
 		return result;
 	}
 
+	/**
+	 * Add a shard for specified class. References which now belong to this
+	 * shard are moved by {@link #rebalance(Class)}, meanwhile they are still
+	 * readable and writable. If the class was not sharded, the store which
+	 * holds its instances joins the ring as {@link #INITIAL_SHARD}.
+	 * 
+	 * @param expectedType
+	 *            entity class
+	 * @param name
+	 *            shard name, which define its positions on ring
+	 * @param entityStore
+	 *            shard
+	 * @throws NullPointerException
+	 *             if one of parameters is null
+	 * @throws IllegalArgumentException
+	 *             if a shard with the same name exists, or if a shard of this
+	 *             class is not a {@link VersionedEntityStore}
+	 */
+	public synchronized void addShard(final Class<?> expectedType, final String name, final EntityStore entityStore) throws NullPointerException, IllegalArgumentException {
+		final Reference entityClassReference = Reference.newReferenceOnEntityClass(expectedType);
+		final State current = state;
+		final ConsistentHashRing<EntityStore> previous = current.rings.get(entityClassReference);
+		final ConsistentHashRing<EntityStore> ring = previous != null ? new ConsistentHashRing<EntityStore>(previous) : new ConsistentHashRing<EntityStore>();
+		ring.add(name, entityStore);
+		if (previous == null) {
+			// instances were stored with class or default store
+			final EntityStore initial = findEntityStore(current, entityClassReference);
+			if (initial != entityStore) {
+				ring.add(INITIAL_SHARD, initial);
+			}
+		}
+		// moves keep versions
+		for (final EntityStore shard : ring.nodes()) {
+			Preconditions.checkArgument(shard instanceof VersionedEntityStore, "shard %s of %s does not keep versions", shard, expectedType);
+		}
+		final Map<Reference, ConsistentHashRing<EntityStore>> copy = Maps.newHashMap(current.rings);
+		copy.put(entityClassReference, ring);
+		// a writer see new ring only with rebalancing flag
+		state = new State(ImmutableMap.copyOf(copy), ImmutableSet.<Reference> builder().addAll(current.rebalancing).add(entityClassReference).build());
+	}
+
+	/**
+	 * Move each reference of specified class which is not on its owner shard.
+	 * An entity is read from its holder, restored on its owner with its
+	 * version (see {@link VersionedEntityStore#restore(Object)}), then removed
+	 * from its holder, under a lock shared with writers. An owner which already holds the entity is not
+	 * overwritten. Reads and writes are served during rebalance.
+	 * 
+	 * @param expectedType
+	 *            entity class
+	 * @return number of moved references
+	 * @throws NullPointerException
+	 *             if expectedType is null
+	 */
+	public synchronized int rebalance(final Class<?> expectedType) throws NullPointerException {
+		final Reference entityClassReference = Reference.newReferenceOnEntityClass(expectedType);
+		final ConsistentHashRing<EntityStore> ring = state.rings.get(entityClassReference);
+		int moved = 0;
+		if (ring != null) {
+			for (final EntityStore shard : ring.nodes()) {
+				// snapshot, as shard will be modified
+				final List<Reference> references = Lists.newArrayList(shard.find(expectedType));
+				for (final Reference reference : references) {
+					if (ring.get(reference.getIdentity()) != shard) {
+						if (move(expectedType, reference, shard, ring.get(reference.getIdentity()))) {
+							moved++;
+						}
+					}
+				}
+			}
+		}
+		final State current = state;
+		state = new State(current.rings, ImmutableSet.copyOf(Sets.difference(current.rebalancing, ImmutableSet.of(entityClassReference))));
+		return moved;
+	}
+
+	/**
+	 * @param expectedType
+	 *            entity class
+	 * @return shards of specified class, empty if it is not sharded.
+	 */
+	public Collection<EntityStore> shards(final Class<?> expectedType) {
+		final ConsistentHashRing<EntityStore> ring = state.rings.get(Reference.newReferenceOnEntityClass(expectedType));
+		return ring != null ? ring.nodes() : Collections.<EntityStore> emptyList();
+	}
+
+	private boolean move(final Class<?> expectedType, final Reference reference, final EntityStore from, final EntityStore to) {
+		final Lock lock = locks.get(reference);
+		lock.lock();
+		try {
+			final Object entity;
+			try {
+				entity = from.find(expectedType, reference);
+			} catch (final EntityNotFoundException e) {
+				// removed meanwhile
+				return false;
+			}
+			if (!contains(to, expectedType, reference)) {
+				versioned(to).restore(entity);
+			}
+			// else written on its owner since rebalancing started: held copy is
+			// older
+			from.remove(reference);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Run query on each shard when result is iterated, in parallel if a
+	 * {@link ScatterGather} is configured, else one shard after the other.
+	 * 
+	 * @param shards
+	 * @param query
+	 * @return a lazy {@link Iterable} of results of all shards.
+	 */
+	private Iterable<Reference> gather(final Collection<EntityStore> shards, final Function<EntityStore, Iterable<Reference>> query) {
+		final List<Iterable<Reference>> sources = Lists.newArrayList();
+		for (final EntityStore shard : shards) {
+			sources.add(new Iterable<Reference>() {
+				@Override
+				public Iterator<Reference> iterator() {
+					return query.apply(shard).iterator();
+				}
+			});
+		}
+		return scatterGather != null ? scatterGather.<Reference> gather(sources) : Iterables.concat(sources);
+	}
+
+	/**
+	 * Caller must hold reference lock.
+	 * 
+	 * @param current
+	 * @param reference
+	 * @return shard holding specified reference, or its owner if none.
+	 */
+	private EntityStore holder(final State current, final Reference reference) {
+		final EntityStore owner = findEntityStore(current, reference);
+		final Class<?> expectedType = ClassInformation.parse(reference.getEntityClassName()).getType();
+		if (contains(owner, expectedType, reference)) {
+			return owner;
+		}
+		for (final EntityStore shard : current.rings.get(reference.getEntityClassReference()).nodes()) {
+			if ((shard != owner) && contains(shard, expectedType, reference)) {
+				return shard;
+			}
+		}
+		return owner;
+	}
+
+	private static VersionedEntityStore versioned(final EntityStore entityStore) throws IllegalStateException {
+		Preconditions.checkState(entityStore instanceof VersionedEntityStore, "%s does not keep versions", entityStore);
+		return (VersionedEntityStore) entityStore;
+	}
+
+	private static boolean contains(final EntityStore entityStore, final Class<?> expectedType, final Reference reference) {
+		try {
+			entityStore.find(expectedType, reference);
+			return true;
+		} catch (final EntityNotFoundException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * <code>State</code> of shards: a writer which see a new ring also see its
+	 * class as rebalancing. Writers read it under reference lock shared with
+	 * moves.
+	 */
+	private static final class State {
+		/**
+		 * Consistent hash rings of shards per entity class reference.
+		 */
+		private final ImmutableMap<Reference, ConsistentHashRing<EntityStore>> rings;
+		/**
+		 * Entity class references whose shards are rebalancing.
+		 */
+		private final ImmutableSet<Reference> rebalancing;
+
+		State(final ImmutableMap<Reference, ConsistentHashRing<EntityStore>> rings, final ImmutableSet<Reference> rebalancing) {
+			super();
+			this.rings = rings;
+			this.rebalancing = rebalancing;
+		}
+
+		/**
+		 * @param reference
+		 * @param stores
+		 *            stores declared per reference
+		 * @return true if reference belongs to a class which is rebalancing.
+		 */
+		boolean isRebalancing(final Reference reference, final Map<Reference, EntityStore> stores) {
+			return !rebalancing.isEmpty() && rebalancing.contains(reference.getEntityClassReference()) && !stores.containsKey(reference);
+		}
+	}
+
 	/**
 	 * @return a {@link Builder} instance of {@link ShardingEntityStore}.
 	 */
@@ -119,6 +621,9 @@ public class ShardingEntityStore implements EntityStore {
 	 */
 	public static class Builder {
 		private final Map<Reference, EntityStore> stores = Maps.newHashMap();
+		private final Map<Reference, ConsistentHashRing<EntityStore>> rings = Maps.newHashMap();
+		private int virtualNodes = ConsistentHashRing.DEFAULT_VIRTUAL_NODES;
+		private ScatterGather scatterGather = null;
 
 		/**
 		 * Build a new instance of ShardingEntityStore.java.
@@ -152,6 +657,68 @@ public class ShardingEntityStore implements EntityStore {
 			return this;
 		}
 
+		/**
+		 * Set number of virtual nodes per shard of next declared sharded
+		 * classes.
+		 * 
+		 * @param virtualNodes
+		 * @return this instance
+		 * @throws IllegalArgumentException
+		 *             if virtualNodes is not positive
+		 */
+		public Builder virtualNodes(final int virtualNodes) throws IllegalArgumentException {
+			Preconditions.checkArgument(virtualNodes > 0);
+			this.virtualNodes = virtualNodes;
+			return this;
+		}
+
+		/**
+		 * Query shards in parallel.
+		 * 
+		 * @param executorService
+		 *            executor running shard queries
+		 * @param timeout
+		 *            timeout per shard
+		 * @param unit
+		 *            timeout unit
+		 * @return this instance
+		 * @throws NullPointerException
+		 *             if executorService or unit is null
+		 * @throws IllegalArgumentException
+		 *             if timeout is not positive
+		 */
+		public Builder scatterGather(final ExecutorService executorService, final long timeout, final TimeUnit unit) throws NullPointerException, IllegalArgumentException {
+			scatterGather = new ScatterGather(executorService, timeout, unit);
+			return this;
+		}
+
+		/**
+		 * Add a shard for instances of specified {@link Class}, which are
+		 * spread over all its shards by identity.
+		 * 
+		 * @param clazz
+		 *            entity class
+		 * @param name
+		 *            shard name, which define its positions on ring
+		 * @param entityStore
+		 *            shard
+		 * @return this instance
+		 * @throws NullPointerException
+		 *             if one of parameters is null
+		 * @throws IllegalArgumentException
+		 *             if a shard with the same name exists for this class
+		 */
+		public Builder shard(final Class<?> clazz, final String name, final EntityStore entityStore) throws NullPointerException, IllegalArgumentException {
+			final Reference entityClassReference = Reference.newReferenceOnEntityClass(clazz);
+			ConsistentHashRing<EntityStore> ring = rings.get(entityClassReference);
+			if (ring == null) {
+				ring = new ConsistentHashRing<EntityStore>(virtualNodes);
+				rings.put(entityClassReference, ring);
+			}
+			ring.add(name, entityStore);
+			return this;
+		}
+
 		/**
 		 * Build a new instance of {@link ShardingEntityStore}.
 		 * 
@@ -162,7 +729,7 @@ public class ShardingEntityStore implements EntityStore {
 		 *             if defaultEntityStoreis nul
 		 */
 		public ShardingEntityStore build(final EntityStore defaultEntityStore) throws NullPointerException {
-			return new ShardingEntityStore(Preconditions.checkNotNull(defaultEntityStore), stores);
+			return new ShardingEntityStore(Preconditions.checkNotNull(defaultEntityStore), stores, rings, scatterGather);
 		}
 	}
 }
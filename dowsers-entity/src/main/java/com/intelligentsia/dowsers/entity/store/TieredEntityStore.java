@@ -0,0 +1,462 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+
+import org.intelligentsia.dowsers.core.reflection.ClassInformation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.Striped;
+import com.intelligentsia.dowsers.entity.reference.Reference;
+import com.intelligentsia.dowsers.entity.reference.References;
+
+/**
+ * <code>TieredEntityStore</code> compose a fast hot {@link EntityStore} with a
+ * slow archival cold {@link EntityStore}.
+ * 
+ * <p>
+ * Each hot reference has an access counter, incremented on read and write
+ * under lock of reference, so an access never races its demotion. Counters of
+ * hot entities stored before start are seeded from hot tier for specified
+ * types. A
+ * demotion pass (see {@link #demote()}), run periodically in background, moves
+ * to cold tier references accessed less than a minimum number of times since
+ * previous pass, and halves counters of others. Reading or writing a cold
+ * entity promotes it to hot tier. An entity lives in a single tier, except
+ * during its move: {@link #find(Class)} and {@link #find(Reference)} merge
+ * both tiers without duplicates.
+ * </p>
+ * <p>
+ * Both tiers are {@link VersionedEntityStore}: a moved entity keeps its
+ * version, so an instance read before a move is still checked after it. A
+ * write on a cold entity is checked against its cold version, then promoted
+ * with next version.
+ * </p>
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
+ */
+public class TieredEntityStore extends AbstractEntityStore implements VersionedEntityStore, Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(TieredEntityStore.class);
+
+	/**
+	 * Default minimum number of accesses between two passes to stay hot.
+	 */
+	public static final int DEFAULT_MINIMUM_ACCESS = 1;
+	/**
+	 * Default delay between two demotion passes, in seconds.
+	 */
+	public static final long DEFAULT_DEMOTION_PERIOD = 60;
+
+	private final VersionedEntityStore hot;
+	private final VersionedEntityStore cold;
+	private final int minimumAccess;
+	/**
+	 * Access counters of hot references.
+	 */
+	private final ConcurrentMap<Reference, AtomicInteger> accesses = new ConcurrentHashMap<Reference, AtomicInteger>();
+	/**
+	 * Locks on references shared by writers and moves.
+	 */
+	private final Striped<Lock> locks = Striped.lock(64);
+	private final ScheduledExecutorService demoter;
+
+	/**
+	 * Build a new instance of <code>TieredEntityStore</code> with default
+	 * settings.
+	 * 
+	 * @param hot
+	 *            hot {@link EntityStore}
+	 * @param cold
+	 *            cold {@link EntityStore}
+	 * @throws NullPointerException
+	 *             if hot or cold is null
+	 * @throws IllegalArgumentException
+	 *             if hot or cold is not a {@link VersionedEntityStore}
+	 */
+	public TieredEntityStore(final EntityStore hot, final EntityStore cold) throws NullPointerException, IllegalArgumentException {
+		this(hot, cold, DEFAULT_MINIMUM_ACCESS, DEFAULT_DEMOTION_PERIOD, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Build a new instance of <code>TieredEntityStore</code>.
+	 * 
+	 * @param hot
+	 *            hot {@link EntityStore}
+	 * @param cold
+	 *            cold {@link EntityStore}
+	 * @param minimumAccess
+	 *            minimum number of accesses between two passes to stay hot
+	 * @param demotionPeriod
+	 *            delay between two demotion passes, no background demotion if
+	 *            0
+	 * @param unit
+	 *            unit of demotionPeriod
+	 * @param types
+	 *            types of entities already in hot tier, tracked from start
+	 *            (others are tracked once written)
+	 * @throws NullPointerException
+	 *             if hot, cold or unit is null
+	 * @throws IllegalArgumentException
+	 *             if minimumAccess or demotionPeriod is negative, or if hot or
+	 *             cold is not a {@link VersionedEntityStore}
+	 */
+	public TieredEntityStore(final EntityStore hot, final EntityStore cold, final int minimumAccess, final long demotionPeriod, final TimeUnit unit, final Class<?>... types) throws NullPointerException,
+			IllegalArgumentException {
+		super();
+		// moves keep versions
+		Preconditions.checkArgument(Preconditions.checkNotNull(hot) instanceof VersionedEntityStore, "hot tier does not keep versions");
+		Preconditions.checkArgument(Preconditions.checkNotNull(cold) instanceof VersionedEntityStore, "cold tier does not keep versions");
+		this.hot = (VersionedEntityStore) hot;
+		this.cold = (VersionedEntityStore) cold;
+		Preconditions.checkArgument(minimumAccess >= 0);
+		Preconditions.checkArgument(demotionPeriod >= 0);
+		Preconditions.checkNotNull(unit);
+		this.minimumAccess = minimumAccess;
+		for (final Class<?> type : types) {
+			for (final Reference reference : hot.find(type)) {
+				accesses.putIfAbsent(reference, new AtomicInteger());
+			}
+		}
+		if (demotionPeriod > 0) {
+			demoter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				private final ThreadFactory delegate = Executors.defaultThreadFactory();
+
+				@Override
+				public Thread newThread(final Runnable runnable) {
+					final Thread thread = delegate.newThread(runnable);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			demoter.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						demote();
+					} catch (final Throwable throwable) {
+						logger.error("TieredEntityStore demotion error", throwable);
+					}
+				}
+			}, demotionPeriod, demotionPeriod, unit);
+		} else {
+			demoter = null;
+		}
+	}
+
+	@Override
+	public <T> T find(final Class<T> expectedType, final Reference reference) throws EntityNotFoundException, NullPointerException, IllegalArgumentException {
+		Preconditions.checkNotNull(expectedType);
+		Preconditions.checkNotNull(reference);
+		try {
+			final T entity = hot.find(expectedType, reference);
+			touch(reference);
+			return entity;
+		} catch (final EntityNotFoundException e) {
+			// try cold tier
+		}
+		final Lock lock = locks.get(reference);
+		lock.lock();
+		try {
+			// promoted meanwhile ?
+			if (!accesses.containsKey(reference)) {
+				promote(reference);
+			}
+			final T entity = hot.find(expectedType, reference);
+			touch(reference);
+			return entity;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Iterable<Reference> find(final Class<?> expectedType) throws NullPointerException {
+		Preconditions.checkNotNull(expectedType);
+		final Iterable<Reference> hotReferences = hot.find(expectedType);
+		final Iterable<Reference> coldReferences = cold.find(expectedType);
+		return new Iterable<Reference>() {
+			@Override
+			public Iterator<Reference> iterator() {
+				return merge(hotReferences.iterator(), coldReferences);
+			}
+		};
+	}
+
+	@Override
+	public Iterable<Reference> find(final Reference reference) throws NullPointerException {
+		Preconditions.checkNotNull(reference);
+		final Iterable<Reference> hotReferences = hot.find(reference);
+		final Iterable<Reference> coldReferences = cold.find(reference);
+		return new Iterable<Reference>() {
+			@Override
+			public Iterator<Reference> iterator() {
+				return merge(hotReferences.iterator(), coldReferences);
+			}
+		};
+	}
+
+	/**
+	 * Store entity in hot tier. A cold entity is checked against its cold
+	 * version, then promoted.
+	 */
+	@Override
+	public <T> void store(final T entity) throws NullPointerException, ConcurrencyException, IllegalArgumentException {
+		store(entity, false);
+	}
+
+	/**
+	 * Restore entity in hot tier, removing its cold copy if any.
+	 */
+	@Override
+	public <T> void restore(final T entity) throws NullPointerException, IllegalArgumentException {
+		store(entity, true);
+	}
+
+	private <T> void store(final T entity, final boolean keep) throws NullPointerException, ConcurrencyException, IllegalArgumentException {
+		final Reference reference = References.identify(Preconditions.checkNotNull(entity));
+		final Lock lock = locks.get(reference);
+		lock.lock();
+		try {
+			if (!accesses.containsKey(reference)) {
+				final Object stored = findCold(reference);
+				if (stored != null) {
+					final long expected = Versions.version(entity);
+					Versions.version(entity, Versions.next(reference, expected, Versions.version(stored), keep));
+					try {
+						hot.restore(entity);
+					} catch (final RuntimeException e) {
+						Versions.version(entity, expected);
+						throw e;
+					}
+					accesses.putIfAbsent(reference, new AtomicInteger());
+					cold.remove(reference);
+					touch(reference);
+					return;
+				}
+			}
+			if (keep) {
+				hot.restore(entity);
+			} else {
+				hot.store(entity);
+			}
+			accesses.putIfAbsent(reference, new AtomicInteger());
+			touch(reference);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public <T> void remove(final T entity) throws NullPointerException, IllegalArgumentException {
+		remove(References.identify(Preconditions.checkNotNull(entity)));
+	}
+
+	@Override
+	public void remove(final Reference reference) throws NullPointerException, IllegalArgumentException {
+		Preconditions.checkNotNull(reference);
+		final Lock lock = locks.get(reference);
+		lock.lock();
+		try {
+			hot.remove(reference);
+			cold.remove(reference);
+			accesses.remove(reference);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Run a demotion pass: each hot reference accessed less than minimum
+	 * number of times since previous pass is moved to cold tier, counters of
+	 * others are halved.
+	 * 
+	 * @return number of demoted references
+	 */
+	public synchronized int demote() {
+		int demoted = 0;
+		for (final Map.Entry<Reference, AtomicInteger> entry : accesses.entrySet()) {
+			final Reference reference = entry.getKey();
+			final AtomicInteger counter = entry.getValue();
+			int count = counter.get();
+			while ((count >= minimumAccess) && !counter.compareAndSet(count, count / 2)) {
+				count = counter.get();
+			}
+			if (count < minimumAccess) {
+				final Lock lock = locks.get(reference);
+				lock.lock();
+				try {
+					// accessed meanwhile ?
+					if ((accesses.get(reference) == counter) && (counter.get() < minimumAccess) && move(reference, hot, cold)) {
+						demoted++;
+					}
+				} finally {
+					lock.unlock();
+				}
+			}
+		}
+		return demoted;
+	}
+
+	/**
+	 * @return number of references known in hot tier.
+	 */
+	public int hotCount() {
+		return accesses.size();
+	}
+
+	public EntityStore getHot() {
+		return hot;
+	}
+
+	public EntityStore getCold() {
+		return cold;
+	}
+
+	/**
+	 * Stop background demotion.
+	 */
+	@Override
+	public void close() {
+		if (demoter != null) {
+			demoter.shutdownNow();
+		}
+	}
+
+	/**
+	 * Count an access of a hot reference, under its lock: a reference demoted
+	 * since it was read is not tracked again.
+	 */
+	private void touch(final Reference reference) {
+		final Lock lock = locks.get(reference);
+		lock.lock();
+		try {
+			final AtomicInteger counter = accesses.get(reference);
+			if (counter != null) {
+				counter.incrementAndGet();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Move a cold entity in hot tier, under lock of reference.
+	 * 
+	 * @param reference
+	 * @throws EntityNotFoundException
+	 *             if entity is in no tier
+	 */
+	private void promote(final Reference reference) throws EntityNotFoundException {
+		if (!move(reference, cold, hot)) {
+			throw new EntityNotFoundException();
+		}
+	}
+
+	/**
+	 * Move an entity between tiers, under lock of reference. Entity is
+	 * restored with its version in target tier before it is removed from
+	 * source tier, and it is tracked as hot while it is in both tiers.
+	 * 
+	 * @return false if entity is not in source tier.
+	 */
+	private boolean move(final Reference reference, final VersionedEntityStore from, final VersionedEntityStore to) {
+		final Object entity;
+		try {
+			entity = from.find(typeOf(reference), reference);
+		} catch (final EntityNotFoundException e) {
+			if (from == hot) {
+				accesses.remove(reference);
+			}
+			return false;
+		}
+		accesses.putIfAbsent(reference, new AtomicInteger());
+		to.restore(entity);
+		from.remove(reference);
+		if (to == cold) {
+			accesses.remove(reference);
+		}
+		return true;
+	}
+
+	private Object findCold(final Reference reference) {
+		try {
+			return cold.find(typeOf(reference), reference);
+		} catch (final EntityNotFoundException e) {
+			return null;
+		}
+	}
+
+	private static Class<?> typeOf(final Reference reference) {
+		return ClassInformation.parse(reference.getEntityClassName()).getType();
+	}
+
+	/**
+	 * Iterate hot references, then cold references which are neither hot nor
+	 * already seen. Only hot references are kept in memory.
+	 */
+	private Iterator<Reference> merge(final Iterator<Reference> hotReferences, final Iterable<Reference> coldReferences) {
+		final Set<Reference> seen = Collections.newSetFromMap(new ConcurrentHashMap<Reference, Boolean>());
+		return Iterators.concat(new AbstractIterator<Reference>() {
+			@Override
+			protected Reference computeNext() {
+				if (hotReferences.hasNext()) {
+					final Reference reference = hotReferences.next();
+					seen.add(reference);
+					return reference;
+				}
+				return endOfData();
+			}
+		}, new AbstractIterator<Reference>() {
+			private Iterator<Reference> iterator;
+
+			@Override
+			protected Reference computeNext() {
+				if (iterator == null) {
+					iterator = Iterators.filter(coldReferences.iterator(), new Predicate<Reference>() {
+						@Override
+						public boolean apply(final Reference input) {
+							return !seen.contains(input) && !accesses.containsKey(input);
+						}
+					});
+				}
+				return iterator.hasNext() ? iterator.next() : endOfData();
+			}
+		});
+	}
+}
@@ -0,0 +1,47 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store;
+
+import com.intelligentsia.dowsers.entity.Entity;
+
+/**
+ * <code>VersionedEntityStore</code> is an {@link EntityStore} which can store
+ * an entity with the version it carries, as {@link ShardingEntityStore} and
+ * {@link TieredEntityStore} need when they move an entity between stores.
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
+ */
+public interface VersionedEntityStore extends EntityStore {
+
+	/**
+	 * Store specified entity with its version as is: version is neither
+	 * checked against stored one nor incremented. An entity without a checked
+	 * version (see {@link Versions#isChecked(long)}) is stored as with
+	 * {@link #store(Object)}.
+	 * 
+	 * @param entity
+	 *            entity to store
+	 * @throws NullPointerException
+	 *             if entity is null
+	 * @throws IllegalArgumentException
+	 *             if entity is not an {@link Entity} representation
+	 */
+	public <T> void restore(T entity) throws NullPointerException, IllegalArgumentException;
+}
@@ -0,0 +1,193 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+import org.intelligentsia.dowsers.core.DowsersException;
+import org.intelligentsia.dowsers.core.Sequence;
+import org.intelligentsia.keystone.kernel.api.StringUtils;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.common.base.Charsets;
+import com.intelligentsia.dowsers.entity.Entity;
+import com.intelligentsia.dowsers.entity.Versioned;
+import com.intelligentsia.dowsers.entity.reference.Reference;
+import com.intelligentsia.dowsers.entity.reference.References;
+
+/**
+ * <code>Versions</code> gather optimistic concurrency rules shared by
+ * {@link EntityStore} implementations.
+ * 
+ * <p>
+ * On store, a backend compares the version carried by the entity (see
+ * {@link Versioned}) with the version of the stored state, and fail with a
+ * {@link ConcurrencyException} if they differ. An entity with
+ * {@link Sequence#INITIAL} or {@link Sequence#LATEST} version is not checked.
+ * Stored version is then incremented and set on the entity before it is
+ * serialized.
+ * </p>
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
+ */
+public enum Versions {
+	;
+
+	/**
+	 * Serialized field name of version.
+	 */
+	public static final String VERSION = "@version";
+
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	/**
+	 * @param any
+	 *            an entity
+	 * @return version of specified entity, or {@link Sequence#LATEST} if it is
+	 *         not {@link Versioned}.
+	 * @throws IllegalArgumentException
+	 *             if specified object is not an entity
+	 */
+	public static long version(final Object any) throws IllegalArgumentException {
+		final Entity entity = References.discover(any);
+		return entity instanceof Versioned ? ((Versioned) entity).version() : Sequence.forLatestSequence();
+	}
+
+	/**
+	 * Set version of specified entity, if it is {@link Versioned}.
+	 * 
+	 * @param any
+	 *            an entity
+	 * @param version
+	 * @throws IllegalArgumentException
+	 *             if specified object is not an entity
+	 */
+	public static void version(final Object any, final long version) throws IllegalArgumentException {
+		final Entity entity = References.discover(any);
+		if (entity instanceof Versioned) {
+			((Versioned) entity).version(version);
+		}
+	}
+
+	/**
+	 * @param expected
+	 *            version carried by an entity
+	 * @return true if expected version should be compared with stored one.
+	 */
+	public static boolean isChecked(final long expected) {
+		return !Sequence.isForInitialSequence(expected) && Sequence.isForSpecificSequence(expected);
+	}
+
+	/**
+	 * Check expected version against current stored version.
+	 * 
+	 * @param reference
+	 *            entity reference
+	 * @param expected
+	 *            version carried by entity
+	 * @param current
+	 *            stored version ({@link Sequence#INITIAL} if none)
+	 * @return next version to store.
+	 * @throws ConcurrencyException
+	 *             if expected version is checked and differs from current
+	 */
+	public static long next(final Reference reference, final long expected, final long current) throws ConcurrencyException {
+		if (isChecked(expected) && (expected != current)) {
+			throw new ConcurrencyException(StringUtils.format("entity '%s' expected version %s but found %s", reference, expected, current));
+		}
+		return Sequence.nextSequence(current);
+	}
+
+	/**
+	 * Check expected version against current stored version, or keep it as is
+	 * (see {@link VersionedEntityStore#restore(Object)}).
+	 *
+	 * @param reference
+	 *            entity reference
+	 * @param expected
+	 *            version carried by entity
+	 * @param current
+	 *            stored version ({@link Sequence#INITIAL} if none)
+	 * @param keep
+	 *            if true, a checked expected version is returned as is
+	 * @return next version to store.
+	 * @throws ConcurrencyException
+	 *             if expected version is checked, not kept and differs from
+	 *             current
+	 */
+	public static long next(final Reference reference, final long expected, final long current, final boolean keep) throws ConcurrencyException {
+		if (keep && isChecked(expected)) {
+			return expected;
+		}
+		return next(reference, expected, current);
+	}
+
+	/**
+	 * Read version of a serialized entity. Only the head of entity is parsed,
+	 * as version is written before attributes.
+	 * 
+	 * @param payload
+	 *            UTF-8 serialized entity
+	 * @return version or {@link Sequence#INITIAL} if none
+	 * @throws DowsersException
+	 *             if payload cannot be parsed
+	 */
+	public static long read(final byte[] payload) throws DowsersException {
+		return read(new InputStreamReader(new ByteArrayInputStream(payload), Charsets.UTF_8));
+	}
+
+	/**
+	 * Read version of a serialized entity. Only the head of entity is parsed,
+	 * as version is written before attributes.
+	 * 
+	 * @param reader
+	 *            serialized entity, not closed
+	 * @return version or {@link Sequence#INITIAL} if none
+	 * @throws DowsersException
+	 *             if reader cannot be parsed
+	 */
+	public static long read(final Reader reader) throws DowsersException {
+		try {
+			final JsonParser parser = JSON_FACTORY.createParser(reader);
+			JsonToken token = parser.nextToken();
+			while (token != null) {
+				if (token == JsonToken.FIELD_NAME) {
+					final String name = parser.getCurrentName();
+					if (VERSION.equals(name)) {
+						parser.nextToken();
+						return parser.getLongValue();
+					}
+					if ("@attributes".equals(name)) {
+						break;
+					}
+				}
+				token = parser.nextToken();
+			}
+			return Sequence.forInitialSequence();
+		} catch (final IOException e) {
+			throw new DowsersException("unable to read entity version", e);
+		}
+	}
+}
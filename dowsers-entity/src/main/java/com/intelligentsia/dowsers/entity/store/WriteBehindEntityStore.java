@@ -0,0 +1,565 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store;
+
+import java.io.Closeable;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.intelligentsia.dowsers.core.DowsersException;
+import org.intelligentsia.dowsers.core.reflection.ClassInformation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.intelligentsia.dowsers.entity.reference.Reference;
+import com.intelligentsia.dowsers.entity.reference.References;
+import com.intelligentsia.dowsers.entity.serializer.EntityMapper;
+import com.intelligentsia.dowsers.entity.serializer.EntityProxyHandler;
+
+/**
+ * <code>WriteBehindEntityStore</code> acknowledge writes in memory and flush
+ * them to delegate {@link EntityStore} in batch, on a background thread.
+ * 
+ * <ul>
+ * <li>Pending writes are keyed by {@link Reference}: repeated stores or
+ * removes of a same entity are coalesced, only last one reach delegate.</li>
+ * <li>Pending writes are flushed when batch size is reached, or every flush
+ * interval, with {@link EntityStore#storeAll(Iterable)} and
+ * {@link EntityStore#removeAll(Iterable)}.</li>
+ * <li>Entities are serialized when stored: reads see pending writes,
+ * deserialized with expected type. {@link #find(Class)} merges pending
+ * references with delegate ones, attribute queries flush pending writes
+ * first.</li>
+ * <li>When capacity is reached, writers wait until a flush frees some room
+ * (backpressure).</li>
+ * </ul>
+ * <p>
+ * Version of a stored entity is checked and updated by delegate when written.
+ * An entity stored again while its previous write is flushed is written with
+ * version assigned by this flush. As delegate is written asynchronously, a failure (for instance a
+ * {@link ConcurrencyException}) is logged and thrown by next {@link #flush()}
+ * or {@link #close()}.
+ * </p>
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
+ */
+public class WriteBehindEntityStore extends AbstractEntityStore implements EntityStore, Closeable {
+
+	/**
+	 * Default batch size.
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 100;
+
+	/**
+	 * Default maximum number of pending writes.
+	 */
+	public static final int DEFAULT_CAPACITY = 10000;
+
+	/**
+	 * Default flush interval in milliseconds.
+	 */
+	public static final long DEFAULT_FLUSH_INTERVAL = 100;
+
+	private static final Logger logger = LoggerFactory.getLogger(WriteBehindEntityStore.class);
+
+	/**
+	 * Pending value of a removed entity.
+	 */
+	private static final Write REMOVED = new Write(null, null, null);
+
+	private final EntityStore entityStore;
+
+	private final EntityMapper entityMapper;
+
+	private final int batchSize;
+
+	private final int capacity;
+
+	private final long flushInterval;
+
+	private final TimeUnit unit;
+
+	/**
+	 * Guard pending, flushing, failure, closed, and versions of stored entities
+	 * and of writes.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final Condition notFull = lock.newCondition();
+
+	private final Condition batchReady = lock.newCondition();
+
+	/**
+	 * Pending writes, in write order.
+	 */
+	private Map<Reference, Write> pending = Maps.newLinkedHashMap();
+
+	/**
+	 * Writes being flushed.
+	 */
+	private Map<Reference, Write> flushing = Collections.emptyMap();
+
+	/**
+	 * First failure since last flush, or null.
+	 */
+	private RuntimeException failure;
+
+	private boolean closed = false;
+
+	/**
+	 * Only one flush at a time, so writes reach delegate in order.
+	 */
+	private final ReentrantLock flushLock = new ReentrantLock();
+
+	private final Thread flusher;
+
+	/**
+	 * Build a new instance of <code>WriteBehindEntityStore</code> with
+	 * {@link #DEFAULT_BATCH_SIZE}, {@link #DEFAULT_CAPACITY} and
+	 * {@link #DEFAULT_FLUSH_INTERVAL}.
+	 * 
+	 * @param entityStore
+	 *            delegate
+	 * @param entityMapper
+	 *            {@link EntityMapper} used to serialize pending entities
+	 * @throws NullPointerException
+	 *             if entityStore or entityMapper is null
+	 */
+	public WriteBehindEntityStore(final EntityStore entityStore, final EntityMapper entityMapper) throws NullPointerException {
+		this(entityStore, entityMapper, DEFAULT_BATCH_SIZE, DEFAULT_CAPACITY, DEFAULT_FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Build a new instance of <code>WriteBehindEntityStore</code>.
+	 * 
+	 * @param entityStore
+	 *            delegate
+	 * @param entityMapper
+	 *            {@link EntityMapper} used to serialize pending entities
+	 * @param batchSize
+	 *            number of pending writes which trigger a flush, and maximum
+	 *            size of batch given to delegate
+	 * @param capacity
+	 *            maximum number of pending writes
+	 * @param flushInterval
+	 *            maximum delay before a pending write is flushed
+	 * @param unit
+	 *            unit of flushInterval
+	 * @throws NullPointerException
+	 *             if entityStore, entityMapper or unit is null
+	 * @throws IllegalArgumentException
+	 *             if batchSize, capacity or flushInterval is not positive, or
+	 *             if capacity is lower than batchSize
+	 */
+	public WriteBehindEntityStore(final EntityStore entityStore, final EntityMapper entityMapper, final int batchSize, final int capacity, final long flushInterval, final TimeUnit unit) throws NullPointerException, IllegalArgumentException {
+		super();
+		this.entityStore = Preconditions.checkNotNull(entityStore);
+		this.entityMapper = Preconditions.checkNotNull(entityMapper);
+		Preconditions.checkArgument(batchSize > 0);
+		Preconditions.checkArgument(capacity >= batchSize);
+		Preconditions.checkArgument(flushInterval > 0);
+		this.batchSize = batchSize;
+		this.capacity = capacity;
+		this.flushInterval = flushInterval;
+		this.unit = Preconditions.checkNotNull(unit);
+		flusher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				flushLoop();
+			}
+		}, "write-behind-flusher");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * Merge pending references of expected type with delegate ones. Pending
+	 * removed references are excluded.
+	 */
+	@Override
+	public Iterable<Reference> find(final Class<?> expectedType) throws NullPointerException {
+		final Reference entityClassReference = Reference.newReferenceOnEntityClass(expectedType);
+		final Map<Reference, Write> writes = Maps.newLinkedHashMap();
+		lock.lock();
+		try {
+			for (final Map<Reference, Write> map : Lists.newArrayList(flushing, pending)) {
+				for (final Map.Entry<Reference, Write> entry : map.entrySet()) {
+					if (entry.getKey().getEntityClassReference().equals(entityClassReference)) {
+						writes.put(entry.getKey(), entry.getValue());
+					}
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (writes.isEmpty()) {
+			return entityStore.find(expectedType);
+		}
+		final List<Reference> stored = Lists.newArrayList();
+		for (final Map.Entry<Reference, Write> entry : writes.entrySet()) {
+			if (entry.getValue() != REMOVED) {
+				stored.add(entry.getKey());
+			}
+		}
+		final ImmutableSet<Reference> excluded = ImmutableSet.copyOf(writes.keySet());
+		return Iterables.concat(Iterables.filter(entityStore.find(expectedType), new Predicate<Reference>() {
+			@Override
+			public boolean apply(final Reference input) {
+				return !excluded.contains(input);
+			}
+		}), stored);
+	}
+
+	/**
+	 * Pending writes are flushed before query.
+	 */
+	@Override
+	public Iterable<Reference> find(final Reference reference) throws NullPointerException {
+		flush();
+		return entityStore.find(reference);
+	}
+
+	@Override
+	public <T> T find(final Class<T> expectedType, final Reference reference) throws EntityNotFoundException, NullPointerException, IllegalArgumentException {
+		Preconditions.checkNotNull(expectedType);
+		final Write write = pending(Preconditions.checkNotNull(reference));
+		if (write == REMOVED) {
+			throw new EntityNotFoundException();
+		}
+		if (write != null) {
+			final T entity = entityMapper.readValue(new StringReader(write.snapshot), expectedType);
+			Versions.version(entity, version(write));
+			return entity;
+		}
+		return entityStore.find(expectedType, reference);
+	}
+
+	@Override
+	public <T> void store(final T entity) throws NullPointerException, ConcurrencyException, IllegalArgumentException {
+		final Reference reference = References.identify(Preconditions.checkNotNull(entity));
+		final StringWriter writer = new StringWriter();
+		entityMapper.writeValue(writer, entity);
+		write(reference, new Write(reference, entity, writer.toString()));
+	}
+
+	@Override
+	public <T> void remove(final T entity) throws NullPointerException, IllegalArgumentException {
+		remove(References.identify(Preconditions.checkNotNull(entity)));
+	}
+
+	@Override
+	public void remove(final Reference reference) throws NullPointerException, IllegalArgumentException {
+		write(Preconditions.checkNotNull(reference), REMOVED);
+	}
+
+	/**
+	 * Write all pending writes to delegate, and wait for completion.
+	 * 
+	 * @throws RuntimeException
+	 *             first failure of delegate since last flush
+	 */
+	public void flush() throws RuntimeException {
+		flushPending();
+		final RuntimeException exception;
+		lock.lock();
+		try {
+			exception = failure;
+			failure = null;
+		} finally {
+			lock.unlock();
+		}
+		if (exception != null) {
+			throw exception;
+		}
+	}
+
+	/**
+	 * Stop background flush and flush pending writes. Further writes are
+	 * rejected with an {@link IllegalStateException}.
+	 */
+	@Override
+	public void close() {
+		lock.lock();
+		try {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			batchReady.signalAll();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		try {
+			flusher.join();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flush();
+	}
+
+	/**
+	 * @return number of pending writes.
+	 */
+	public int pendingCount() {
+		lock.lock();
+		try {
+			return pending.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return delegate {@link EntityStore}.
+	 */
+	public EntityStore getEntityStore() {
+		return entityStore;
+	}
+
+	private Write pending(final Reference reference) {
+		lock.lock();
+		try {
+			final Write value = pending.get(reference);
+			return value != null ? value : flushing.get(reference);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private long version(final Write write) {
+		lock.lock();
+		try {
+			return write.version;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void write(final Reference reference, final Write value) {
+		lock.lock();
+		try {
+			while (!closed && (pending.size() >= capacity) && !pending.containsKey(reference)) {
+				notFull.awaitUninterruptibly();
+			}
+			if (closed) {
+				throw new IllegalStateException("closed");
+			}
+			if (value != REMOVED) {
+				value.version = Versions.version(value.entity);
+			}
+			pending.put(reference, value);
+			if (pending.size() >= batchSize) {
+				batchReady.signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void flushLoop() {
+		while (true) {
+			lock.lock();
+			try {
+				if (closed) {
+					return;
+				}
+				if (pending.size() < batchSize) {
+					batchReady.await(flushInterval, unit);
+				}
+			} catch (final InterruptedException e) {
+				return;
+			} finally {
+				lock.unlock();
+			}
+			flushPending();
+		}
+	}
+
+	/**
+	 * Write current pending writes to delegate, in batches of batchSize.
+	 */
+	private void flushPending() {
+		flushLock.lock();
+		try {
+			final Map<Reference, Write> batch;
+			lock.lock();
+			try {
+				if (pending.isEmpty()) {
+					return;
+				}
+				batch = pending;
+				flushing = batch;
+				pending = Maps.newLinkedHashMap();
+				notFull.signalAll();
+			} finally {
+				lock.unlock();
+			}
+			try {
+				final List<Write> stores = Lists.newArrayList();
+				final List<Reference> removes = Lists.newArrayList();
+				for (final Map.Entry<Reference, Write> entry : batch.entrySet()) {
+					if (entry.getValue() == REMOVED) {
+						removes.add(entry.getKey());
+					} else {
+						stores.add(entry.getValue());
+					}
+				}
+				for (final List<Write> partition : Lists.partition(stores, batchSize)) {
+					write(partition);
+				}
+				for (final List<Reference> partition : Lists.partition(removes, batchSize)) {
+					try {
+						entityStore.removeAll(partition);
+					} catch (final RuntimeException e) {
+						fail(e, partition.size());
+					}
+				}
+			} finally {
+				lock.lock();
+				try {
+					flushing = Collections.emptyMap();
+				} finally {
+					lock.unlock();
+				}
+			}
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	private void write(final List<Write> partition) {
+		final List<Object> entities = Lists.newArrayListWithCapacity(partition.size());
+		for (final Write write : partition) {
+			entities.add(entityMapper.readValue(new StringReader(write.snapshot), write.type));
+		}
+		lock.lock();
+		try {
+			// version could have been carried forward since snapshot
+			for (int i = 0; i < entities.size(); i++) {
+				Versions.version(entities.get(i), partition.get(i).version);
+			}
+		} finally {
+			lock.unlock();
+		}
+		try {
+			entityStore.storeAll(entities);
+		} catch (final ConcurrencyException e) {
+			// store what can be stored, one by one
+			for (int i = 0; i < entities.size(); i++) {
+				try {
+					entityStore.store(entities.get(i));
+				} catch (final RuntimeException exception) {
+					fail(exception, 1);
+					entities.set(i, null);
+				}
+			}
+		} catch (final RuntimeException e) {
+			fail(e, partition.size());
+			return;
+		}
+		lock.lock();
+		try {
+			for (int i = 0; i < entities.size(); i++) {
+				if (entities.get(i) != null) {
+					written(partition.get(i), Versions.version(entities.get(i)));
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Update version of stored entity, unless it was stored again with a new
+	 * version, and carry it forward to a write of same entity stored meanwhile
+	 * with previous version. Called with lock held.
+	 */
+	private void written(final Write write, final long newVersion) {
+		if (Versions.version(write.entity) == write.version) {
+			Versions.version(write.entity, newVersion);
+		}
+		final Write next = pending.get(write.reference);
+		if ((next != null) && (next != REMOVED) && (next.version == write.version)) {
+			next.version = newVersion;
+		}
+	}
+
+	/**
+	 * A pending write: stored entity and its serialized form.
+	 */
+	private static final class Write {
+
+		private final Reference reference;
+
+		private final Object entity;
+
+		/**
+		 * Type used to read snapshot: interface of a proxy, else entity class.
+		 */
+		private final Class<?> type;
+
+		private final String snapshot;
+
+		/**
+		 * Version to write: version of entity when it was stored, or version
+		 * assigned by flush of previous write. Guarded by lock.
+		 */
+		private long version;
+
+		Write(final Reference reference, final Object entity, final String snapshot) {
+			super();
+			this.reference = reference;
+			this.entity = entity;
+			this.snapshot = snapshot;
+			if (entity == null) {
+				type = null;
+			} else if (entity instanceof EntityProxyHandler) {
+				type = ClassInformation.parse(References.identify(entity).getEntityClassName()).getType();
+			} else {
+				type = entity.getClass();
+			}
+		}
+	}
+
+	private void fail(final RuntimeException exception, final int count) {
+		logger.error("WriteBehindEntityStore unable to flush " + count + " write(s)", exception);
+		lock.lock();
+		try {
+			if (failure == null) {
+				failure = exception instanceof ConcurrencyException ? exception : new DowsersException("unable to flush writes", exception);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,365 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store.btree;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.List;
+
+import org.intelligentsia.dowsers.core.DowsersException;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+/**
+ * BTree is a single file, page based, B+tree of {@link String} keys and byte
+ * array values. It is not thread safe.
+ * 
+ * <p>
+ * Updates are copy on write (see {@link Pager}): each modified node is written
+ * in a new page, up to a new root, and become visible with {@link #commit()}.
+ * Values larger than a quarter of page, or which would make an entry larger
+ * than half a node, are written in overflow pages: a node of two entries
+ * always fits in a page. Under
+ * filled nodes are not merged, an empty node is removed from its parent.
+ * </p>
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
+ */
+final class BTree implements Closeable {
+
+	/**
+	 * Maximum size in bytes of a key.
+	 */
+	static final int MAX_KEY_SIZE = 1024;
+
+	private static final int INLINE_LIMIT = Pager.PAGE_SIZE / 4;
+
+	/**
+	 * Maximum size in bytes of a leaf entry (key and inline value), so that
+	 * any node can be split in two nodes which fit in a page.
+	 */
+	private static final int MAX_ENTRY_SIZE = (Pager.PAGE_SIZE - Node.HEADER) / 2;
+
+	private final Pager pager;
+
+	/**
+	 * Root of current transaction.
+	 */
+	private int root;
+
+	/**
+	 * Build a new instance of BTree.
+	 * 
+	 * @param file
+	 *            tree file, created if it does not exist
+	 * @param bufferPoolSize
+	 *            maximum number of pages in buffer pool
+	 * @throws DowsersException
+	 *             if file cannot be opened
+	 * @throws IllegalStateException
+	 *             if file is used by another tree
+	 */
+	BTree(final File file, final int bufferPoolSize) throws DowsersException, IllegalStateException {
+		super();
+		pager = new Pager(file, bufferPoolSize);
+		root = pager.root();
+	}
+
+	/**
+	 * @param key
+	 * @return value of specified key, or null if none.
+	 */
+	byte[] get(final String key) {
+		int page = root;
+		while (page != 0) {
+			final Node node = pager.read(page);
+			if (node.leaf) {
+				final int index = node.search(key);
+				return index >= 0 ? pager.read(node.values.get(index)) : null;
+			}
+			page = node.children.get(node.child(key));
+		}
+		return null;
+	}
+
+	/**
+	 * Put a value in current transaction.
+	 * 
+	 * @param key
+	 * @param data
+	 * @throws IllegalArgumentException
+	 *             if key is larger than {@link #MAX_KEY_SIZE}
+	 */
+	void put(final String key, final byte[] data) throws IllegalArgumentException {
+		final int keySize = key.getBytes(Charsets.UTF_8).length;
+		Preconditions.checkArgument(keySize <= MAX_KEY_SIZE, "key too large");
+		final Node.Value value = pager.value(data, Math.min(INLINE_LIMIT, MAX_ENTRY_SIZE - Node.entrySize(keySize, 0)));
+		if (root == 0) {
+			root = pager.write(Node.leaf(Lists.newArrayList(key), Lists.newArrayList(value)));
+			return;
+		}
+		final Result result = put(root, key, value);
+		root = result.right == 0 ? result.left : pager.write(Node.branch(Lists.newArrayList(result.separator), Lists.newArrayList(result.left, result.right)));
+	}
+
+	/**
+	 * Remove a key in current transaction.
+	 * 
+	 * @param key
+	 * @return true if key was found.
+	 */
+	boolean remove(final String key) {
+		if (root == 0) {
+			return false;
+		}
+		final int result = remove(root, key);
+		if (result == root) {
+			return false;
+		}
+		root = result;
+		return true;
+	}
+
+	/**
+	 * Scan keys in order.
+	 * 
+	 * @param prefix
+	 *            prefix of keys
+	 * @param after
+	 *            last key already scanned, or null to start at first key with
+	 *            specified prefix
+	 * @param limit
+	 *            maximum number of keys
+	 * @return keys with specified prefix after specified key.
+	 */
+	List<String> scan(final String prefix, final String after, final int limit) {
+		final List<String> keys = Lists.newArrayList();
+		if (root != 0) {
+			scan(root, prefix, after != null ? after : prefix, after == null, limit, keys);
+		}
+		return keys;
+	}
+
+	/**
+	 * Make current transaction durable.
+	 */
+	void commit() {
+		if (root != pager.root()) {
+			pager.commit(root);
+		} else {
+			// nothing written, or only overflow pages already freed
+			pager.rollback();
+		}
+	}
+
+	/**
+	 * Cancel current transaction.
+	 */
+	void rollback() {
+		pager.rollback();
+		root = pager.root();
+	}
+
+	/**
+	 * @return {@link Pager}.
+	 */
+	Pager pager() {
+		return pager;
+	}
+
+	@Override
+	public void close() {
+		pager.close();
+	}
+
+	/**
+	 * Copy on write put.
+	 * 
+	 * @return a {@link Result}.
+	 */
+	private Result put(final int page, final String key, final Node.Value value) {
+		final Node node = pager.read(page);
+		final Node result;
+		if (node.leaf) {
+			final List<String> keys = Lists.newArrayList(node.keys);
+			final List<Node.Value> values = Lists.newArrayList(node.values);
+			final int index = node.search(key);
+			if (index >= 0) {
+				pager.free(values.get(index));
+				values.set(index, value);
+			} else {
+				keys.add(-index - 1, key);
+				values.add(-index - 1, value);
+			}
+			result = Node.leaf(keys, values);
+		} else {
+			final int index = node.child(key);
+			final Result child = put(node.children.get(index), key, value);
+			final List<String> keys = Lists.newArrayList(node.keys);
+			final List<Integer> children = Lists.newArrayList(node.children);
+			children.set(index, child.left);
+			if (child.right != 0) {
+				keys.add(index, child.separator);
+				children.add(index + 1, child.right);
+			}
+			result = Node.branch(keys, children);
+		}
+		pager.free(page);
+		return write(result);
+	}
+
+	/**
+	 * Write a node, split in two if it does not fit in a page. Node is split
+	 * in its middle, or, if entries are uneven, at first position where both
+	 * halves fit.
+	 */
+	private Result write(final Node node) {
+		if (node.size() <= Pager.PAGE_SIZE) {
+			return new Result(pager.write(node), null, 0);
+		}
+		Result result = split(node, node.keys.size() / 2);
+		for (int middle = 1; (result == null) && (middle < node.keys.size()); middle++) {
+			result = split(node, middle);
+		}
+		if (result == null) {
+			throw new DowsersException("unable to split node");
+		}
+		return result;
+	}
+
+	/**
+	 * @return result of split at specified position, or null if a half does
+	 *         not fit in a page.
+	 */
+	private Result split(final Node node, final int middle) {
+		final Node left;
+		final Node right;
+		final String separator;
+		if (node.leaf) {
+			left = Node.leaf(node.keys.subList(0, middle), node.values.subList(0, middle));
+			right = Node.leaf(node.keys.subList(middle, node.keys.size()), node.values.subList(middle, node.values.size()));
+			separator = right.keys.get(0);
+		} else {
+			left = Node.branch(node.keys.subList(0, middle), node.children.subList(0, middle + 1));
+			right = Node.branch(node.keys.subList(middle + 1, node.keys.size()), node.children.subList(middle + 1, node.children.size()));
+			separator = node.keys.get(middle);
+		}
+		if ((left.size() > Pager.PAGE_SIZE) || (right.size() > Pager.PAGE_SIZE)) {
+			return null;
+		}
+		return new Result(pager.write(left), separator, pager.write(right));
+	}
+
+	/**
+	 * Copy on write remove.
+	 * 
+	 * @return new page of node, same page if key was not found, or 0 if node
+	 *         is empty.
+	 */
+	private int remove(final int page, final String key) {
+		final Node node = pager.read(page);
+		if (node.leaf) {
+			final int index = node.search(key);
+			if (index < 0) {
+				return page;
+			}
+			pager.free(node.values.get(index));
+			pager.free(page);
+			if (node.keys.size() == 1) {
+				return 0;
+			}
+			final List<String> keys = Lists.newArrayList(node.keys);
+			final List<Node.Value> values = Lists.newArrayList(node.values);
+			keys.remove(index);
+			values.remove(index);
+			return pager.write(Node.leaf(keys, values));
+		}
+		final int index = node.child(key);
+		final int child = remove(node.children.get(index), key);
+		if (child == node.children.get(index)) {
+			return page;
+		}
+		pager.free(page);
+		final List<String> keys = Lists.newArrayList(node.keys);
+		final List<Integer> children = Lists.newArrayList(node.children);
+		if (child != 0) {
+			children.set(index, child);
+		} else {
+			children.remove(index);
+			keys.remove(index > 0 ? index - 1 : 0);
+			if (children.size() == 1) {
+				return children.get(0);
+			}
+		}
+		return pager.write(Node.branch(keys, children));
+	}
+
+	/**
+	 * In order scan.
+	 * 
+	 * @return false when scan is complete.
+	 */
+	private boolean scan(final int page, final String prefix, final String from, final boolean inclusive, final int limit, final List<String> keys) {
+		final Node node = pager.read(page);
+		if (node.leaf) {
+			for (final String key : node.keys) {
+				final int comparison = key.compareTo(from);
+				if ((comparison > 0) || (inclusive && (comparison == 0))) {
+					if (!key.startsWith(prefix)) {
+						return false;
+					}
+					keys.add(key);
+					if (keys.size() >= limit) {
+						return false;
+					}
+				}
+			}
+			return true;
+		}
+		for (int index = node.child(from); index < node.children.size(); index++) {
+			if (!scan(node.children.get(index), prefix, from, inclusive, limit, keys)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Result of a copy on write put: new page of node, or left and right pages
+	 * of a split node with their separator key.
+	 */
+	private static final class Result {
+		final int left;
+		final String separator;
+		/**
+		 * 0 if node was not split.
+		 */
+		final int right;
+
+		Result(final int left, final String separator, final int right) {
+			super();
+			this.left = left;
+			this.separator = separator;
+			this.right = right;
+		}
+	}
+}
@@ -0,0 +1,316 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store.btree;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.intelligentsia.dowsers.core.DowsersException;
+import org.intelligentsia.dowsers.core.Sequence;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Maps;
+import com.intelligentsia.dowsers.entity.reference.Reference;
+import com.intelligentsia.dowsers.entity.reference.References;
+import com.intelligentsia.dowsers.entity.serializer.EntityMapper;
+import com.intelligentsia.dowsers.entity.store.AbstractEntityStore;
+import com.intelligentsia.dowsers.entity.store.ConcurrencyException;
+import com.intelligentsia.dowsers.entity.store.EntityNotFoundException;
+import com.intelligentsia.dowsers.entity.store.EntityStore;
+import com.intelligentsia.dowsers.entity.store.VersionedEntityStore;
+import com.intelligentsia.dowsers.entity.store.Versions;
+
+/**
+ * <code>BTreeEntityStore</code> implements {@link EntityStore} with a single
+ * file B+tree, keyed by {@link Reference#toString()}.
+ * 
+ * <p>
+ * As keys of a class share the <code>urn:dowsers:${class name}:</code> prefix,
+ * {@link #find(Class)} is a range scan. It is a drop-in replacement of
+ * {@link com.intelligentsia.dowsers.entity.store.fs.FileEntityStore} using a
+ * single file rather than one file per entity:
+ * </p>
+ * <ul>
+ * <li>pages are cached in a buffer pool,</li>
+ * <li>each write is a copy on write transaction committed with a header
+ * update: a crash leaves the last committed tree intact,</li>
+ * <li>{@link #storeAll(Iterable)} and {@link #removeAll(Iterable)} commit once
+ * for all entities.</li>
+ * </ul>
+ * <p>
+ * Reads share a read lock, writes are serialized. Store is a compare and set on
+ * entity version (see {@link Versions}). File is locked: it is owned by a single
+ * store at a time, which must be closed to release it.
+ * </p>
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
+ */
+public class BTreeEntityStore extends AbstractEntityStore implements VersionedEntityStore, Closeable {
+
+	/**
+	 * Default buffer pool size in pages (4 Mo).
+	 */
+	public static final int DEFAULT_BUFFER_POOL_SIZE = 1024;
+
+	/**
+	 * Number of keys read per lock acquisition by {@link #find(Class)}.
+	 */
+	private static final int SCAN_SIZE = 256;
+
+	private final EntityMapper entityMapper;
+
+	private final BTree tree;
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * Build a new instance of <code>BTreeEntityStore</code> with
+	 * {@link #DEFAULT_BUFFER_POOL_SIZE}.
+	 * 
+	 * @param file
+	 *            store file, created if it does not exist
+	 * @param entityMapper
+	 *            {@link EntityMapper} to use
+	 * @throws NullPointerException
+	 *             if one of parameters is null
+	 * @throws DowsersException
+	 *             if file cannot be opened
+	 * @throws IllegalStateException
+	 *             if file is used by another store
+	 */
+	public BTreeEntityStore(final File file, final EntityMapper entityMapper) throws NullPointerException, DowsersException, IllegalStateException {
+		this(file, entityMapper, DEFAULT_BUFFER_POOL_SIZE);
+	}
+
+	/**
+	 * Build a new instance of <code>BTreeEntityStore</code>.
+	 * 
+	 * @param file
+	 *            store file, created if it does not exist
+	 * @param entityMapper
+	 *            {@link EntityMapper} to use
+	 * @param bufferPoolSize
+	 *            maximum number of pages in buffer pool
+	 * @throws NullPointerException
+	 *             if one of parameters is null
+	 * @throws IllegalArgumentException
+	 *             if bufferPoolSize is not positive
+	 * @throws DowsersException
+	 *             if file cannot be opened
+	 * @throws IllegalStateException
+	 *             if file is used by another store
+	 */
+	public BTreeEntityStore(final File file, final EntityMapper entityMapper, final int bufferPoolSize) throws NullPointerException, IllegalArgumentException, DowsersException, IllegalStateException {
+		super();
+		this.entityMapper = Preconditions.checkNotNull(entityMapper);
+		Preconditions.checkArgument(bufferPoolSize > 0);
+		final File parent = Preconditions.checkNotNull(file).getAbsoluteFile().getParentFile();
+		if ((parent != null) && !parent.exists()) {
+			parent.mkdirs();
+		}
+		tree = new BTree(file, bufferPoolSize);
+	}
+
+	/**
+	 * Range scan of keys with <code>urn:dowsers:${class name}:</code> prefix.
+	 * Keys are read by batches, lock is not held between them.
+	 */
+	@Override
+	public Iterable<Reference> find(final Class<?> expectedType) throws NullPointerException {
+		final String prefix = Reference.URN_DOWSERS + expectedType.getName() + Reference.URN_SEPARATOR;
+		return new Iterable<Reference>() {
+
+			@Override
+			public Iterator<Reference> iterator() {
+				return new AbstractIterator<Reference>() {
+					private Iterator<String> keys = null;
+					private String last = null;
+					private boolean exhausted = false;
+
+					@Override
+					protected Reference computeNext() {
+						if ((keys == null) || !keys.hasNext()) {
+							if (exhausted) {
+								return endOfData();
+							}
+							final List<String> batch = scan(prefix, last);
+							exhausted = batch.size() < SCAN_SIZE;
+							keys = batch.iterator();
+							if (!keys.hasNext()) {
+								return endOfData();
+							}
+						}
+						last = keys.next();
+						return Reference.parseString(last);
+					}
+				};
+			}
+		};
+	}
+
+	@Override
+	public <T> T find(final Class<T> expectedType, final Reference reference) throws EntityNotFoundException, NullPointerException {
+		Preconditions.checkNotNull(expectedType);
+		final byte[] data = get(Preconditions.checkNotNull(reference));
+		if (data == null) {
+			throw new EntityNotFoundException();
+		}
+		return entityMapper.readValue(new InputStreamReader(new ByteArrayInputStream(data), Charsets.UTF_8), expectedType);
+	}
+
+	@Override
+	public <T> void store(final T entity) throws NullPointerException, ConcurrencyException, DowsersException {
+		storeAll(Collections.singleton(Preconditions.checkNotNull(entity)), false);
+	}
+
+	@Override
+	public <T> void restore(final T entity) throws NullPointerException, DowsersException {
+		storeAll(Collections.singleton(Preconditions.checkNotNull(entity)), true);
+	}
+
+	/**
+	 * All entities are checked, serialized and written in a single
+	 * transaction: a version conflict or a failure leaves the store untouched.
+	 */
+	@Override
+	public <T> void storeAll(final Iterable<T> entities) throws NullPointerException, ConcurrencyException, DowsersException {
+		storeAll(entities, false);
+	}
+
+	private <T> void storeAll(final Iterable<T> entities, final boolean keep) throws NullPointerException, ConcurrencyException, DowsersException {
+		final Map<Object, Long> expected = Maps.newIdentityHashMap();
+		lock.writeLock().lock();
+		try {
+			for (final T entity : Preconditions.checkNotNull(entities)) {
+				final Reference reference = References.identify(entity);
+				final long version = Versions.version(entity);
+				final byte[] current = tree.get(reference.toString());
+				final long next = Versions.next(reference, version, current != null ? Versions.read(current) : Sequence.forInitialSequence(), keep);
+				expected.put(entity, version);
+				Versions.version(entity, next);
+				final StringWriter writer = new StringWriter();
+				entityMapper.writeValue(writer, entity);
+				tree.put(reference.toString(), writer.toString().getBytes(Charsets.UTF_8));
+			}
+			tree.commit();
+			expected.clear();
+		} catch (final RuntimeException e) {
+			tree.rollback();
+			throw e;
+		} finally {
+			for (final Map.Entry<Object, Long> entry : expected.entrySet()) {
+				Versions.version(entry.getKey(), entry.getValue());
+			}
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public <T> void remove(final T entity) throws NullPointerException {
+		remove(References.identify(entity));
+	}
+
+	@Override
+	public void remove(final Reference reference) throws NullPointerException, IllegalArgumentException {
+		removeAll(Collections.singleton(Preconditions.checkNotNull(reference)));
+	}
+
+	@Override
+	public void removeAll(final Iterable<Reference> references) throws NullPointerException, IllegalArgumentException {
+		lock.writeLock().lock();
+		try {
+			for (final Reference reference : Preconditions.checkNotNull(references)) {
+				tree.remove(reference.toString());
+			}
+			tree.commit();
+		} catch (final RuntimeException e) {
+			tree.rollback();
+			throw e;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Release store file.
+	 */
+	@Override
+	public void close() {
+		lock.writeLock().lock();
+		try {
+			tree.close();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return number of pages of store file.
+	 */
+	public int pageCount() {
+		lock.readLock().lock();
+		try {
+			return tree.pager().pageCount();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return number of free pages of store file.
+	 */
+	public int freePageCount() {
+		lock.readLock().lock();
+		try {
+			return tree.pager().freeCount();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private byte[] get(final Reference reference) {
+		lock.readLock().lock();
+		try {
+			return tree.get(reference.toString());
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private List<String> scan(final String prefix, final String after) {
+		lock.readLock().lock();
+		try {
+			return tree.scan(prefix, after, SCAN_SIZE);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+}
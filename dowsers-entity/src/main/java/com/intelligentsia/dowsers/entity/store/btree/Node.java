@@ -0,0 +1,243 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store.btree;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+
+import org.intelligentsia.dowsers.core.DowsersException;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+/**
+ * Node is an immutable page of a {@link BTree}: a leaf holds sorted keys and
+ * their values, a branch holds sorted separator keys and children pages.
+ * 
+ * <p>
+ * Page layout:
+ * </p>
+ * <code>
+ * leaf: [byte LEAF][short count]([short key length][key][byte INLINE][int length][value] | [short key length][key][byte OVERFLOW][int page][int length])*
+ * <br/>
+ * branch: [byte BRANCH][short count][int child]([short key length][key][int child])*
+ * </code>
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
+ */
+final class Node {
+
+	static final byte LEAF = 1;
+	static final byte BRANCH = 2;
+
+	private static final byte INLINE = 0;
+	private static final byte OVERFLOW = 1;
+
+	/**
+	 * Size of page header.
+	 */
+	static final int HEADER = 1 + 2;
+
+	final boolean leaf;
+	final List<String> keys;
+	/**
+	 * Values of a leaf, empty for a branch.
+	 */
+	final List<Value> values;
+	/**
+	 * Children pages of a branch (one more than keys), empty for a leaf.
+	 */
+	final List<Integer> children;
+
+	private Node(final boolean leaf, final List<String> keys, final List<Value> values, final List<Integer> children) {
+		super();
+		this.leaf = leaf;
+		this.keys = ImmutableList.copyOf(keys);
+		this.values = ImmutableList.copyOf(values);
+		this.children = ImmutableList.copyOf(children);
+	}
+
+	static Node leaf(final List<String> keys, final List<Value> values) {
+		return new Node(true, keys, values, Collections.<Integer> emptyList());
+	}
+
+	static Node branch(final List<String> keys, final List<Integer> children) {
+		return new Node(false, keys, Collections.<Value> emptyList(), children);
+	}
+
+	/**
+	 * @param key
+	 * @return index of specified key in a leaf, as
+	 *         {@link Collections#binarySearch(List, Object)}.
+	 */
+	int search(final String key) {
+		return Collections.binarySearch(keys, key);
+	}
+
+	/**
+	 * @param key
+	 * @return index of child of a branch which may contain specified key.
+	 */
+	int child(final String key) {
+		final int index = Collections.binarySearch(keys, key);
+		return index >= 0 ? index + 1 : -index - 1;
+	}
+
+	/**
+	 * @return size in bytes of this node.
+	 */
+	int size() {
+		int size = HEADER;
+		for (final String key : keys) {
+			size += 2 + key.getBytes(Charsets.UTF_8).length;
+		}
+		if (leaf) {
+			for (final Value value : values) {
+				size += valueSize(value.isInline() ? value.inline.length : 4);
+			}
+		} else {
+			size += 4 * children.size();
+		}
+		return size;
+	}
+
+	/**
+	 * @param keySize
+	 *            size in bytes of key
+	 * @param valueSize
+	 *            size in bytes of inline value
+	 * @return size in bytes of a leaf entry.
+	 */
+	static int entrySize(final int keySize, final int valueSize) {
+		return 2 + keySize + valueSize(valueSize);
+	}
+
+	/**
+	 * @return size in bytes of a value: type, length or overflow page, data.
+	 */
+	private static int valueSize(final int dataSize) {
+		return 1 + 4 + dataSize;
+	}
+
+	/**
+	 * Write this node in specified buffer.
+	 * 
+	 * @param buffer
+	 */
+	void write(final ByteBuffer buffer) {
+		buffer.put(leaf ? LEAF : BRANCH).putShort((short) keys.size());
+		if (leaf) {
+			for (int i = 0; i < keys.size(); i++) {
+				putKey(buffer, keys.get(i));
+				final Value value = values.get(i);
+				if (value.isInline()) {
+					buffer.put(INLINE).putInt(value.inline.length).put(value.inline);
+				} else {
+					buffer.put(OVERFLOW).putInt(value.overflow).putInt(value.length);
+				}
+			}
+		} else {
+			buffer.putInt(children.get(0));
+			for (int i = 0; i < keys.size(); i++) {
+				putKey(buffer, keys.get(i));
+				buffer.putInt(children.get(i + 1));
+			}
+		}
+	}
+
+	/**
+	 * Read a node from specified buffer.
+	 * 
+	 * @param buffer
+	 * @return a {@link Node} instance
+	 * @throws DowsersException
+	 *             if buffer does not contains a node
+	 */
+	static Node read(final ByteBuffer buffer) throws DowsersException {
+		final byte type = buffer.get();
+		final int count = buffer.getShort() & 0xFFFF;
+		final List<String> keys = Lists.newArrayListWithCapacity(count);
+		if (type == LEAF) {
+			final List<Value> values = Lists.newArrayListWithCapacity(count);
+			for (int i = 0; i < count; i++) {
+				keys.add(getKey(buffer));
+				if (buffer.get() == INLINE) {
+					final byte[] inline = new byte[buffer.getInt()];
+					buffer.get(inline);
+					values.add(new Value(inline));
+				} else {
+					final int overflow = buffer.getInt();
+					values.add(new Value(overflow, buffer.getInt()));
+				}
+			}
+			return leaf(keys, values);
+		}
+		if (type == BRANCH) {
+			final List<Integer> children = Lists.newArrayListWithCapacity(count + 1);
+			children.add(buffer.getInt());
+			for (int i = 0; i < count; i++) {
+				keys.add(getKey(buffer));
+				children.add(buffer.getInt());
+			}
+			return branch(keys, children);
+		}
+		throw new DowsersException("corrupted page");
+	}
+
+	private static void putKey(final ByteBuffer buffer, final String key) {
+		final byte[] bytes = key.getBytes(Charsets.UTF_8);
+		buffer.putShort((short) bytes.length).put(bytes);
+	}
+
+	private static String getKey(final ByteBuffer buffer) {
+		final byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+		buffer.get(bytes);
+		return new String(bytes, Charsets.UTF_8);
+	}
+
+	/**
+	 * Value of a leaf entry: inline bytes, or first page of an overflow chain.
+	 */
+	static final class Value {
+		final byte[] inline;
+		final int overflow;
+		final int length;
+
+		Value(final byte[] inline) {
+			super();
+			this.inline = inline;
+			overflow = 0;
+			length = inline.length;
+		}
+
+		Value(final int overflow, final int length) {
+			super();
+			inline = null;
+			this.overflow = overflow;
+			this.length = length;
+		}
+
+		boolean isInline() {
+			return inline != null;
+		}
+	}
+}
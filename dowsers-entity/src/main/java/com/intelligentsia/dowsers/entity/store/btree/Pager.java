@@ -0,0 +1,433 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store.btree;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+import org.intelligentsia.dowsers.core.DowsersException;
+import org.intelligentsia.keystone.kernel.api.StringUtils;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Pager manage pages of a {@link BTree} file.
+ * 
+ * <ul>
+ * <li>Pages 0 and 1 are two header slots, written alternately: a commit write
+ * the slot not used by last commit, so a torn header write leaves the previous
+ * one intact. On open, the valid header with highest transaction wins.</li>
+ * <li>Pages are never updated in place: a transaction write modified nodes in
+ * free pages (copy on write), and pages it replaced are freed once its header
+ * is written. A crash before header write leaves the previous tree intact.</li>
+ * <li>Nodes are kept in a buffer pool of deserialized pages, with a maximum
+ * number of pages.</li>
+ * <li>Free pages are not persisted: they are computed on open from pages
+ * reachable from root.</li>
+ * </ul>
+ * <p>
+ * Header layout: <code>[int magic][long transaction][int root][int page count][int crc32]</code>.
+ * Overflow page layout: <code>[int next page][data]</code>.
+ * </p>
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
+ */
+final class Pager implements Closeable {
+
+	/**
+	 * Page size in bytes.
+	 */
+	static final int PAGE_SIZE = 4096;
+
+	private static final int MAGIC = 0x44425431;
+	private static final int HEADER_SIZE = 4 + 8 + 4 + 4 + 4;
+	private static final int OVERFLOW_DATA = PAGE_SIZE - 4;
+
+	private final File file;
+	private final RandomAccessFile randomAccessFile;
+	private final FileChannel channel;
+	private final FileLock fileLock;
+	private final LoadingCache<Integer, Node> nodes;
+
+	private long transaction;
+	/**
+	 * Root page, 0 for an empty tree.
+	 */
+	private int root;
+	private int pageCount;
+	private final TreeSet<Integer> free = new TreeSet<Integer>();
+	/**
+	 * Pages allocated by current transaction.
+	 */
+	private final Set<Integer> allocated = Sets.newHashSet();
+	/**
+	 * Pages freed by current transaction.
+	 */
+	private final List<Integer> freed = Lists.newArrayList();
+
+	/**
+	 * Build a new instance of Pager.
+	 * 
+	 * @param file
+	 *            tree file
+	 * @param bufferPoolSize
+	 *            maximum number of nodes in buffer pool
+	 * @throws DowsersException
+	 *             if file cannot be opened
+	 * @throws IllegalStateException
+	 *             if file is locked by another store
+	 */
+	Pager(final File file, final int bufferPoolSize) throws DowsersException, IllegalStateException {
+		super();
+		this.file = file;
+		try {
+			randomAccessFile = new RandomAccessFile(file, "rw");
+		} catch (final IOException e) {
+			throw new DowsersException(e);
+		}
+		channel = randomAccessFile.getChannel();
+		FileLock acquired = null;
+		try {
+			acquired = channel.tryLock();
+		} catch (final OverlappingFileLockException e) {
+			// locked inside this process
+		} catch (final IOException e) {
+			Closeables.closeQuietly(randomAccessFile);
+			throw new DowsersException(e);
+		}
+		if (acquired == null) {
+			Closeables.closeQuietly(randomAccessFile);
+			throw new IllegalStateException(StringUtils.format("'%s' is locked by another store", file));
+		}
+		fileLock = acquired;
+		nodes = CacheBuilder.newBuilder().maximumSize(bufferPoolSize).build(new CacheLoader<Integer, Node>() {
+			@Override
+			public Node load(final Integer page) throws Exception {
+				return Node.read(readPage(page));
+			}
+		});
+		try {
+			open();
+		} catch (final RuntimeException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return root page of last committed tree, 0 if empty.
+	 */
+	int root() {
+		return root;
+	}
+
+	/**
+	 * @return number of pages of file.
+	 */
+	int pageCount() {
+		return pageCount;
+	}
+
+	/**
+	 * @return number of free pages.
+	 */
+	int freeCount() {
+		return free.size();
+	}
+
+	/**
+	 * @param page
+	 * @return {@link Node} of specified page.
+	 */
+	Node read(final int page) {
+		try {
+			return nodes.getUnchecked(page);
+		} catch (final UncheckedExecutionException e) {
+			throw Throwables.propagate(e.getCause());
+		}
+	}
+
+	/**
+	 * Write specified node in a new page.
+	 * 
+	 * @param node
+	 * @return page of node.
+	 */
+	int write(final Node node) {
+		final int page = allocate();
+		final ByteBuffer buffer = ByteBuffer.allocate(PAGE_SIZE);
+		node.write(buffer);
+		buffer.clear();
+		writePage(page, buffer);
+		nodes.put(page, node);
+		return page;
+	}
+
+	/**
+	 * Build a value, written in overflow pages if it is larger than specified
+	 * inline limit.
+	 * 
+	 * @param data
+	 * @param inlineLimit
+	 * @return a {@link Node.Value}.
+	 */
+	Node.Value value(final byte[] data, final int inlineLimit) {
+		if (data.length <= inlineLimit) {
+			return new Node.Value(data);
+		}
+		final int count = (data.length + OVERFLOW_DATA - 1) / OVERFLOW_DATA;
+		final int[] pages = new int[count];
+		for (int i = 0; i < count; i++) {
+			pages[i] = allocate();
+		}
+		for (int i = 0; i < count; i++) {
+			final ByteBuffer buffer = ByteBuffer.allocate(PAGE_SIZE);
+			buffer.putInt(i + 1 < count ? pages[i + 1] : 0);
+			buffer.put(data, i * OVERFLOW_DATA, Math.min(OVERFLOW_DATA, data.length - (i * OVERFLOW_DATA)));
+			buffer.clear();
+			writePage(pages[i], buffer);
+		}
+		return new Node.Value(pages[0], data.length);
+	}
+
+	/**
+	 * @param value
+	 * @return data of specified value.
+	 */
+	byte[] read(final Node.Value value) {
+		if (value.isInline()) {
+			return value.inline;
+		}
+		final byte[] data = new byte[value.length];
+		int page = value.overflow;
+		int offset = 0;
+		while (offset < data.length) {
+			final ByteBuffer buffer = readPage(page);
+			page = buffer.getInt();
+			final int length = Math.min(OVERFLOW_DATA, data.length - offset);
+			buffer.get(data, offset, length);
+			offset += length;
+		}
+		return data;
+	}
+
+	/**
+	 * Free specified page when current transaction commits, or immediately if
+	 * it was allocated by current transaction.
+	 * 
+	 * @param page
+	 */
+	void free(final int page) {
+		if (allocated.remove(page)) {
+			nodes.invalidate(page);
+			free.add(page);
+		} else {
+			freed.add(page);
+		}
+	}
+
+	/**
+	 * Free overflow pages of specified value when current transaction commits.
+	 * 
+	 * @param value
+	 */
+	void free(final Node.Value value) {
+		if (!value.isInline()) {
+			int page = value.overflow;
+			while (page != 0) {
+				final int next = readPage(page).getInt();
+				free(page);
+				page = next;
+			}
+		}
+	}
+
+	/**
+	 * Commit current transaction: fsync written pages, then write and fsync
+	 * header.
+	 * 
+	 * @param newRoot
+	 *            new root page
+	 * @throws DowsersException
+	 */
+	void commit(final int newRoot) throws DowsersException {
+		try {
+			channel.force(false);
+			final long next = transaction + 1;
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putLong(next).putInt(newRoot).putInt(pageCount);
+			final CRC32 crc = new CRC32();
+			crc.update(header.array(), 0, HEADER_SIZE - 4);
+			header.putInt((int) crc.getValue());
+			header.flip();
+			channel.write(header, (next % 2) * PAGE_SIZE);
+			channel.force(false);
+			transaction = next;
+			root = newRoot;
+		} catch (final IOException e) {
+			throw new DowsersException(e);
+		}
+		for (final Integer page : freed) {
+			nodes.invalidate(page);
+		}
+		free.addAll(freed);
+		freed.clear();
+		allocated.clear();
+	}
+
+	/**
+	 * Rollback current transaction: pages it allocated are freed.
+	 */
+	void rollback() {
+		for (final Integer page : allocated) {
+			nodes.invalidate(page);
+		}
+		free.addAll(allocated);
+		allocated.clear();
+		freed.clear();
+	}
+
+	@Override
+	public void close() {
+		try {
+			fileLock.release();
+		} catch (final IOException e) {
+			// closed anyway
+		}
+		Closeables.closeQuietly(randomAccessFile);
+	}
+
+	@Override
+	public String toString() {
+		return file.getName();
+	}
+
+	private int allocate() {
+		final Integer page = free.pollFirst();
+		final int result = page != null ? page : pageCount++;
+		allocated.add(result);
+		return result;
+	}
+
+	/**
+	 * Read header slots, and compute free pages.
+	 */
+	private void open() {
+		transaction = -1;
+		for (int slot = 0; slot < 2; slot++) {
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			try {
+				channel.read(header, slot * PAGE_SIZE);
+			} catch (final IOException e) {
+				throw new DowsersException(e);
+			}
+			final CRC32 crc = new CRC32();
+			crc.update(header.array(), 0, HEADER_SIZE - 4);
+			if ((header.getInt(0) == MAGIC) && (header.getInt(HEADER_SIZE - 4) == (int) crc.getValue()) && (header.getLong(4) > transaction)) {
+				transaction = header.getLong(4);
+				root = header.getInt(12);
+				pageCount = header.getInt(16);
+			}
+		}
+		if (transaction < 0) {
+			// new file
+			transaction = 0;
+			root = 0;
+			pageCount = 2;
+			commit(0);
+			return;
+		}
+		final BitSet reachable = new BitSet(pageCount);
+		mark(root, reachable);
+		for (int page = 2; page < pageCount; page++) {
+			if (!reachable.get(page)) {
+				free.add(page);
+			}
+		}
+	}
+
+	private void mark(final int page, final BitSet reachable) {
+		if (page == 0) {
+			return;
+		}
+		reachable.set(page);
+		final Node node = read(page);
+		if (node.leaf) {
+			for (final Node.Value value : node.values) {
+				int overflow = value.isInline() ? 0 : value.overflow;
+				while (overflow != 0) {
+					reachable.set(overflow);
+					overflow = readPage(overflow).getInt();
+				}
+			}
+		} else {
+			for (final Integer child : node.children) {
+				mark(child, reachable);
+			}
+		}
+	}
+
+	private ByteBuffer readPage(final int page) {
+		final ByteBuffer buffer = ByteBuffer.allocate(PAGE_SIZE);
+		try {
+			long position = (long) page * PAGE_SIZE;
+			while (buffer.hasRemaining()) {
+				final int read = channel.read(buffer, position);
+				if (read < 0) {
+					throw new DowsersException(StringUtils.format("page %s is beyond end of '%s'", page, file));
+				}
+				position += read;
+			}
+		} catch (final IOException e) {
+			throw new DowsersException(e);
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private void writePage(final int page, final ByteBuffer buffer) {
+		try {
+			long position = (long) page * PAGE_SIZE;
+			while (buffer.hasRemaining()) {
+				position += channel.write(buffer, position);
+			}
+		} catch (final IOException e) {
+			throw new DowsersException(e);
+		}
+	}
+}
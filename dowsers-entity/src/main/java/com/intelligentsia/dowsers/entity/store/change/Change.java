@@ -0,0 +1,103 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store.change;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+
+import org.intelligentsia.dowsers.core.reflection.ClassInformation;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.intelligentsia.dowsers.entity.manager.event.EntityEvent.Kind;
+import com.intelligentsia.dowsers.entity.reference.Reference;
+import com.intelligentsia.dowsers.entity.serializer.EntityMapper;
+
+/**
+ * <code>Change</code> is a record of a change feed: sequence, reference, kind
+ * and serialized entity.
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
+ */
+public final class Change {
+
+	private final long sequence;
+	private final Reference reference;
+	private final Kind kind;
+	private final byte[] payload;
+
+	/**
+	 * Build a new instance of <code>Change</code>.
+	 * 
+	 * @param sequence
+	 *            position in change feed
+	 * @param reference
+	 *            entity reference
+	 * @param kind
+	 *            kind of change
+	 * @param payload
+	 *            UTF-8 serialized entity, empty for a removed entity
+	 * @throws NullPointerException
+	 *             if reference, kind or payload is null
+	 */
+	public Change(final long sequence, final Reference reference, final Kind kind, final byte[] payload) throws NullPointerException {
+		super();
+		this.sequence = sequence;
+		this.reference = Preconditions.checkNotNull(reference);
+		this.kind = Preconditions.checkNotNull(kind);
+		this.payload = Preconditions.checkNotNull(payload);
+	}
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	public Reference getReference() {
+		return reference;
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	public byte[] getPayload() {
+		return payload;
+	}
+
+	/**
+	 * Deserialize entity using type named by its reference.
+	 * 
+	 * @param entityMapper
+	 * @return entity instance
+	 * @throws IllegalStateException
+	 *             if entity was removed
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T entity(final EntityMapper entityMapper) throws IllegalStateException {
+		Preconditions.checkState(kind != Kind.REMOVED, "removed entity");
+		final Class<T> expectedType = (Class<T>) ClassInformation.parse(reference.getEntityClassName()).getType();
+		return entityMapper.readValue(new InputStreamReader(new ByteArrayInputStream(payload), Charsets.UTF_8), expectedType);
+	}
+
+	@Override
+	public String toString() {
+		return "Change [sequence=" + sequence + ", reference=" + reference + ", kind=" + kind + "]";
+	}
+}
@@ -0,0 +1,272 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store.change;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStreamWriter;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+
+import org.intelligentsia.dowsers.core.DowsersException;
+import org.intelligentsia.dowsers.core.Sequence;
+import org.intelligentsia.dowsers.core.reflection.ClassInformation;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Striped;
+import com.intelligentsia.dowsers.entity.manager.event.EntityEvent.Kind;
+import com.intelligentsia.dowsers.entity.reference.Reference;
+import com.intelligentsia.dowsers.entity.reference.References;
+import com.intelligentsia.dowsers.entity.serializer.EntityMapper;
+import com.intelligentsia.dowsers.entity.store.ConcurrencyException;
+import com.intelligentsia.dowsers.entity.store.EntityNotFoundException;
+import com.intelligentsia.dowsers.entity.store.EntityStore;
+import com.intelligentsia.dowsers.entity.store.Versions;
+
+/**
+ * <code>ChangeFeedEntityStore</code> record each write of a delegate
+ * {@link EntityStore} in a {@link ChangeLog}.
+ * 
+ * <p>
+ * A write and its change are done under a lock of reference, so changes of a
+ * reference are in the order of its writes. An intent of each written
+ * reference is synced in {@link ChangeLog} before delegate is written, and
+ * changes are synced before a write returns: a successful write is always in
+ * the feed. A write interrupted between delegate and change log (crash, change
+ * log error) leaves a pending intent: its reference is resolved by appending
+ * its current state from delegate, when delegate write fails or when store is
+ * built again. Until then, {@link ChangeLog#pending()} let readers know that
+ * changes can be missing. Each write costs two syncs of change log.
+ * </p>
+ * <p>
+ * A stored entity is {@link Kind#CREATED} if its new version is the first one,
+ * else {@link Kind#UPDATED} (entities which are not versioned are always
+ * updated).
+ * </p>
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
+ */
+public class ChangeFeedEntityStore implements EntityStore {
+
+	private final EntityStore entityStore;
+	private final EntityMapper entityMapper;
+	private final ChangeLog changeLog;
+	/**
+	 * Locks on references shared by writers.
+	 */
+	private final Striped<Lock> locks = Striped.lock(64);
+
+	/**
+	 * Build a new instance of <code>ChangeFeedEntityStore</code>.
+	 * 
+	 * @param entityStore
+	 *            delegate {@link EntityStore}
+	 * @param entityMapper
+	 *            {@link EntityMapper} used to serialize changes
+	 * @param changeLog
+	 *            {@link ChangeLog} to feed
+	 * @throws NullPointerException
+	 *             if a parameter is null
+	 */
+	public ChangeFeedEntityStore(final EntityStore entityStore, final EntityMapper entityMapper, final ChangeLog changeLog) throws NullPointerException {
+		super();
+		this.entityStore = Preconditions.checkNotNull(entityStore);
+		this.entityMapper = Preconditions.checkNotNull(entityMapper);
+		this.changeLog = Preconditions.checkNotNull(changeLog);
+		resolve(changeLog.pending());
+	}
+
+	@Override
+	public Iterable<Reference> find(final Class<?> expectedType) throws NullPointerException {
+		return entityStore.find(expectedType);
+	}
+
+	@Override
+	public <T> T find(final Class<T> expectedType, final Reference reference) throws EntityNotFoundException, NullPointerException, IllegalArgumentException {
+		return entityStore.find(expectedType, reference);
+	}
+
+	@Override
+	public Iterable<Reference> find(final Reference reference) throws NullPointerException {
+		return entityStore.find(reference);
+	}
+
+	@Override
+	public <T> Map<Reference, T> findAll(final Class<T> expectedType, final Iterable<Reference> references) throws NullPointerException, IllegalArgumentException {
+		return entityStore.findAll(expectedType, references);
+	}
+
+	@Override
+	public <T> void store(final T entity) throws NullPointerException, ConcurrencyException, IllegalArgumentException {
+		storeAll(Collections.singletonList(Preconditions.checkNotNull(entity)));
+	}
+
+	@Override
+	public <T> void storeAll(final Iterable<T> entities) throws NullPointerException, ConcurrencyException, IllegalArgumentException {
+		final List<T> list = Lists.newArrayList(Preconditions.checkNotNull(entities));
+		final List<Reference> references = Lists.newArrayListWithCapacity(list.size());
+		for (final T entity : list) {
+			references.add(References.identify(entity));
+		}
+		final List<Lock> held = lock(references);
+		try {
+			intend(references);
+			try {
+				entityStore.storeAll(list);
+			} catch (final RuntimeException e) {
+				resolveQuietly(references);
+				throw e;
+			}
+			for (int i = 0; i < list.size(); i++) {
+				final T entity = list.get(i);
+				final Kind kind = Versions.version(entity) == Sequence.nextSequence(Sequence.forInitialSequence()) ? Kind.CREATED : Kind.UPDATED;
+				changeLog.append(references.get(i), kind, serialize(entity));
+			}
+			changeLog.sync();
+		} finally {
+			unlock(held);
+		}
+	}
+
+	@Override
+	public <T> void remove(final T entity) throws NullPointerException, IllegalArgumentException {
+		remove(References.identify(Preconditions.checkNotNull(entity)));
+	}
+
+	@Override
+	public void remove(final Reference reference) throws NullPointerException, IllegalArgumentException {
+		removeAll(Collections.singletonList(Preconditions.checkNotNull(reference)));
+	}
+
+	@Override
+	public void removeAll(final Iterable<Reference> references) throws NullPointerException, IllegalArgumentException {
+		final List<Reference> list = Lists.newArrayList(Preconditions.checkNotNull(references));
+		final List<Lock> held = lock(list);
+		try {
+			intend(list);
+			try {
+				entityStore.removeAll(list);
+			} catch (final RuntimeException e) {
+				resolveQuietly(list);
+				throw e;
+			}
+			for (final Reference reference : list) {
+				changeLog.append(reference, Kind.REMOVED, new byte[0]);
+			}
+			changeLog.sync();
+		} finally {
+			unlock(held);
+		}
+	}
+
+	public EntityStore getEntityStore() {
+		return entityStore;
+	}
+
+	public ChangeLog getChangeLog() {
+		return changeLog;
+	}
+
+	private void intend(final List<Reference> references) throws DowsersException {
+		for (final Reference reference : references) {
+			changeLog.intend(reference);
+		}
+		changeLog.sync();
+	}
+
+	/**
+	 * Append current state of specified references, with
+	 * {@link Kind#UPDATED} or {@link Kind#REMOVED} kind.
+	 * 
+	 * @param references
+	 * @throws DowsersException
+	 *             if delegate cannot be read or change cannot be written
+	 */
+	private void resolve(final Iterable<Reference> references) throws DowsersException {
+		final List<Reference> list = Lists.newArrayList(references);
+		final List<Lock> held = lock(list);
+		try {
+			for (final Reference reference : list) {
+				final Object entity = current(reference);
+				if (entity != null) {
+					changeLog.append(reference, Kind.UPDATED, serialize(entity));
+				} else {
+					changeLog.append(reference, Kind.REMOVED, new byte[0]);
+				}
+			}
+			changeLog.sync();
+		} finally {
+			unlock(held);
+		}
+	}
+
+	/**
+	 * Resolve specified references after a failed write, intents which cannot
+	 * be resolved stay pending until store is built again.
+	 */
+	private void resolveQuietly(final List<Reference> references) {
+		try {
+			resolve(references);
+		} catch (final RuntimeException e) {
+			// keep failure of write
+		}
+	}
+
+	/**
+	 * @return entity of specified reference, null if not found.
+	 */
+	private Object current(final Reference reference) {
+		try {
+			return entityStore.find(ClassInformation.parse(reference.getEntityClassName()).getType(), reference);
+		} catch (final EntityNotFoundException e) {
+			return null;
+		}
+	}
+
+	private List<Lock> lock(final List<Reference> references) {
+		final List<Lock> held = Lists.newArrayList();
+		try {
+			// bulkGet give locks in a consistent order
+			for (final Lock lock : locks.bulkGet(references)) {
+				lock.lock();
+				held.add(lock);
+			}
+		} catch (final RuntimeException e) {
+			unlock(held);
+			throw e;
+		}
+		return held;
+	}
+
+	private static void unlock(final List<Lock> held) {
+		for (int i = held.size() - 1; i >= 0; i--) {
+			held.get(i).unlock();
+		}
+	}
+
+	private byte[] serialize(final Object entity) throws DowsersException {
+		final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		entityMapper.writeValue(new OutputStreamWriter(outputStream, Charsets.UTF_8), entity);
+		return outputStream.toByteArray();
+	}
+}
@@ -0,0 +1,117 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store.change;
+
+import java.util.List;
+import java.util.Set;
+
+import org.intelligentsia.dowsers.core.DowsersException;
+
+import com.intelligentsia.dowsers.entity.manager.event.EntityEvent.Kind;
+import com.intelligentsia.dowsers.entity.reference.Reference;
+
+/**
+ * <code>ChangeLog</code> declare an ordered and durable feed of {@link Change}.
+ * Sequences start at 1 and are strictly increasing.
+ * 
+ * <p>
+ * A writer records an intent before writing an entity, and resolves it by
+ * appending the change of this entity. An intent without change (a write
+ * interrupted by a crash) stays {@link #pending()}: state of its entity is
+ * unknown from the feed until a change of this entity is appended.
+ * </p>
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
+ */
+public interface ChangeLog {
+
+	/**
+	 * Append a change. It is durable once {@link #sync()} returns.
+	 * 
+	 * @param reference
+	 *            entity reference
+	 * @param kind
+	 *            kind of change
+	 * @param payload
+	 *            UTF-8 serialized entity, empty for a removed entity
+	 * @return sequence of change
+	 * @throws NullPointerException
+	 *             if a parameter is null
+	 * @throws DowsersException
+	 *             if change cannot be written
+	 */
+	public long append(Reference reference, Kind kind, byte[] payload) throws NullPointerException, DowsersException;
+
+	/**
+	 * Record an intent to write specified entity. Intents have no sequence
+	 * and are not read as changes. It is durable once {@link #sync()} returns.
+	 * 
+	 * @param reference
+	 *            entity reference
+	 * @throws NullPointerException
+	 *             if reference is null
+	 * @throws DowsersException
+	 *             if intent cannot be written
+	 */
+	public void intend(Reference reference) throws NullPointerException, DowsersException;
+
+	/**
+	 * @return references with an intent not followed by a change, empty if
+	 *         none.
+	 */
+	public Set<Reference> pending();
+
+	/**
+	 * Make appended changes durable.
+	 * 
+	 * @throws DowsersException
+	 */
+	public void sync() throws DowsersException;
+
+	/**
+	 * Read a batch of changes.
+	 * 
+	 * @param from
+	 *            first sequence to read
+	 * @param max
+	 *            maximum number of changes to read
+	 * @return changes with a sequence greater or equal than from, in order,
+	 *         empty if there is none.
+	 * @throws IllegalArgumentException
+	 *             if max is not positive
+	 * @throws DowsersException
+	 */
+	public List<Change> read(long from, int max) throws IllegalArgumentException, DowsersException;
+
+	/**
+	 * @return sequence of last appended change, 0 if none.
+	 */
+	public long lastSequence();
+
+	/**
+	 * Discard changes before specified sequence. Implementation can keep some
+	 * of them.
+	 * 
+	 * @param before
+	 *            first sequence to keep
+	 * @throws DowsersException
+	 */
+	public void truncate(long before) throws DowsersException;
+}
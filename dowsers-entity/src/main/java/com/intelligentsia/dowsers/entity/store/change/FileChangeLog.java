@@ -0,0 +1,515 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store.change;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.intelligentsia.dowsers.core.DowsersException;
+import org.intelligentsia.keystone.kernel.api.StringUtils;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Closeables;
+import com.intelligentsia.dowsers.entity.manager.event.EntityEvent.Kind;
+import com.intelligentsia.dowsers.entity.reference.Reference;
+
+/**
+ * <code>FileChangeLog</code> implements {@link ChangeLog} with rolling segment
+ * files.
+ * <p>
+ * Segments are stored under a single directory:
+ * </p>
+ * <code>
+ * ${directory}/changes-0000000000000001.log
+ * </code>
+ * <p>
+ * Segment name holds sequence of its first change. A record is
+ * <code>[int length][int crc32][long sequence][byte kind][utf reference][payload]</code>
+ * : a torn record at the end of last segment is truncated on startup. An
+ * intent (see {@link #intend(Reference)}) is a record of kind -1 without
+ * sequence, skipped by readers, and pending intents are found again on startup
+ * by scanning segments. Each
+ * segment keeps a sparse in-memory index of sequence and offset, so a batch is
+ * read from a close position without scanning whole segment.
+ * </p>
+ * <p>
+ * {@link #truncate(long)} deletes whole segments, active segment is never
+ * deleted: sequences never restart.
+ * </p>
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
+ */
+public class FileChangeLog implements ChangeLog, Closeable {
+
+	/**
+	 * Default segment size (16 Mb).
+	 */
+	public static final long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+	private static final String PREFIX = "changes-";
+	private static final String SUFFIX = ".log";
+	/**
+	 * One index entry every INDEX_INTERVAL records.
+	 */
+	private static final int INDEX_INTERVAL = 128;
+	private static final int HEADER = 8;
+	/**
+	 * Kind of an intent record.
+	 */
+	private static final byte INTENT = -1;
+
+	private final File directory;
+	private final long segmentSize;
+	/**
+	 * Segments by first sequence.
+	 */
+	private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<Long, Segment>();
+	/**
+	 * Lock on write operations.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+	/**
+	 * References with an intent not followed by a change.
+	 */
+	private final Set<Reference> pending = Collections.newSetFromMap(new ConcurrentHashMap<Reference, Boolean>());
+	private RandomAccessFile output;
+	private volatile Segment active;
+	private volatile long lastSequence;
+
+	/**
+	 * Build a new instance of <code>FileChangeLog</code> with default segment
+	 * size.
+	 * 
+	 * @param directory
+	 * @throws NullPointerException
+	 *             if directory is null
+	 * @throws IllegalStateException
+	 *             if directory is not a directory of if it cannot be created
+	 * @throws DowsersException
+	 *             if segments cannot be read
+	 */
+	public FileChangeLog(final File directory) throws NullPointerException, IllegalStateException, DowsersException {
+		this(directory, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * Build a new instance of <code>FileChangeLog</code>.
+	 * 
+	 * @param directory
+	 * @param segmentSize
+	 *            segment size in bytes
+	 * @throws NullPointerException
+	 *             if directory is null
+	 * @throws IllegalArgumentException
+	 *             if segmentSize is not positive
+	 * @throws IllegalStateException
+	 *             if directory is not a directory of if it cannot be created
+	 * @throws DowsersException
+	 *             if segments cannot be read
+	 */
+	public FileChangeLog(final File directory, final long segmentSize) throws NullPointerException, IllegalArgumentException, IllegalStateException, DowsersException {
+		super();
+		this.directory = Preconditions.checkNotNull(directory);
+		Preconditions.checkArgument(segmentSize > 0);
+		this.segmentSize = segmentSize;
+		if (!directory.exists()) {
+			if (!directory.mkdirs()) {
+				throw new IllegalStateException(StringUtils.format("unable to create directory '%s'", directory));
+			}
+		}
+		if (!directory.isDirectory()) {
+			throw new IllegalStateException(StringUtils.format("'%s' is not a directory", directory));
+		}
+		load();
+	}
+
+	@Override
+	public long append(final Reference reference, final Kind kind, final byte[] payload) throws NullPointerException, DowsersException {
+		Preconditions.checkNotNull(reference);
+		Preconditions.checkNotNull(kind);
+		Preconditions.checkNotNull(payload);
+		lock.lock();
+		try {
+			final long sequence = lastSequence + 1;
+			final byte[] record = encode(sequence, reference, (byte) kind.ordinal(), payload);
+			if ((active.size > 0) && ((active.size + record.length) > segmentSize)) {
+				roll(sequence);
+			}
+			output.seek(active.size);
+			output.write(record);
+			active.append(sequence, record.length);
+			lastSequence = sequence;
+			pending.remove(reference);
+			return sequence;
+		} catch (final IOException e) {
+			throw new DowsersException(e);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Intent is written in active segment, which is never rolled for an
+	 * intent.
+	 * </p>
+	 */
+	@Override
+	public void intend(final Reference reference) throws NullPointerException, DowsersException {
+		Preconditions.checkNotNull(reference);
+		lock.lock();
+		try {
+			final byte[] record = encode(0, reference, INTENT, new byte[0]);
+			output.seek(active.size);
+			output.write(record);
+			active.skip(record.length);
+			pending.add(reference);
+		} catch (final IOException e) {
+			throw new DowsersException(e);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Set<Reference> pending() {
+		return ImmutableSet.copyOf(pending);
+	}
+
+	@Override
+	public void sync() throws DowsersException {
+		lock.lock();
+		try {
+			output.getChannel().force(false);
+		} catch (final IOException e) {
+			throw new DowsersException(e);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public List<Change> read(final long from, final int max) throws IllegalArgumentException, DowsersException {
+		Preconditions.checkArgument(max > 0);
+		final List<Change> changes = new ArrayList<Change>(Math.min(max, 1024));
+		final Map.Entry<Long, Segment> first = segments.floorEntry(from);
+		final ConcurrentNavigableMap<Long, Segment> candidates = first != null ? segments.tailMap(first.getKey(), true) : segments;
+		for (final Segment segment : candidates.values()) {
+			if (changes.size() == max) {
+				break;
+			}
+			if (segment.last >= from) {
+				segment.read(from, max, changes);
+			}
+		}
+		return changes;
+	}
+
+	@Override
+	public long lastSequence() {
+		return lastSequence;
+	}
+
+	@Override
+	public void truncate(final long before) throws DowsersException {
+		lock.lock();
+		try {
+			for (final Segment segment : segments.values()) {
+				if ((segment == active) || (segment.last >= before)) {
+					break;
+				}
+				segments.remove(segment.first);
+				if (!segment.file.delete()) {
+					throw new DowsersException(StringUtils.format("unable to delete segment '%s'", segment.file));
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void close() {
+		lock.lock();
+		try {
+			output.getChannel().force(false);
+			output.close();
+		} catch (final IOException e) {
+			throw new DowsersException(e);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Open segments, truncating a torn tail of last one.
+	 */
+	private void load() {
+		final String[] names = directory.list(new FilenameFilter() {
+			@Override
+			public boolean accept(final File dir, final String name) {
+				return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+			}
+		});
+		Arrays.sort(names);
+		for (final String name : names) {
+			final Segment segment = new Segment(new File(directory, name), Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+			segment.recover(pending);
+			segments.put(segment.first, segment);
+			lastSequence = Math.max(lastSequence, segment.last);
+		}
+		try {
+			if (segments.isEmpty()) {
+				roll(1);
+			} else {
+				active = segments.lastEntry().getValue();
+				output = new RandomAccessFile(active.file, "rw");
+				output.setLength(active.size);
+			}
+		} catch (final IOException e) {
+			throw new DowsersException(e);
+		}
+	}
+
+	/**
+	 * Start a new segment.
+	 * 
+	 * @param first
+	 *            first sequence of segment
+	 * @throws IOException
+	 */
+	private void roll(final long first) throws IOException {
+		if (output != null) {
+			output.getChannel().force(false);
+			output.close();
+		}
+		final Segment segment = new Segment(new File(directory, new StringBuilder(PREFIX).append(String.format("%016d", first)).append(SUFFIX).toString()), first);
+		output = new RandomAccessFile(segment.file, "rw");
+		segments.put(first, segment);
+		active = segment;
+	}
+
+	private static byte[] encode(final long sequence, final Reference reference, final byte kind, final byte[] payload) throws IOException {
+		final ByteArrayOutputStream body = new ByteArrayOutputStream(payload.length + 128);
+		final DataOutputStream data = new DataOutputStream(body);
+		data.writeLong(sequence);
+		data.writeByte(kind);
+		data.writeUTF(reference.toString());
+		data.write(payload);
+		data.flush();
+		final byte[] content = body.toByteArray();
+		final CRC32 crc = new CRC32();
+		crc.update(content);
+		final ByteArrayOutputStream record = new ByteArrayOutputStream(content.length + HEADER);
+		final DataOutputStream out = new DataOutputStream(record);
+		out.writeInt(content.length);
+		out.writeInt((int) crc.getValue());
+		out.write(content);
+		out.flush();
+		return record.toByteArray();
+	}
+
+	/**
+	 * @return true if record content is an intent.
+	 */
+	private static boolean isIntent(final byte[] content) {
+		return content[8] == INTENT;
+	}
+
+	/**
+	 * @return reference of an intent record content.
+	 */
+	private static Reference intent(final byte[] content) throws IOException {
+		final DataInputStream data = new DataInputStream(new ByteArrayInputStream(content, 9, content.length - 9));
+		return Reference.parseString(data.readUTF());
+	}
+
+	/**
+	 * Decode record content.
+	 */
+	private static Change decode(final byte[] content) throws IOException {
+		final DataInputStream data = new DataInputStream(new ByteArrayInputStream(content));
+		final long sequence = data.readLong();
+		final Kind kind = Kind.values()[data.readByte()];
+		final String reference = data.readUTF();
+		final byte[] payload = new byte[data.available()];
+		data.readFully(payload);
+		return new Change(sequence, Reference.parseString(reference), kind, payload);
+	}
+
+	/**
+	 * A segment file.
+	 */
+	private static final class Segment {
+		private final File file;
+		private final long first;
+		/**
+		 * Sparse index of sequence and offset.
+		 */
+		private final ConcurrentSkipListMap<Long, Long> index = new ConcurrentSkipListMap<Long, Long>();
+		/**
+		 * Size of written records: readers never read beyond.
+		 */
+		private volatile long size;
+		/**
+		 * Last sequence, first - 1 if empty.
+		 */
+		private volatile long last;
+		private int count;
+
+		Segment(final File file, final long first) {
+			super();
+			this.file = file;
+			this.first = first;
+			this.last = first - 1;
+		}
+
+		void append(final long sequence, final int length) {
+			if ((count++ % INDEX_INTERVAL) == 0) {
+				index.put(sequence, size);
+			}
+			size += length;
+			last = sequence;
+		}
+
+		/**
+		 * Append a record without sequence.
+		 */
+		void skip(final int length) {
+			size += length;
+		}
+
+		/**
+		 * Scan segment, truncating a torn tail.
+		 * 
+		 * @param pending
+		 *            references with a pending intent, updated in order of
+		 *            records
+		 */
+		void recover(final Set<Reference> pending) {
+			RandomAccessFile randomAccessFile = null;
+			try {
+				randomAccessFile = new RandomAccessFile(file, "rw");
+				final long length = randomAccessFile.length();
+				final DataInputStream input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(randomAccessFile.getChannel())));
+				while (size < length) {
+					final byte[] content = next(input, length - size);
+					if (content == null) {
+						break;
+					}
+					if (isIntent(content)) {
+						pending.add(intent(content));
+						skip(content.length + HEADER);
+					} else {
+						final Change change = decode(content);
+						pending.remove(change.getReference());
+						append(change.getSequence(), content.length + HEADER);
+					}
+				}
+				if (size < length) {
+					randomAccessFile.setLength(size);
+				}
+			} catch (final IOException e) {
+				throw new DowsersException(StringUtils.format("unable to read segment '%s'", file), e);
+			} finally {
+				Closeables.closeQuietly(randomAccessFile);
+			}
+		}
+
+		/**
+		 * Read changes from specified sequence.
+		 */
+		void read(final long from, final int max, final List<Change> changes) {
+			final long limit = size;
+			final Map.Entry<Long, Long> start = index.floorEntry(from);
+			long position = start != null ? start.getValue() : 0;
+			RandomAccessFile randomAccessFile = null;
+			try {
+				randomAccessFile = new RandomAccessFile(file, "r");
+				randomAccessFile.seek(position);
+				final DataInputStream input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(randomAccessFile.getChannel())));
+				while ((position < limit) && (changes.size() < max)) {
+					final byte[] content = next(input, limit - position);
+					if (content == null) {
+						throw new DowsersException(StringUtils.format("corrupted segment '%s' at %s", file, position));
+					}
+					position += content.length + HEADER;
+					if (isIntent(content)) {
+						continue;
+					}
+					final Change change = decode(content);
+					if (change.getSequence() >= from) {
+						changes.add(change);
+					}
+				}
+			} catch (final IOException e) {
+				throw new DowsersException(StringUtils.format("unable to read segment '%s'", file), e);
+			} finally {
+				Closeables.closeQuietly(randomAccessFile);
+			}
+		}
+
+		/**
+		 * @return content of next record, or null if it is torn or corrupted.
+		 */
+		private static byte[] next(final DataInputStream input, final long remaining) throws IOException {
+			if (remaining < HEADER) {
+				return null;
+			}
+			try {
+				final int length = input.readInt();
+				final int checksum = input.readInt();
+				if ((length < 0) || (length > (remaining - HEADER))) {
+					return null;
+				}
+				final byte[] content = new byte[length];
+				input.readFully(content);
+				final CRC32 crc = new CRC32();
+				crc.update(content);
+				return ((int) crc.getValue()) == checksum ? content : null;
+			} catch (final EOFException e) {
+				return null;
+			}
+		}
+	}
+}
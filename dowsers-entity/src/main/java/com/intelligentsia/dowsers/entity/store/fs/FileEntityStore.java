@@ -19,21 +19,32 @@
  */
 package com.intelligentsia.dowsers.entity.store.fs;
 
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.Reader;
-import java.io.Writer;
-import java.util.Collection;
+import java.io.StringWriter;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.filefilter.DirectoryFileFilter;
-import org.apache.commons.io.filefilter.RegexFileFilter;
 import org.intelligentsia.dowsers.core.DowsersException;
+import org.intelligentsia.dowsers.core.DurableFiles;
+import org.intelligentsia.dowsers.core.Sequence;
 import org.intelligentsia.keystone.kernel.api.StringUtils;
 
 import com.google.common.base.Preconditions;
@@ -41,7 +52,13 @@ import com.google.common.base.Throwables;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.Striped;
 import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.intelligentsia.dowsers.entity.reference.Reference;
 import com.intelligentsia.dowsers.entity.reference.References;
@@ -50,6 +67,9 @@ import com.intelligentsia.dowsers.entity.store.AbstractEntityStore;
 import com.intelligentsia.dowsers.entity.store.ConcurrencyException;
 import com.intelligentsia.dowsers.entity.store.EntityNotFoundException;
 import com.intelligentsia.dowsers.entity.store.EntityStore;
+import com.intelligentsia.dowsers.entity.store.PayloadDictionaries;
+import com.intelligentsia.dowsers.entity.store.VersionedEntityStore;
+import com.intelligentsia.dowsers.entity.store.Versions;
 
 /**
  * FileEntityStore implements EntityStore using File system.
@@ -70,9 +90,44 @@ import com.intelligentsia.dowsers.entity.store.EntityStore;
  * 
  * This implementation use a cache to map entity.reference and file.
  * 
+ * <p>
+ * Store is a compare and set on entity version (see {@link Versions}): entity
+ * is locked while its version is read and the new state written.
+ * </p>
+ * <p>
+ * Writes are durable without one fsync per entity:
+ * <ul>
+ * <li>each write is first appended to a {@link WriteAheadLog} (
+ * <code>${root}/.wal</code>), with a checksum, and fsynced with writes of
+ * concurrent writers (group commit) before entity file is replaced,</li>
+ * <li>entity file is written in a temporary file and atomically renamed, so a
+ * reader never see a partially written file, and a crash leaves either
+ * previous or new file,</li>
+ * <li>when log size reach checkpoint size, written files and their directories
+ * are fsynced (see {@link DurableFiles}) and log is truncated (checkpoint),</li>
+ * <li>on startup, records of log are replayed, restoring entity files lost or
+ * torn by a crash.</li>
+ * </ul>
+ * Log file is locked: a root directory is owned by a single
+ * <code>FileEntityStore</code> at a time, which must be closed to release it.
+ * </p>
+ * <p>
+ * With {@link PayloadDictionaries}, entity files are compressed with
+ * dictionary of their entity class.
+ * </p>
+ * 
  * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
  */
-public class FileEntityStore extends AbstractEntityStore implements EntityStore {
+public class FileEntityStore extends AbstractEntityStore implements VersionedEntityStore, Closeable {
+
+	/**
+	 * Default checkpoint size of write ahead log: 4 Mo.
+	 */
+	public static final long DEFAULT_CHECKPOINT_SIZE = 4 * 1024 * 1024;
+
+	private static final String WAL = ".wal";
+
+	private static final String TEMPORARY = DurableFiles.TEMPORARY;
 
 	/**
 	 * {@link EntityMapper} instance.
@@ -89,6 +144,41 @@ public class FileEntityStore extends AbstractEntityStore implements EntityStore
 	 */
 	private final File root;
 
+	/**
+	 * Write locks of entities.
+	 */
+	private final Striped<Lock> locks = Striped.lock(64);
+
+	/**
+	 * {@link WriteAheadLog} instance.
+	 */
+	private final WriteAheadLog wal;
+
+	/**
+	 * Log size which trigger a checkpoint.
+	 */
+	private final long checkpointSize;
+
+	/**
+	 * Writes share read lock, checkpoint take write lock.
+	 */
+	private final ReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+
+	/**
+	 * Files written since last checkpoint.
+	 */
+	private final Set<File> dirty = Sets.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+
+	/**
+	 * Directories whose entries changed since last checkpoint.
+	 */
+	private final Set<File> directories = Sets.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+
+	/**
+	 * Payload dictionaries (could be null).
+	 */
+	private final PayloadDictionaries dictionaries;
+
 	/**
 	 * Build a new instance of FileEntityStore with default cache:
 	 * <ul>
@@ -124,7 +214,61 @@ public class FileEntityStore extends AbstractEntityStore implements EntityStore
 	 *             if root is not a directory of if it cannot be created
 	 */
 	public FileEntityStore(final File root, final EntityMapper entityMapper, final CacheBuilder<Object, Object> cacheBuilder) throws NullPointerException, IllegalStateException {
+		this(root, entityMapper, cacheBuilder, DEFAULT_CHECKPOINT_SIZE);
+	}
+
+	/**
+	 * Build a new instance of <code>FileEntityStore</code>, replaying write
+	 * ahead log of a previous instance.
+	 * 
+	 * @param root
+	 *            root directory of this {@link EntityStore}.
+	 * @param entityMapper
+	 *            {@link EntityMapper} to use
+	 * @param cacheBuilder
+	 *            cache Builder
+	 * @param checkpointSize
+	 *            log size in bytes which trigger a checkpoint
+	 * @throws NullPointerException
+	 *             if one of parameters is null
+	 * @throws IllegalStateException
+	 *             if root is not a directory of if it cannot be created, or if
+	 *             root is used by another store
+	 * @throws IllegalArgumentException
+	 *             if checkpointSize is not positive
+	 */
+	public FileEntityStore(final File root, final EntityMapper entityMapper, final CacheBuilder<Object, Object> cacheBuilder, final long checkpointSize) throws NullPointerException, IllegalStateException, IllegalArgumentException {
+		this(root, entityMapper, cacheBuilder, checkpointSize, null);
+	}
+
+	/**
+	 * Build a new instance of <code>FileEntityStore</code> which compress
+	 * entity files, replaying write ahead log of a previous instance.
+	 * 
+	 * @param root
+	 *            root directory of this {@link EntityStore}.
+	 * @param entityMapper
+	 *            {@link EntityMapper} to use
+	 * @param cacheBuilder
+	 *            cache Builder
+	 * @param checkpointSize
+	 *            log size in bytes which trigger a checkpoint
+	 * @param dictionaries
+	 *            {@link PayloadDictionaries} to use, null for no compression
+	 * @throws NullPointerException
+	 *             if one of parameters is null
+	 * @throws IllegalStateException
+	 *             if root is not a directory of if it cannot be created, or if
+	 *             root is used by another store
+	 * @throws IllegalArgumentException
+	 *             if checkpointSize is not positive
+	 */
+	public FileEntityStore(final File root, final EntityMapper entityMapper, final CacheBuilder<Object, Object> cacheBuilder, final long checkpointSize, final PayloadDictionaries dictionaries) throws NullPointerException, IllegalStateException,
+			IllegalArgumentException {
 		super();
+		this.dictionaries = dictionaries;
+		Preconditions.checkArgument(checkpointSize > 0);
+		this.checkpointSize = checkpointSize;
 		this.root = Preconditions.checkNotNull(root);
 		this.entityMapper = Preconditions.checkNotNull(entityMapper);
 		// check root
@@ -149,33 +293,43 @@ public class FileEntityStore extends AbstractEntityStore implements EntityStore
 				return new File(new File(root, urn.getEntityClassName()), builder.toString());
 			}
 		});
+		// replay
+		wal = new WriteAheadLog(new File(root, WAL));
+		try {
+			wal.recover(new WriteAheadLog.Visitor() {
+				@Override
+				public void visit(final byte type, final String reference, final byte[] payload) {
+					final Reference urn = Reference.parseString(reference);
+					if (type == WriteAheadLog.PUT) {
+						write(urn, payload);
+					} else {
+						final File file = getFile(urn, false);
+						file.delete();
+						directories.add(file.getParentFile());
+					}
+				}
+			});
+			checkpoint();
+		} catch (final RuntimeException e) {
+			wal.close();
+			throw e;
+		}
 	}
 
+	/**
+	 * Stream references of specified type by walking only
+	 * <code>${root}/${entity class name}</code> directory. Walk is lazy and
+	 * depth first, each directory level is listed in name order: memory usage
+	 * is bound by the tree depth, not by the number of entities.
+	 */
 	@Override
 	public Iterable<Reference> find(final Class<?> expectedType) throws NullPointerException {
-		final Collection<File> files = FileUtils.listFiles(root, new RegexFileFilter("^(.*?)"), DirectoryFileFilter.DIRECTORY);
-		final Iterator<File> iterator = files.iterator();
+		final File directory = new File(root, expectedType.getName());
 		return new Iterable<Reference>() {
 
 			@Override
 			public Iterator<Reference> iterator() {
-				return new Iterator<Reference>() {
-
-					@Override
-					public void remove() {
-						throw new UnsupportedOperationException();
-					}
-
-					@Override
-					public Reference next() {
-						return Reference.newReference(expectedType, iterator.next().getName());
-					}
-
-					@Override
-					public boolean hasNext() {
-						return iterator.hasNext();
-					}
-				};
+				return new ReferenceIterator(expectedType, directory);
 			}
 		};
 	}
@@ -188,7 +342,7 @@ public class FileEntityStore extends AbstractEntityStore implements EntityStore
 		}
 		Reader reader = null;
 		try {
-			reader = new FileReader(file);
+			reader = open(reference, file);
 			return entityMapper.readValue(reader, expectedType);
 		} catch (final FileNotFoundException e) {
 			throw new EntityNotFoundException(e);
@@ -201,18 +355,109 @@ public class FileEntityStore extends AbstractEntityStore implements EntityStore
 
 	@Override
 	public <T> void store(final T entity) throws NullPointerException, ConcurrencyException, DowsersException {
-		final File file = getFile(References.identify(entity), true);
-		Writer writer = null;
+		store(entity, false);
+	}
+
+	@Override
+	public <T> void restore(final T entity) throws NullPointerException, DowsersException {
+		store(entity, true);
+	}
+
+	private <T> void store(final T entity, final boolean keep) throws NullPointerException, ConcurrencyException, DowsersException {
+		final Reference reference = References.identify(entity);
+		final long expected = Versions.version(entity);
+		checkpointLock.readLock().lock();
 		try {
-			writer = new FileWriter(file);
-			entityMapper.writeValue(writer, entity);
-		} catch (final IOException e) {
-			throw new DowsersException(e);
+			final Lock lock = locks.get(reference);
+			lock.lock();
+			try {
+				final long version = Versions.next(reference, expected, read(reference), keep);
+				Versions.version(entity, version);
+				final byte[] payload;
+				try {
+					payload = serialize(reference, entity);
+					log(WriteAheadLog.PUT, reference, payload);
+				} catch (final RuntimeException e) {
+					Versions.version(entity, expected);
+					throw e;
+				}
+				write(reference, payload);
+			} finally {
+				lock.unlock();
+			}
 		} finally {
-			if (writer != null) {
-				Closeables.closeQuietly(writer);
+			checkpointLock.readLock().unlock();
+		}
+		checkpointIfNeeded();
+	}
+
+	/**
+	 * All entities are serialized, then locked together and checked against
+	 * their stored version before writing any file, so a version conflict or a
+	 * serialization failure leaves the store untouched. Log is fsynced once
+	 * for all entities, before files are written.
+	 */
+	@Override
+	public <T> void storeAll(final Iterable<T> entities) throws NullPointerException, ConcurrencyException, DowsersException {
+		final Map<Reference, Content> contents = Maps.newLinkedHashMap();
+		try {
+			for (final T entity : Preconditions.checkNotNull(entities)) {
+				final Reference reference = References.identify(entity);
+				final long expected = Versions.version(entity);
+				final long observed = read(reference);
+				final long version = Versions.next(reference, expected, observed);
+				final Content content = new Content(entity, expected, observed);
+				contents.put(reference, content);
+				Versions.version(entity, version);
+				content.payload = serialize(reference, entity);
+			}
+		} catch (final RuntimeException e) {
+			for (final Content content : contents.values()) {
+				Versions.version(content.entity, content.expected);
+			}
+			throw e;
+		}
+		if (contents.isEmpty()) {
+			return;
+		}
+		checkpointLock.readLock().lock();
+		try {
+			final List<Lock> held = Lists.newArrayList();
+			try {
+				// bulkGet give locks in a consistent order
+				for (final Lock lock : locks.bulkGet(contents.keySet())) {
+					lock.lock();
+					held.add(lock);
+				}
+				try {
+					long sequence = 0;
+					for (final Map.Entry<Reference, Content> entry : contents.entrySet()) {
+						if (read(entry.getKey()) != entry.getValue().observed) {
+							throw new ConcurrencyException(StringUtils.format("entity '%s' was updated meanwhile", entry.getKey()));
+						}
+					}
+					for (final Map.Entry<Reference, Content> entry : contents.entrySet()) {
+						sequence = wal.append(WriteAheadLog.PUT, entry.getKey().toString(), entry.getValue().payload);
+					}
+					wal.sync(sequence);
+				} catch (final RuntimeException e) {
+					for (final Content content : contents.values()) {
+						Versions.version(content.entity, content.expected);
+					}
+					throw e;
+				}
+				for (final Map.Entry<Reference, Content> entry : contents.entrySet()) {
+					write(entry.getKey(), entry.getValue().payload);
+				}
+			} finally {
+				for (int i = held.size() - 1; i >= 0; i--) {
+					held.get(i).unlock();
+				}
 			}
+		} finally {
+			checkpointLock.readLock().unlock();
 		}
+		checkpointIfNeeded();
 	}
 
 	@Override
@@ -222,14 +467,72 @@ public class FileEntityStore extends AbstractEntityStore implements EntityStore
 
 	@Override
 	public void remove(final Reference reference) throws NullPointerException, IllegalArgumentException {
-		final File file = getFile(reference, false);
-		file.delete();
+		checkpointLock.readLock().lock();
+		try {
+			final Lock lock = locks.get(reference);
+			lock.lock();
+			try {
+				log(WriteAheadLog.TOMBSTONE, reference, new byte[0]);
+				final File file = getFile(reference, false);
+				if (file.delete()) {
+					directories.add(file.getParentFile());
+				}
+			} finally {
+				lock.unlock();
+			}
+		} finally {
+			checkpointLock.readLock().unlock();
+		}
+		checkpointIfNeeded();
+	}
+
+	/**
+	 * Fsync files written since last checkpoint and their directories, so
+	 * that renames and deletes are durable, then truncate write ahead log.
+	 * 
+	 * @throws DowsersException
+	 *             if a file cannot be fsynced
+	 */
+	public void checkpoint() throws DowsersException {
+		checkpointLock.writeLock().lock();
+		try {
+			for (final File file : dirty) {
+				if (file.exists()) {
+					DurableFiles.sync(file);
+				}
+			}
+			dirty.clear();
+			for (final File directory : directories) {
+				if (directory.exists()) {
+					DurableFiles.syncDirectory(directory);
+				}
+			}
+			directories.clear();
+			wal.truncate();
+		} finally {
+			checkpointLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Release write ahead log. Log is not truncated, its records are replayed
+	 * by next store opened on this root.
+	 */
+	@Override
+	public void close() {
+		wal.close();
 	}
 
 	public File getFile(final Reference urn, final boolean create) {
 		try {
 			final File file = files.getUnchecked(urn);
-			if (create) {
+			if (create && !file.getParentFile().exists()) {
+				// entries of created directories must be durable too
+				File directory = file.getParentFile();
+				while ((directory != null) && !directory.equals(root)) {
+					directories.add(directory.getParentFile());
+					directory = directory.getParentFile();
+				}
 				file.getParentFile().mkdirs();
 			}
 			return file;
@@ -238,4 +541,183 @@ public class FileEntityStore extends AbstractEntityStore implements EntityStore
 		}
 	}
 
+	/**
+	 * @param reference
+	 * @return stored version of specified reference, {@link Sequence#INITIAL}
+	 *         if none.
+	 * @throws DowsersException
+	 */
+	private long read(final Reference reference) throws DowsersException {
+		final File file = getFile(reference, false);
+		if (!file.exists()) {
+			return Sequence.forInitialSequence();
+		}
+		Reader reader = null;
+		try {
+			reader = open(reference, file);
+			return Versions.read(reader);
+		} catch (final FileNotFoundException e) {
+			return Sequence.forInitialSequence();
+		} finally {
+			Closeables.closeQuietly(reader);
+		}
+	}
+
+	/**
+	 * Append a record and wait until it is durable: an entity file is never
+	 * replaced before its record is on disk.
+	 * 
+	 * @param type
+	 * @param reference
+	 * @param payload
+	 * @throws DowsersException
+	 */
+	private void log(final byte type, final Reference reference, final byte[] payload) throws DowsersException {
+		wal.sync(wal.append(type, reference.toString(), payload));
+	}
+
+	/**
+	 * Write specified entity, already logged.
+	 * 
+	 * @param reference
+	 * @param payload
+	 * @throws DowsersException
+	 */
+	private void write(final Reference reference, final byte[] payload) throws DowsersException {
+		final File file = getFile(reference, true);
+		write(file, payload);
+		dirty.add(file);
+		directories.add(file.getParentFile());
+	}
+
+	/**
+	 * Checkpoint if log is too large.
+	 * 
+	 * @throws DowsersException
+	 */
+	private void checkpointIfNeeded() throws DowsersException {
+		if (wal.size() >= checkpointSize) {
+			checkpoint();
+		}
+	}
+
+	/**
+	 * Write specified payload in a temporary file, and rename it atomically to
+	 * specified file. A failed rename leaves previous file in place.
+	 * 
+	 * @param file
+	 * @param payload
+	 * @throws DowsersException
+	 */
+	private static void write(final File file, final byte[] payload) throws DowsersException {
+		final File temporary = new File(file.getParentFile(), file.getName() + TEMPORARY);
+		FileOutputStream output = null;
+		try {
+			output = new FileOutputStream(temporary);
+			output.write(payload);
+			output.close();
+			output = null;
+		} catch (final IOException e) {
+			throw new DowsersException(e);
+		} finally {
+			Closeables.closeQuietly(output);
+		}
+		DurableFiles.rename(temporary, file);
+	}
+
+	private byte[] serialize(final Reference reference, final Object entity) {
+		final StringWriter writer = new StringWriter();
+		entityMapper.writeValue(writer, entity);
+		final byte[] payload = writer.toString().getBytes();
+		return dictionaries != null ? dictionaries.compress(reference.getEntityClassName(), payload) : payload;
+	}
+
+	/**
+	 * Open a reader on specified entity file, decompressing it if needed.
+	 * 
+	 * @param reference
+	 * @param file
+	 * @return a {@link Reader}
+	 * @throws FileNotFoundException
+	 *             if file does not exist
+	 */
+	private Reader open(final Reference reference, final File file) throws FileNotFoundException {
+		if (dictionaries == null) {
+			return new FileReader(file);
+		}
+		final byte[] payload;
+		try {
+			payload = Files.toByteArray(file);
+		} catch (final FileNotFoundException e) {
+			throw e;
+		} catch (final IOException e) {
+			throw new DowsersException(e);
+		}
+		return new InputStreamReader(new ByteArrayInputStream(dictionaries.decompress(reference.getEntityClassName(), payload)));
+	}
+
+	/**
+	 * <code>Content</code> of an entity to write.
+	 */
+	private static final class Content {
+		private final Object entity;
+		private final long expected;
+		private final long observed;
+		private byte[] payload;
+
+		public Content(final Object entity, final long expected, final long observed) {
+			super();
+			this.entity = entity;
+			this.expected = expected;
+			this.observed = observed;
+		}
+	}
+
+	/**
+	 * <code>ReferenceIterator</code> walk lazily an entity class directory.
+	 * 
+	 * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
+	 */
+	private static class ReferenceIterator extends AbstractIterator<Reference> {
+
+		private final Class<?> expectedType;
+
+		/**
+		 * Stack of sorted directory listing.
+		 */
+		private final Deque<Iterator<File>> stack = new ArrayDeque<Iterator<File>>();
+
+		public ReferenceIterator(final Class<?> expectedType, final File directory) {
+			super();
+			this.expectedType = expectedType;
+			push(directory);
+		}
+
+		@Override
+		protected Reference computeNext() {
+			while (!stack.isEmpty()) {
+				final Iterator<File> iterator = stack.peek();
+				if (!iterator.hasNext()) {
+					stack.pop();
+				} else {
+					final File file = iterator.next();
+					if (file.isDirectory()) {
+						push(file);
+					} else if (file.isFile() && !file.getName().endsWith(TEMPORARY)) {
+						return Reference.newReference(expectedType, file.getName());
+					}
+				}
+			}
+			return endOfData();
+		}
+
+		private void push(final File directory) {
+			final File[] files = directory.listFiles();
+			if (files != null) {
+				Arrays.sort(files);
+				stack.push(Arrays.asList(files).iterator());
+			}
+		}
+	}
+
 }
@@ -0,0 +1,345 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store.fs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.intelligentsia.dowsers.core.DowsersException;
+import org.intelligentsia.keystone.kernel.api.StringUtils;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Closeables;
+
+/**
+ * WriteAheadLog of a {@link FileEntityStore}.
+ * 
+ * <p>
+ * Each record is laid out as:
+ * </p>
+ * <code>
+ * [int length][int crc32][byte type][short reference length][reference][payload]
+ * </code>
+ * <p>
+ * where length count all bytes after crc32. A truncated record or a record with
+ * an invalid checksum is considered as a torn write and ends the log.
+ * </p>
+ * <p>
+ * Records are appended in memory and written with a single fsync for all
+ * writers waiting in {@link #sync(long)} (group commit): while a writer flush
+ * the log, others queue their records, which are flushed together by the next
+ * one.
+ * </p>
+ * <p>
+ * Log file is locked: a root directory is owned by a single process.
+ * </p>
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
+ */
+final class WriteAheadLog implements Closeable {
+
+	/**
+	 * Record type of a stored entity.
+	 */
+	static final byte PUT = 1;
+	/**
+	 * Record type of a removed entity.
+	 */
+	static final byte TOMBSTONE = 2;
+	/**
+	 * Size of record header.
+	 */
+	static final int HEADER = 4 + 4 + 1 + 2;
+
+	private final File file;
+	private final RandomAccessFile randomAccessFile;
+	private final FileChannel channel;
+	private final FileLock fileLock;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition synced = lock.newCondition();
+	/**
+	 * Appended records not yet written.
+	 */
+	private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+	/**
+	 * End of written data.
+	 */
+	private long position;
+	/**
+	 * Sequence of last appended record.
+	 */
+	private long appended = 0;
+	/**
+	 * Sequence of last record on disk.
+	 */
+	private long durable = 0;
+	/**
+	 * Sequence of last record lost on a write failure.
+	 */
+	private long failed = 0;
+	/**
+	 * True while a writer flush the log.
+	 */
+	private boolean syncing = false;
+
+	/**
+	 * Build a new instance of WriteAheadLog. Caller must call
+	 * {@link #recover(Visitor)} before appending new records.
+	 * 
+	 * @param file
+	 *            log file
+	 * @throws DowsersException
+	 *             if file cannot be opened
+	 * @throws IllegalStateException
+	 *             if file is locked by another process
+	 */
+	WriteAheadLog(final File file) throws DowsersException, IllegalStateException {
+		super();
+		this.file = file;
+		try {
+			randomAccessFile = new RandomAccessFile(file, "rw");
+		} catch (final IOException e) {
+			throw new DowsersException(e);
+		}
+		channel = randomAccessFile.getChannel();
+		FileLock acquired = null;
+		try {
+			acquired = channel.tryLock();
+		} catch (final OverlappingFileLockException e) {
+			// locked inside this process
+		} catch (final IOException e) {
+			Closeables.closeQuietly(randomAccessFile);
+			throw new DowsersException(e);
+		}
+		if (acquired == null) {
+			Closeables.closeQuietly(randomAccessFile);
+			throw new IllegalStateException(StringUtils.format("'%s' is locked by another store", file));
+		}
+		fileLock = acquired;
+	}
+
+	/**
+	 * Scan all records from the beginning, stopping on first truncated or
+	 * corrupted record, which is discarded with the rest of the log.
+	 * 
+	 * @param visitor
+	 *            {@link Visitor} instance
+	 * @throws DowsersException
+	 */
+	void recover(final Visitor visitor) throws DowsersException {
+		lock.lock();
+		try {
+			final long length = randomAccessFile.length();
+			final ByteBuffer header = ByteBuffer.allocate(8);
+			long offset = 0;
+			while ((offset + HEADER) <= length) {
+				header.clear();
+				channel.read(header, offset);
+				final int size = header.getInt(0);
+				if ((size < (HEADER - 8)) || ((offset + 8 + size) > length)) {
+					break;
+				}
+				final ByteBuffer body = ByteBuffer.allocate(size);
+				channel.read(body, offset + 8);
+				final CRC32 crc = new CRC32();
+				crc.update(body.array());
+				if (header.getInt(4) != (int) crc.getValue()) {
+					break;
+				}
+				body.flip();
+				final byte type = body.get();
+				final byte[] reference = new byte[body.getShort() & 0xFFFF];
+				body.get(reference);
+				final byte[] payload = new byte[body.remaining()];
+				body.get(payload);
+				visitor.visit(type, new String(reference, Charsets.UTF_8), payload);
+				offset += 8 + size;
+			}
+			// discard a possibly torn tail
+			randomAccessFile.setLength(offset);
+			position = offset;
+		} catch (final IOException e) {
+			throw new DowsersException(e);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Append a record in memory.
+	 * 
+	 * @param type
+	 *            record type
+	 * @param reference
+	 *            entity reference
+	 * @param payload
+	 *            payload bytes (empty for tombstone)
+	 * @return sequence of this record, to give to {@link #sync(long)}.
+	 */
+	long append(final byte type, final String reference, final byte[] payload) {
+		final byte[] bytes = reference.getBytes(Charsets.UTF_8);
+		final ByteArrayOutputStream body = new ByteArrayOutputStream(3 + bytes.length + payload.length);
+		final DataOutputStream output = new DataOutputStream(body);
+		try {
+			output.writeByte(type);
+			output.writeShort(bytes.length);
+			output.write(bytes);
+			output.write(payload);
+		} catch (final IOException e) {
+			// not with a byte array
+			throw new DowsersException(e);
+		}
+		final CRC32 crc = new CRC32();
+		crc.update(body.toByteArray());
+		lock.lock();
+		try {
+			final DataOutputStream target = new DataOutputStream(buffer);
+			target.writeInt(body.size());
+			target.writeInt((int) crc.getValue());
+			body.writeTo(target);
+			return ++appended;
+		} catch (final IOException e) {
+			throw new DowsersException(e);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wait until specified record is on disk. If no other writer is flushing
+	 * the log, caller write and fsync all appended records.
+	 * 
+	 * @param sequence
+	 *            record sequence
+	 * @throws DowsersException
+	 *             if record cannot be written
+	 */
+	void sync(final long sequence) throws DowsersException {
+		lock.lock();
+		try {
+			while (durable < sequence) {
+				if (sequence <= failed) {
+					throw new DowsersException(StringUtils.format("unable to write '%s'", file));
+				}
+				if (syncing) {
+					synced.awaitUninterruptibly();
+					continue;
+				}
+				syncing = true;
+				final ByteArrayOutputStream batch = buffer;
+				final long last = appended;
+				final long offset = position;
+				buffer = new ByteArrayOutputStream();
+				lock.unlock();
+				IOException failure = null;
+				try {
+					channel.write(ByteBuffer.wrap(batch.toByteArray()), offset);
+					channel.force(false);
+				} catch (final IOException e) {
+					failure = e;
+				} finally {
+					lock.lock();
+					syncing = false;
+					if (failure == null) {
+						position = offset + batch.size();
+						durable = last;
+					} else {
+						failed = last;
+						durable = last;
+					}
+					synced.signalAll();
+				}
+				if (failure != null) {
+					throw new DowsersException(failure);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return size of log on disk.
+	 */
+	long size() {
+		lock.lock();
+		try {
+			return position;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Discard all records written on disk. Caller must ensure that all written
+	 * records are applied and durable.
+	 * 
+	 * @throws DowsersException
+	 */
+	void truncate() throws DowsersException {
+		lock.lock();
+		try {
+			while (syncing) {
+				synced.awaitUninterruptibly();
+			}
+			randomAccessFile.setLength(0);
+			channel.force(true);
+			position = 0;
+		} catch (final IOException e) {
+			throw new DowsersException(e);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void close() {
+		try {
+			fileLock.release();
+		} catch (final IOException e) {
+			// closed anyway
+		}
+		Closeables.closeQuietly(randomAccessFile);
+	}
+
+	@Override
+	public String toString() {
+		return file.getName();
+	}
+
+	/**
+	 * Visitor of records.
+	 */
+	interface Visitor {
+		void visit(byte type, String reference, byte[] payload);
+	}
+}
@@ -0,0 +1,557 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store.log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.intelligentsia.dowsers.core.DowsersException;
+import org.intelligentsia.dowsers.core.Sequence;
+import org.intelligentsia.keystone.kernel.api.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterables;
+import com.intelligentsia.dowsers.entity.reference.Reference;
+import com.intelligentsia.dowsers.entity.reference.References;
+import com.intelligentsia.dowsers.entity.serializer.EntityMapper;
+import com.intelligentsia.dowsers.entity.store.AbstractEntityStore;
+import com.intelligentsia.dowsers.entity.store.ConcurrencyException;
+import com.intelligentsia.dowsers.entity.store.EntityNotFoundException;
+import com.intelligentsia.dowsers.entity.store.EntityStore;
+import com.intelligentsia.dowsers.entity.store.PayloadDictionaries;
+import com.intelligentsia.dowsers.entity.store.VersionedEntityStore;
+import com.intelligentsia.dowsers.entity.store.Versions;
+
+/**
+ * LogEntityStore implements an append only, log structured {@link EntityStore}.
+ * 
+ * <p>
+ * Entities are appended to rolling segment files under a single directory:
+ * </p>
+ * <code>
+ * ${directory}/segment-0000000000000001.log
+ * </code>
+ * <p>
+ * Segments are memory mapped, reads are served from mapped memory and never
+ * take a lock. An in-memory offset table indexed by {@link Reference} is
+ * rebuilt from segments on startup. Removing an entity append a tombstone.
+ * </p>
+ * <p>
+ * The offset table keeps the version of each entity: store is a compare and
+ * set on it (see {@link Versions}).
+ * </p>
+ * <p>
+ * Superseded versions are reclaimed by compaction: each segment which is not
+ * the active one and whose ratio of superseded bytes exceeds the compaction
+ * threshold has its live records copied to the active segment, and is deleted.
+ * Compaction run periodically on a daemon thread and can be triggered with
+ * {@link #compact()}.
+ * </p>
+ * <p>
+ * With {@link PayloadDictionaries}, payloads are compressed with dictionary of
+ * their entity class.
+ * </p>
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
+ */
+public class LogEntityStore extends AbstractEntityStore implements VersionedEntityStore, Closeable {
+
+	/**
+	 * Default segment size (64 Mb).
+	 */
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+	/**
+	 * Default compaction threshold.
+	 */
+	public static final double DEFAULT_COMPACTION_THRESHOLD = 0.5d;
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	/**
+	 * {@link EntityMapper} instance.
+	 */
+	private final EntityMapper entityMapper;
+	/**
+	 * Store directory.
+	 */
+	private final File directory;
+	/**
+	 * Segment capacity.
+	 */
+	private final int segmentSize;
+	/**
+	 * Compaction threshold.
+	 */
+	private final double compactionThreshold;
+	/**
+	 * Offset table, sorted by reference, so entities of a same class are
+	 * contiguous.
+	 */
+	private final ConcurrentSkipListMap<Reference, Location> index = new ConcurrentSkipListMap<Reference, Location>();
+	/**
+	 * Segments by identifier.
+	 */
+	private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<Long, Segment>();
+	/**
+	 * Lock on write operations.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+	/**
+	 * Payload dictionaries (could be null).
+	 */
+	private final PayloadDictionaries dictionaries;
+	/**
+	 * Compaction executor (could be null).
+	 */
+	private final ScheduledExecutorService compactor;
+	/**
+	 * Current segment.
+	 */
+	private volatile Segment active;
+
+	/**
+	 * Build a new instance of LogEntityStore with default segment size and a
+	 * compaction every minute.
+	 * 
+	 * @param directory
+	 *            directory of this {@link EntityStore}.
+	 * @param entityMapper
+	 *            {@link EntityMapper} to use
+	 * @throws NullPointerException
+	 *             if one of parameters is null
+	 * @throws IllegalStateException
+	 *             if directory is not a directory of if it cannot be created
+	 * @throws DowsersException
+	 *             if segments cannot be read
+	 */
+	public LogEntityStore(final File directory, final EntityMapper entityMapper) throws NullPointerException, IllegalStateException, DowsersException {
+		this(directory, entityMapper, DEFAULT_SEGMENT_SIZE, DEFAULT_COMPACTION_THRESHOLD, 1, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Build a new instance of LogEntityStore.
+	 * 
+	 * @param directory
+	 *            directory of this {@link EntityStore}.
+	 * @param entityMapper
+	 *            {@link EntityMapper} to use
+	 * @param segmentSize
+	 *            segment size in bytes
+	 * @param compactionThreshold
+	 *            ratio of superseded bytes from which a segment is compacted
+	 * @param compactionPeriod
+	 *            period of background compaction, 0 to disable it
+	 * @param unit
+	 *            time unit of compactionPeriod
+	 * @throws NullPointerException
+	 *             if one of parameters is null
+	 * @throws IllegalArgumentException
+	 *             if segmentSize is not positive or if compactionThreshold is
+	 *             not in ]0, 1]
+	 * @throws IllegalStateException
+	 *             if directory is not a directory of if it cannot be created
+	 * @throws DowsersException
+	 *             if segments cannot be read
+	 */
+	public LogEntityStore(final File directory, final EntityMapper entityMapper, final int segmentSize, final double compactionThreshold, final long compactionPeriod, final TimeUnit unit) throws NullPointerException, IllegalArgumentException,
+			IllegalStateException, DowsersException {
+		this(directory, entityMapper, segmentSize, compactionThreshold, compactionPeriod, unit, null);
+	}
+
+	/**
+	 * Build a new instance of LogEntityStore which compress payloads.
+	 * 
+	 * @param directory
+	 *            directory of this {@link EntityStore}.
+	 * @param entityMapper
+	 *            {@link EntityMapper} to use
+	 * @param segmentSize
+	 *            segment size in bytes
+	 * @param compactionThreshold
+	 *            ratio of superseded bytes from which a segment is compacted
+	 * @param compactionPeriod
+	 *            period of background compaction, 0 to disable it
+	 * @param unit
+	 *            time unit of compactionPeriod
+	 * @param dictionaries
+	 *            {@link PayloadDictionaries} to use, null for no compression
+	 * @throws NullPointerException
+	 *             if one of parameters is null
+	 * @throws IllegalArgumentException
+	 *             if segmentSize is not positive or if compactionThreshold is
+	 *             not in ]0, 1]
+	 * @throws IllegalStateException
+	 *             if directory is not a directory of if it cannot be created
+	 * @throws DowsersException
+	 *             if segments cannot be read
+	 */
+	public LogEntityStore(final File directory, final EntityMapper entityMapper, final int segmentSize, final double compactionThreshold, final long compactionPeriod, final TimeUnit unit, final PayloadDictionaries dictionaries)
+			throws NullPointerException, IllegalArgumentException, IllegalStateException, DowsersException {
+		super();
+		this.dictionaries = dictionaries;
+		this.directory = Preconditions.checkNotNull(directory);
+		this.entityMapper = Preconditions.checkNotNull(entityMapper);
+		Preconditions.checkArgument(segmentSize > 0);
+		this.segmentSize = segmentSize;
+		Preconditions.checkArgument((compactionThreshold > 0) && (compactionThreshold <= 1));
+		this.compactionThreshold = compactionThreshold;
+		// check directory
+		if (!directory.exists()) {
+			if (!directory.mkdirs()) {
+				throw new IllegalStateException(StringUtils.format("unable to create directory '%s'", directory));
+			}
+		}
+		if (!directory.isDirectory()) {
+			throw new IllegalStateException(StringUtils.format("'%s' is not a directory", directory));
+		}
+		load();
+		// background compaction
+		if (compactionPeriod > 0) {
+			compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				private final ThreadFactory delegate = Executors.defaultThreadFactory();
+
+				@Override
+				public Thread newThread(final Runnable runnable) {
+					final Thread thread = delegate.newThread(runnable);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			compactor.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						compact();
+					} catch (final Throwable throwable) {
+						logger.error("LogEntityStore compaction error", throwable);
+					}
+				}
+			}, compactionPeriod, compactionPeriod, Preconditions.checkNotNull(unit));
+		} else {
+			compactor = null;
+		}
+	}
+
+	@Override
+	public Iterable<Reference> find(final Class<?> expectedType) throws NullPointerException {
+		final String prefix = new StringBuilder(Reference.newReferenceOnEntityClass(expectedType).toString()).append(Reference.IDENTITY).append(Reference.URN_IDENTIFIER_SEPARATOR).toString();
+		final ConcurrentNavigableMap<Reference, Location> references = index.subMap(Reference.parseString(prefix), true, Reference.parseString(prefix + Character.MAX_VALUE), false);
+		return Iterables.unmodifiableIterable(references.keySet());
+	}
+
+	@Override
+	public <T> T find(final Class<T> expectedType, final Reference reference) throws EntityNotFoundException, NullPointerException, IllegalArgumentException {
+		Preconditions.checkNotNull(expectedType);
+		final Location location = index.get(Preconditions.checkNotNull(reference));
+		if (location == null) {
+			throw new EntityNotFoundException();
+		}
+		final byte[] payload = decompress(reference, location.segment.read(location.offset).payload);
+		return entityMapper.readValue(new InputStreamReader(new ByteArrayInputStream(payload), Charsets.UTF_8), expectedType);
+	}
+
+	@Override
+	public <T> void store(final T entity) throws NullPointerException, ConcurrencyException, IllegalArgumentException {
+		store(entity, false);
+	}
+
+	@Override
+	public <T> void restore(final T entity) throws NullPointerException, IllegalArgumentException {
+		store(entity, true);
+	}
+
+	private <T> void store(final T entity, final boolean keep) throws NullPointerException, ConcurrencyException, IllegalArgumentException {
+		final Reference reference = References.identify(Preconditions.checkNotNull(entity));
+		final long expected = Versions.version(entity);
+		while (true) {
+			// serialize outside of lock, with version observed before
+			final long observed = version(index.get(reference));
+			final long version = Versions.next(reference, expected, observed, keep);
+			Versions.version(entity, version);
+			final byte[] payload;
+			try {
+				final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+				entityMapper.writeValue(new OutputStreamWriter(outputStream, Charsets.UTF_8), entity);
+				payload = compress(reference, outputStream.toByteArray());
+			} catch (final RuntimeException e) {
+				Versions.version(entity, expected);
+				throw e;
+			}
+			lock.lock();
+			try {
+				if (version(index.get(reference)) == observed) {
+					release(index.put(reference, append(Segment.PUT, reference, payload, version)));
+					return;
+				}
+			} finally {
+				lock.unlock();
+			}
+			// written meanwhile: retry only if expected version is not checked
+			Versions.version(entity, expected);
+			if (!keep && Versions.isChecked(expected)) {
+				throw new ConcurrencyException(StringUtils.format("entity '%s' expected version %s was updated meanwhile", reference, expected));
+			}
+		}
+	}
+
+	@Override
+	public <T> void remove(final T entity) throws NullPointerException, IllegalArgumentException {
+		remove(References.identify(Preconditions.checkNotNull(entity)));
+	}
+
+	@Override
+	public void remove(final Reference reference) throws NullPointerException, IllegalArgumentException {
+		Preconditions.checkNotNull(reference);
+		lock.lock();
+		try {
+			final Location location = index.remove(reference);
+			if (location != null) {
+				release(location);
+				release(append(Segment.TOMBSTONE, reference, new byte[0], Sequence.forInitialSequence()));
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Compact all segments, except the active one, whose ratio of superseded
+	 * bytes exceeds compaction threshold.
+	 * 
+	 * @return number of compacted segments
+	 */
+	public int compact() {
+		int count = 0;
+		for (final Segment segment : segments.values()) {
+			if ((segment != active) && (segment.garbageRatio() >= compactionThreshold)) {
+				compact(segment);
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Flush all pending write on disk.
+	 */
+	public void sync() {
+		final Segment segment = active;
+		if (segment != null) {
+			segment.sync();
+		}
+	}
+
+	/**
+	 * Stop compaction, flush and close all segments.
+	 */
+	@Override
+	public void close() {
+		if (compactor != null) {
+			compactor.shutdownNow();
+		}
+		lock.lock();
+		try {
+			sync();
+			for (final Segment segment : segments.values()) {
+				segment.close();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Copy live records of specified segment to the active one and delete it.
+	 * 
+	 * @param segment
+	 */
+	private void compact(final Segment segment) {
+		final boolean oldest = segments.firstKey().longValue() == segment.id();
+		segment.scan(new Segment.Visitor() {
+			@Override
+			public void visit(final Segment.Record record) {
+				final Reference reference = Reference.parseString(record.reference);
+				lock.lock();
+				try {
+					if (record.type == Segment.PUT) {
+						final Location location = index.get(reference);
+						// still the current version ?
+						if ((location != null) && (location.segment == segment) && (location.offset == record.offset)) {
+							index.put(reference, append(Segment.PUT, reference, record.payload, location.version));
+						}
+					} else if (!oldest && !index.containsKey(reference)) {
+						// older segments could still hold a version of this
+						// entity
+						release(append(Segment.TOMBSTONE, reference, record.payload, Sequence.forInitialSequence()));
+					}
+				} finally {
+					lock.unlock();
+				}
+			}
+		});
+		sync();
+		segments.remove(segment.id());
+		segment.delete();
+		logger.debug("LogEntityStore compact {}", segment);
+	}
+
+	private byte[] compress(final Reference reference, final byte[] payload) {
+		return dictionaries != null ? dictionaries.compress(reference.getEntityClassName(), payload) : payload;
+	}
+
+	private byte[] decompress(final Reference reference, final byte[] payload) {
+		return dictionaries != null ? dictionaries.decompress(reference.getEntityClassName(), payload) : payload;
+	}
+
+	/**
+	 * Append a record in active segment, rolling a new segment if necessary.
+	 * Caller must hold lock.
+	 * 
+	 * @param type
+	 * @param reference
+	 * @param payload
+	 * @param version
+	 *            version of payload
+	 * @return {@link Location} of written record.
+	 */
+	private Location append(final byte type, final Reference reference, final byte[] payload, final long version) {
+		final byte[] key = reference.toString().getBytes(Charsets.UTF_8);
+		int offset = active.append(type, key, payload);
+		if (offset < 0) {
+			active.sync();
+			roll(Segment.sizeOf(key.length, payload.length) + 4);
+			offset = active.append(type, key, payload);
+		}
+		return new Location(active, offset, Segment.sizeOf(key.length, payload.length), version);
+	}
+
+	/**
+	 * Mark specified location as superseded.
+	 * 
+	 * @param location
+	 *            could be null
+	 */
+	private void release(final Location location) {
+		if (location != null) {
+			location.segment.addGarbage(location.size);
+		}
+	}
+
+	/**
+	 * Create a new active segment.
+	 * 
+	 * @param minimalSize
+	 *            minimal size needed
+	 */
+	private void roll(final int minimalSize) {
+		final long id = segments.isEmpty() ? 1 : segments.lastKey().longValue() + 1;
+		try {
+			final Segment segment = Segment.create(directory, id, Math.max(segmentSize, minimalSize));
+			segments.put(id, segment);
+			active = segment;
+		} catch (final IOException e) {
+			throw new DowsersException(StringUtils.format("unable to create segment %s in '%s'", id, directory), e);
+		}
+	}
+
+	/**
+	 * Load all segments and rebuild offset table.
+	 */
+	private void load() {
+		final String[] names = directory.list(new FilenameFilter() {
+			@Override
+			public boolean accept(final File dir, final String name) {
+				return Segment.isSegment(name);
+			}
+		});
+		Arrays.sort(names);
+		for (final String name : names) {
+			final Segment segment;
+			try {
+				segment = Segment.open(new File(directory, name));
+			} catch (final IOException e) {
+				throw new DowsersException(StringUtils.format("unable to open segment '%s'", name), e);
+			}
+			segments.put(segment.id(), segment);
+			segment.recover(new Segment.Visitor() {
+				@Override
+				public void visit(final Segment.Record record) {
+					final Reference reference = Reference.parseString(record.reference);
+					if (record.type == Segment.PUT) {
+						release(index.put(reference, new Location(segment, record.offset, record.size, Versions.read(decompress(reference, record.payload)))));
+					} else {
+						release(index.remove(reference));
+						segment.addGarbage(record.size);
+					}
+				}
+			});
+		}
+		if (segments.isEmpty()) {
+			roll(0);
+		} else {
+			active = segments.lastEntry().getValue();
+		}
+		logger.debug("LogEntityStore load {} entities from {} segments", index.size(), segments.size());
+	}
+
+	/**
+	 * @param location
+	 *            could be null
+	 * @return version at specified location, {@link Sequence#INITIAL} if none.
+	 */
+	private static long version(final Location location) {
+		return location != null ? location.version : Sequence.forInitialSequence();
+	}
+
+	/**
+	 * Location of a record.
+	 */
+	private static final class Location {
+		private final Segment segment;
+		private final int offset;
+		private final int size;
+		private final long version;
+
+		public Location(final Segment segment, final int offset, final int size, final long version) {
+			super();
+			this.segment = segment;
+			this.offset = offset;
+			this.size = size;
+			this.version = version;
+		}
+	}
+}
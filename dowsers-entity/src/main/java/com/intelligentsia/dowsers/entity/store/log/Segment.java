@@ -0,0 +1,349 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store.log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.io.Closeables;
+
+/**
+ * Segment is a single memory mapped file of a {@link LogEntityStore}.
+ * 
+ * <p>
+ * Each record is laid out as:
+ * </p>
+ * <code>
+ * [int length][int crc32][byte type][short reference length][reference][payload]
+ * </code>
+ * <p>
+ * where length count all bytes after crc32. A zero length mark the end of
+ * written data, a record with an invalid checksum is considered as a torn write
+ * and ends the segment too.
+ * </p>
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
+ */
+final class Segment implements Closeable {
+
+	/**
+	 * Record type of a stored entity.
+	 */
+	static final byte PUT = 1;
+	/**
+	 * Record type of a removed entity.
+	 */
+	static final byte TOMBSTONE = 2;
+	/**
+	 * Size of record header.
+	 */
+	static final int HEADER = 4 + 4 + 1 + 2;
+
+	private static final String PREFIX = "segment-";
+	private static final String SUFFIX = ".log";
+
+	private final long id;
+	private final File file;
+	private final RandomAccessFile randomAccessFile;
+	private final MappedByteBuffer buffer;
+	private final int capacity;
+	/**
+	 * End of written data.
+	 */
+	private volatile int position;
+	/**
+	 * Bytes of superseded records.
+	 */
+	private final AtomicLong garbage = new AtomicLong();
+
+	/**
+	 * Build a new instance of Segment.
+	 * 
+	 * @param id
+	 *            segment identifier
+	 * @param file
+	 *            segment file
+	 * @param capacity
+	 *            capacity in bytes
+	 * @throws IOException
+	 */
+	private Segment(final long id, final File file, final int capacity) throws IOException {
+		super();
+		this.id = id;
+		this.file = file;
+		this.capacity = capacity;
+		randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			if (randomAccessFile.length() < capacity) {
+				randomAccessFile.setLength(capacity);
+			}
+			buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+		} catch (final IOException e) {
+			Closeables.closeQuietly(randomAccessFile);
+			throw e;
+		}
+	}
+
+	/**
+	 * Create a new empty segment.
+	 * 
+	 * @param directory
+	 *            store directory
+	 * @param id
+	 *            segment identifier
+	 * @param capacity
+	 *            capacity in bytes
+	 * @return a {@link Segment} instance
+	 * @throws IOException
+	 */
+	static Segment create(final File directory, final long id, final int capacity) throws IOException {
+		return new Segment(id, new File(directory, name(id)), capacity);
+	}
+
+	/**
+	 * Open an existing segment. Caller must call {@link #recover(Visitor)}
+	 * before appending new records.
+	 * 
+	 * @param file
+	 *            segment file
+	 * @return a {@link Segment} instance
+	 * @throws IOException
+	 */
+	static Segment open(final File file) throws IOException {
+		Preconditions.checkArgument(file.length() <= Integer.MAX_VALUE, "segment too large");
+		return new Segment(parse(file.getName()), file, (int) file.length());
+	}
+
+	/**
+	 * @param name
+	 *            file name
+	 * @return true if name is a segment file name.
+	 */
+	static boolean isSegment(final String name) {
+		return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+	}
+
+	static String name(final long id) {
+		return new StringBuilder(PREFIX).append(String.format("%016d", id)).append(SUFFIX).toString();
+	}
+
+	static long parse(final String name) {
+		return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+	}
+
+	/**
+	 * @param reference
+	 *            reference length in bytes
+	 * @param payload
+	 *            payload length in bytes
+	 * @return size of a record.
+	 */
+	static int sizeOf(final int reference, final int payload) {
+		return HEADER + reference + payload;
+	}
+
+	/**
+	 * Append a record.
+	 * 
+	 * @param type
+	 *            record type
+	 * @param reference
+	 *            reference bytes
+	 * @param payload
+	 *            payload bytes (empty for tombstone)
+	 * @return record offset, or -1 if this segment has not enough free space.
+	 */
+	int append(final byte type, final byte[] reference, final byte[] payload) {
+		final int size = sizeOf(reference.length, payload.length);
+		final int offset = position;
+		if ((offset + size + 4) > capacity) {
+			return -1;
+		}
+		final CRC32 crc = new CRC32();
+		crc.update(type);
+		crc.update((reference.length >>> 8) & 0xFF);
+		crc.update(reference.length & 0xFF);
+		crc.update(reference);
+		crc.update(payload);
+		final ByteBuffer target = buffer.duplicate();
+		target.position(offset);
+		target.putInt(size - 8).putInt((int) crc.getValue()).put(type).putShort((short) reference.length).put(reference).put(payload);
+		position = offset + size;
+		return offset;
+	}
+
+	/**
+	 * Read record at specified offset.
+	 * 
+	 * @param offset
+	 * @return a {@link Record}
+	 */
+	Record read(final int offset) {
+		final ByteBuffer source = buffer.duplicate();
+		source.position(offset);
+		final int length = source.getInt();
+		source.getInt();
+		final byte type = source.get();
+		final byte[] reference = new byte[source.getShort() & 0xFFFF];
+		source.get(reference);
+		final byte[] payload = new byte[length - 3 - reference.length];
+		source.get(payload);
+		return new Record(type, offset, length + 8, new String(reference, Charsets.UTF_8), payload);
+	}
+
+	/**
+	 * Scan all records of this segment from the beginning, stopping on first
+	 * empty or corrupted record. Next append will occur after last valid
+	 * record.
+	 * 
+	 * @param visitor
+	 *            {@link Visitor} instance
+	 */
+	void recover(final Visitor visitor) {
+		final ByteBuffer source = buffer.duplicate();
+		int offset = 0;
+		while ((offset + HEADER) <= capacity) {
+			final int length = source.getInt(offset);
+			if ((length < (HEADER - 8)) || ((offset + 8 + length) > capacity)) {
+				break;
+			}
+			final CRC32 crc = new CRC32();
+			final byte[] body = new byte[length];
+			source.position(offset + 8);
+			source.get(body);
+			crc.update(body);
+			if (source.getInt(offset + 4) != (int) crc.getValue()) {
+				break;
+			}
+			final Record record = read(offset);
+			offset += record.size;
+			visitor.visit(record);
+		}
+		position = offset;
+		// clear a possibly torn tail, so that next append is well terminated
+		if ((offset + 4) <= capacity) {
+			buffer.putInt(offset, 0);
+		}
+	}
+
+	/**
+	 * Visit all records already written in this segment.
+	 * 
+	 * @param visitor
+	 *            {@link Visitor} instance
+	 */
+	void scan(final Visitor visitor) {
+		final int end = position;
+		int offset = 0;
+		while (offset < end) {
+			final Record record = read(offset);
+			offset += record.size;
+			visitor.visit(record);
+		}
+	}
+
+	/**
+	 * Flush written data on disk.
+	 */
+	void sync() {
+		buffer.force();
+	}
+
+	/**
+	 * @param size
+	 *            size of a superseded record
+	 */
+	void addGarbage(final long size) {
+		garbage.addAndGet(size);
+	}
+
+	/**
+	 * @return ratio of superseded bytes in this segment.
+	 */
+	double garbageRatio() {
+		final int written = position;
+		return written == 0 ? 0 : (double) garbage.get() / written;
+	}
+
+	long id() {
+		return id;
+	}
+
+	int position() {
+		return position;
+	}
+
+	/**
+	 * Close and delete this segment. Mapped memory stay readable until it is
+	 * garbage collected, so concurrent readers are not disturbed.
+	 */
+	void delete() {
+		close();
+		if (!file.delete()) {
+			file.deleteOnExit();
+		}
+	}
+
+	@Override
+	public void close() {
+		Closeables.closeQuietly(randomAccessFile);
+	}
+
+	@Override
+	public String toString() {
+		return file.getName();
+	}
+
+	/**
+	 * Record.
+	 */
+	static final class Record {
+		final byte type;
+		final int offset;
+		final int size;
+		final String reference;
+		final byte[] payload;
+
+		Record(final byte type, final int offset, final int size, final String reference, final byte[] payload) {
+			super();
+			this.type = type;
+			this.offset = offset;
+			this.size = size;
+			this.reference = reference;
+			this.payload = payload;
+		}
+	}
+
+	/**
+	 * Visitor of {@link Record}.
+	 */
+	interface Visitor {
+		void visit(Record record);
+	}
+}
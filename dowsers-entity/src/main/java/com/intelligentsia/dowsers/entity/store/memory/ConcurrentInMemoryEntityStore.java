@@ -0,0 +1,348 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store.memory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.Lock;
+
+import org.intelligentsia.dowsers.core.Sequence;
+import org.intelligentsia.keystone.kernel.api.StringUtils;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Striped;
+import com.intelligentsia.dowsers.entity.Entity;
+import com.intelligentsia.dowsers.entity.EntityDynamic;
+import com.intelligentsia.dowsers.entity.EntityProxy;
+import com.intelligentsia.dowsers.entity.meta.MetaEntity;
+import com.intelligentsia.dowsers.entity.reference.Reference;
+import com.intelligentsia.dowsers.entity.reference.References;
+import com.intelligentsia.dowsers.entity.serializer.EntityMapper;
+import com.intelligentsia.dowsers.entity.store.AbstractEntityStore;
+import com.intelligentsia.dowsers.entity.store.ConcurrencyException;
+import com.intelligentsia.dowsers.entity.store.EntityNotFoundException;
+import com.intelligentsia.dowsers.entity.store.EntityStore;
+import com.intelligentsia.dowsers.entity.store.VersionedEntityStore;
+import com.intelligentsia.dowsers.entity.store.Versions;
+
+/**
+ * <code>ConcurrentInMemoryEntityStore</code> implements a thread safe
+ * {@link EntityStore} in memory.
+ * 
+ * <ul>
+ * <li>Entities are kept as UTF-8 encoded bytes in a {@link ConcurrentHashMap}
+ * (half the size of a {@link String})</li>
+ * <li>Reads take no lock</li>
+ * <li>Writes on a same reference are serialized with a striped lock, writes on
+ * distinct references run in parallel</li>
+ * <li>A reference set per entity class is maintained, {@link #find(Class)}
+ * iterate lazily on it (weakly consistent)</li>
+ * <li>Store is a compare and set on entity version (see {@link Versions}):
+ * serialization runs outside of lock, and is done again if an unchecked
+ * entity was written meanwhile</li>
+ * <li>Optionally, deserialized instances are kept: each read returns a copy of
+ * this instance rather than parsing bytes again</li>
+ * </ul>
+ * 
+ * Copy on read is a shallow copy of attribute's map: attribute values are
+ * shared between copies, so it should only be enabled with immutable
+ * attribute values. Entities which are neither {@link EntityDynamic} (directly
+ * or behind a proxy) nor {@link MetaEntity} are always deserialized.
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
+ */
+public class ConcurrentInMemoryEntityStore extends AbstractEntityStore implements VersionedEntityStore {
+
+	/**
+	 * Default number of lock stripes.
+	 */
+	public static final int DEFAULT_STRIPES = 64;
+
+	/**
+	 * Serialized entities.
+	 */
+	private final ConcurrentMap<Reference, byte[]> entities = new ConcurrentHashMap<Reference, byte[]>();
+
+	/**
+	 * References per entity class reference.
+	 */
+	private final ConcurrentMap<Reference, Set<Reference>> catalog = new ConcurrentHashMap<Reference, Set<Reference>>();
+
+	/**
+	 * Stored versions, updated under write lock.
+	 */
+	private final ConcurrentMap<Reference, Long> versions = new ConcurrentHashMap<Reference, Long>();
+
+	/**
+	 * Deserialized instances, or null if disabled.
+	 */
+	private final ConcurrentMap<Reference, Instance> instances;
+
+	/**
+	 * Write locks.
+	 */
+	private final Striped<Lock> locks;
+
+	/**
+	 * {@link EntityMapper} instance.
+	 */
+	private final EntityMapper entityMapper;
+
+	/**
+	 * Build a new instance of <code>ConcurrentInMemoryEntityStore</code>
+	 * without instance keeping.
+	 * 
+	 * @param entityMapper
+	 * @throws NullPointerException
+	 *             if entityMapper is null
+	 */
+	public ConcurrentInMemoryEntityStore(final EntityMapper entityMapper) throws NullPointerException {
+		this(entityMapper, DEFAULT_STRIPES, false);
+	}
+
+	/**
+	 * Build a new instance of <code>ConcurrentInMemoryEntityStore</code>.
+	 * 
+	 * @param entityMapper
+	 * @param stripes
+	 *            number of lock stripes
+	 * @param keepInstances
+	 *            if true deserialized instances are kept and copied on read
+	 * @throws NullPointerException
+	 *             if entityMapper is null
+	 * @throws IllegalArgumentException
+	 *             if stripes is not positive
+	 */
+	public ConcurrentInMemoryEntityStore(final EntityMapper entityMapper, final int stripes, final boolean keepInstances) throws NullPointerException, IllegalArgumentException {
+		super();
+		this.entityMapper = Preconditions.checkNotNull(entityMapper);
+		Preconditions.checkArgument(stripes > 0);
+		locks = Striped.lock(stripes);
+		instances = keepInstances ? new ConcurrentHashMap<Reference, Instance>() : null;
+	}
+
+	@Override
+	public Iterable<Reference> find(final Class<?> expectedType) throws NullPointerException {
+		final Set<Reference> references = catalog.get(Reference.newReferenceOnEntityClass(expectedType));
+		if (references == null) {
+			return Collections.emptySet();
+		}
+		return Collections.unmodifiableSet(references);
+	}
+
+	@Override
+	public <T> T find(final Class<T> expectedType, final Reference reference) throws EntityNotFoundException, NullPointerException, IllegalArgumentException {
+		final byte[] payload = entities.get(Preconditions.checkNotNull(reference));
+		if (payload == null) {
+			throw new EntityNotFoundException();
+		}
+		if (instances != null) {
+			final Instance instance = instances.get(reference);
+			// same payload instance: same version
+			if ((instance != null) && (instance.payload == payload) && expectedType.isInstance(instance.entity)) {
+				final T copy = copy(expectedType, instance.entity);
+				if (copy != null) {
+					return copy;
+				}
+			}
+			final T entity = read(expectedType, payload);
+			final T copy = copy(expectedType, entity);
+			if (copy != null) {
+				final Instance kept = new Instance(payload, entity);
+				instances.put(reference, kept);
+				if (entities.get(reference) != payload) {
+					// updated or removed meanwhile
+					instances.remove(reference, kept);
+				}
+				return copy;
+			}
+			return entity;
+		}
+		return read(expectedType, payload);
+	}
+
+	@Override
+	public <T> void store(final T entity) throws NullPointerException, ConcurrencyException, IllegalArgumentException {
+		store(entity, false);
+	}
+
+	@Override
+	public <T> void restore(final T entity) throws NullPointerException, IllegalArgumentException {
+		store(entity, true);
+	}
+
+	private <T> void store(final T entity, final boolean keep) throws NullPointerException, ConcurrencyException, IllegalArgumentException {
+		final Reference reference = References.identify(Preconditions.checkNotNull(entity));
+		final long expected = Versions.version(entity);
+		while (true) {
+			// serialize outside of lock, with version observed before
+			final long observed = version(reference);
+			final long version = Versions.next(reference, expected, observed, keep);
+			Versions.version(entity, version);
+			final byte[] payload;
+			try {
+				final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+				entityMapper.writeValue(new OutputStreamWriter(outputStream, Charsets.UTF_8), entity);
+				payload = outputStream.toByteArray();
+			} catch (final RuntimeException e) {
+				Versions.version(entity, expected);
+				throw e;
+			}
+			final Lock lock = locks.get(reference);
+			lock.lock();
+			try {
+				if (version(reference) == observed) {
+					versions.put(reference, version);
+					if (entities.put(reference, payload) == null) {
+						catalog(reference.getEntityClassReference()).add(reference);
+					}
+					if (instances != null) {
+						instances.remove(reference);
+					}
+					return;
+				}
+			} finally {
+				lock.unlock();
+			}
+			// written meanwhile: retry only if expected version is not checked
+			Versions.version(entity, expected);
+			if (!keep && Versions.isChecked(expected)) {
+				throw new ConcurrencyException(StringUtils.format("entity '%s' expected version %s was updated meanwhile", reference, expected));
+			}
+		}
+	}
+
+	@Override
+	public <T> void remove(final T entity) throws NullPointerException, IllegalArgumentException {
+		remove(References.identify(entity));
+	}
+
+	@Override
+	public void remove(final Reference reference) throws NullPointerException, IllegalArgumentException {
+		final Lock lock = locks.get(Preconditions.checkNotNull(reference));
+		lock.lock();
+		try {
+			versions.remove(reference);
+			if (entities.remove(reference) != null) {
+				catalog(reference.getEntityClassReference()).remove(reference);
+			}
+			if (instances != null) {
+				instances.remove(reference);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param reference
+	 * @return stored version of specified reference.
+	 */
+	private long version(final Reference reference) {
+		final Long version = versions.get(reference);
+		return version != null ? version : Sequence.forInitialSequence();
+	}
+
+	/**
+	 * @param entityClassReference
+	 * @return reference set of specified class reference.
+	 */
+	private Set<Reference> catalog(final Reference entityClassReference) {
+		Set<Reference> references = catalog.get(entityClassReference);
+		if (references == null) {
+			references = new ConcurrentSkipListSet<Reference>();
+			final Set<Reference> previous = catalog.putIfAbsent(entityClassReference, references);
+			if (previous != null) {
+				references = previous;
+			}
+		}
+		return references;
+	}
+
+	private <T> T read(final Class<T> expectedType, final byte[] payload) {
+		return entityMapper.readValue(new InputStreamReader(new ByteArrayInputStream(payload), Charsets.UTF_8), expectedType);
+	}
+
+	/**
+	 * Shallow copy of specified entity.
+	 * 
+	 * @param expectedType
+	 * @param entity
+	 * @return a copy or null if entity cannot be copied.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> T copy(final Class<T> expectedType, final Object entity) {
+		if (entity instanceof MetaEntity) {
+			// immutable
+			return (T) entity;
+		}
+		if (Proxy.isProxyClass(entity.getClass())) {
+			final EntityProxy entityProxy = (EntityProxy) Proxy.getInvocationHandler(entity);
+			final EntityDynamic copy = copy(entityProxy.getEntity());
+			if (copy == null) {
+				return null;
+			}
+			return (T) Proxy.newProxyInstance(entity.getClass().getClassLoader(), entity.getClass().getInterfaces(), new EntityProxy(entityProxy.getInterfaceName(), copy));
+		}
+		if (entity instanceof Entity) {
+			return (T) copy((Entity) entity);
+		}
+		return null;
+	}
+
+	private static EntityDynamic copy(final Entity entity) {
+		if (entity.getClass() != EntityDynamic.class) {
+			return null;
+		}
+		final Map<String, Object> attributes = Maps.newLinkedHashMap();
+		for (final String name : entity.attributeNames()) {
+			attributes.put(name, entity.attribute(name));
+		}
+		final EntityDynamic copy = new EntityDynamic(entity.identity(), attributes, entity.metaEntityContext());
+		copy.version(((EntityDynamic) entity).version());
+		return copy;
+	}
+
+	/**
+	 * <code>Instance</code> keep a deserialized entity with the payload it was
+	 * read from.
+	 */
+	private static final class Instance {
+		private final byte[] payload;
+		private final Object entity;
+
+		public Instance(final byte[] payload, final Object entity) {
+			super();
+			this.payload = payload;
+			this.entity = entity;
+		}
+	}
+}
@@ -24,12 +24,14 @@ import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.util.Map;
-import java.util.Set;
+import java.util.SortedSet;
+
+import org.intelligentsia.dowsers.core.Sequence;
 
 import com.google.common.base.Preconditions;
-import com.google.common.base.Predicate;
-import com.google.common.collect.Collections2;
+import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.common.io.Closeables;
 import com.intelligentsia.dowsers.entity.reference.Reference;
 import com.intelligentsia.dowsers.entity.reference.References;
@@ -38,16 +40,30 @@ import com.intelligentsia.dowsers.entity.store.AbstractEntityStore;
 import com.intelligentsia.dowsers.entity.store.ConcurrencyException;
 import com.intelligentsia.dowsers.entity.store.EntityNotFoundException;
 import com.intelligentsia.dowsers.entity.store.EntityStore;
+import com.intelligentsia.dowsers.entity.store.VersionedEntityStore;
+import com.intelligentsia.dowsers.entity.store.Versions;
 
 /**
  * InMemoryEntityStore implements a {@link EntityStore} in memory (only for
  * testing purpose no ?).
  * 
+ * A sorted catalog of references is maintained per entity class, so
+ * {@link #find(Class)} did not iterate over all stored entities. Stored
+ * versions are kept aside, see {@link Versions}.
+ * 
  * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
  */
-public class InMemoryEntityStore extends AbstractEntityStore implements EntityStore {
+public class InMemoryEntityStore extends AbstractEntityStore implements VersionedEntityStore {
 
 	private final Map<Reference, String> entities = Maps.newHashMap();
+	/**
+	 * Stored version per reference.
+	 */
+	private final Map<Reference, Long> versions = Maps.newHashMap();
+	/**
+	 * Sorted references per entity class reference.
+	 */
+	private final Map<Reference, SortedSet<Reference>> catalog = Maps.newHashMap();
 	/**
 	 * {@link EntityMapper} instance.
 	 */
@@ -63,21 +79,11 @@ public class InMemoryEntityStore extends AbstractEntityStore implements EntitySt
 
 	@Override
 	public Iterable<Reference> find(final Class<?> expectedType) throws NullPointerException {
-		final Reference reference = Reference.newReferenceOnEntityClass(expectedType);
-		final Set<Reference> references = entities.keySet();
-
-		Collections2.filter(references, new Predicate<Reference>() {
-
-			@Override
-			public boolean apply(final Reference input) {
-				if (input != null) {
-					return reference.equals(input.getEntityClassReference());
-				}
-				return false;
-			}
-
-		});
-		return references;
+		final SortedSet<Reference> references = catalog.get(Reference.newReferenceOnEntityClass(expectedType));
+		if (references == null) {
+			return ImmutableSortedSet.of();
+		}
+		return ImmutableSortedSet.copyOfSorted(references);
 	}
 
 	@Override
@@ -99,11 +105,39 @@ public class InMemoryEntityStore extends AbstractEntityStore implements EntitySt
 
 	@Override
 	public <T> void store(final T entity) throws NullPointerException, ConcurrencyException, IllegalArgumentException {
+		store(entity, false);
+	}
+
+	@Override
+	public <T> void restore(final T entity) throws NullPointerException, IllegalArgumentException {
+		store(entity, true);
+	}
+
+	private <T> void store(final T entity, final boolean keep) throws NullPointerException, ConcurrencyException, IllegalArgumentException {
+		final Reference reference = References.identify(entity);
+		final long expected = Versions.version(entity);
+		final Long current = versions.get(reference);
+		final long version = Versions.next(reference, expected, current != null ? current : Sequence.forInitialSequence(), keep);
 		Writer writer = null;
 		try {
 			writer = new StringWriter();
-			entityMapper.writeValue(writer, entity);
-			entities.put(References.identify(entity), writer.toString());
+			Versions.version(entity, version);
+			try {
+				entityMapper.writeValue(writer, entity);
+			} catch (final RuntimeException e) {
+				Versions.version(entity, expected);
+				throw e;
+			}
+			versions.put(reference, version);
+			if (entities.put(reference, writer.toString()) == null) {
+				final Reference entityClassReference = reference.getEntityClassReference();
+				SortedSet<Reference> references = catalog.get(entityClassReference);
+				if (references == null) {
+					references = Sets.newTreeSet();
+					catalog.put(entityClassReference, references);
+				}
+				references.add(reference);
+			}
 		} finally {
 			if (writer != null) {
 				Closeables.closeQuietly(writer);
@@ -113,12 +147,19 @@ public class InMemoryEntityStore extends AbstractEntityStore implements EntitySt
 
 	@Override
 	public <T> void remove(final T entity) throws NullPointerException, IllegalArgumentException {
-		entities.remove(References.identify(entity));
+		remove(References.identify(entity));
 	}
 
 	@Override
 	public void remove(final Reference reference) throws NullPointerException, IllegalArgumentException {
-		entities.remove(reference);
+		versions.remove(reference);
+		if (entities.remove(reference) != null) {
+			final SortedSet<Reference> references = catalog.get(reference.getEntityClassReference());
+			references.remove(reference);
+			if (references.isEmpty()) {
+				catalog.remove(reference.getEntityClassReference());
+			}
+		}
 	}
 
 }
@@ -0,0 +1,218 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store.snapshot;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.GZIPInputStream;
+
+import org.intelligentsia.dowsers.core.DowsersException;
+import org.intelligentsia.dowsers.core.reflection.ClassInformation;
+import org.intelligentsia.keystone.kernel.api.StringUtils;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.intelligentsia.dowsers.entity.reference.Reference;
+import com.intelligentsia.dowsers.entity.serializer.EntityMapper;
+
+/**
+ * <code>SnapshotReader</code> read records of an archive written by
+ * {@link SnapshotWriter}, one at a time.
+ * 
+ * <p>
+ * Record and archive checksums are verified while reading: a corrupted or
+ * truncated archive raise a {@link DowsersException}.
+ * </p>
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
+ */
+public class SnapshotReader implements Closeable {
+
+	private final CheckedInputStream checked;
+	private final DataInputStream input;
+	private final byte kind;
+	private final long timestamp;
+	private long count = 0;
+	private boolean finished = false;
+
+	/**
+	 * Build a new instance of <code>SnapshotReader</code>, and read archive
+	 * header.
+	 * 
+	 * @param inputStream
+	 *            source stream
+	 * @throws NullPointerException
+	 *             if inputStream is null
+	 * @throws DowsersException
+	 *             if stream is not a snapshot archive
+	 */
+	public SnapshotReader(final InputStream inputStream) throws NullPointerException, DowsersException {
+		super();
+		try {
+			checked = new CheckedInputStream(new GZIPInputStream(Preconditions.checkNotNull(inputStream), 64 * 1024), new CRC32());
+			input = new DataInputStream(checked);
+			if (input.readInt() != SnapshotWriter.MAGIC) {
+				throw new DowsersException("not a snapshot archive");
+			}
+			final short format = input.readShort();
+			if (format != SnapshotWriter.FORMAT) {
+				throw new DowsersException(StringUtils.format("unsupported snapshot format '%s'", format));
+			}
+			kind = input.readByte();
+			timestamp = input.readLong();
+		} catch (final IOException e) {
+			throw new DowsersException(e);
+		}
+	}
+
+	/**
+	 * @return {@link SnapshotWriter#FULL} or {@link SnapshotWriter#INCREMENTAL}.
+	 */
+	public byte kind() {
+		return kind;
+	}
+
+	/**
+	 * @return creation time of archive.
+	 */
+	public long timestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * Read next record.
+	 * 
+	 * @return next {@link Record} or null if archive is fully read.
+	 * @throws DowsersException
+	 *             if archive is corrupted or truncated
+	 */
+	public Record next() throws DowsersException {
+		if (finished) {
+			return null;
+		}
+		try {
+			final byte type = input.readByte();
+			if (type == SnapshotWriter.END) {
+				final long expectedCount = input.readLong();
+				final int expectedChecksum = (int) checked.getChecksum().getValue();
+				if ((input.readInt() != expectedChecksum) || (expectedCount != count)) {
+					throw new DowsersException("corrupted snapshot archive: trailer mismatch");
+				}
+				finished = true;
+				return null;
+			}
+			if ((type != SnapshotWriter.ENTITY) && (type != SnapshotWriter.TOMBSTONE)) {
+				throw new DowsersException(StringUtils.format("corrupted snapshot archive: unknown record type '%s'", type));
+			}
+			final String urn = input.readUTF();
+			final long version = input.readLong();
+			final int length = input.readInt();
+			if (length < 0) {
+				throw new DowsersException("corrupted snapshot archive: negative payload length");
+			}
+			final byte[] payload = new byte[length];
+			input.readFully(payload);
+			final CRC32 crc = new CRC32();
+			crc.update(urn.getBytes(Charsets.UTF_8));
+			crc.update(payload);
+			if (input.readInt() != (int) crc.getValue()) {
+				throw new DowsersException(StringUtils.format("corrupted snapshot archive: checksum mismatch on '%s'", urn));
+			}
+			count++;
+			return new Record(type == SnapshotWriter.TOMBSTONE, Reference.parseString(urn), version, payload);
+		} catch (final EOFException e) {
+			throw new DowsersException("truncated snapshot archive", e);
+		} catch (final IOException e) {
+			throw new DowsersException(e);
+		}
+	}
+
+	/**
+	 * @return number of records read.
+	 */
+	public long count() {
+		return count;
+	}
+
+	@Override
+	public void close() throws IOException {
+		input.close();
+	}
+
+	/**
+	 * <code>Record</code> of an archive: an entity or a tombstone.
+	 * 
+	 * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
+	 */
+	public static final class Record {
+		private final boolean tombstone;
+		private final Reference reference;
+		private final long version;
+		private final byte[] payload;
+
+		Record(final boolean tombstone, final Reference reference, final long version, final byte[] payload) {
+			super();
+			this.tombstone = tombstone;
+			this.reference = reference;
+			this.version = version;
+			this.payload = payload;
+		}
+
+		/**
+		 * @return true if this record is a removed entity.
+		 */
+		public boolean isTombstone() {
+			return tombstone;
+		}
+
+		public Reference getReference() {
+			return reference;
+		}
+
+		/**
+		 * @return entity version at export time (0 for a tombstone).
+		 */
+		public long getVersion() {
+			return version;
+		}
+
+		/**
+		 * Deserialize entity using type named by its reference.
+		 * 
+		 * @param entityMapper
+		 * @return entity instance
+		 * @throws IllegalStateException
+		 *             if this record is a tombstone
+		 */
+		@SuppressWarnings("unchecked")
+		public <T> T entity(final EntityMapper entityMapper) throws IllegalStateException {
+			Preconditions.checkState(!tombstone, "tombstone has no entity");
+			final Class<T> expectedType = (Class<T>) ClassInformation.parse(reference.getEntityClassName()).getType();
+			return entityMapper.readValue(new InputStreamReader(new ByteArrayInputStream(payload), Charsets.UTF_8), expectedType);
+		}
+	}
+}
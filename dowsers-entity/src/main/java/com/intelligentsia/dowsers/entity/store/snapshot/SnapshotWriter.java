@@ -0,0 +1,211 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store.snapshot;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.intelligentsia.dowsers.core.DowsersException;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.io.Closeables;
+import com.intelligentsia.dowsers.entity.reference.Reference;
+import com.intelligentsia.dowsers.entity.reference.References;
+import com.intelligentsia.dowsers.entity.serializer.EntityMapper;
+import com.intelligentsia.dowsers.entity.store.Versions;
+
+/**
+ * <code>SnapshotWriter</code> write a snapshot archive: a gzip stream of
+ * entity and tombstone records, written incrementally with constant memory.
+ * 
+ * <p>
+ * Archive layout (before compression):
+ * </p>
+ * <code>
+ * [int magic][short format][byte kind][long timestamp]
+ * <br/>
+ * ([byte ENTITY|TOMBSTONE][utf reference][long version][int length][payload][int crc32])*
+ * <br/>
+ * [byte END][long count][int crc32 of all previous bytes]
+ * </code>
+ * <p>
+ * Each record carries a checksum of its reference and payload, trailer carries
+ * number of records and a checksum of whole archive, so a truncated or
+ * corrupted archive is detected by {@link SnapshotReader}.
+ * </p>
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
+ */
+public class SnapshotWriter implements Closeable {
+
+	static final int MAGIC = 0x44534E50;
+	static final short FORMAT = 1;
+
+	/**
+	 * Kind of a full snapshot.
+	 */
+	public static final byte FULL = 0;
+	/**
+	 * Kind of an incremental snapshot.
+	 */
+	public static final byte INCREMENTAL = 1;
+
+	static final byte END = 0;
+	static final byte ENTITY = 1;
+	static final byte TOMBSTONE = 2;
+
+	private final EntityMapper entityMapper;
+	private final GZIPOutputStream gzip;
+	private final CheckedOutputStream checked;
+	private final DataOutputStream output;
+	private long count = 0;
+	private boolean closed = false;
+
+	/**
+	 * Build a new instance of <code>SnapshotWriter</code>, and write archive
+	 * header.
+	 * 
+	 * @param outputStream
+	 *            target stream, not closed by this writer
+	 * @param entityMapper
+	 *            {@link EntityMapper} used to serialize entities
+	 * @param kind
+	 *            {@link #FULL} or {@link #INCREMENTAL}
+	 * @throws NullPointerException
+	 *             if outputStream or entityMapper is null
+	 * @throws DowsersException
+	 *             if header cannot be written
+	 */
+	public SnapshotWriter(final OutputStream outputStream, final EntityMapper entityMapper, final byte kind) throws NullPointerException, DowsersException {
+		super();
+		this.entityMapper = Preconditions.checkNotNull(entityMapper);
+		Preconditions.checkArgument((kind == FULL) || (kind == INCREMENTAL));
+		try {
+			gzip = new GZIPOutputStream(new NonClosingOutputStream(Preconditions.checkNotNull(outputStream)), 64 * 1024);
+			checked = new CheckedOutputStream(gzip, new CRC32());
+			output = new DataOutputStream(checked);
+			output.writeInt(MAGIC);
+			output.writeShort(FORMAT);
+			output.writeByte(kind);
+			output.writeLong(System.currentTimeMillis());
+		} catch (final IOException e) {
+			throw new DowsersException(e);
+		}
+	}
+
+	/**
+	 * Write an entity record.
+	 * 
+	 * @param entity
+	 * @throws DowsersException
+	 */
+	public void write(final Object entity) throws DowsersException {
+		final StringWriter writer = new StringWriter();
+		entityMapper.writeValue(writer, entity);
+		write(ENTITY, References.identify(entity), Versions.version(entity), writer.toString().getBytes(Charsets.UTF_8));
+	}
+
+	/**
+	 * Write a tombstone record of a removed entity.
+	 * 
+	 * @param reference
+	 * @throws DowsersException
+	 */
+	public void remove(final Reference reference) throws DowsersException {
+		write(TOMBSTONE, Preconditions.checkNotNull(reference), 0, new byte[0]);
+	}
+
+	/**
+	 * @return number of records written.
+	 */
+	public long count() {
+		return count;
+	}
+
+	/**
+	 * Write trailer and close compression, releasing its native resources even
+	 * on failure. Underlying stream is flushed, not closed.
+	 */
+	@Override
+	public void close() throws DowsersException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			output.writeByte(END);
+			output.writeLong(count);
+			output.flush();
+			output.writeInt((int) checked.getChecksum().getValue());
+			output.flush();
+			gzip.close();
+		} catch (final IOException e) {
+			throw new DowsersException(e);
+		} finally {
+			Closeables.closeQuietly(gzip);
+		}
+	}
+
+	private void write(final byte type, final Reference reference, final long version, final byte[] payload) throws DowsersException {
+		Preconditions.checkState(!closed, "closed");
+		final String urn = reference.toString();
+		final CRC32 crc = new CRC32();
+		crc.update(urn.getBytes(Charsets.UTF_8));
+		crc.update(payload);
+		try {
+			output.writeByte(type);
+			output.writeUTF(urn);
+			output.writeLong(version);
+			output.writeInt(payload.length);
+			output.write(payload);
+			output.writeInt((int) crc.getValue());
+		} catch (final IOException e) {
+			throw new DowsersException(e);
+		}
+		count++;
+	}
+
+	/**
+	 * Keep caller stream open when compression is finished.
+	 */
+	private static final class NonClosingOutputStream extends java.io.FilterOutputStream {
+
+		NonClosingOutputStream(final OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException {
+			out.write(b, off, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+	}
+}
@@ -0,0 +1,291 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store.snapshot;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+import org.intelligentsia.dowsers.core.BoundedCompletionService;
+import org.intelligentsia.dowsers.core.DowsersException;
+import org.intelligentsia.dowsers.core.Handler;
+import org.intelligentsia.dowsers.core.Sequence;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterables;
+import com.intelligentsia.dowsers.entity.reference.Reference;
+import com.intelligentsia.dowsers.entity.serializer.EntityMapper;
+import com.intelligentsia.dowsers.entity.store.EntityStore;
+import com.intelligentsia.dowsers.entity.store.Versions;
+import com.intelligentsia.dowsers.entity.store.snapshot.SnapshotReader.Record;
+
+/**
+ * <code>Snapshots</code> export and restore content of an {@link EntityStore}
+ * with snapshot archives (see {@link SnapshotWriter}).
+ * 
+ * <p>
+ * An {@link EntityStore} has no global write sequence: an incremental snapshot
+ * is computed against versions of a previous snapshot chain (see
+ * {@link #versions(InputStream...)}). It holds entities whose version changed
+ * and tombstones of removed entities.
+ * </p>
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
+ */
+public enum Snapshots {
+	;
+
+	/**
+	 * Default number of entities read or stored per batch.
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 100;
+
+	/**
+	 * Export all entities of specified types in a full snapshot. Entities are
+	 * read and written by batch, memory usage does not depend on store size.
+	 * 
+	 * @param entityStore
+	 *            source store
+	 * @param entityMapper
+	 * @param outputStream
+	 *            target stream, not closed
+	 * @param types
+	 *            entity types to export
+	 * @return number of exported entities
+	 * @throws NullPointerException
+	 *             if a parameter is null
+	 * @throws DowsersException
+	 *             if archive cannot be written
+	 */
+	public static long export(final EntityStore entityStore, final EntityMapper entityMapper, final OutputStream outputStream, final Class<?>... types) throws NullPointerException, DowsersException {
+		Preconditions.checkNotNull(entityStore);
+		final SnapshotWriter writer = new SnapshotWriter(outputStream, entityMapper, SnapshotWriter.FULL);
+		for (final Class<?> type : types) {
+			for (final List<Reference> batch : Iterables.partition(entityStore.find(type), DEFAULT_BATCH_SIZE)) {
+				for (final Object entity : entityStore.findAll(type, batch).values()) {
+					writer.write(entity);
+				}
+			}
+		}
+		writer.close();
+		return writer.count();
+	}
+
+	/**
+	 * Export entities of specified types which are not in specified base, or
+	 * with a different version, and tombstones of base entities which are no
+	 * more in store.
+	 * 
+	 * @param entityStore
+	 *            source store
+	 * @param entityMapper
+	 * @param base
+	 *            versions of base snapshot chain, see
+	 *            {@link #versions(InputStream...)}
+	 * @param outputStream
+	 *            target stream, not closed
+	 * @param types
+	 *            entity types to export
+	 * @return number of exported records
+	 * @throws NullPointerException
+	 *             if a parameter is null
+	 * @throws DowsersException
+	 *             if archive cannot be written
+	 */
+	public static long export(final EntityStore entityStore, final EntityMapper entityMapper, final Map<Reference, Long> base, final OutputStream outputStream, final Class<?>... types) throws NullPointerException, DowsersException {
+		Preconditions.checkNotNull(entityStore);
+		Preconditions.checkNotNull(base);
+		final SnapshotWriter writer = new SnapshotWriter(outputStream, entityMapper, SnapshotWriter.INCREMENTAL);
+		final Set<Reference> seen = new HashSet<Reference>(base.size());
+		for (final Class<?> type : types) {
+			for (final List<Reference> batch : Iterables.partition(entityStore.find(type), DEFAULT_BATCH_SIZE)) {
+				for (final Map.Entry<Reference, ?> entry : entityStore.findAll(type, batch).entrySet()) {
+					final Long version = base.get(entry.getKey());
+					if (version != null) {
+						seen.add(entry.getKey());
+					}
+					if ((version == null) || (version.longValue() != Versions.version(entry.getValue()))) {
+						writer.write(entry.getValue());
+					}
+				}
+			}
+		}
+		final Set<String> exported = new HashSet<String>();
+		for (final Class<?> type : types) {
+			exported.add(type.getName());
+		}
+		for (final Reference reference : base.keySet()) {
+			if (!seen.contains(reference) && exported.contains(reference.getEntityClassName())) {
+				writer.remove(reference);
+			}
+		}
+		writer.close();
+		return writer.count();
+	}
+
+	/**
+	 * Read versions of entities from a snapshot chain: a full snapshot followed
+	 * by its incremental snapshots, in order.
+	 * 
+	 * @param inputStreams
+	 *            archives, closed after reading
+	 * @return a {@link Map} of {@link Reference} and version.
+	 * @throws DowsersException
+	 *             if an archive is corrupted
+	 */
+	public static Map<Reference, Long> versions(final InputStream... inputStreams) throws DowsersException {
+		final Map<Reference, Long> versions = new HashMap<Reference, Long>();
+		for (final InputStream inputStream : inputStreams) {
+			final SnapshotReader reader = new SnapshotReader(inputStream);
+			try {
+				Record record = null;
+				while ((record = reader.next()) != null) {
+					if (record.isTombstone()) {
+						versions.remove(record.getReference());
+					} else {
+						versions.put(record.getReference(), record.getVersion());
+					}
+				}
+			} finally {
+				close(reader);
+			}
+		}
+		return versions;
+	}
+
+	/**
+	 * Restore a snapshot in specified store. Archive is decoded sequentially,
+	 * batches are stored in parallel with specified {@link ExecutorService}.
+	 * Number of pending batches is bounded, so memory usage does not depend on
+	 * archive size.
+	 * 
+	 * <p>
+	 * Entities are stored with {@link Sequence#LATEST} version: they overwrite
+	 * existing entities of target store, which assign its own versions.
+	 * Restoring a chain means restoring each archive in order.
+	 * </p>
+	 * 
+	 * @param inputStream
+	 *            archive, closed after reading
+	 * @param entityStore
+	 *            target store
+	 * @param entityMapper
+	 * @param executorService
+	 *            executor of store batches
+	 * @param batchSize
+	 *            number of records per batch
+	 * @return number of restored records
+	 * @throws NullPointerException
+	 *             if a parameter is null
+	 * @throws IllegalArgumentException
+	 *             if batchSize is not positive
+	 * @throws DowsersException
+	 *             if archive is corrupted, or a batch failed
+	 */
+	public static long restore(final InputStream inputStream, final EntityStore entityStore, final EntityMapper entityMapper, final ExecutorService executorService, final int batchSize) throws NullPointerException,
+			IllegalArgumentException, DowsersException {
+		Preconditions.checkNotNull(entityStore);
+		Preconditions.checkNotNull(entityMapper);
+		Preconditions.checkArgument(batchSize > 0);
+		final long[] count = new long[1];
+		final BoundedCompletionService<Integer> completionService = new BoundedCompletionService<Integer>(Preconditions.checkNotNull(executorService), 2 * Runtime.getRuntime().availableProcessors(),
+				new Handler<Integer>() {
+					@Override
+					public void handle(final Integer restored) {
+						count[0] += restored;
+					}
+				});
+		final SnapshotReader reader = new SnapshotReader(inputStream);
+		try {
+			List<Record> batch = new ArrayList<Record>(batchSize);
+			Record record = null;
+			while ((record = reader.next()) != null) {
+				batch.add(record);
+				if (batch.size() == batchSize) {
+					completionService.submit(new Restore(batch, entityStore, entityMapper));
+					batch = new ArrayList<Record>(batchSize);
+				}
+			}
+			if (!batch.isEmpty()) {
+				completionService.submit(new Restore(batch, entityStore, entityMapper));
+			}
+			completionService.complete();
+		} finally {
+			// let submitted batches terminate before leaving
+			completionService.close();
+			close(reader);
+		}
+		return count[0];
+	}
+
+	private static void close(final SnapshotReader reader) {
+		try {
+			reader.close();
+		} catch (final IOException e) {
+			throw new DowsersException(e);
+		}
+	}
+
+	/**
+	 * Store a batch of records.
+	 */
+	private static final class Restore implements Callable<Integer> {
+		private final List<Record> records;
+		private final EntityStore entityStore;
+		private final EntityMapper entityMapper;
+
+		Restore(final List<Record> records, final EntityStore entityStore, final EntityMapper entityMapper) {
+			super();
+			this.records = records;
+			this.entityStore = entityStore;
+			this.entityMapper = entityMapper;
+		}
+
+		@Override
+		public Integer call() throws Exception {
+			final List<Object> entities = new ArrayList<Object>(records.size());
+			final List<Reference> removed = new ArrayList<Reference>();
+			for (final Record record : records) {
+				if (record.isTombstone()) {
+					removed.add(record.getReference());
+				} else {
+					final Object entity = record.entity(entityMapper);
+					Versions.version(entity, Sequence.LATEST.toLong());
+					entities.add(entity);
+				}
+			}
+			if (!entities.isEmpty()) {
+				entityStore.storeAll(entities);
+			}
+			if (!removed.isEmpty()) {
+				entityStore.removeAll(removed);
+			}
+			return records.size();
+		}
+	}
+}
@@ -0,0 +1,109 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.view;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.intelligentsia.dowsers.entity.store.change.ChangeLog;
+
+/**
+ * <code>CheckpointedViewStore</code> is a {@link ViewStore} whose content
+ * survives a restart, and which persists with it the position of last change
+ * processed. {@link ViewManagerControler} then replays only changes of a
+ * {@link ChangeLog} after this checkpoint, instead of rebuilding the view.
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com">Jerome Guibert</a>
+ */
+public interface CheckpointedViewStore extends ViewStore {
+
+	/**
+	 * @return last {@link Checkpoint} stored, or null if none.
+	 */
+	Checkpoint checkpoint();
+
+	/**
+	 * Store durably specified {@link Checkpoint}, once all previous updates are
+	 * durable.
+	 * 
+	 * @param checkpoint
+	 * @throws NullPointerException
+	 *             if checkpoint is null
+	 */
+	void checkpoint(Checkpoint checkpoint) throws NullPointerException;
+
+	/**
+	 * <code>Checkpoint</code>: signature of view definition and sequence of
+	 * last change processed.
+	 * 
+	 * @author <a href="mailto:jguibert@intelligents-ia.com">Jerome Guibert</a>
+	 */
+	public static final class Checkpoint {
+
+		private final String signature;
+
+		private final long sequence;
+
+		/**
+		 * Build a new instance of <code>Checkpoint</code>.
+		 * 
+		 * @param signature
+		 *            view signature (see {@link View#signature()})
+		 * @param sequence
+		 *            sequence of last processed change
+		 * @throws NullPointerException
+		 *             if signature is null
+		 */
+		public Checkpoint(final String signature, final long sequence) throws NullPointerException {
+			super();
+			this.signature = Preconditions.checkNotNull(signature);
+			this.sequence = sequence;
+		}
+
+		public String getSignature() {
+			return signature;
+		}
+
+		public long getSequence() {
+			return sequence;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(signature, sequence);
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if ((obj == null) || (getClass() != obj.getClass())) {
+				return false;
+			}
+			final Checkpoint other = (Checkpoint) obj;
+			return Objects.equal(signature, other.signature) && (sequence == other.sequence);
+		}
+
+		@Override
+		public String toString() {
+			return Objects.toStringHelper(getClass()).add("signature", signature).add("sequence", sequence).toString();
+		}
+	}
+}
@@ -0,0 +1,1130 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.view;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.intelligentsia.dowsers.entity.reference.Reference;
+import com.intelligentsia.dowsers.entity.view.processor.Item;
+
+/**
+ * ColumnarViewStore implements {@link ViewStore} with a column per item
+ * attribute, instead of a map per item.
+ * 
+ * <p>
+ * A column stores integral values (Long, Integer, Short, Byte) in a
+ * <code>long[]</code>, decimal values (Double, Float) in a
+ * <code>double[]</code>, and other values in a dictionary: an
+ * <code>int[]</code> of codes and a single instance of each distinct value.
+ * Column kind is chosen from first value, and a column falls back to a
+ * dictionary when an attribute receives values of different types.
+ * </p>
+ * 
+ * <p>
+ * Items are rows. A removed row is only marked as deleted, rows are compacted
+ * when more than half of them are deleted. Scans work on a {@link Selection}
+ * of rows: {@link #select()}, {@link #equal(String, Object)} and
+ * {@link #range(String, Object, boolean, Object, boolean)} build selections
+ * which could be combined with {@link Selection#and(Selection)},
+ * {@link Selection#or(Selection)} or {@link Selection#andNot(Selection)}, then
+ * {@link #statistics(String, Selection)}, {@link #countBy(String, Selection)}
+ * or {@link #items(Selection)} read them. Rows removed after a selection was
+ * built are skipped, rows added after are not selected. A compaction or a drop
+ * renumbers rows: a selection built before is stale and rejected with an
+ * {@link IllegalStateException}, and it must be built again.
+ * </p>
+ * 
+ * <p>
+ * Null values are not stored: an item read from this store has no entry for a
+ * null attribute. This store is thread safe.
+ * </p>
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
+ */
+public class ColumnarViewStore implements ViewStore, Iterable<Item> {
+
+	/**
+	 * Minimal number of rows before a compaction.
+	 */
+	private static final int COMPACT_THRESHOLD = 1024;
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * Columns per attribute name.
+	 */
+	private final Map<String, Column> columns = Maps.newLinkedHashMap();
+
+	/**
+	 * Row to identity of entity.
+	 */
+	private Reference[] references = new Reference[16];
+
+	/**
+	 * Identity of entity to rows.
+	 */
+	private final Map<Reference, int[]> index = Maps.newHashMap();
+
+	/**
+	 * Deleted rows.
+	 */
+	private final BitSet deleted = new BitSet();
+
+	/**
+	 * Number of allocated rows, including deleted.
+	 */
+	private int rows = 0;
+
+	/**
+	 * Incremented when rows are renumbered, guarded by lock.
+	 */
+	private long generation = 0;
+
+	/**
+	 * Build a new instance of ColumnarViewStore.
+	 */
+	public ColumnarViewStore() {
+		super();
+	}
+
+	@Override
+	public void update(final Reference reference, final Item item) {
+		if (item == null) {
+			remove(reference);
+		} else {
+			update(reference, ImmutableList.of(item));
+		}
+	}
+
+	@Override
+	public void update(final Reference reference, final List<Item> items) {
+		if (items == null) {
+			remove(reference);
+			return;
+		}
+		Preconditions.checkNotNull(reference);
+		lock.writeLock().lock();
+		try {
+			add(reference, items);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void replace(final Reference reference, final List<Item> items) {
+		Preconditions.checkNotNull(reference);
+		lock.writeLock().lock();
+		try {
+			delete(reference);
+			if ((items != null) && !items.isEmpty()) {
+				add(reference, items);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void drop() {
+		lock.writeLock().lock();
+		try {
+			columns.clear();
+			references = new Reference[16];
+			index.clear();
+			deleted.clear();
+			rows = 0;
+			generation++;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void remove(final Reference identity) {
+		lock.writeLock().lock();
+		try {
+			delete(identity);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return number of items.
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return rows - deleted.cardinality();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return attribute names of stored items.
+	 */
+	public Collection<String> attributeNames() {
+		lock.readLock().lock();
+		try {
+			return ImmutableList.copyOf(columns.keySet());
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public Iterator<Item> iterator() {
+		return items().iterator();
+	}
+
+	/**
+	 * @return all items.
+	 */
+	public Collection<Item> items() {
+		lock.readLock().lock();
+		try {
+			return items(live().rows);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return a selection of all rows.
+	 */
+	public Selection select() {
+		lock.readLock().lock();
+		try {
+			return live();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param attributeName
+	 * @param value
+	 * @return a selection of rows whose attribute is equal to specified value.
+	 * @throws NullPointerException
+	 *             if a parameter is null
+	 */
+	public Selection equal(final String attributeName, final Object value) throws NullPointerException {
+		Preconditions.checkNotNull(attributeName);
+		Preconditions.checkNotNull(value);
+		lock.readLock().lock();
+		try {
+			final Column column = columns.get(attributeName);
+			final BitSet selection = column != null ? column.equal(value, rows) : new BitSet();
+			selection.andNot(deleted);
+			return new Selection(this, generation, selection);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param attributeName
+	 * @param from
+	 *            lower bound, null for unbounded
+	 * @param fromInclusive
+	 * @param to
+	 *            upper bound, null for unbounded
+	 * @param toInclusive
+	 * @return a selection of rows whose attribute is in specified range.
+	 * @throws NullPointerException
+	 *             if attributeName is null
+	 */
+	public Selection range(final String attributeName, final Object from, final boolean fromInclusive, final Object to, final boolean toInclusive) throws NullPointerException {
+		Preconditions.checkNotNull(attributeName);
+		lock.readLock().lock();
+		try {
+			final Column column = columns.get(attributeName);
+			final BitSet selection = column != null ? column.range(from, fromInclusive, to, toInclusive, rows) : new BitSet();
+			selection.andNot(deleted);
+			return new Selection(this, generation, selection);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param attributeName
+	 *            name of a numeric attribute
+	 * @param selection
+	 * @return {@link Statistics} of not null values of selected rows.
+	 * @throws NullPointerException
+	 *             if a parameter is null
+	 * @throws IllegalArgumentException
+	 *             if attribute is not numeric, or if selection was built by
+	 *             another store
+	 * @throws IllegalStateException
+	 *             if selection is stale
+	 */
+	public Statistics statistics(final String attributeName, final Selection selection) throws NullPointerException, IllegalArgumentException, IllegalStateException {
+		Preconditions.checkNotNull(attributeName);
+		Preconditions.checkNotNull(selection);
+		lock.readLock().lock();
+		try {
+			final Column column = columns.get(attributeName);
+			return column != null ? column.statistics(selected(selection), attributeName) : Statistics.EMPTY;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param attributeName
+	 * @param selection
+	 * @return number of selected rows per not null value of attribute.
+	 * @throws NullPointerException
+	 *             if a parameter is null
+	 * @throws IllegalArgumentException
+	 *             if selection was built by another store
+	 * @throws IllegalStateException
+	 *             if selection is stale
+	 */
+	public Map<Object, Integer> countBy(final String attributeName, final Selection selection) throws NullPointerException, IllegalArgumentException, IllegalStateException {
+		Preconditions.checkNotNull(attributeName);
+		Preconditions.checkNotNull(selection);
+		lock.readLock().lock();
+		try {
+			final Column column = columns.get(attributeName);
+			return column != null ? column.countBy(selected(selection)) : Maps.<Object, Integer> newHashMap();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param selection
+	 * @return items of selected rows.
+	 * @throws NullPointerException
+	 *             if selection is null
+	 * @throws IllegalArgumentException
+	 *             if selection was built by another store
+	 * @throws IllegalStateException
+	 *             if selection is stale
+	 */
+	public List<Item> items(final Selection selection) throws NullPointerException, IllegalArgumentException, IllegalStateException {
+		Preconditions.checkNotNull(selection);
+		lock.readLock().lock();
+		try {
+			return items(selected(selection));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private List<Item> items(final BitSet selection) {
+		final List<Item> items = Lists.newArrayListWithCapacity(selection.cardinality());
+		for (int row = selection.nextSetBit(0); row >= 0; row = selection.nextSetBit(row + 1)) {
+			items.add(item(row));
+		}
+		return items;
+	}
+
+	/**
+	 * @return live rows of specified selection.
+	 * @throws IllegalArgumentException
+	 *             if selection was built by another store
+	 * @throws IllegalStateException
+	 *             if selection is stale
+	 */
+	private BitSet selected(final Selection selection) throws IllegalArgumentException, IllegalStateException {
+		Preconditions.checkArgument(selection.store == this, "selection of another store");
+		Preconditions.checkState(selection.generation == generation, "stale selection, rows were renumbered since");
+		final BitSet result = (BitSet) selection.rows.clone();
+		result.andNot(deleted);
+		if (result.length() > rows) {
+			result.clear(rows, result.length());
+		}
+		return result;
+	}
+
+	private Selection live() {
+		final BitSet selection = new BitSet(rows);
+		selection.set(0, rows);
+		selection.andNot(deleted);
+		return new Selection(this, generation, selection);
+	}
+
+	private Item item(final int row) {
+		final Item item = new Item();
+		for (final Map.Entry<String, Column> entry : columns.entrySet()) {
+			final Object value = entry.getValue().get(row);
+			if (value != null) {
+				item.put(entry.getKey(), value);
+			}
+		}
+		return item;
+	}
+
+	/**
+	 * Append rows of specified items after rows of reference.
+	 */
+	private void add(final Reference reference, final List<Item> items) {
+		final int[] previous = index.get(reference);
+		final int offset = previous != null ? previous.length : 0;
+		final int[] entries = previous != null ? Arrays.copyOf(previous, offset + items.size()) : new int[items.size()];
+		for (int i = 0; i < items.size(); i++) {
+			entries[offset + i] = append(reference, items.get(i));
+		}
+		index.put(reference, entries);
+	}
+
+	/**
+	 * Mark rows of reference as deleted, and compact if more than half of rows
+	 * are deleted.
+	 */
+	private void delete(final Reference reference) {
+		final int[] entries = index.remove(reference);
+		if (entries != null) {
+			for (final int row : entries) {
+				deleted.set(row);
+				references[row] = null;
+			}
+			if ((rows >= COMPACT_THRESHOLD) && ((deleted.cardinality() * 2) > rows)) {
+				compact();
+			}
+		}
+	}
+
+	/**
+	 * Append a row.
+	 * 
+	 * @return row number
+	 */
+	private int append(final Reference reference, final Item item) {
+		final int row = rows++;
+		if (row == references.length) {
+			references = Arrays.copyOf(references, row * 2);
+		}
+		references[row] = reference;
+		for (final String attributeName : item.keySet()) {
+			final Object value = item.get(attributeName);
+			if ((value != null) && !columns.containsKey(attributeName)) {
+				columns.put(attributeName, Column.create(value, row));
+			}
+		}
+		for (final Map.Entry<String, Column> entry : columns.entrySet()) {
+			final Object value = item.get(entry.getKey());
+			Column column = entry.getValue();
+			if (!column.accept(value)) {
+				column = new DictionaryColumn(column, row);
+				entry.setValue(column);
+			}
+			column.set(row, value);
+		}
+		return row;
+	}
+
+	/**
+	 * Rewrite live rows at beginning of columns, and re-encode dictionaries.
+	 */
+	private void compact() {
+		final int[] moved = new int[rows];
+		final Reference[] compacted = new Reference[Math.max(16, rows - deleted.cardinality())];
+		int count = 0;
+		for (int row = 0; row < rows; row++) {
+			if (!deleted.get(row)) {
+				moved[row] = count;
+				compacted[count++] = references[row];
+			}
+		}
+		for (final Map.Entry<String, Column> entry : columns.entrySet()) {
+			final Column source = entry.getValue();
+			Column target = null;
+			for (int row = 0; row < rows; row++) {
+				if (!deleted.get(row)) {
+					final Object value = source.get(row);
+					if (target == null) {
+						target = value != null ? Column.create(value, moved[row]) : null;
+					} else if (!target.accept(value)) {
+						target = new DictionaryColumn(target, moved[row]);
+					}
+					if (target != null) {
+						target.set(moved[row], value);
+					}
+				}
+			}
+			entry.setValue(target != null ? target : new DictionaryColumn());
+		}
+		// drop columns without values
+		final Iterator<Column> iterator = columns.values().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().isEmpty()) {
+				iterator.remove();
+			}
+		}
+		for (final Map.Entry<Reference, int[]> entry : index.entrySet()) {
+			final int[] entries = entry.getValue();
+			for (int i = 0; i < entries.length; i++) {
+				entries[i] = moved[entries[i]];
+			}
+		}
+		references = compacted;
+		rows = count;
+		deleted.clear();
+		generation++;
+	}
+
+	/**
+	 * <code>Selection</code> is an immutable set of rows of a
+	 * {@link ColumnarViewStore}, stamped with generation of rows it was built
+	 * on.
+	 * 
+	 * @author <a href="mailto:jguibert@intelligents-ia.com">Jerome Guibert</a>
+	 */
+	public static final class Selection {
+
+		private final ColumnarViewStore store;
+
+		private final long generation;
+
+		private final BitSet rows;
+
+		Selection(final ColumnarViewStore store, final long generation, final BitSet rows) {
+			super();
+			this.store = store;
+			this.generation = generation;
+			this.rows = rows;
+		}
+
+		/**
+		 * @return number of selected rows, including rows removed since.
+		 */
+		public int cardinality() {
+			return rows.cardinality();
+		}
+
+		/**
+		 * @return true if no row is selected.
+		 */
+		public boolean isEmpty() {
+			return rows.isEmpty();
+		}
+
+		/**
+		 * @return rows selected by this selection and other one.
+		 * @throws IllegalArgumentException
+		 *             if selections were not built on same rows
+		 */
+		public Selection and(final Selection other) throws IllegalArgumentException {
+			final BitSet result = copy(other);
+			result.and(other.rows);
+			return new Selection(store, generation, result);
+		}
+
+		/**
+		 * @return rows selected by this selection or other one.
+		 * @throws IllegalArgumentException
+		 *             if selections were not built on same rows
+		 */
+		public Selection or(final Selection other) throws IllegalArgumentException {
+			final BitSet result = copy(other);
+			result.or(other.rows);
+			return new Selection(store, generation, result);
+		}
+
+		/**
+		 * @return rows selected by this selection and not by other one.
+		 * @throws IllegalArgumentException
+		 *             if selections were not built on same rows
+		 */
+		public Selection andNot(final Selection other) throws IllegalArgumentException {
+			final BitSet result = copy(other);
+			result.andNot(other.rows);
+			return new Selection(store, generation, result);
+		}
+
+		private BitSet copy(final Selection other) throws IllegalArgumentException {
+			Preconditions.checkArgument((other.store == store) && (other.generation == generation), "selections were not built on same rows");
+			return (BitSet) rows.clone();
+		}
+	}
+
+	/**
+	 * <code>Statistics</code> of numeric values.
+	 * 
+	 * @author <a href="mailto:jguibert@intelligents-ia.com">Jerome Guibert</a>
+	 */
+	public static final class Statistics {
+
+		static final Statistics EMPTY = new Statistics(0, 0, Double.NaN, Double.NaN);
+
+		private final long count;
+
+		private final double sum;
+
+		private final double min;
+
+		private final double max;
+
+		Statistics(final long count, final double sum, final double min, final double max) {
+			super();
+			this.count = count;
+			this.sum = sum;
+			this.min = min;
+			this.max = max;
+		}
+
+		/**
+		 * @return number of not null values.
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		public double getSum() {
+			return sum;
+		}
+
+		/**
+		 * @return minimum, NaN if count is 0.
+		 */
+		public double getMin() {
+			return min;
+		}
+
+		/**
+		 * @return maximum, NaN if count is 0.
+		 */
+		public double getMax() {
+			return max;
+		}
+
+		/**
+		 * @return mean, NaN if count is 0.
+		 */
+		public double getMean() {
+			return count > 0 ? sum / count : Double.NaN;
+		}
+
+		@Override
+		public String toString() {
+			return Objects.toStringHelper(getClass()).add("count", count).add("sum", sum).add("min", min).add("max", max).toString();
+		}
+	}
+
+	/**
+	 * <code>Column</code> of values of an attribute, one per row.
+	 * 
+	 * @author <a href="mailto:jguibert@intelligents-ia.com">Jerome Guibert</a>
+	 */
+	private abstract static class Column {
+
+		/**
+		 * @param value
+		 *            first not null value
+		 * @param rows
+		 *            number of previous rows, set to null
+		 * @return a new column for specified value.
+		 */
+		static Column create(final Object value, final int rows) {
+			final Class<?> type = value.getClass();
+			if ((type == Long.class) || (type == Integer.class) || (type == Short.class) || (type == Byte.class)) {
+				return new LongColumn(type, rows);
+			}
+			if ((type == Double.class) || (type == Float.class)) {
+				return new DoubleColumn(type, rows);
+			}
+			final DictionaryColumn column = new DictionaryColumn();
+			column.grow(rows);
+			return column;
+		}
+
+		/**
+		 * @return true if specified value could be stored in this column.
+		 */
+		abstract boolean accept(Object value);
+
+		abstract void set(int row, Object value);
+
+		abstract Object get(int row);
+
+		abstract boolean isEmpty();
+
+		abstract BitSet equal(Object value, int rows);
+
+		abstract BitSet range(Object from, boolean fromInclusive, Object to, boolean toInclusive, int rows);
+
+		abstract Statistics statistics(BitSet selection, String attributeName) throws IllegalArgumentException;
+
+		Map<Object, Integer> countBy(final BitSet selection) {
+			final Map<Object, Integer> result = Maps.newHashMap();
+			for (int row = selection.nextSetBit(0); row >= 0; row = selection.nextSetBit(row + 1)) {
+				final Object value = get(row);
+				if (value != null) {
+					final Integer count = result.get(value);
+					result.put(value, count != null ? count + 1 : 1);
+				}
+			}
+			return result;
+		}
+
+		static boolean isIntegral(final Object value) {
+			return (value instanceof Long) || (value instanceof Integer) || (value instanceof Short) || (value instanceof Byte);
+		}
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		static int compare(final Object value, final Object bound) {
+			return ((Comparable) value).compareTo(bound);
+		}
+	}
+
+	/**
+	 * <code>LongColumn</code> store integral values. Values are read with
+	 * widest type stored (Byte, Short, Integer then Long).
+	 */
+	private static final class LongColumn extends Column {
+
+		private static final List<Class<?>> TYPES = ImmutableList.<Class<?>> of(Byte.class, Short.class, Integer.class, Long.class);
+
+		private Class<?> type;
+
+		private long[] values;
+
+		private final BitSet nulls = new BitSet();
+
+		private int length = 0;
+
+		LongColumn(final Class<?> type, final int rows) {
+			super();
+			this.type = type;
+			values = new long[Math.max(16, rows * 2)];
+			nulls.set(0, rows);
+			length = rows;
+		}
+
+		@Override
+		boolean accept(final Object value) {
+			return (value == null) || isIntegral(value);
+		}
+
+		@Override
+		void set(final int row, final Object value) {
+			if (row >= values.length) {
+				values = Arrays.copyOf(values, Math.max(row + 1, values.length * 2));
+			}
+			if (row > length) {
+				// rows without value
+				nulls.set(length, row);
+			}
+			if (value == null) {
+				nulls.set(row);
+			} else {
+				nulls.clear(row);
+				values[row] = ((Number) value).longValue();
+				if (TYPES.indexOf(value.getClass()) > TYPES.indexOf(type)) {
+					type = value.getClass();
+				}
+			}
+			length = Math.max(length, row + 1);
+		}
+
+		@Override
+		Object get(final int row) {
+			if ((row >= length) || nulls.get(row)) {
+				return null;
+			}
+			final long value = values[row];
+			if (type == Integer.class) {
+				return Integer.valueOf((int) value);
+			}
+			if (type == Short.class) {
+				return Short.valueOf((short) value);
+			}
+			if (type == Byte.class) {
+				return Byte.valueOf((byte) value);
+			}
+			return Long.valueOf(value);
+		}
+
+		@Override
+		boolean isEmpty() {
+			return nulls.cardinality() >= length;
+		}
+
+		@Override
+		BitSet equal(final Object value, final int rows) {
+			final BitSet selection = new BitSet(rows);
+			if (value instanceof Number) {
+				final int limit = Math.min(rows, length);
+				if (isIntegral(value)) {
+					final long expected = ((Number) value).longValue();
+					for (int row = 0; row < limit; row++) {
+						if (values[row] == expected) {
+							selection.set(row);
+						}
+					}
+				} else {
+					final double expected = ((Number) value).doubleValue();
+					for (int row = 0; row < limit; row++) {
+						if (values[row] == expected) {
+							selection.set(row);
+						}
+					}
+				}
+				selection.andNot(nulls);
+			}
+			return selection;
+		}
+
+		@Override
+		BitSet range(final Object from, final boolean fromInclusive, final Object to, final boolean toInclusive, final int rows) {
+			final BitSet selection = new BitSet(rows);
+			if (((from != null) && !(from instanceof Number)) || ((to != null) && !(to instanceof Number))) {
+				return selection;
+			}
+			// inclusive bounds
+			long low = Long.MIN_VALUE;
+			long high = Long.MAX_VALUE;
+			if (from != null) {
+				if (isIntegral(from)) {
+					final long bound = ((Number) from).longValue();
+					if (!fromInclusive && (bound == Long.MAX_VALUE)) {
+						return selection;
+					}
+					low = fromInclusive ? bound : bound + 1;
+				} else {
+					final double bound = ((Number) from).doubleValue();
+					low = (fromInclusive || (Math.floor(bound) != bound)) ? (long) Math.ceil(bound) : (long) bound + 1;
+				}
+			}
+			if (to != null) {
+				if (isIntegral(to)) {
+					final long bound = ((Number) to).longValue();
+					if (!toInclusive && (bound == Long.MIN_VALUE)) {
+						return selection;
+					}
+					high = toInclusive ? bound : bound - 1;
+				} else {
+					final double bound = ((Number) to).doubleValue();
+					high = (toInclusive || (Math.ceil(bound) != bound)) ? (long) Math.floor(bound) : (long) bound - 1;
+				}
+			}
+			final int limit = Math.min(rows, length);
+			for (int row = 0; row < limit; row++) {
+				final long value = values[row];
+				if ((value >= low) && (value <= high)) {
+					selection.set(row);
+				}
+			}
+			selection.andNot(nulls);
+			return selection;
+		}
+
+		@Override
+		Statistics statistics(final BitSet selection, final String attributeName) {
+			long count = 0;
+			double sum = 0;
+			long min = Long.MAX_VALUE;
+			long max = Long.MIN_VALUE;
+			for (int row = selection.nextSetBit(0); (row >= 0) && (row < length); row = selection.nextSetBit(row + 1)) {
+				if (!nulls.get(row)) {
+					final long value = values[row];
+					count++;
+					sum += value;
+					min = Math.min(min, value);
+					max = Math.max(max, value);
+				}
+			}
+			return count > 0 ? new Statistics(count, sum, min, max) : Statistics.EMPTY;
+		}
+	}
+
+	/**
+	 * <code>DoubleColumn</code> store decimal values. Values are read as Float
+	 * until a Double is stored.
+	 */
+	private static final class DoubleColumn extends Column {
+
+		private Class<?> type;
+
+		private double[] values;
+
+		private final BitSet nulls = new BitSet();
+
+		private int length = 0;
+
+		DoubleColumn(final Class<?> type, final int rows) {
+			super();
+			this.type = type;
+			values = new double[Math.max(16, rows * 2)];
+			nulls.set(0, rows);
+			length = rows;
+		}
+
+		@Override
+		boolean accept(final Object value) {
+			return (value == null) || (value instanceof Double) || (value instanceof Float);
+		}
+
+		@Override
+		void set(final int row, final Object value) {
+			if (row >= values.length) {
+				values = Arrays.copyOf(values, Math.max(row + 1, values.length * 2));
+			}
+			if (row > length) {
+				// rows without value
+				nulls.set(length, row);
+			}
+			if (value == null) {
+				nulls.set(row);
+			} else {
+				nulls.clear(row);
+				values[row] = ((Number) value).doubleValue();
+				if (value instanceof Double) {
+					type = Double.class;
+				}
+			}
+			length = Math.max(length, row + 1);
+		}
+
+		@Override
+		Object get(final int row) {
+			if ((row >= length) || nulls.get(row)) {
+				return null;
+			}
+			return type == Float.class ? (Object) Float.valueOf((float) values[row]) : (Object) Double.valueOf(values[row]);
+		}
+
+		@Override
+		boolean isEmpty() {
+			return nulls.cardinality() >= length;
+		}
+
+		@Override
+		BitSet equal(final Object value, final int rows) {
+			final BitSet selection = new BitSet(rows);
+			if (value instanceof Number) {
+				final double expected = ((Number) value).doubleValue();
+				final int limit = Math.min(rows, length);
+				for (int row = 0; row < limit; row++) {
+					if (values[row] == expected) {
+						selection.set(row);
+					}
+				}
+				selection.andNot(nulls);
+			}
+			return selection;
+		}
+
+		@Override
+		BitSet range(final Object from, final boolean fromInclusive, final Object to, final boolean toInclusive, final int rows) {
+			final BitSet selection = new BitSet(rows);
+			if (((from != null) && !(from instanceof Number)) || ((to != null) && !(to instanceof Number))) {
+				return selection;
+			}
+			final double low = from != null ? ((Number) from).doubleValue() : Double.NEGATIVE_INFINITY;
+			final double high = to != null ? ((Number) to).doubleValue() : Double.POSITIVE_INFINITY;
+			final boolean lowInclusive = (from == null) || fromInclusive;
+			final boolean highInclusive = (to == null) || toInclusive;
+			final int limit = Math.min(rows, length);
+			for (int row = 0; row < limit; row++) {
+				final double value = values[row];
+				if ((lowInclusive ? value >= low : value > low) && (highInclusive ? value <= high : value < high)) {
+					selection.set(row);
+				}
+			}
+			selection.andNot(nulls);
+			return selection;
+		}
+
+		@Override
+		Statistics statistics(final BitSet selection, final String attributeName) {
+			long count = 0;
+			double sum = 0;
+			double min = Double.POSITIVE_INFINITY;
+			double max = Double.NEGATIVE_INFINITY;
+			for (int row = selection.nextSetBit(0); (row >= 0) && (row < length); row = selection.nextSetBit(row + 1)) {
+				if (!nulls.get(row)) {
+					final double value = values[row];
+					count++;
+					sum += value;
+					min = Math.min(min, value);
+					max = Math.max(max, value);
+				}
+			}
+			return count > 0 ? new Statistics(count, sum, min, max) : Statistics.EMPTY;
+		}
+	}
+
+	/**
+	 * <code>DictionaryColumn</code> store a code per row, and each distinct
+	 * value once. Code -1 is null.
+	 */
+	private static final class DictionaryColumn extends Column {
+
+		private final List<Object> dictionary = Lists.newArrayList();
+
+		private final Map<Object, Integer> codes = Maps.newHashMap();
+
+		private int[] data = new int[16];
+
+		private int length = 0;
+
+		DictionaryColumn() {
+			super();
+			Arrays.fill(data, -1);
+		}
+
+		/**
+		 * Build a dictionary column from first rows of specified column.
+		 */
+		DictionaryColumn(final Column column, final int rows) {
+			this();
+			for (int row = 0; row < rows; row++) {
+				set(row, column.get(row));
+			}
+		}
+
+		void grow(final int rows) {
+			if (rows > data.length) {
+				final int previous = data.length;
+				data = Arrays.copyOf(data, Math.max(rows, previous * 2));
+				Arrays.fill(data, previous, data.length, -1);
+			}
+			length = Math.max(length, rows);
+		}
+
+		@Override
+		boolean accept(final Object value) {
+			return true;
+		}
+
+		@Override
+		void set(final int row, final Object value) {
+			grow(row + 1);
+			if (value == null) {
+				data[row] = -1;
+			} else {
+				Integer code = codes.get(value);
+				if (code == null) {
+					code = dictionary.size();
+					dictionary.add(value);
+					codes.put(value, code);
+				}
+				data[row] = code;
+			}
+		}
+
+		@Override
+		Object get(final int row) {
+			final int code = row < length ? data[row] : -1;
+			return code >= 0 ? dictionary.get(code) : null;
+		}
+
+		@Override
+		boolean isEmpty() {
+			for (int row = 0; row < length; row++) {
+				if (data[row] >= 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		BitSet equal(final Object value, final int rows) {
+			final BitSet selection = new BitSet(rows);
+			final Integer code = codes.get(value);
+			if (code != null) {
+				final int expected = code;
+				final int limit = Math.min(rows, length);
+				for (int row = 0; row < limit; row++) {
+					if (data[row] == expected) {
+						selection.set(row);
+					}
+				}
+			}
+			return selection;
+		}
+
+		@Override
+		BitSet range(final Object from, final boolean fromInclusive, final Object to, final boolean toInclusive, final int rows) {
+			// evaluate each distinct value once
+			final boolean[] matches = new boolean[dictionary.size()];
+			for (int code = 0; code < matches.length; code++) {
+				final Object value = dictionary.get(code);
+				try {
+					boolean match = true;
+					if (from != null) {
+						final int comparison = compare(value, from);
+						match = (comparison > 0) || ((comparison == 0) && fromInclusive);
+					}
+					if (match && (to != null)) {
+						final int comparison = compare(value, to);
+						match = (comparison < 0) || ((comparison == 0) && toInclusive);
+					}
+					matches[code] = match;
+				} catch (final ClassCastException exception) {
+					matches[code] = false;
+				}
+			}
+			final BitSet selection = new BitSet(rows);
+			final int limit = Math.min(rows, length);
+			for (int row = 0; row < limit; row++) {
+				final int code = data[row];
+				if ((code >= 0) && matches[code]) {
+					selection.set(row);
+				}
+			}
+			return selection;
+		}
+
+		@Override
+		Statistics statistics(final BitSet selection, final String attributeName) throws IllegalArgumentException {
+			throw new IllegalArgumentException("attribute '" + attributeName + "' is not numeric");
+		}
+
+		@Override
+		Map<Object, Integer> countBy(final BitSet selection) {
+			final int[] counts = new int[dictionary.size()];
+			for (int row = selection.nextSetBit(0); (row >= 0) && (row < length); row = selection.nextSetBit(row + 1)) {
+				final int code = data[row];
+				if (code >= 0) {
+					counts[code]++;
+				}
+			}
+			final Map<Object, Integer> result = Maps.newHashMap();
+			for (int code = 0; code < counts.length; code++) {
+				if (counts[code] > 0) {
+					result.put(dictionary.get(code), counts[code]);
+				}
+			}
+			return result;
+		}
+	}
+}
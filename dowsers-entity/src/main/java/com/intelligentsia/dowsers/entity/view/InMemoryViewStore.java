@@ -20,29 +20,120 @@
 package com.intelligentsia.dowsers.entity.view;
 
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.Multimap;
+import org.intelligentsia.keystone.kernel.api.StringUtils;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.intelligentsia.dowsers.entity.reference.Reference;
 import com.intelligentsia.dowsers.entity.view.processor.Item;
 
 /**
  * InMemoryViewStore implements {@link ViewStore} in memory.
  * 
+ * <p>
+ * This store is thread safe: updates are serialized, while lookups read
+ * concurrent structures and never block updates. Items of an entity are
+ * replaced as a whole, so a lookup sees all or none of them.
+ * </p>
+ * 
+ * <p>
+ * Item attributes could be indexed with a hash index (equality lookup) or a
+ * sorted index (equality and range lookup). Numbers are normalized before
+ * being indexed or compared: integral numbers as {@link Long}, decimal numbers
+ * as {@link Double}, and integral and decimal numbers are ordered by value.
+ * Other values of a sorted index must be mutually {@link Comparable}: an update
+ * with a value which cannot be compared with indexed ones is rejected before
+ * store is changed. Lookups on an attribute without index scan all items. Null
+ * values are never indexed.
+ * </p>
+ * 
+ * <p>
+ * A {@link Snapshot} is an immutable copy of store, shared by readers until
+ * next update: readers which need a consistent view over several lookups
+ * should use it. Updates record references changed since last snapshot, and
+ * next snapshot is built from previous one and these changes outside of update
+ * lock: taking a snapshot never blocks updates during its copy.
+ * </p>
+ * 
  * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
  * 
  */
 public class InMemoryViewStore implements ViewStore, Iterable<Item> {
 
-	private final Multimap<Reference, Item> store = ArrayListMultimap.create();
+	/**
+	 * Serialize updates.
+	 */
+	private final Lock lock = new ReentrantLock();
 
 	/**
-	 * Build a new instance of InMemoryViewStore.
+	 * Live index.
+	 */
+	private final Index index;
+
+	/**
+	 * Serialize snapshot builds.
+	 */
+	private final Lock snapshotLock = new ReentrantLock();
+
+	/**
+	 * Last snapshot, null if store was updated since.
+	 */
+	private volatile Snapshot snapshot;
+
+	/**
+	 * Index of last built snapshot, guarded by snapshotLock.
+	 */
+	private Index base;
+
+	/**
+	 * Items of references changed since last snapshot (null if removed),
+	 * guarded by lock.
+	 */
+	private Map<Reference, List<Item>> changes = Maps.newHashMap();
+
+	/**
+	 * True if store was dropped since last snapshot, guarded by lock.
+	 */
+	private boolean dropped = false;
+
+	/**
+	 * Build a new instance of InMemoryViewStore without index.
 	 */
 	public InMemoryViewStore() {
+		this(ImmutableSet.<String> of(), ImmutableSet.<String> of());
+	}
+
+	/**
+	 * Build a new instance of InMemoryViewStore.
+	 * 
+	 * @param hashIndexes
+	 *            attribute names with a hash index
+	 * @param sortedIndexes
+	 *            attribute names with a sorted index
+	 * @throws NullPointerException
+	 *             if a parameter is null
+	 */
+	public InMemoryViewStore(final Set<String> hashIndexes, final Set<String> sortedIndexes) throws NullPointerException {
 		super();
+		index = new Index(Preconditions.checkNotNull(hashIndexes), Preconditions.checkNotNull(sortedIndexes), true);
+		base = index.empty();
 	}
 
 	@Override
@@ -50,7 +141,7 @@ public class InMemoryViewStore implements ViewStore, Iterable<Item> {
 		if (item == null) {
 			remove(reference);
 		} else {
-			store.put(reference, item);
+			update(reference, ImmutableList.of(item));
 		}
 	}
 
@@ -59,26 +150,598 @@ public class InMemoryViewStore implements ViewStore, Iterable<Item> {
 		if (items == null) {
 			remove(reference);
 		} else {
-			store.putAll(reference, items);
+			lock.lock();
+			try {
+				index.add(reference, items);
+				changes.put(reference, index.get(reference));
+				snapshot = null;
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	@Override
+	public void replace(final Reference reference, final List<Item> items) {
+		Preconditions.checkNotNull(reference);
+		lock.lock();
+		try {
+			index.replace(reference, items != null ? items : ImmutableList.<Item> of());
+			changes.put(reference, index.get(reference));
+			snapshot = null;
+		} finally {
+			lock.unlock();
 		}
 	}
 
 	@Override
 	public void drop() {
-		store.clear();
+		lock.lock();
+		try {
+			index.clear();
+			changes.clear();
+			dropped = true;
+			snapshot = null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void remove(final Reference identity) {
+		lock.lock();
+		try {
+			index.remove(identity);
+			changes.put(identity, null);
+			snapshot = null;
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	@Override
 	public Iterator<Item> iterator() {
-		return store.values().iterator();
+		return items().iterator();
 	}
 
+	/**
+	 * @return all items.
+	 */
 	public Collection<Item> items() {
-		return store.values();
+		return index.items();
 	}
 
-	@Override
-	public void remove(final Reference identity) {
-		store.removeAll(identity);
+	/**
+	 * @return number of items.
+	 */
+	public int size() {
+		return index.size();
+	}
+
+	/**
+	 * Equality lookup.
+	 * 
+	 * @param attributeName
+	 * @param value
+	 * @return items whose attribute is equal to specified value.
+	 * @throws NullPointerException
+	 *             if a parameter is null
+	 */
+	public Collection<Item> find(final String attributeName, final Object value) throws NullPointerException {
+		return index.find(attributeName, value);
+	}
+
+	/**
+	 * Range lookup.
+	 * 
+	 * @param attributeName
+	 * @param from
+	 *            lower bound, null for unbounded
+	 * @param fromInclusive
+	 * @param to
+	 *            upper bound, null for unbounded
+	 * @param toInclusive
+	 * @return items whose attribute is in specified range, ordered by
+	 *         attribute value if attribute has a sorted index.
+	 * @throws NullPointerException
+	 *             if attributeName is null
+	 */
+	public Collection<Item> range(final String attributeName, final Object from, final boolean fromInclusive, final Object to, final boolean toInclusive) throws NullPointerException {
+		return index.range(attributeName, from, fromInclusive, to, toInclusive);
+	}
+
+	/**
+	 * @return an immutable {@link Snapshot} of this store. Snapshot is built
+	 *         on first call after an update, and shared until next update.
+	 */
+	public Snapshot snapshot() {
+		Snapshot result = snapshot;
+		if (result == null) {
+			snapshotLock.lock();
+			try {
+				result = snapshot;
+				if (result == null) {
+					final Map<Reference, List<Item>> delta;
+					final boolean reset;
+					lock.lock();
+					try {
+						delta = changes;
+						reset = dropped;
+						changes = Maps.newHashMap();
+						dropped = false;
+					} finally {
+						lock.unlock();
+					}
+					// copy outside of update lock
+					final Index next = reset ? base.empty() : base.copy();
+					for (final Map.Entry<Reference, List<Item>> entry : delta.entrySet()) {
+						next.remove(entry.getKey());
+						if (entry.getValue() != null) {
+							next.add(entry.getKey(), entry.getValue());
+						}
+					}
+					base = next;
+					result = new Snapshot(next);
+					lock.lock();
+					try {
+						// share it only if store was not updated since
+						if (changes.isEmpty() && !dropped) {
+							snapshot = result;
+						}
+					} finally {
+						lock.unlock();
+					}
+				}
+			} finally {
+				snapshotLock.unlock();
+			}
+		}
+		return result;
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * <code>Builder</code>.
+	 * 
+	 * @author <a href="mailto:jguibert@intelligents-ia.com">Jerome Guibert</a>
+	 */
+	public static class Builder {
+		private final ImmutableSet.Builder<String> hashIndexes = ImmutableSet.builder();
+
+		private final ImmutableSet.Builder<String> sortedIndexes = ImmutableSet.builder();
+
+		public Builder() {
+			super();
+		}
+
+		/**
+		 * Add a hash index on specified attributes.
+		 */
+		public Builder hashIndex(final String... attributeNames) throws NullPointerException {
+			hashIndexes.add(attributeNames);
+			return this;
+		}
+
+		/**
+		 * Add a sorted index on specified attributes.
+		 */
+		public Builder sortedIndex(final String... attributeNames) throws NullPointerException {
+			sortedIndexes.add(attributeNames);
+			return this;
+		}
+
+		public InMemoryViewStore build() {
+			return new InMemoryViewStore(hashIndexes.build(), sortedIndexes.build());
+		}
+	}
+
+	/**
+	 * <code>Snapshot</code> is an immutable copy of an {@link InMemoryViewStore}
+	 * with same lookup methods.
+	 * 
+	 * @author <a href="mailto:jguibert@intelligents-ia.com">Jerome Guibert</a>
+	 */
+	public static final class Snapshot implements Iterable<Item> {
+
+		private final Index index;
+
+		private Snapshot(final Index index) {
+			super();
+			this.index = index;
+		}
+
+		@Override
+		public Iterator<Item> iterator() {
+			return items().iterator();
+		}
+
+		/**
+		 * @see InMemoryViewStore#items()
+		 */
+		public Collection<Item> items() {
+			return index.items();
+		}
+
+		/**
+		 * @see InMemoryViewStore#size()
+		 */
+		public int size() {
+			return index.size();
+		}
+
+		/**
+		 * @see InMemoryViewStore#find(String, Object)
+		 */
+		public Collection<Item> find(final String attributeName, final Object value) throws NullPointerException {
+			return index.find(attributeName, value);
+		}
+
+		/**
+		 * @see InMemoryViewStore#range(String, Object, boolean, Object,
+		 *      boolean)
+		 */
+		public Collection<Item> range(final String attributeName, final Object from, final boolean fromInclusive, final Object to, final boolean toInclusive) throws NullPointerException {
+			return index.range(attributeName, from, fromInclusive, to, toInclusive);
+		}
+	}
+
+	/**
+	 * <code>Index</code> holds items per entity and secondary indexes from
+	 * normalized attribute value to entities. Writers must be serialized,
+	 * readers could run concurrently if index was built with concurrent
+	 * structures.
+	 * 
+	 * @author <a href="mailto:jguibert@intelligents-ia.com">Jerome Guibert</a>
+	 */
+	private static final class Index {
+
+		/**
+		 * Order of sorted index values: decimal numbers are compared by value
+		 * with other numbers.
+		 */
+		private static final Comparator<Object> ORDER = new Comparator<Object>() {
+			@SuppressWarnings({ "unchecked", "rawtypes" })
+			@Override
+			public int compare(final Object value, final Object other) {
+				if ((value instanceof Number) && (other instanceof Number) && ((value instanceof Double) || (other instanceof Double))) {
+					return Double.compare(((Number) value).doubleValue(), ((Number) other).doubleValue());
+				}
+				return ((Comparable) value).compareTo(other);
+			}
+		};
+
+		private final Map<Reference, List<Item>> entries;
+
+		private final Map<String, Map<Object, Set<Reference>>> hashes;
+
+		private final Map<String, NavigableMap<Object, Set<Reference>>> sorted;
+
+		/**
+		 * Build a new empty index.
+		 * 
+		 * @param concurrent
+		 *            if true, index is built on concurrent structures
+		 */
+		Index(final Set<String> hashIndexes, final Set<String> sortedIndexes, final boolean concurrent) {
+			super();
+			entries = concurrent ? new ConcurrentHashMap<Reference, List<Item>>() : Maps.<Reference, List<Item>> newHashMap();
+			final ImmutableMap.Builder<String, Map<Object, Set<Reference>>> hashBuilder = ImmutableMap.builder();
+			for (final String attributeName : hashIndexes) {
+				hashBuilder.put(attributeName, concurrent ? new ConcurrentHashMap<Object, Set<Reference>>() : Maps.<Object, Set<Reference>> newHashMap());
+			}
+			hashes = hashBuilder.build();
+			final ImmutableMap.Builder<String, NavigableMap<Object, Set<Reference>>> sortedBuilder = ImmutableMap.builder();
+			for (final String attributeName : sortedIndexes) {
+				sortedBuilder.put(attributeName, concurrent ? new ConcurrentSkipListMap<Object, Set<Reference>>(ORDER) : new TreeMap<Object, Set<Reference>>(ORDER));
+			}
+			sorted = sortedBuilder.build();
+		}
+
+		/**
+		 * @return a new empty index with same attributes, not concurrent.
+		 */
+		Index empty() {
+			return new Index(hashes.keySet(), sorted.keySet(), false);
+		}
+
+		/**
+		 * @return a copy of this index, not concurrent.
+		 */
+		Index copy() {
+			final Index copy = empty();
+			copy.entries.putAll(entries);
+			for (final Map.Entry<String, Map<Object, Set<Reference>>> entry : hashes.entrySet()) {
+				copy(entry.getValue(), copy.hashes.get(entry.getKey()));
+			}
+			for (final Map.Entry<String, NavigableMap<Object, Set<Reference>>> entry : sorted.entrySet()) {
+				copy(entry.getValue(), copy.sorted.get(entry.getKey()));
+			}
+			return copy;
+		}
+
+		private static void copy(final Map<Object, Set<Reference>> values, final Map<Object, Set<Reference>> target) {
+			for (final Map.Entry<Object, Set<Reference>> value : values.entrySet()) {
+				final Set<Reference> references = Sets.newHashSet(value.getValue());
+				target.put(value.getKey(), references);
+			}
+		}
+
+		/**
+		 * @return items of specified reference, null if none.
+		 */
+		List<Item> get(final Reference reference) {
+			return entries.get(reference);
+		}
+
+		/**
+		 * Add items of specified reference.
+		 * 
+		 * @throws IllegalArgumentException
+		 *             if a value of a sorted index cannot be compared with
+		 *             indexed values, index is then unchanged
+		 */
+		void add(final Reference reference, final List<Item> items) throws IllegalArgumentException {
+			check(items);
+			final List<Item> previous = entries.get(reference);
+			final ImmutableList.Builder<Item> builder = ImmutableList.builder();
+			if (previous != null) {
+				builder.addAll(previous);
+			}
+			entries.put(reference, builder.addAll(items).build());
+			for (final Item item : items) {
+				for (final Map.Entry<String, Map<Object, Set<Reference>>> entry : hashes.entrySet()) {
+					index(entry.getValue(), item.get(entry.getKey()), reference);
+				}
+				for (final Map.Entry<String, NavigableMap<Object, Set<Reference>>> entry : sorted.entrySet()) {
+					index(entry.getValue(), item.get(entry.getKey()), reference);
+				}
+			}
+		}
+
+		/**
+		 * Replace items of specified reference, removed if items is empty.
+		 * 
+		 * @throws IllegalArgumentException
+		 *             if a value of a sorted index cannot be compared with
+		 *             indexed values, index is then unchanged
+		 */
+		void replace(final Reference reference, final List<Item> items) throws IllegalArgumentException {
+			check(items);
+			remove(reference);
+			if (!items.isEmpty()) {
+				add(reference, items);
+			}
+		}
+
+		/**
+		 * Check values of sorted indexes of specified items.
+		 * 
+		 * @throws IllegalArgumentException
+		 *             if a value cannot be compared with indexed values
+		 */
+		private void check(final List<Item> items) throws IllegalArgumentException {
+			for (final Map.Entry<String, NavigableMap<Object, Set<Reference>>> entry : sorted.entrySet()) {
+				Object witness = entry.getValue().isEmpty() ? null : entry.getValue().firstKey();
+				for (final Item item : items) {
+					final Object value = normalize(item.get(entry.getKey()));
+					if (value != null) {
+						check(entry.getKey(), value, witness);
+						witness = witness != null ? witness : value;
+					}
+				}
+			}
+		}
+
+		void remove(final Reference reference) {
+			final List<Item> items = entries.remove(reference);
+			if (items != null) {
+				for (final Item item : items) {
+					for (final Map.Entry<String, Map<Object, Set<Reference>>> entry : hashes.entrySet()) {
+						unindex(entry.getValue(), item.get(entry.getKey()), reference);
+					}
+					for (final Map.Entry<String, NavigableMap<Object, Set<Reference>>> entry : sorted.entrySet()) {
+						unindex(entry.getValue(), item.get(entry.getKey()), reference);
+					}
+				}
+			}
+		}
+
+		void clear() {
+			entries.clear();
+			for (final Map<Object, Set<Reference>> values : hashes.values()) {
+				values.clear();
+			}
+			for (final Map<Object, Set<Reference>> values : sorted.values()) {
+				values.clear();
+			}
+		}
+
+		Collection<Item> items() {
+			final ImmutableList.Builder<Item> builder = ImmutableList.builder();
+			for (final List<Item> items : entries.values()) {
+				builder.addAll(items);
+			}
+			return builder.build();
+		}
+
+		int size() {
+			int size = 0;
+			for (final List<Item> items : entries.values()) {
+				size += items.size();
+			}
+			return size;
+		}
+
+		Collection<Item> find(final String attributeName, final Object lookup) throws NullPointerException {
+			Preconditions.checkNotNull(attributeName);
+			final Object value = normalize(Preconditions.checkNotNull(lookup));
+			final Predicate<Item> predicate = new Predicate<Item>() {
+				@Override
+				public boolean apply(final Item input) {
+					return value.equals(normalize(input.get(attributeName)));
+				}
+			};
+			Map<Object, Set<Reference>> values = hashes.get(attributeName);
+			if (values == null) {
+				values = sorted.get(attributeName);
+			}
+			if (values == null) {
+				return scan(predicate);
+			}
+			final Set<Reference> references;
+			try {
+				references = values.get(value);
+			} catch (final ClassCastException exception) {
+				// not comparable with sorted values
+				return ImmutableList.<Item> of();
+			}
+			return references != null ? resolve(references, predicate) : ImmutableList.<Item> of();
+		}
+
+		Collection<Item> range(final String attributeName, final Object lower, final boolean fromInclusive, final Object upper, final boolean toInclusive) throws NullPointerException {
+			Preconditions.checkNotNull(attributeName);
+			final Object from = normalize(lower);
+			final Object to = normalize(upper);
+			final Predicate<Item> predicate = new Predicate<Item>() {
+				@Override
+				public boolean apply(final Item input) {
+					final Object value = normalize(input.get(attributeName));
+					if (value == null) {
+						return false;
+					}
+					try {
+						if (from != null) {
+							final int comparison = compare(value, from);
+							if ((comparison < 0) || ((comparison == 0) && !fromInclusive)) {
+								return false;
+							}
+						}
+						if (to != null) {
+							final int comparison = compare(value, to);
+							if ((comparison > 0) || ((comparison == 0) && !toInclusive)) {
+								return false;
+							}
+						}
+					} catch (final ClassCastException exception) {
+						return false;
+					}
+					return true;
+				}
+			};
+			NavigableMap<Object, Set<Reference>> values = sorted.get(attributeName);
+			if (values == null) {
+				return scan(predicate);
+			}
+			if (from != null) {
+				values = values.tailMap(from, fromInclusive);
+			}
+			if (to != null) {
+				values = values.headMap(to, toInclusive);
+			}
+			final Set<Reference> references = Sets.newLinkedHashSet();
+			for (final Set<Reference> set : values.values()) {
+				references.addAll(set);
+			}
+			return resolve(references, predicate);
+		}
+
+		/**
+		 * Resolve items of specified references, checked against predicate
+		 * as items could have been updated since references were read.
+		 */
+		private Collection<Item> resolve(final Set<Reference> references, final Predicate<Item> predicate) {
+			final ImmutableList.Builder<Item> builder = ImmutableList.builder();
+			for (final Reference reference : references) {
+				final List<Item> items = entries.get(reference);
+				if (items != null) {
+					for (final Item item : items) {
+						if (predicate.apply(item)) {
+							builder.add(item);
+						}
+					}
+				}
+			}
+			return builder.build();
+		}
+
+		private Collection<Item> scan(final Predicate<Item> predicate) {
+			final ImmutableList.Builder<Item> builder = ImmutableList.builder();
+			for (final List<Item> items : entries.values()) {
+				for (final Item item : items) {
+					if (predicate.apply(item)) {
+						builder.add(item);
+					}
+				}
+			}
+			return builder.build();
+		}
+
+		private static int compare(final Object value, final Object bound) {
+			return ORDER.compare(value, bound);
+		}
+
+		/**
+		 * @return integral numbers as {@link Long}, decimal numbers as
+		 *         {@link Double}, other values as is.
+		 */
+		private static Object normalize(final Object value) {
+			if ((value instanceof Integer) || (value instanceof Long) || (value instanceof Short) || (value instanceof Byte)) {
+				return ((Number) value).longValue();
+			}
+			if ((value instanceof Float) || (value instanceof Double)) {
+				return ((Number) value).doubleValue();
+			}
+			return value;
+		}
+
+		/**
+		 * Check that a value can be stored in a sorted index.
+		 * 
+		 * @param witness
+		 *            an indexed value, null if none
+		 * @throws IllegalArgumentException
+		 *             if value cannot be compared with witness
+		 */
+		private static void check(final String attributeName, final Object value, final Object witness) throws IllegalArgumentException {
+			if (!(value instanceof Comparable)) {
+				throw new IllegalArgumentException(StringUtils.format("value '%s' of sorted attribute '%s' is not comparable", value, attributeName));
+			}
+			if (witness != null) {
+				try {
+					ORDER.compare(value, witness);
+					ORDER.compare(witness, value);
+				} catch (final ClassCastException exception) {
+					throw new IllegalArgumentException(StringUtils.format("value '%s' of sorted attribute '%s' cannot be compared with '%s'", value, attributeName, witness), exception);
+				}
+			}
+		}
+
+		private static void index(final Map<Object, Set<Reference>> values, final Object raw, final Reference reference) {
+			final Object value = normalize(raw);
+			if (value != null) {
+				Set<Reference> references = values.get(value);
+				if (references == null) {
+					references = Sets.newSetFromMap(new ConcurrentHashMap<Reference, Boolean>());
+					values.put(value, references);
+				}
+				references.add(reference);
+			}
+		}
+
+		private static void unindex(final Map<Object, Set<Reference>> values, final Object raw, final Reference reference) {
+			final Object value = normalize(raw);
+			if (value != null) {
+				final Set<Reference> references = values.get(value);
+				if (references != null) {
+					references.remove(reference);
+					if (references.isEmpty()) {
+						values.remove(value);
+					}
+				}
+			}
+		}
 	}
 }
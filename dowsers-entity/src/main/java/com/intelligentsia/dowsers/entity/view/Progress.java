@@ -0,0 +1,140 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.view;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+
+/**
+ * Progress of a view rebuild: processed entities, throughput and estimated
+ * time of arrival. Methods could be called concurrently.
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
+ */
+public final class Progress {
+
+	private final String name;
+
+	private final long total;
+
+	private final Ticker ticker;
+
+	private final long start;
+
+	private long processed = 0;
+
+	/**
+	 * Build a new instance of Progress.
+	 * 
+	 * @param name
+	 *            name of processed set
+	 * @param total
+	 *            expected number of entities
+	 * @throws NullPointerException
+	 *             if name is null
+	 * @throws IllegalArgumentException
+	 *             if total is negative
+	 */
+	public Progress(final String name, final long total) throws NullPointerException, IllegalArgumentException {
+		this(name, total, Ticker.systemTicker());
+	}
+
+	/**
+	 * Build a new instance of Progress.
+	 * 
+	 * @param name
+	 *            name of processed set
+	 * @param total
+	 *            expected number of entities
+	 * @param ticker
+	 *            time source
+	 * @throws NullPointerException
+	 *             if name or ticker is null
+	 * @throws IllegalArgumentException
+	 *             if total is negative
+	 */
+	public Progress(final String name, final long total, final Ticker ticker) throws NullPointerException, IllegalArgumentException {
+		super();
+		this.name = Preconditions.checkNotNull(name);
+		Preconditions.checkArgument(total >= 0);
+		this.total = total;
+		this.ticker = Preconditions.checkNotNull(ticker);
+		this.start = ticker.read();
+	}
+
+	/**
+	 * Add processed entities.
+	 * 
+	 * @param count
+	 * @return total of processed entities
+	 */
+	public synchronized long processed(final long count) {
+		processed += count;
+		return processed;
+	}
+
+	/**
+	 * @return number of processed entities.
+	 */
+	public synchronized long processed() {
+		return processed;
+	}
+
+	/**
+	 * @return expected number of entities.
+	 */
+	public long total() {
+		return total;
+	}
+
+	/**
+	 * @return elapsed time in milliseconds.
+	 */
+	public long elapsed() {
+		return TimeUnit.NANOSECONDS.toMillis(ticker.read() - start);
+	}
+
+	/**
+	 * @return processed entities per second, 0 if nothing was measured.
+	 */
+	public synchronized double rate() {
+		final long elapsed = ticker.read() - start;
+		return elapsed > 0 ? (processed * (double) TimeUnit.SECONDS.toNanos(1)) / elapsed : 0;
+	}
+
+	/**
+	 * @return estimated remaining time in seconds, or -1 if unknown.
+	 */
+	public synchronized long eta() {
+		final double rate = rate();
+		if (rate <= 0) {
+			return processed >= total ? 0 : -1;
+		}
+		return (long) Math.ceil(Math.max(0, total - processed) / rate);
+	}
+
+	@Override
+	public synchronized String toString() {
+		final long eta = eta();
+		return String.format("%s: %d/%d entities, %.0f entities/sec, ETA %s", name, processed, total, rate(), eta < 0 ? "?" : eta + "s");
+	}
+}
@@ -28,6 +28,11 @@ import com.intelligentsia.dowsers.entity.view.processor.Item;
  * 
  * Splitter split an item in several (one item per locale for example).
  * 
+ * <p>
+ * {@link #toString()} describes definition of splitter, and must be stable
+ * across restarts: it is part of {@link View#signature()}.
+ * </p>
+ * 
  * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
  */
 public interface Splitter extends Function<Item, List<Item>> {
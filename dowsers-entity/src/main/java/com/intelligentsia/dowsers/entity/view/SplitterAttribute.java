@@ -23,6 +23,7 @@ import java.util.List;
 
 import org.intelligentsia.keystone.kernel.api.StringUtils;
 
+import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 import com.intelligentsia.dowsers.entity.view.processor.Item;
@@ -88,4 +89,8 @@ public class SplitterAttribute implements Splitter {
 		return items;
 	}
 
+	@Override
+	public String toString() {
+		return Objects.toStringHelper(getClass()).add("attributeName", attributeName).add("ignoreEmpty", ignoreEmpty).toString();
+	}
 }
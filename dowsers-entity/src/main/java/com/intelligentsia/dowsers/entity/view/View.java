@@ -87,22 +87,30 @@ public final class View {
 	}
 
 	/**
-	 * Compute view for specified entity.
+	 * Compute view for specified entity. Items previously computed for this
+	 * entity are replaced in a single {@link ViewStore#replace(Reference, List)}
+	 * , so computing twice the same entity is harmless and readers never see
+	 * entity without items.
 	 * 
 	 * @param entity
 	 */
 	public void compute(final Entity entity) {
-		// build item
+		viewStore.replace(entity.identity(), items(entity));
+	}
+
+	/**
+	 * Compute items of specified entity without updating {@link ViewStore}.
+	 * This method has no side effect and could be called concurrently.
+	 * 
+	 * @param entity
+	 * @return a {@link List} of items, empty if entity is filtered
+	 */
+	public List<Item> items(final Entity entity) {
 		final Item item = processor.apply(entity);
 		if (splitter != null) {
-			final List<Item> items = splitter.apply(item);
-			for (final Item item2 : items) {
-				viewStore.update(entity.identity(), item2);
-			}
-		} else {
-			// update store
-			viewStore.update(entity.identity(), item);
+			return item != null ? splitter.apply(item) : ImmutableList.<Item> of();
 		}
+		return item != null ? ImmutableList.of(item) : ImmutableList.<Item> of();
 	}
 
 	/**
@@ -114,6 +122,16 @@ public final class View {
 		viewStore.remove(identity);
 	}
 
+	/**
+	 * @return signature of view definition (processor and splitter): a change
+	 *         of signature implies a full rebuild of view. It relies on
+	 *         <code>toString()</code> of {@link Processor} and {@link Splitter},
+	 *         which must be stable.
+	 */
+	public String signature() {
+		return splitter != null ? processor + " split " + splitter : processor.toString();
+	}
+
 	/**
 	 * @return view name
 	 */
@@ -132,26 +132,6 @@ public class ViewManager {
 		}
 	}
 
-	/**
-	 * Dropped by {@link ViewManagerControler}.
-	 * 
-	 * @param entityClassReference
-	 */
-	void drop(final Reference entityClassReference) {
-		for (final View view : views.get(entityClassReference)) {
-			view.viewStore().drop();
-		}
-	}
-
-	/**
-	 * Called by {@link ViewManagerControler}.
-	 * 
-	 * @param entity
-	 */
-	<T extends Entity> void update(final T entity) {
-		entityStored(entity);
-	}
-
 	protected <T extends Entity> void entityStored(final T entity) {
 		final Reference id = entity.identity().getEntityClassReference();
 		for (final View view : views.get(id)) {
@@ -169,7 +149,7 @@ public class ViewManager {
 		final Reference id = entity.identity().getEntityClassReference();
 		for (final View view : views.get(id)) {
 			try {
-				view.remove(id);
+				view.remove(entity.identity());
 			} catch (final Throwable throwable) {
 				if (logger.isWarnEnabled()) {
 					logger.warn(new StringBuilder("Remove view '").append(view.name()).append("', entity '").append(entity.identity()).append("': ").append(throwable.getMessage()).toString(), throwable);
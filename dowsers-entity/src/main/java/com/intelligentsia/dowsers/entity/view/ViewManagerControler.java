@@ -20,22 +20,57 @@
 package com.intelligentsia.dowsers.entity.view;
 
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
 
+import org.intelligentsia.dowsers.core.BoundedCompletionService;
+import org.intelligentsia.dowsers.core.Handler;
 import org.intelligentsia.dowsers.core.reflection.ClassInformation;
 import org.intelligentsia.keystone.kernel.api.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.intelligentsia.dowsers.entity.Entity;
 import com.intelligentsia.dowsers.entity.manager.EntityManager;
+import com.intelligentsia.dowsers.entity.manager.event.EntityEvent.Kind;
 import com.intelligentsia.dowsers.entity.reference.Reference;
 import com.intelligentsia.dowsers.entity.reference.References;
+import com.intelligentsia.dowsers.entity.store.change.Change;
+import com.intelligentsia.dowsers.entity.store.change.ChangeLog;
+import com.intelligentsia.dowsers.entity.view.CheckpointedViewStore.Checkpoint;
+import com.intelligentsia.dowsers.entity.view.processor.Item;
 
 /**
- * ViewManagerControler.
+ * ViewManagerControler feed views of a {@link ViewManager}.
+ * 
+ * <p>
+ * Without {@link ChangeLog}, each view is dropped and rebuilt from all
+ * entities of its type. With a {@link ChangeLog}, a view whose store is a
+ * {@link CheckpointedViewStore} is rebuilt only if it has no checkpoint, if its
+ * definition changed (see {@link View#signature()}), if changes after its
+ * checkpoint were truncated from log or if a write of its entity type is
+ * pending in log (see {@link ChangeLog#pending()}), as its change can be
+ * missing. Else only changes after its checkpoint
+ * are replayed, and checkpoint is moved after each batch. A rebuild is
+ * checkpointed at last sequence of log before rebuild, then followed by a
+ * replay: as computing an entity replaces its items, changes applied twice are
+ * harmless.
+ * </p>
+ * 
+ * <p>
+ * A rebuild partitions references of entity type in chunks, computed in
+ * parallel by a pool of daemon threads (one per core by default). Items of a
+ * chunk are then written in {@link ViewStore} by feed thread, so a
+ * {@link ViewStore} has not to be thread safe. Progress (entities/sec, ETA) is
+ * logged periodically.
+ * </p>
  * 
  * @author <a href="mailto:jguibert@intelligents-ia.com">Jerome Guibert</a>
  */
@@ -53,6 +88,14 @@ public class ViewManagerControler {
 	 * {@link Behavior} instance.
 	 */
 	private final Behavior behavior;
+	/**
+	 * {@link ChangeLog} instance (could be null).
+	 */
+	private final ChangeLog changeLog;
+	/**
+	 * Number of threads used to rebuild views.
+	 */
+	private final int parallelism;
 
 	/**
 	 * Build a new instance of ViewManagerControler.
@@ -64,10 +107,49 @@ public class ViewManagerControler {
 	 *             if one of parameters is null
 	 */
 	public ViewManagerControler(final EntityManager entityManager, final ViewManager viewManager, final Behavior behavior) throws NullPointerException {
+		this(entityManager, viewManager, behavior, null);
+	}
+
+	/**
+	 * Build a new instance of ViewManagerControler which maintains
+	 * incrementally views with a {@link CheckpointedViewStore}.
+	 * 
+	 * @param entityManager
+	 * @param viewManager
+	 * @param behavior
+	 * @param changeLog
+	 *            {@link ChangeLog} fed by entity store, could be null
+	 * @throws NullPointerException
+	 *             if entityManager, viewManager or behavior is null
+	 */
+	public ViewManagerControler(final EntityManager entityManager, final ViewManager viewManager, final Behavior behavior, final ChangeLog changeLog) throws NullPointerException {
+		this(entityManager, viewManager, behavior, changeLog, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Build a new instance of ViewManagerControler.
+	 * 
+	 * @param entityManager
+	 * @param viewManager
+	 * @param behavior
+	 * @param changeLog
+	 *            {@link ChangeLog} fed by entity store, could be null
+	 * @param parallelism
+	 *            number of threads used to rebuild views
+	 * @throws NullPointerException
+	 *             if entityManager, viewManager or behavior is null
+	 * @throws IllegalArgumentException
+	 *             if parallelism is not positive
+	 */
+	public ViewManagerControler(final EntityManager entityManager, final ViewManager viewManager, final Behavior behavior, final ChangeLog changeLog, final int parallelism) throws NullPointerException,
+			IllegalArgumentException {
 		super();
 		this.entityManager = Preconditions.checkNotNull(entityManager);
 		this.viewManager = Preconditions.checkNotNull(viewManager);
 		this.behavior = Preconditions.checkNotNull(behavior);
+		this.changeLog = changeLog;
+		Preconditions.checkArgument(parallelism > 0);
+		this.parallelism = parallelism;
 	}
 
 	/**
@@ -77,20 +159,13 @@ public class ViewManagerControler {
 		switch (behavior) {
 		case BACKGROUND:
 			// single daemon thread
-			Executors.newSingleThreadExecutor(new ThreadFactory() {
-				private final ThreadFactory delegate = Executors.defaultThreadFactory();
-
-				@Override
-				public Thread newThread(final Runnable runnable) {
-					final Thread thread = delegate.newThread(runnable);
-					thread.setDaemon(true);
-					return thread;
-				}
-			}).execute(new ViewManagerFeed(entityManager, viewManager));
+			final ExecutorService executorService = Executors.newSingleThreadExecutor(new DaemonThreadFactory());
+			executorService.execute(new ViewManagerFeed(entityManager, viewManager, changeLog, parallelism));
+			executorService.shutdown();
 			break;
 		case FOREGROUND:
 			// wait for finish
-			new ViewManagerFeed(entityManager, viewManager).run();
+			new ViewManagerFeed(entityManager, viewManager, changeLog, parallelism).run();
 			break;
 		default:
 			// do nothing
@@ -108,6 +183,22 @@ public class ViewManagerControler {
 		NO_FEED, BACKGROUND, FOREGROUND
 	}
 
+	/**
+	 * DaemonThreadFactory create daemon threads.
+	 * 
+	 * @author <a href="mailto:jguibert@intelligents-ia.com">Jerome Guibert</a>
+	 */
+	private static class DaemonThreadFactory implements ThreadFactory {
+		private final ThreadFactory delegate = Executors.defaultThreadFactory();
+
+		@Override
+		public Thread newThread(final Runnable runnable) {
+			final Thread thread = delegate.newThread(runnable);
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
 	/**
 	 * ViewManagerFeed implements feed process (Runnable).
 	 * 
@@ -120,49 +211,277 @@ public class ViewManagerControler {
 		 */
 		private final Logger logger = LoggerFactory.getLogger(ViewManagerControler.class);
 
+		/**
+		 * Number of changes read per batch.
+		 */
+		private static final int BATCH_SIZE = 1000;
+
+		/**
+		 * Number of entities computed per rebuild task.
+		 */
+		private static final int CHUNK_SIZE = 500;
+
+		/**
+		 * Minimal period between two progress logs, in milliseconds.
+		 */
+		private static final long LOG_PERIOD = 5000;
+
 		private final EntityManager entityManager;
 
 		private final ViewManager viewManager;
 
-		public ViewManagerFeed(final EntityManager entityManager, final ViewManager viewManager) throws NullPointerException {
+		private final ChangeLog changeLog;
+
+		private final int parallelism;
+
+		private ExecutorService executorService;
+
+		public ViewManagerFeed(final EntityManager entityManager, final ViewManager viewManager, final ChangeLog changeLog, final int parallelism) throws NullPointerException {
 			super();
 			this.entityManager = Preconditions.checkNotNull(entityManager);
 			this.viewManager = Preconditions.checkNotNull(viewManager);
+			this.changeLog = changeLog;
+			this.parallelism = parallelism;
 		}
 
 		@Override
 		public void run() {
 			logger.info("ViewManagerControler start");
 			final Collection<Reference> references = viewManager.getEntities();
-			int processed = 0;
-			for (final Reference reference : references) {
-				try {
-					logger.info(StringUtils.format("processing %", reference));
-					process(reference);
-					processed++;
-					logger.info(StringUtils.format("processed %s on %s", processed, references.size()));
-				} catch (final Throwable throwable) {
-					logger.error("ViewManagerControler feed error '{}'", reference, throwable);
+			executorService = Executors.newFixedThreadPool(parallelism, new DaemonThreadFactory());
+			try {
+				for (final Reference reference : references) {
+					try {
+						process(reference);
+					} catch (final Throwable throwable) {
+						logger.error("ViewManagerControler feed error '{}'", reference, throwable);
+					}
 				}
+			} finally {
+				executorService.shutdown();
 			}
 			logger.info("ViewManagerControler done");
 		}
 
 		private void process(final Reference reference) {
-			// clean up view store
-			viewManager.drop(reference);
+			// sequence before rebuild
+			final long mark = changeLog != null ? changeLog.lastSequence() : 0;
+			final List<View> rebuilds = Lists.newArrayList();
+			final Map<View, Long> replays = Maps.newLinkedHashMap();
+			for (final View view : viewManager.getViews(reference)) {
+				final Checkpoint checkpoint = checkpoint(reference, view);
+				if (checkpoint != null) {
+					replays.put(view, checkpoint.getSequence());
+				} else {
+					rebuilds.add(view);
+				}
+			}
+			if (!rebuilds.isEmpty()) {
+				rebuild(reference, rebuilds);
+				for (final View view : rebuilds) {
+					if (isCheckpointed(view)) {
+						((CheckpointedViewStore) view.viewStore()).checkpoint(new Checkpoint(view.signature(), mark));
+						replays.put(view, mark);
+					}
+				}
+			}
+			for (final Map.Entry<View, Long> entry : replays.entrySet()) {
+				replay(reference, entry.getKey(), entry.getValue());
+			}
+		}
+
+		/**
+		 * @param reference
+		 *            entity class reference of view
+		 * @param view
+		 * @return checkpoint from which view can be replayed, or null if it
+		 *         must be rebuilt.
+		 */
+		private Checkpoint checkpoint(final Reference reference, final View view) {
+			if (!isCheckpointed(view)) {
+				return null;
+			}
+			final Checkpoint checkpoint = ((CheckpointedViewStore) view.viewStore()).checkpoint();
+			if ((checkpoint == null) || !checkpoint.getSignature().equals(view.signature())) {
+				logger.info(StringUtils.format("view '%s' definition changed", view.name()));
+				return null;
+			}
+			if (checkpoint.getSequence() > changeLog.lastSequence()) {
+				logger.info(StringUtils.format("view '%s' is ahead of change log", view.name()));
+				return null;
+			}
+			final List<Change> next = changeLog.read(checkpoint.getSequence() + 1, 1);
+			if (!next.isEmpty() && (next.get(0).getSequence() != (checkpoint.getSequence() + 1))) {
+				logger.info(StringUtils.format("changes of view '%s' were truncated", view.name()));
+				return null;
+			}
+			for (final Reference pending : changeLog.pending()) {
+				if (reference.equals(pending.getEntityClassReference())) {
+					logger.info(StringUtils.format("changes of view '%s' can be missing, '%s' is pending", view.name(), pending));
+					return null;
+				}
+			}
+			return checkpoint;
+		}
+
+		private boolean isCheckpointed(final View view) {
+			return (changeLog != null) && (view.viewStore() instanceof CheckpointedViewStore);
+		}
+
+		/**
+		 * Drop and compute specified views from all entities of their type.
+		 * Chunks are computed in parallel, with at most two pending chunks per
+		 * thread, and their items are written by calling thread.
+		 */
+		private void rebuild(final Reference reference, final List<View> views) {
+			for (final View view : views) {
+				view.viewStore().drop();
+			}
 			// loading information
 			final String entityClassName = reference.getEntityClassName();
 			final ClassInformation classInformation = ClassInformation.parse(entityClassName);
 			// loading collection
-			final Iterable<Reference> iterable = entityManager.find(classInformation.getType());
-			for (final Reference ref : iterable) {
+			final List<Reference> references = Lists.newArrayList(entityManager.find(classInformation.getType()));
+			final Progress progress = new Progress(entityClassName, references.size());
+			final long[] logged = new long[1];
+			final BoundedCompletionService<Chunk> completionService = new BoundedCompletionService<Chunk>(executorService, 2 * parallelism, new Handler<Chunk>() {
+				@Override
+				public void handle(final Chunk chunk) {
+					write(views, chunk, progress);
+					logged[0] = log(progress, logged[0]);
+				}
+			});
+			try {
+				for (final List<Reference> chunk : Lists.partition(references, CHUNK_SIZE)) {
+					completionService.submit(new Chunk(views, chunk));
+				}
+				completionService.complete();
+			} finally {
+				// let submitted chunks terminate before leaving
+				completionService.close();
+			}
+			logger.info(StringUtils.format("rebuilt %s", progress));
+		}
+
+		/**
+		 * Write items of specified chunk in view stores.
+		 */
+		private void write(final List<View> views, final Chunk chunk, final Progress progress) {
+			for (int i = 0; i < views.size(); i++) {
+				final View view = views.get(i);
+				for (final Map.Entry<Reference, List<Item>> entry : chunk.items.get(i).entrySet()) {
+					try {
+						view.viewStore().update(entry.getKey(), entry.getValue());
+					} catch (final Throwable throwable) {
+						logger.error(StringUtils.format("Update view '%s', entity '%s': %s", view.name(), entry.getKey(), throwable.getMessage()), throwable);
+					}
+				}
+			}
+			progress.processed(chunk.references.size());
+		}
+
+		/**
+		 * Log progress if last log is older than {@link #LOG_PERIOD}.
+		 * 
+		 * @return elapsed time of last log
+		 */
+		private long log(final Progress progress, final long logged) {
+			final long elapsed = progress.elapsed();
+			if ((elapsed - logged) >= LOG_PERIOD) {
+				logger.info(StringUtils.format("rebuilding %s", progress));
+				return elapsed;
+			}
+			return logged;
+		}
+
+		/**
+		 * Apply changes of view type after specified sequence, and move
+		 * checkpoint after each batch.
+		 */
+		private void replay(final Reference reference, final View view, final long sequence) {
+			final CheckpointedViewStore viewStore = (CheckpointedViewStore) view.viewStore();
+			final List<View> views = Lists.newArrayList(view);
+			long next = sequence + 1;
+			int applied = 0;
+			List<Change> changes = null;
+			while (!(changes = changeLog.read(next, BATCH_SIZE)).isEmpty()) {
+				for (final Change change : changes) {
+					if (reference.equals(change.getReference().getEntityClassReference())) {
+						try {
+							if (change.getKind() == Kind.REMOVED) {
+								view.remove(change.getReference());
+							} else {
+								compute(views, References.discover(change.entity(entityManager.getEntityMapper())));
+							}
+							applied++;
+						} catch (final Throwable throwable) {
+							logger.error(StringUtils.format("ViewManagerControler replay error '%s': %s", change.getReference(), throwable.getMessage()), throwable);
+						}
+					}
+				}
+				next = changes.get(changes.size() - 1).getSequence() + 1;
+				viewStore.checkpoint(new Checkpoint(view.signature(), next - 1));
+			}
+			logger.info(StringUtils.format("view '%s': %s changes replayed after %s", view.name(), applied, sequence));
+		}
+
+		private void compute(final List<View> views, final Entity entity) {
+			for (final View view : views) {
 				try {
-					final Entity entity = References.discover(entityManager.find(ref));
-					viewManager.update(entity);
+					view.compute(entity);
 				} catch (final Throwable throwable) {
-					logger.error(StringUtils.format("ViewManagerControler feed error '%s': %s", ref, throwable.getMessage()), throwable);
+					logger.error(StringUtils.format("Compute view '%s', entity '%s': %s", view.name(), entity.identity(), throwable.getMessage()), throwable);
+				}
+			}
+		}
+
+		/**
+		 * Chunk load a set of entities and compute their items for each view,
+		 * without updating any {@link ViewStore}.
+		 */
+		private class Chunk implements Callable<Chunk> {
+
+			private final List<View> views;
+
+			private final List<Reference> references;
+
+			/**
+			 * Computed items per view, in same order than views.
+			 */
+			private final List<Map<Reference, List<Item>>> items;
+
+			public Chunk(final List<View> views, final List<Reference> references) {
+				super();
+				this.views = views;
+				this.references = references;
+				items = Lists.newArrayListWithCapacity(views.size());
+				for (int i = 0; i < views.size(); i++) {
+					final Map<Reference, List<Item>> map = Maps.newLinkedHashMap();
+					items.add(map);
+				}
+			}
+
+			@Override
+			public Chunk call() throws Exception {
+				for (final Reference ref : references) {
+					try {
+						final Entity entity = References.discover(entityManager.find(ref));
+						for (int i = 0; i < views.size(); i++) {
+							final View view = views.get(i);
+							try {
+								final List<Item> computed = view.items(entity);
+								if (!computed.isEmpty()) {
+									items.get(i).put(entity.identity(), computed);
+								}
+							} catch (final Throwable throwable) {
+								logger.error(StringUtils.format("Compute view '%s', entity '%s': %s", view.name(), ref, throwable.getMessage()), throwable);
+							}
+						}
+					} catch (final Throwable throwable) {
+						logger.error(StringUtils.format("ViewManagerControler feed error '%s': %s", ref, throwable.getMessage()), throwable);
+					}
 				}
+				return this;
 			}
 		}
 	}
@@ -52,6 +52,18 @@ public interface ViewStore {
 	 */
 	void update(Reference reference, List<Item> items);
 
+	/**
+	 * Replace all items of specified entity in a single update: readers see
+	 * previous or new items, never none of them.
+	 * 
+	 * @param reference
+	 *            identity of entity which initiate this update.
+	 * @param items
+	 *            computed items, could be null or empty to remove items of
+	 *            entity
+	 */
+	void replace(Reference reference, List<Item> items);
+
 	/**
 	 * Drop all item in this {@link ViewStore}.
 	 */
@@ -0,0 +1,673 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.view.file;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import org.intelligentsia.dowsers.core.DowsersException;
+import org.intelligentsia.dowsers.core.Handler;
+import org.intelligentsia.dowsers.core.serializers.Serializer;
+import org.intelligentsia.dowsers.core.serializers.Serializers;
+import org.intelligentsia.keystone.kernel.api.StringUtils;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Closeables;
+import com.intelligentsia.dowsers.entity.reference.Reference;
+import com.intelligentsia.dowsers.entity.view.CheckpointedViewStore;
+import com.intelligentsia.dowsers.entity.view.ViewManagerControler;
+import com.intelligentsia.dowsers.entity.view.processor.Item;
+
+/**
+ * <code>MappedViewStore</code> implements a {@link CheckpointedViewStore} in a
+ * directory of memory mapped row pages (see {@link RowPage}).
+ * 
+ * <ul>
+ * <li>Rows are appended in active page, a new page is allocated when it is
+ * full. A removed row is marked as deleted in place.</li>
+ * <li>Rows are indexed by entity identity in memory. Index is rebuilt on open
+ * by scanning pages: only references and row locations are held in memory,
+ * items stay on disk.</li>
+ * <li>A page whose live rows are less than a quarter of its content is
+ * compacted: live rows are copied in active page, then page is deleted. A row
+ * keeps its identifier when copied, so a copy and its original found on open
+ * after a crash are not duplicated.</li>
+ * <li>{@link #checkpoint(Checkpoint)} flushes modified pages, then writes
+ * durably the checkpoint (temporary file renamed), so a checkpoint is a
+ * watermark: updates before it are on disk. Updates after last checkpoint
+ * could be lost by a crash, and are replayed by
+ * {@link ViewManagerControler}.</li>
+ * </ul>
+ * 
+ * <p>
+ * Item attributes are serialized with a {@link Serializer} of
+ * {@link HashMap}, java serialization by default: attribute values must then
+ * be {@link java.io.Serializable}.
+ * </p>
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
+ */
+public class MappedViewStore implements CheckpointedViewStore, Iterable<Item>, Closeable {
+
+	/**
+	 * Default page size: 4 MB.
+	 */
+	public static final int DEFAULT_PAGE_SIZE = 4 * 1024 * 1024;
+
+	private static final String CHECKPOINT = "checkpoint";
+	private static final String TEMPORARY = ".tmp";
+	private static final int MAGIC = 0x44565743;
+	private static final double COMPACT_RATIO = 0.25;
+
+	private final File directory;
+
+	private final int pageSize;
+
+	@SuppressWarnings("rawtypes")
+	private final Serializer<HashMap> serializer;
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private final TreeMap<Long, RowPage> pages = Maps.newTreeMap();
+
+	/**
+	 * Pages modified since last checkpoint.
+	 */
+	private final Set<RowPage> dirty = Sets.newHashSet();
+
+	/**
+	 * Rows per entity identity.
+	 */
+	private final Map<Reference, List<Location>> index = Maps.newHashMap();
+
+	private RowPage active;
+
+	private long nextRow = 0;
+
+	private int size = 0;
+
+	private Checkpoint checkpoint;
+
+	/**
+	 * Build a new instance of <code>MappedViewStore</code> with default page
+	 * size and java serialization.
+	 * 
+	 * @param directory
+	 * @throws NullPointerException
+	 *             if directory is null
+	 * @throws IllegalStateException
+	 *             if directory is not a directory of if it cannot be created
+	 * @throws DowsersException
+	 *             if pages cannot be read
+	 */
+	public MappedViewStore(final File directory) throws NullPointerException, IllegalStateException, DowsersException {
+		this(directory, DEFAULT_PAGE_SIZE);
+	}
+
+	/**
+	 * Build a new instance of <code>MappedViewStore</code> with java
+	 * serialization.
+	 * 
+	 * @param directory
+	 * @param pageSize
+	 *            page size in bytes
+	 * @throws NullPointerException
+	 *             if directory is null
+	 * @throws IllegalArgumentException
+	 *             if pageSize is too small
+	 * @throws IllegalStateException
+	 *             if directory is not a directory of if it cannot be created
+	 * @throws DowsersException
+	 *             if pages cannot be read
+	 */
+	public MappedViewStore(final File directory, final int pageSize) throws NullPointerException, IllegalArgumentException, IllegalStateException, DowsersException {
+		this(directory, pageSize, Serializers.newJavaSerializer(HashMap.class));
+	}
+
+	/**
+	 * Build a new instance of <code>MappedViewStore</code>.
+	 * 
+	 * @param directory
+	 * @param pageSize
+	 *            page size in bytes
+	 * @param serializer
+	 *            serializer of item attributes
+	 * @throws NullPointerException
+	 *             if directory or serializer is null
+	 * @throws IllegalArgumentException
+	 *             if pageSize is too small
+	 * @throws IllegalStateException
+	 *             if directory is not a directory of if it cannot be created
+	 * @throws DowsersException
+	 *             if pages cannot be read
+	 */
+	public MappedViewStore(final File directory, final int pageSize, @SuppressWarnings("rawtypes") final Serializer<HashMap> serializer) throws NullPointerException, IllegalArgumentException,
+			IllegalStateException, DowsersException {
+		super();
+		this.directory = Preconditions.checkNotNull(directory);
+		Preconditions.checkArgument(pageSize >= 1024, "page size too small");
+		this.pageSize = pageSize;
+		this.serializer = Preconditions.checkNotNull(serializer);
+		if (!directory.exists()) {
+			if (!directory.mkdirs()) {
+				throw new IllegalStateException(StringUtils.format("unable to create directory '%s'", directory));
+			}
+		}
+		if (!directory.isDirectory()) {
+			throw new IllegalStateException(StringUtils.format("'%s' is not a directory", directory));
+		}
+		load();
+	}
+
+	@Override
+	public void update(final Reference reference, final Item item) {
+		if (item == null) {
+			remove(reference);
+		} else {
+			update(reference, ImmutableList.of(item));
+		}
+	}
+
+	@Override
+	public void update(final Reference reference, final List<Item> items) {
+		if (items == null) {
+			remove(reference);
+			return;
+		}
+		Preconditions.checkNotNull(reference);
+		final byte[] key = reference.toString().getBytes(Charsets.UTF_8);
+		final List<byte[]> payloads = Lists.newArrayListWithCapacity(items.size());
+		for (final Item item : items) {
+			payloads.add(serialize(item));
+		}
+		lock.writeLock().lock();
+		try {
+			add(reference, key, payloads);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void replace(final Reference reference, final List<Item> items) {
+		Preconditions.checkNotNull(reference);
+		final byte[] key = reference.toString().getBytes(Charsets.UTF_8);
+		final List<byte[]> payloads = Lists.newArrayList();
+		if (items != null) {
+			for (final Item item : items) {
+				payloads.add(serialize(item));
+			}
+		}
+		lock.writeLock().lock();
+		try {
+			delete(reference);
+			if (!payloads.isEmpty()) {
+				add(reference, key, payloads);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void remove(final Reference identity) {
+		lock.writeLock().lock();
+		try {
+			delete(identity);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Append rows of specified payloads after rows of reference.
+	 */
+	private void add(final Reference reference, final byte[] key, final List<byte[]> payloads) {
+		List<Location> locations = index.get(reference);
+		if (locations == null) {
+			locations = Lists.newArrayListWithCapacity(payloads.size());
+			index.put(reference, locations);
+		}
+		for (final byte[] payload : payloads) {
+			locations.add(append(nextRow++, key, payload));
+			size++;
+		}
+	}
+
+	/**
+	 * Delete rows of reference, and compact modified pages with too many
+	 * deleted rows.
+	 */
+	private void delete(final Reference reference) {
+		final List<Location> locations = index.remove(reference);
+		if (locations != null) {
+			final Set<RowPage> modified = Sets.newHashSet();
+			for (final Location location : locations) {
+				location.page.delete(location.offset);
+				modified.add(location.page);
+				size--;
+			}
+			dirty.addAll(modified);
+			for (final RowPage page : modified) {
+				if ((page != active) && (page.liveRatio() < COMPACT_RATIO)) {
+					compact(page);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void drop() {
+		lock.writeLock().lock();
+		try {
+			for (final RowPage page : pages.values()) {
+				page.delete();
+			}
+			pages.clear();
+			dirty.clear();
+			index.clear();
+			size = 0;
+			checkpoint = null;
+			final File file = new File(directory, CHECKPOINT);
+			if (file.exists() && !file.delete()) {
+				throw new DowsersException(StringUtils.format("unable to delete '%s'", file));
+			}
+			active = newPage(0);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public Checkpoint checkpoint() {
+		lock.readLock().lock();
+		try {
+			return checkpoint;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void checkpoint(final Checkpoint checkpoint) throws NullPointerException, DowsersException {
+		Preconditions.checkNotNull(checkpoint);
+		lock.writeLock().lock();
+		try {
+			sync();
+			final byte[] signature = checkpoint.getSignature().getBytes(Charsets.UTF_8);
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final DataOutputStream output = new DataOutputStream(bytes);
+			output.writeInt(MAGIC);
+			output.writeInt(signature.length);
+			output.write(signature);
+			output.writeLong(checkpoint.getSequence());
+			final CRC32 crc = new CRC32();
+			crc.update(bytes.toByteArray());
+			output.writeInt((int) crc.getValue());
+			output.close();
+			write(new File(directory, CHECKPOINT), bytes.toByteArray());
+			this.checkpoint = checkpoint;
+		} catch (final IOException e) {
+			throw new DowsersException(e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return number of items.
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return size;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return number of pages.
+	 */
+	public int pageCount() {
+		lock.readLock().lock();
+		try {
+			return pages.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param reference
+	 *            identity of an entity
+	 * @return items of specified entity.
+	 */
+	public List<Item> items(final Reference reference) {
+		lock.readLock().lock();
+		try {
+			final List<Location> locations = index.get(reference);
+			if (locations == null) {
+				return ImmutableList.of();
+			}
+			final List<Item> items = Lists.newArrayListWithCapacity(locations.size());
+			for (final Location location : locations) {
+				items.add(deserialize(location.page.read(location.offset).payload));
+			}
+			return items;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Read all items, page after page, without loading them in memory.
+	 * Updates wait for end of scan.
+	 * 
+	 * @param handler
+	 *            {@link Handler} of each item
+	 */
+	public void scan(final Handler<Item> handler) {
+		Preconditions.checkNotNull(handler);
+		lock.readLock().lock();
+		try {
+			for (final RowPage page : pages.values()) {
+				page.scan(new RowPage.Visitor() {
+					@Override
+					public void visit(final RowPage.Row row) {
+						if (row.state == RowPage.LIVE) {
+							handler.handle(deserialize(row.payload));
+						}
+					}
+				});
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return all items.
+	 */
+	public Collection<Item> items() {
+		final List<Item> items = Lists.newArrayList();
+		scan(new Handler<Item>() {
+			@Override
+			public void handle(final Item instance) {
+				items.add(instance);
+			}
+		});
+		return items;
+	}
+
+	@Override
+	public Iterator<Item> iterator() {
+		return items().iterator();
+	}
+
+	/**
+	 * Flush all pages, and close them. Checkpoint is not moved.
+	 */
+	@Override
+	public void close() {
+		lock.writeLock().lock();
+		try {
+			for (final RowPage page : pages.values()) {
+				page.sync();
+				page.close();
+			}
+			pages.clear();
+			dirty.clear();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return directory.getPath();
+	}
+
+	/**
+	 * Open pages, rebuild index and read checkpoint.
+	 */
+	private void load() throws DowsersException {
+		final String[] names = directory.list(new FilenameFilter() {
+			@Override
+			public boolean accept(final File dir, final String name) {
+				return RowPage.isPage(name);
+			}
+		});
+		Arrays.sort(names);
+		final Set<Long> rows = Sets.newHashSet();
+		try {
+			for (final String name : names) {
+				final RowPage page = RowPage.open(new File(directory, name));
+				pages.put(page.id(), page);
+				page.recover(new RowPage.Visitor() {
+					@Override
+					public void visit(final RowPage.Row row) {
+						nextRow = Math.max(nextRow, row.row + 1);
+						if (row.state == RowPage.LIVE) {
+							if (rows.add(row.row)) {
+								final Reference reference = Reference.parseString(row.reference);
+								List<Location> locations = index.get(reference);
+								if (locations == null) {
+									locations = Lists.newArrayList();
+									index.put(reference, locations);
+								}
+								locations.add(new Location(page, row.offset));
+								size++;
+							} else {
+								// copy of a compacted page not deleted before a crash
+								page.delete(row.offset);
+								dirty.add(page);
+							}
+						}
+					}
+				});
+			}
+		} catch (final IOException e) {
+			close();
+			throw new DowsersException(e);
+		}
+		active = pages.isEmpty() ? newPage(0) : pages.lastEntry().getValue();
+		checkpoint = readCheckpoint();
+	}
+
+	private Checkpoint readCheckpoint() throws DowsersException {
+		final File file = new File(directory, CHECKPOINT);
+		if (!file.exists()) {
+			return null;
+		}
+		DataInputStream input = null;
+		try {
+			final byte[] bytes = new byte[(int) file.length()];
+			input = new DataInputStream(new FileInputStream(file));
+			input.readFully(bytes);
+			final CRC32 crc = new CRC32();
+			crc.update(bytes, 0, bytes.length - 4);
+			final DataInputStream data = new DataInputStream(new ByteArrayInputStream(bytes));
+			if ((bytes.length < 20) || (data.readInt() != MAGIC)) {
+				return null;
+			}
+			final byte[] signature = new byte[data.readInt()];
+			data.readFully(signature);
+			final long sequence = data.readLong();
+			if (data.readInt() != (int) crc.getValue()) {
+				return null;
+			}
+			return new Checkpoint(new String(signature, Charsets.UTF_8), sequence);
+		} catch (final IOException e) {
+			// corrupted: view will be rebuilt
+			return null;
+		} catch (final RuntimeException e) {
+			return null;
+		} finally {
+			Closeables.closeQuietly(input);
+		}
+	}
+
+	private Location append(final long row, final byte[] key, final byte[] payload) {
+		int offset = active.append(row, key, payload);
+		if (offset < 0) {
+			active = newPage(Math.max(pageSize, RowPage.sizeOf(key.length, payload.length)));
+			offset = active.append(row, key, payload);
+		}
+		dirty.add(active);
+		return new Location(active, offset);
+	}
+
+	/**
+	 * Copy live rows of specified page in active page, then delete it.
+	 */
+	private void compact(final RowPage page) {
+		page.scan(new RowPage.Visitor() {
+			@Override
+			public void visit(final RowPage.Row row) {
+				if (row.state == RowPage.LIVE) {
+					final Reference reference = Reference.parseString(row.reference);
+					final byte[] key = row.reference.getBytes(Charsets.UTF_8);
+					final Location location = append(row.row, key, row.payload);
+					final List<Location> locations = index.get(reference);
+					for (int i = 0; i < locations.size(); i++) {
+						if ((locations.get(i).page == page) && (locations.get(i).offset == row.offset)) {
+							locations.set(i, location);
+						}
+					}
+				}
+			}
+		});
+		// copies must be durable before original is deleted
+		sync();
+		pages.remove(page.id());
+		page.delete();
+	}
+
+	/**
+	 * Flush modified pages.
+	 */
+	private void sync() {
+		for (final RowPage page : dirty) {
+			if (pages.containsKey(page.id())) {
+				page.sync();
+			}
+		}
+		dirty.clear();
+	}
+
+	/**
+	 * @param capacity
+	 *            capacity of page, 0 for default page size
+	 */
+	private RowPage newPage(final int capacity) throws DowsersException {
+		final long id = pages.isEmpty() ? 0 : pages.lastKey() + 1;
+		try {
+			final RowPage page = RowPage.create(directory, id, capacity > 0 ? capacity : pageSize);
+			pages.put(id, page);
+			return page;
+		} catch (final IOException e) {
+			throw new DowsersException(e);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private byte[] serialize(final Item item) throws DowsersException {
+		try {
+			return serializer.serialize(new HashMap<String, Object>(item.getAttributes()));
+		} catch (final Exception e) {
+			throw new DowsersException("unable to serialize item", e);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private Item deserialize(final byte[] payload) throws DowsersException {
+		try {
+			return new Item(serializer.deserialize(payload));
+		} catch (final Exception e) {
+			throw new DowsersException("unable to deserialize item", e);
+		}
+	}
+
+	/**
+	 * Write specified bytes in a temporary file, flush it, and rename it to
+	 * specified file.
+	 */
+	private static void write(final File file, final byte[] bytes) throws DowsersException {
+		final File temporary = new File(file.getParentFile(), file.getName() + TEMPORARY);
+		FileOutputStream output = null;
+		try {
+			output = new FileOutputStream(temporary);
+			output.write(bytes);
+			output.getFD().sync();
+			output.close();
+			output = null;
+			if (!temporary.renameTo(file)) {
+				// some platforms do not rename on an existing file
+				file.delete();
+				if (!temporary.renameTo(file)) {
+					throw new DowsersException(StringUtils.format("unable to rename '%s'", temporary));
+				}
+			}
+		} catch (final IOException e) {
+			throw new DowsersException(e);
+		} finally {
+			Closeables.closeQuietly(output);
+		}
+	}
+
+	/**
+	 * Location of a row.
+	 */
+	private static final class Location {
+		final RowPage page;
+		final int offset;
+
+		Location(final RowPage page, final int offset) {
+			super();
+			this.page = page;
+			this.offset = offset;
+		}
+	}
+}
@@ -0,0 +1,337 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.view.file;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.io.Closeables;
+
+/**
+ * RowPage is a memory mapped file of rows of a {@link MappedViewStore}.
+ * 
+ * <p>
+ * Each row is laid out as:
+ * </p>
+ * <code>
+ * [int length][int crc32][byte state][long row][short reference length][reference][payload]
+ * </code>
+ * <p>
+ * where length count all bytes after crc32, and crc32 is computed on all bytes
+ * after state. State is the only part updated in place, when a row is deleted.
+ * A zero length mark the end of written data, a row with an invalid checksum
+ * is considered as a torn write and ends the page too.
+ * </p>
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
+ */
+final class RowPage implements Closeable {
+
+	/**
+	 * State of a live row.
+	 */
+	static final byte LIVE = 1;
+	/**
+	 * State of a deleted row.
+	 */
+	static final byte DELETED = 2;
+	/**
+	 * Size of row header.
+	 */
+	static final int HEADER = 4 + 4 + 1 + 8 + 2;
+
+	private static final String PREFIX = "rows-";
+	private static final String SUFFIX = ".page";
+
+	private final long id;
+	private final File file;
+	private final RandomAccessFile randomAccessFile;
+	private final MappedByteBuffer buffer;
+	private final int capacity;
+	/**
+	 * End of written data.
+	 */
+	private int position;
+	/**
+	 * Bytes of live rows.
+	 */
+	private long live;
+
+	private RowPage(final long id, final File file, final int capacity) throws IOException {
+		super();
+		this.id = id;
+		this.file = file;
+		this.capacity = capacity;
+		randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			if (randomAccessFile.length() < capacity) {
+				randomAccessFile.setLength(capacity);
+			}
+			buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+		} catch (final IOException e) {
+			Closeables.closeQuietly(randomAccessFile);
+			throw e;
+		}
+	}
+
+	/**
+	 * Create a new empty page.
+	 * 
+	 * @param directory
+	 *            store directory
+	 * @param id
+	 *            page identifier
+	 * @param capacity
+	 *            capacity in bytes
+	 * @return a {@link RowPage} instance
+	 * @throws IOException
+	 */
+	static RowPage create(final File directory, final long id, final int capacity) throws IOException {
+		return new RowPage(id, new File(directory, name(id)), capacity);
+	}
+
+	/**
+	 * Open an existing page. Caller must call {@link #recover(Visitor)} before
+	 * appending new rows.
+	 * 
+	 * @param file
+	 *            page file
+	 * @return a {@link RowPage} instance
+	 * @throws IOException
+	 */
+	static RowPage open(final File file) throws IOException {
+		Preconditions.checkArgument(file.length() <= Integer.MAX_VALUE, "page too large");
+		return new RowPage(parse(file.getName()), file, (int) file.length());
+	}
+
+	static boolean isPage(final String name) {
+		return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+	}
+
+	static String name(final long id) {
+		return new StringBuilder(PREFIX).append(String.format("%016d", id)).append(SUFFIX).toString();
+	}
+
+	static long parse(final String name) {
+		return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+	}
+
+	/**
+	 * @return size of a row, plus end mark.
+	 */
+	static int sizeOf(final int reference, final int payload) {
+		return HEADER + reference + payload + 4;
+	}
+
+	/**
+	 * Append a live row.
+	 * 
+	 * @param row
+	 *            row identifier
+	 * @param reference
+	 *            reference bytes
+	 * @param payload
+	 *            payload bytes
+	 * @return row offset, or -1 if this page has not enough free space.
+	 */
+	int append(final long row, final byte[] reference, final byte[] payload) {
+		final int size = HEADER + reference.length + payload.length;
+		final int offset = position;
+		if ((offset + size + 4) > capacity) {
+			return -1;
+		}
+		final ByteBuffer target = buffer.duplicate();
+		target.position(offset + 9);
+		target.putLong(row).putShort((short) reference.length).put(reference).put(payload);
+		final CRC32 crc = new CRC32();
+		crc.update(toArray(offset + 9, size - 9));
+		target.position(offset);
+		target.putInt(size - 8).putInt((int) crc.getValue()).put(LIVE);
+		position = offset + size;
+		buffer.putInt(position, 0);
+		live += size;
+		return offset;
+	}
+
+	/**
+	 * Mark row at specified offset as deleted.
+	 * 
+	 * @param offset
+	 */
+	void delete(final int offset) {
+		if (buffer.get(offset + 8) == LIVE) {
+			buffer.put(offset + 8, DELETED);
+			live -= buffer.getInt(offset) + 8;
+		}
+	}
+
+	/**
+	 * Read row at specified offset.
+	 * 
+	 * @param offset
+	 * @return a {@link Row}
+	 */
+	Row read(final int offset) {
+		final ByteBuffer source = buffer.duplicate();
+		source.position(offset);
+		final int length = source.getInt();
+		source.getInt();
+		final byte state = source.get();
+		final long row = source.getLong();
+		final byte[] reference = new byte[source.getShort() & 0xFFFF];
+		source.get(reference);
+		final byte[] payload = new byte[length - 11 - reference.length];
+		source.get(payload);
+		return new Row(state, row, offset, length + 8, new String(reference, Charsets.UTF_8), payload);
+	}
+
+	/**
+	 * Scan all rows of this page from the beginning, stopping on first empty
+	 * or corrupted row. Next append will occur after last valid row.
+	 * 
+	 * @param visitor
+	 *            {@link Visitor} instance
+	 */
+	void recover(final Visitor visitor) {
+		int offset = 0;
+		live = 0;
+		while ((offset + HEADER) <= capacity) {
+			final int length = buffer.getInt(offset);
+			if ((length < (HEADER - 8)) || ((offset + 8 + length) > capacity)) {
+				break;
+			}
+			final CRC32 crc = new CRC32();
+			crc.update(toArray(offset + 9, length - 1));
+			if (buffer.getInt(offset + 4) != (int) crc.getValue()) {
+				break;
+			}
+			final Row row = read(offset);
+			offset += row.size;
+			if (row.state == LIVE) {
+				live += row.size;
+			}
+			visitor.visit(row);
+		}
+		position = offset;
+		// clear a possibly torn tail, so that next append is well terminated
+		if ((offset + 4) <= capacity) {
+			buffer.putInt(offset, 0);
+		}
+	}
+
+	/**
+	 * Visit all rows written in this page.
+	 * 
+	 * @param visitor
+	 *            {@link Visitor} instance
+	 */
+	void scan(final Visitor visitor) {
+		final int end = position;
+		int offset = 0;
+		while (offset < end) {
+			final Row row = read(offset);
+			offset += row.size;
+			visitor.visit(row);
+		}
+	}
+
+	/**
+	 * Flush written data on disk.
+	 */
+	void sync() {
+		buffer.force();
+	}
+
+	/**
+	 * @return ratio of live bytes in this page.
+	 */
+	double liveRatio() {
+		return position == 0 ? 1 : (double) live / position;
+	}
+
+	long id() {
+		return id;
+	}
+
+	/**
+	 * Close and delete this page.
+	 */
+	void delete() {
+		close();
+		if (!file.delete()) {
+			file.deleteOnExit();
+		}
+	}
+
+	@Override
+	public void close() {
+		Closeables.closeQuietly(randomAccessFile);
+	}
+
+	@Override
+	public String toString() {
+		return file.getName();
+	}
+
+	private byte[] toArray(final int offset, final int length) {
+		final byte[] result = new byte[length];
+		final ByteBuffer source = buffer.duplicate();
+		source.position(offset);
+		source.get(result);
+		return result;
+	}
+
+	/**
+	 * Row.
+	 */
+	static final class Row {
+		final byte state;
+		final long row;
+		final int offset;
+		final int size;
+		final String reference;
+		final byte[] payload;
+
+		Row(final byte state, final long row, final int offset, final int size, final String reference, final byte[] payload) {
+			super();
+			this.state = state;
+			this.row = row;
+			this.offset = offset;
+			this.size = size;
+			this.reference = reference;
+			this.payload = payload;
+		}
+	}
+
+	/**
+	 * Visitor of {@link Row}.
+	 */
+	interface Visitor {
+		void visit(Row row);
+	}
+}
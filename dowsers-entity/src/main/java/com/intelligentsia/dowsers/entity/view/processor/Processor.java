@@ -25,6 +25,13 @@ import com.intelligentsia.dowsers.entity.Entity;
 /**
  * Processor.
  * 
+ * <p>
+ * {@link #toString()} describes definition of processor, and must be stable
+ * across restarts: it is part of signature of a view. A predicate of a
+ * {@link Filter} without its own <code>toString()</code> gives a new signature
+ * on each start, and its view is rebuilt each time.
+ * </p>
+ * 
  * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
  * 
  */
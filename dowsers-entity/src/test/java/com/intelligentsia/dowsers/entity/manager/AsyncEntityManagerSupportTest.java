@@ -0,0 +1,113 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.manager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.intelligentsia.dowsers.entity.EntityFactoryProvider;
+import com.intelligentsia.dowsers.entity.model.MetaDataUtil;
+import com.intelligentsia.dowsers.entity.model.Person;
+import com.intelligentsia.dowsers.entity.reference.Reference;
+import com.intelligentsia.dowsers.entity.reference.References;
+import com.intelligentsia.dowsers.entity.serializer.EntityMapper;
+import com.intelligentsia.dowsers.entity.store.EntityNotFoundException;
+import com.intelligentsia.dowsers.entity.store.ExecutorAsyncEntityStore;
+import com.intelligentsia.dowsers.entity.store.memory.InMemoryEntityStore;
+
+/**
+ * <code>AsyncEntityManagerSupportTest</code>.
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com">Jerome Guibert</a>
+ */
+public class AsyncEntityManagerSupportTest {
+
+	private ExecutorAsyncEntityStore entityStore;
+
+	private AsyncEntityManager entityManager;
+
+	private final List<String> events = Collections.synchronizedList(Lists.<String> newArrayList());
+
+	@Before
+	public void initialize() {
+		final EntityMapper entityMapper = new EntityMapper(MetaDataUtil.getMetaEntityContextProvider());
+		entityStore = new ExecutorAsyncEntityStore(new InMemoryEntityStore(entityMapper), 2, 16);
+		entityManager = new AsyncEntityManagerSupport(new EntityFactoryProvider(MetaDataUtil.getMetaEntityContextProvider()), entityStore, entityMapper, new EntityManager.Listener() {
+
+			@Override
+			public <T> void entityStored(final T entity) {
+				events.add("stored");
+			}
+
+			@Override
+			public <T> void entityRemoved(final T entity) {
+				assertTrue(entity instanceof Reference);
+				events.add("removed");
+			}
+
+			@Override
+			public <T> void entityInstantiated(final T entity) {
+				events.add("instantiated");
+			}
+
+			@Override
+			public <T> void entityFinded(final T entity) {
+				events.add("finded");
+			}
+		});
+	}
+
+	@After
+	public void close() {
+		entityStore.close();
+	}
+
+	@Test
+	public void testLifeCycle() throws InterruptedException, ExecutionException {
+		final Person person = entityManager.newInstance(Person.class);
+		person.setFirstName("Mario");
+		final Reference reference = References.identify(person);
+		// listener is notified before future completes
+		entityManager.store(person).get();
+		assertEquals(Lists.newArrayList("instantiated", "stored"), events);
+		assertEquals("Mario", entityManager.<Person> find(reference).get().getFirstName());
+		assertEquals(1, entityManager.findAll(Person.class, Lists.newArrayList(reference)).get().size());
+		entityManager.remove(person).get();
+		assertEquals(Lists.newArrayList("instantiated", "stored", "finded", "finded", "removed"), events);
+		try {
+			entityManager.find(Person.class, reference).get();
+			fail();
+		} catch (final ExecutionException e) {
+			assertTrue(e.getCause() instanceof EntityNotFoundException);
+		}
+		assertEquals(5, events.size());
+	}
+
+}
@@ -0,0 +1,160 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.intelligentsia.dowsers.entity.model.Person;
+import com.intelligentsia.dowsers.entity.reference.Reference;
+import com.intelligentsia.dowsers.entity.reference.References;
+import com.intelligentsia.dowsers.entity.store.btree.BTreeEntityStore;
+
+/**
+ * <code>BTreeEntityStoreTest</code>.
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com">Jerome Guibert</a>
+ * 
+ */
+public class BTreeEntityStoreTest extends StoreBaseTest {
+
+	private File file;
+
+	@Override
+	public EntityStore instanciateEntityStore() {
+		try {
+			file = File.createTempFile("dowsers", ".btree");
+		} catch (final IOException e) {
+			throw new IllegalStateException(e);
+		}
+		file.delete();
+		file.deleteOnExit();
+		return new BTreeEntityStore(file, entityMapper, 16);
+	}
+
+	@After
+	public void close() {
+		((BTreeEntityStore) entityStore).close();
+		file.delete();
+	}
+
+	@Test
+	public void testSplitAndRangeScan() {
+		final List<Reference> references = Lists.newArrayList();
+		final List<Person> persons = Lists.newArrayList();
+		for (int i = 0; i < 1000; i++) {
+			final Person person = getMario("Fusco" + i);
+			persons.add(person);
+			references.add(References.identify(person));
+		}
+		entityStore.storeAll(persons.subList(0, 500));
+		for (final Person person : persons.subList(500, 1000)) {
+			entityStore.store(person);
+		}
+		final List<Reference> found = Lists.newArrayList(entityStore.find(Person.class));
+		assertEquals(1000, found.size());
+		assertTrue(found.containsAll(references));
+		// keys are sorted
+		final List<Reference> sorted = Lists.newArrayList(found);
+		Collections.sort(sorted);
+		assertEquals(sorted, found);
+		// remove half and reuse free pages
+		entityStore.removeAll(references.subList(0, 500));
+		assertEquals(500, Lists.newArrayList(entityStore.find(Person.class)).size());
+		final int pageCount = ((BTreeEntityStore) entityStore).pageCount();
+		final List<Person> others = Lists.newArrayList();
+		for (int i = 0; i < 100; i++) {
+			others.add(getMario("Other" + i));
+		}
+		entityStore.storeAll(others);
+		assertEquals(pageCount, ((BTreeEntityStore) entityStore).pageCount());
+		assertEquals("Other42", entityStore.find(Person.class, References.identify(others.get(42))).getLastName());
+		entityStore.removeAll(references);
+		for (final Person person : others) {
+			entityStore.remove(person);
+		}
+		assertTrue(Lists.newArrayList(entityStore.find(Person.class)).isEmpty());
+	}
+
+	@Test
+	public void testOverflowAndReopen() {
+		final Person mario = getMario(Strings.repeat("Fusco", 4000));
+		final Person luigi = getMario("Luigi");
+		entityStore.store(mario);
+		entityStore.store(luigi);
+		((BTreeEntityStore) entityStore).close();
+		entityStore = new BTreeEntityStore(file, entityMapper);
+		assertEquals(mario.getLastName(), entityStore.find(Person.class, References.identify(mario)).getLastName());
+		assertEquals(1, Versions.version(entityStore.find(Person.class, References.identify(luigi))));
+		// overflow pages are freed on update
+		final int pageCount = ((BTreeEntityStore) entityStore).pageCount();
+		for (int i = 0; i < 5; i++) {
+			entityStore.store(mario);
+		}
+		assertTrue(((BTreeEntityStore) entityStore).pageCount() <= (pageCount + 6));
+	}
+
+	@Test
+	public void testTornHeader() throws IOException {
+		final Person mario = getMario("A");
+		entityStore.store(mario);
+		mario.setLastName("B");
+		entityStore.store(mario);
+		((BTreeEntityStore) entityStore).close();
+		// last commit was written in slot (transaction % 2): tear it
+		final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			for (int slot = 0; slot < 2; slot++) {
+				randomAccessFile.seek((slot * 4096) + 4);
+				final long transaction = randomAccessFile.readLong();
+				if (transaction == 3) {
+					randomAccessFile.seek((slot * 4096) + 12);
+					randomAccessFile.writeInt(12345);
+				}
+			}
+		} finally {
+			randomAccessFile.close();
+		}
+		entityStore = new BTreeEntityStore(file, entityMapper);
+		assertEquals("A", entityStore.find(Person.class, References.identify(mario)).getLastName());
+	}
+
+	@Test
+	public void testExclusiveFile() {
+		try {
+			new BTreeEntityStore(file, entityMapper);
+			fail();
+		} catch (final IllegalStateException e) {
+			// ok
+		}
+	}
+}
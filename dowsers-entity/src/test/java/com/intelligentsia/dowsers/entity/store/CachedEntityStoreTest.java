@@ -0,0 +1,255 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.intelligentsia.dowsers.entity.EntityDynamic;
+import com.intelligentsia.dowsers.entity.model.Person;
+import com.intelligentsia.dowsers.entity.reference.Reference;
+import com.intelligentsia.dowsers.entity.reference.References;
+import com.intelligentsia.dowsers.entity.store.memory.InMemoryEntityStore;
+
+/**
+ * <code>CachedEntityStoreTest</code>.
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com">Jerome Guibert</a>
+ * 
+ */
+public class CachedEntityStoreTest extends StoreBaseTest {
+
+	@Override
+	public EntityStore instanciateEntityStore() {
+		return new CachedEntityStore(new InMemoryEntityStore(entityMapper));
+	}
+
+	@Test
+	public void testTypeAwareKeys() {
+		final Person mario = getMario();
+		final Reference reference = References.identify(mario);
+		entityStore.store(mario);
+		assertTrue(entityStore.find(Person.class, reference) instanceof Person);
+		assertEquals(EntityDynamic.class, entityStore.find(EntityDynamic.class, reference).getClass());
+		assertTrue(entityStore.find(Person.class, reference) instanceof Person);
+		// update invalidate all types
+		mario.setFirstName("Bob");
+		entityStore.store(mario);
+		assertEquals("Bob", entityStore.find(EntityDynamic.class, reference).attribute("firstName"));
+		assertEquals("Bob", entityStore.find(Person.class, reference).getFirstName());
+	}
+
+	@Test
+	public void testNegativeCache() {
+		final AtomicInteger finds = new AtomicInteger();
+		final EntityStore cachedEntityStore = new CachedEntityStore(new InMemoryEntityStore(entityMapper) {
+			@Override
+			public <T> T find(final Class<T> expectedType, final Reference reference) throws EntityNotFoundException, NullPointerException, IllegalArgumentException {
+				finds.incrementAndGet();
+				return super.find(expectedType, reference);
+			}
+		});
+		final Person mario = getMario();
+		final Reference reference = References.identify(mario);
+		for (int i = 0; i < 3; i++) {
+			try {
+				cachedEntityStore.find(Person.class, reference);
+				fail();
+			} catch (final EntityNotFoundException e) {
+				// ok
+			}
+		}
+		assertEquals(1, finds.get());
+		assertTrue(cachedEntityStore.findAll(Person.class, Lists.newArrayList(reference)).isEmpty());
+		assertEquals(1, finds.get());
+		// store invalidate negative cache
+		cachedEntityStore.store(mario);
+		assertEquals("Mario", cachedEntityStore.find(Person.class, reference).getFirstName());
+		assertEquals(2, finds.get());
+	}
+
+	@Test
+	public void testLoadDuringWrite() {
+		final EntityStore[] cached = new EntityStore[1];
+		cached[0] = new CachedEntityStore(new InMemoryEntityStore(entityMapper) {
+			@Override
+			public <T> void store(final T entity) throws NullPointerException, ConcurrencyException, IllegalArgumentException {
+				// concurrent read of previous version
+				cached[0].findAll(Person.class, Lists.newArrayList(References.identify(entity)));
+				super.store(entity);
+			}
+
+			@Override
+			public <T> void storeAll(final Iterable<T> entities) throws NullPointerException, ConcurrencyException, IllegalArgumentException {
+				for (final T entity : entities) {
+					cached[0].findAll(Person.class, Lists.newArrayList(References.identify(entity)));
+				}
+				super.storeAll(entities);
+			}
+		});
+		final Person mario = getMario("A");
+		final Reference reference = References.identify(mario);
+		cached[0].storeAll(Lists.newArrayList(mario));
+		mario.setLastName("B");
+		cached[0].store(mario);
+		assertEquals("B", cached[0].find(Person.class, reference).getLastName());
+		mario.setLastName("C");
+		cached[0].storeAll(Lists.newArrayList(mario));
+		assertEquals("C", cached[0].find(Person.class, reference).getLastName());
+	}
+
+	@Test
+	public void testWriteDuringLoad() {
+		final AtomicBoolean writing = new AtomicBoolean();
+		final Person mario = getMario("A");
+		final Reference reference = References.identify(mario);
+		final EntityStore[] cached = new EntityStore[1];
+		cached[0] = new CachedEntityStore(new InMemoryEntityStore(entityMapper) {
+			@Override
+			public <T> T find(final Class<T> expectedType, final Reference reference) throws EntityNotFoundException, NullPointerException, IllegalArgumentException {
+				final T entity = super.find(expectedType, reference);
+				write();
+				return entity;
+			}
+
+			@Override
+			public <T> Map<Reference, T> findAll(final Class<T> expectedType, final Iterable<Reference> references) throws NullPointerException, IllegalArgumentException {
+				final Map<Reference, T> entities = super.findAll(expectedType, references);
+				write();
+				return entities;
+			}
+
+			private void write() {
+				// concurrent write, once previous version is read
+				if (writing.compareAndSet(true, false)) {
+					cached[0].store(mario);
+				}
+			}
+		}, CacheBuilder.newBuilder(), new OffHeapEntityCache(64 * 1024), entityMapper);
+		cached[0].store(mario);
+		mario.setLastName("B");
+		writing.set(true);
+		assertEquals("A", cached[0].find(Person.class, reference).getLastName());
+		assertEquals("B", cached[0].find(Person.class, reference).getLastName());
+		mario.setLastName("C");
+		cached[0].store(mario);
+		mario.setLastName("D");
+		writing.set(true);
+		assertEquals("C", cached[0].findAll(Person.class, Lists.newArrayList(reference)).get(reference).getLastName());
+		assertEquals("D", cached[0].find(Person.class, reference).getLastName());
+	}
+
+	@Test
+	public void testOffHeapTier() {
+		final CachedEntityStore cachedEntityStore = new CachedEntityStore(new InMemoryEntityStore(entityMapper), CacheBuilder.newBuilder().maximumSize(1).recordStats(), new OffHeapEntityCache(64 * 1024), entityMapper);
+		final Person mario = getMario("A");
+		final Person luigi = getMario("B");
+		cachedEntityStore.storeAll(Lists.newArrayList(mario, luigi));
+		final Reference marioReference = References.identify(mario);
+		final Reference luigiReference = References.identify(luigi);
+		// load from delegate
+		assertEquals("A", cachedEntityStore.find(Person.class, marioReference).getLastName());
+		assertEquals("B", cachedEntityStore.find(Person.class, luigiReference).getLastName());
+		assertEquals(2, cachedEntityStore.offHeapStats().missCount());
+		// mario was evicted from first level
+		assertEquals("A", cachedEntityStore.find(Person.class, marioReference).getLastName());
+		assertEquals(1, cachedEntityStore.offHeapStats().hitCount());
+		assertEquals(3, cachedEntityStore.stats().missCount());
+		// update invalidate both levels
+		mario.setLastName("C");
+		cachedEntityStore.store(mario);
+		assertEquals("C", cachedEntityStore.find(Person.class, marioReference).getLastName());
+		assertEquals("C", cachedEntityStore.findAll(Person.class, Lists.newArrayList(marioReference)).get(marioReference).getLastName());
+	}
+
+	@Test
+	public void testInvalidationChannel() {
+		final EntityStore shared = new InMemoryEntityStore(entityMapper);
+		final PeerChannel firstChannel = new PeerChannel();
+		final PeerChannel secondChannel = new PeerChannel();
+		firstChannel.peer = secondChannel;
+		secondChannel.peer = firstChannel;
+		final CachedEntityStore first = new CachedEntityStore(shared, CacheBuilder.newBuilder(), null, null, null, firstChannel);
+		final CachedEntityStore second = new CachedEntityStore(shared, CacheBuilder.newBuilder(), null, null, null, secondChannel);
+		final Person mario = getMario("A");
+		final Reference reference = References.identify(mario);
+		first.store(mario);
+		assertEquals("A", second.find(Person.class, reference).getLastName());
+		// update on first evict second
+		mario.setLastName("B");
+		first.store(mario);
+		assertEquals("B", second.find(Person.class, reference).getLastName());
+		// remove on second evict first, without echo
+		assertEquals("B", first.find(Person.class, reference).getLastName());
+		second.remove(reference);
+		assertEquals(2, firstChannel.published);
+		assertEquals(1, secondChannel.published);
+		try {
+			first.find(Person.class, reference);
+			fail();
+		} catch (final EntityNotFoundException e) {
+			// ok
+		}
+	}
+
+	/**
+	 * In process {@link InvalidationChannel} delivering to a single peer.
+	 */
+	private static class PeerChannel implements InvalidationChannel {
+		private PeerChannel peer;
+		private InvalidationChannel.Listener listener;
+		private int published = 0;
+
+		@Override
+		public void publish(final Reference reference) {
+			publishAll(Lists.newArrayList(reference));
+		}
+
+		@Override
+		public void publishAll(final Iterable<Reference> references) {
+			published++;
+			peer.listener.invalidated(references);
+		}
+
+		@Override
+		public void addListener(final Listener listener) {
+			this.listener = listener;
+		}
+
+		@Override
+		public void removeListener(final Listener listener) {
+			this.listener = null;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+}
@@ -0,0 +1,177 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+import com.intelligentsia.dowsers.entity.manager.event.EntityEvent.Kind;
+import com.intelligentsia.dowsers.entity.model.Person;
+import com.intelligentsia.dowsers.entity.reference.Reference;
+import com.intelligentsia.dowsers.entity.reference.References;
+import com.intelligentsia.dowsers.entity.store.change.Change;
+import com.intelligentsia.dowsers.entity.store.change.ChangeFeedEntityStore;
+import com.intelligentsia.dowsers.entity.store.change.FileChangeLog;
+import com.intelligentsia.dowsers.entity.store.memory.InMemoryEntityStore;
+
+/**
+ * <code>ChangeFeedEntityStoreTest</code>.
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com">Jerome Guibert</a>
+ * 
+ */
+public class ChangeFeedEntityStoreTest extends StoreBaseTest {
+
+	private File directory;
+	private FileChangeLog changeLog;
+
+	@Override
+	public EntityStore instanciateEntityStore() {
+		directory = Files.createTempDir();
+		changeLog = new FileChangeLog(directory, 1024);
+		return new ChangeFeedEntityStore(new InMemoryEntityStore(entityMapper), entityMapper, changeLog);
+	}
+
+	@After
+	public void close() {
+		changeLog.close();
+	}
+
+	@Test
+	public void testFeed() {
+		final Person mario = getMario();
+		final Reference reference = References.identify(mario);
+		entityStore.store(mario);
+		mario.setYearOld(36);
+		entityStore.store(mario);
+		entityStore.remove(reference);
+
+		final List<Change> changes = changeLog.read(0, 10);
+		assertEquals(3, changes.size());
+		assertEquals(Kind.CREATED, changes.get(0).getKind());
+		assertEquals(Kind.UPDATED, changes.get(1).getKind());
+		assertEquals(Kind.REMOVED, changes.get(2).getKind());
+		for (int i = 0; i < 3; i++) {
+			assertEquals(i + 1, changes.get(i).getSequence());
+			assertEquals(reference, changes.get(i).getReference());
+		}
+		final Person updated = changes.get(1).entity(entityMapper);
+		assertEquals(Integer.valueOf(36), updated.getYearOld());
+		assertEquals(3, changeLog.lastSequence());
+
+		// resume
+		assertEquals(1, changeLog.read(3, 10).size());
+		assertEquals(0, changeLog.read(4, 10).size());
+	}
+
+	@Test
+	public void testPendingIntent() {
+		final ChangeFeedEntityStore feed = (ChangeFeedEntityStore) entityStore;
+		final Person mario = getMario();
+		final Reference reference = References.identify(mario);
+		entityStore.store(mario);
+
+		// crash after delegate was written
+		changeLog.intend(reference);
+		mario.setYearOld(36);
+		feed.getEntityStore().store(mario);
+		changeLog.close();
+		changeLog = new FileChangeLog(directory, 1024);
+		assertEquals(1, changeLog.pending().size());
+		assertTrue(changeLog.pending().contains(reference));
+		assertEquals(1, changeLog.read(0, 10).size());
+
+		// resolved when store is built again
+		new ChangeFeedEntityStore(feed.getEntityStore(), entityMapper, changeLog);
+		assertTrue(changeLog.pending().isEmpty());
+		final List<Change> changes = changeLog.read(0, 10);
+		assertEquals(2, changes.size());
+		assertEquals(2, changes.get(1).getSequence());
+		assertEquals(Kind.UPDATED, changes.get(1).getKind());
+		final Person recovered = changes.get(1).entity(entityMapper);
+		assertEquals(Integer.valueOf(36), recovered.getYearOld());
+	}
+
+	@Test
+	public void testFailedWriteResolved() {
+		final Person mario = getMario();
+		entityStore.store(mario);
+		final Person stale = entityStore.find(Person.class, References.identify(mario));
+		entityStore.store(mario);
+		try {
+			entityStore.store(stale);
+			fail("stale instance must be rejected");
+		} catch (final ConcurrencyException e) {
+			// expected
+		}
+		assertTrue(changeLog.pending().isEmpty());
+		assertEquals(3, changeLog.lastSequence());
+	}
+
+	@Test
+	public void testBatchesAndSegments() throws IOException {
+		for (int i = 0; i < 50; i++) {
+			entityStore.store(getMario("Fusco" + i));
+		}
+		assertTrue(directory.list().length > 1);
+		// page in batches
+		long next = 1;
+		int count = 0;
+		List<Change> batch;
+		while (!(batch = changeLog.read(next, 7)).isEmpty()) {
+			assertTrue(batch.size() <= 7);
+			for (final Change change : batch) {
+				assertEquals(next, change.getSequence());
+				next++;
+				count++;
+			}
+		}
+		assertEquals(50, count);
+
+		// torn tail is dropped on restart, sequences go on
+		changeLog.close();
+		final File[] segments = directory.listFiles();
+		Arrays.sort(segments);
+		final FileOutputStream output = new FileOutputStream(segments[segments.length - 1], true);
+		output.write(new byte[] { 0, 0, 0, 42, 1 });
+		output.close();
+		changeLog = new FileChangeLog(directory, 1024);
+		assertEquals(50, changeLog.lastSequence());
+		assertEquals(51, changeLog.append(References.identify(getMario()), Kind.REMOVED, new byte[0]));
+
+		// truncate keeps segments holding following changes
+		final int before = directory.list().length;
+		changeLog.truncate(40);
+		assertTrue(directory.list().length < before);
+		assertEquals(40, changeLog.read(40, 1).get(0).getSequence());
+		assertTrue(changeLog.read(1, 1).get(0).getSequence() <= 40);
+	}
+}
@@ -0,0 +1,137 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.intelligentsia.dowsers.entity.model.Person;
+import com.intelligentsia.dowsers.entity.reference.Reference;
+import com.intelligentsia.dowsers.entity.reference.References;
+import com.intelligentsia.dowsers.entity.store.memory.ConcurrentInMemoryEntityStore;
+
+/**
+ * <code>ConcurrentInMemoryEntityStoreTest</code>.
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com">Jerome Guibert</a>
+ * 
+ */
+public class ConcurrentInMemoryEntityStoreTest extends StoreBaseTest {
+
+	@Override
+	public EntityStore instanciateEntityStore() {
+		return new ConcurrentInMemoryEntityStore(entityMapper, ConcurrentInMemoryEntityStore.DEFAULT_STRIPES, true);
+	}
+
+	@Test
+	public void testCopyOnRead() {
+		final Person mario = getMario();
+		final Reference reference = References.identify(mario);
+		entityStore.store(mario);
+		final Person first = entityStore.find(Person.class, reference);
+		final Person second = entityStore.find(Person.class, reference);
+		assertNotSame(first, second);
+		first.setFirstName("Luigi");
+		assertEquals("Mario", second.getFirstName());
+		assertEquals("Mario", entityStore.find(Person.class, reference).getFirstName());
+		// update is visible
+		mario.setFirstName("Bob");
+		entityStore.store(mario);
+		assertEquals("Bob", entityStore.find(Person.class, reference).getFirstName());
+	}
+
+	@Test
+	public void testConcurrentAccess() throws Exception {
+		final ExecutorService executorService = Executors.newFixedThreadPool(8);
+		try {
+			final List<Future<Reference>> futures = Lists.newArrayList();
+			for (int i = 0; i < 400; i++) {
+				futures.add(executorService.submit(new Callable<Reference>() {
+					@Override
+					public Reference call() throws Exception {
+						final Person person = getMario();
+						final Reference reference = References.identify(person);
+						entityStore.store(person);
+						person.setLastName("Bros");
+						entityStore.store(person);
+						return References.identify(entityStore.find(Person.class, reference));
+					}
+				}));
+			}
+			for (final Future<Reference> future : futures) {
+				assertEquals("Bros", entityStore.find(Person.class, future.get()).getLastName());
+			}
+			assertEquals(400, Iterables.size(entityStore.find(Person.class)));
+		} finally {
+			executorService.shutdown();
+		}
+	}
+
+	@Test
+	public void testConcurrentUpdate() throws Exception {
+		final Person mario = getMario();
+		mario.setYearOld(0);
+		final Reference reference = References.identify(mario);
+		entityStore.store(mario);
+		final ExecutorService executorService = Executors.newFixedThreadPool(8);
+		try {
+			final List<Future<Integer>> futures = Lists.newArrayList();
+			for (int i = 0; i < 8; i++) {
+				futures.add(executorService.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws Exception {
+						int conflicts = 0;
+						for (int j = 0; j < 50; j++) {
+							// read, modify, write until no conflict
+							while (true) {
+								final Person person = entityStore.find(Person.class, reference);
+								person.setYearOld(person.getYearOld() + 1);
+								try {
+									entityStore.store(person);
+									break;
+								} catch (final ConcurrencyException e) {
+									conflicts++;
+								}
+							}
+						}
+						return conflicts;
+					}
+				}));
+			}
+			for (final Future<Integer> future : futures) {
+				future.get();
+			}
+			assertEquals((Integer) 400, entityStore.find(Person.class, reference).getYearOld());
+			assertEquals(401, Versions.version(entityStore.find(Person.class, reference)));
+		} finally {
+			executorService.shutdown();
+		}
+	}
+}
@@ -0,0 +1,76 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.common.collect.Maps;
+
+/**
+ * <code>ConsistentHashRingTest</code>.
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com">Jerome Guibert</a>
+ * 
+ */
+public class ConsistentHashRingTest {
+
+	@Test
+	public void testDistribution() {
+		final ConsistentHashRing<String> ring = new ConsistentHashRing<String>().add("a", "a").add("b", "b").add("c", "c");
+		final Map<String, Integer> counts = Maps.newHashMap();
+		for (int i = 0; i < 30000; i++) {
+			final String node = ring.get("key-" + i);
+			counts.put(node, counts.containsKey(node) ? counts.get(node) + 1 : 1);
+		}
+		assertEquals(3, counts.size());
+		for (final Integer count : counts.values()) {
+			// 10000 +/- 20%
+			assertTrue(count.toString(), (count > 8000) && (count < 12000));
+		}
+	}
+
+	@Test
+	public void testMinimalMove() {
+		final ConsistentHashRing<String> ring = new ConsistentHashRing<String>().add("a", "a").add("b", "b").add("c", "c");
+		final ConsistentHashRing<String> grown = new ConsistentHashRing<String>(ring).add("d", "d");
+		int moved = 0;
+		for (int i = 0; i < 10000; i++) {
+			final String before = ring.get("key-" + i);
+			final String after = grown.get("key-" + i);
+			if (!before.equals(after)) {
+				// only to the new node
+				assertEquals("d", after);
+				moved++;
+			}
+		}
+		// about a quarter
+		assertTrue(Integer.toString(moved), (moved > 1500) && (moved < 3500));
+		// removing it restore assignment
+		grown.remove("d");
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(ring.get("key-" + i), grown.get("key-" + i));
+		}
+	}
+}
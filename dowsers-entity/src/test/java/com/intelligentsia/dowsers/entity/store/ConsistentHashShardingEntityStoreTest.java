@@ -0,0 +1,179 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.Set;
+
+import org.intelligentsia.dowsers.core.Sequence;
+import org.junit.Test;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.intelligentsia.dowsers.entity.model.Person;
+import com.intelligentsia.dowsers.entity.reference.Reference;
+import com.intelligentsia.dowsers.entity.reference.References;
+import com.intelligentsia.dowsers.entity.store.memory.InMemoryEntityStore;
+
+/**
+ * <code>ConsistentHashShardingEntityStoreTest</code> spread Person over three
+ * shards.
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com">Jerome Guibert</a>
+ * 
+ */
+public class ConsistentHashShardingEntityStoreTest extends StoreBaseTest {
+
+	protected List<EntityStore> shards;
+
+	@Override
+	public EntityStore instanciateEntityStore() {
+		shards = Lists.<EntityStore> newArrayList(new InMemoryEntityStore(entityMapper), new InMemoryEntityStore(entityMapper), new InMemoryEntityStore(entityMapper));
+		return ShardingEntityStore.builder().//
+				shard(Person.class, "shard-0", shards.get(0)).//
+				shard(Person.class, "shard-1", shards.get(1)).//
+				shard(Person.class, "shard-2", shards.get(2)).//
+				build(new InMemoryEntityStore(entityMapper));
+	}
+
+	@Test
+	public void testSpread() {
+		final Set<Reference> references = Sets.newHashSet();
+		for (int i = 0; i < 300; i++) {
+			final Person person = getMario("P" + i);
+			entityStore.store(person);
+			references.add(References.identify(person));
+		}
+		for (final EntityStore shard : shards) {
+			final int count = Iterables.size(shard.find(Person.class));
+			assertTrue(Integer.toString(count), count > 50);
+		}
+		// merged on all shards
+		assertEquals(references, Sets.newHashSet(entityStore.find(Person.class)));
+		assertEquals(300, Iterables.size(entityStore.find(new Reference(Person.class, "firstName", "Mario"))));
+	}
+
+	@Test
+	public void testRebalance() {
+		final ShardingEntityStore shardingEntityStore = (ShardingEntityStore) entityStore;
+		final List<Person> persons = Lists.newArrayList();
+		for (int i = 0; i < 200; i++) {
+			persons.add(getMario("P" + i));
+		}
+		entityStore.storeAll(persons);
+		final EntityStore added = new InMemoryEntityStore(entityMapper);
+		shardingEntityStore.addShard(Person.class, "shard-3", added);
+		// still readable and writable before rebalance
+		for (final Person person : persons) {
+			assertEquals(person.getLastName(), entityStore.find(Person.class, References.identify(person)).getLastName());
+		}
+		final Person first = persons.get(0);
+		first.setFirstName("Luigi");
+		entityStore.store(first);
+		assertTrue(Iterables.isEmpty(added.find(Person.class)));
+		// move
+		final int moved = shardingEntityStore.rebalance(Person.class);
+		assertEquals(Iterables.size(added.find(Person.class)), moved);
+		assertTrue(Integer.toString(moved), (moved > 20) && (moved < 100));
+		assertEquals(200, Iterables.size(entityStore.find(Person.class)));
+		for (final Person person : persons) {
+			final Reference reference = References.identify(person);
+			assertEquals(person.getFirstName(), entityStore.find(Person.class, reference).getFirstName());
+			assertEquals(shardingEntityStore.findEntityStore(reference), owner(reference));
+		}
+		// nothing more to move
+		assertEquals(0, shardingEntityStore.rebalance(Person.class));
+	}
+
+	@Test
+	public void testRebalanceKeepOwnerCopy() {
+		final ShardingEntityStore shardingEntityStore = (ShardingEntityStore) entityStore;
+		final List<Person> persons = Lists.newArrayList();
+		for (int i = 0; i < 200; i++) {
+			persons.add(getMario("P" + i));
+		}
+		entityStore.storeAll(persons);
+		final EntityStore added = new InMemoryEntityStore(entityMapper);
+		shardingEntityStore.addShard(Person.class, "shard-3", added);
+		Person written = null;
+		for (final Person person : persons) {
+			if (shardingEntityStore.findEntityStore(References.identify(person)) == added) {
+				written = person;
+				break;
+			}
+		}
+		final Reference reference = References.identify(written);
+		final EntityStore holder = owner(reference);
+		// written on its new owner before being moved
+		written.setLastName("Owner");
+		Versions.version(written, Sequence.forLatestSequence());
+		added.store(written);
+		shardingEntityStore.rebalance(Person.class);
+		assertEquals("Owner", entityStore.find(Person.class, reference).getLastName());
+		assertFalse(Iterables.contains(holder.find(Person.class), reference));
+	}
+
+	@Test
+	public void testRebalanceKeepVersion() {
+		final ShardingEntityStore shardingEntityStore = (ShardingEntityStore) entityStore;
+		final List<Person> persons = Lists.newArrayList();
+		for (int i = 0; i < 200; i++) {
+			persons.add(getMario("P" + i));
+		}
+		entityStore.storeAll(persons);
+		entityStore.storeAll(persons);
+		final EntityStore added = new InMemoryEntityStore(entityMapper);
+		shardingEntityStore.addShard(Person.class, "shard-3", added);
+		shardingEntityStore.rebalance(Person.class);
+		final Reference reference = Iterables.getFirst(added.find(Person.class), null);
+		assertNotNull(reference);
+		final Person moved = entityStore.find(Person.class, reference);
+		assertEquals(2, Versions.version(moved));
+		// an instance read before move is still checked
+		final Person stale = entityStore.find(Person.class, reference);
+		moved.setLastName("Moved");
+		entityStore.store(moved);
+		assertEquals(3, Versions.version(moved));
+		stale.setLastName("Stale");
+		try {
+			entityStore.store(stale);
+			fail();
+		} catch (final ConcurrencyException e) {
+			// expected
+		}
+		assertEquals("Moved", entityStore.find(Person.class, reference).getLastName());
+	}
+
+	private EntityStore owner(final Reference reference) {
+		for (final EntityStore shard : ((ShardingEntityStore) entityStore).shards(Person.class)) {
+			if (Iterables.contains(shard.find(Person.class), reference)) {
+				return shard;
+			}
+		}
+		return null;
+	}
+}
@@ -19,14 +19,31 @@
  */
 package com.intelligentsia.dowsers.entity.store;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Test;
 
 import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.intelligentsia.dowsers.entity.model.Person;
+import com.intelligentsia.dowsers.entity.reference.Reference;
+import com.intelligentsia.dowsers.entity.reference.References;
 import com.intelligentsia.dowsers.entity.store.fs.FileEntityStore;
 
 /**
@@ -42,6 +59,118 @@ public class FileEntityStoreTest extends StoreBaseTest {
 		return new FileEntityStore(getRoot(), entityMapper);
 	}
 
+	@After
+	public void close() {
+		((FileEntityStore) entityStore).close();
+	}
+
+	@Test
+	public void testRecovery() throws IOException {
+		final FileEntityStore fileEntityStore = (FileEntityStore) entityStore;
+		final Person mario = getMario("A");
+		final Reference reference = References.identify(mario);
+		final Person luigi = getMario("B");
+		fileEntityStore.store(mario);
+		fileEntityStore.store(luigi);
+		fileEntityStore.remove(luigi);
+		mario.setLastName("C");
+		fileEntityStore.store(mario);
+		// a crash tore entity file, and left a torn record at end of log
+		final File file = fileEntityStore.getFile(reference, false);
+		FileUtils.writeStringToFile(file, "{\"@identity\":");
+		final FileOutputStream output = new FileOutputStream(new File(file.getParentFile(), file.getName() + ".tmp"));
+		output.close();
+		final FileOutputStream wal = new FileOutputStream(new File(root(fileEntityStore, reference), ".wal"), true);
+		wal.write(new byte[] { 0, 0, 0, 42, 1, 2 });
+		wal.close();
+		fileEntityStore.close();
+		// replay
+		entityStore = new FileEntityStore(root(fileEntityStore, reference), entityMapper);
+		assertEquals("C", entityStore.find(Person.class, reference).getLastName());
+		assertEquals(2, Versions.version(entityStore.find(Person.class, reference)));
+		assertEquals(Lists.newArrayList(reference), Lists.newArrayList(entityStore.find(Person.class)));
+		try {
+			entityStore.find(Person.class, References.identify(luigi));
+			fail();
+		} catch (final EntityNotFoundException e) {
+			// ok
+		}
+	}
+
+	@Test
+	public void testCheckpoint() {
+		final FileEntityStore fileEntityStore = (FileEntityStore) entityStore;
+		final Person mario = getMario("A");
+		final Reference reference = References.identify(mario);
+		final File root = root(fileEntityStore, reference);
+		fileEntityStore.close();
+		entityStore = new FileEntityStore(root, entityMapper, CacheBuilder.newBuilder(), 1024);
+		for (int i = 0; i < 20; i++) {
+			mario.setYearOld(i);
+			entityStore.store(mario);
+		}
+		assertTrue(new File(root, ".wal").length() < 1024);
+		((FileEntityStore) entityStore).checkpoint();
+		assertEquals(0, new File(root, ".wal").length());
+		assertEquals(Integer.valueOf(19), entityStore.find(Person.class, reference).getYearOld());
+	}
+
+	@Test
+	public void testConcurrentWriters() throws Exception {
+		final ExecutorService executorService = Executors.newFixedThreadPool(8);
+		try {
+			final List<Future<Reference>> futures = Lists.newArrayList();
+			for (int i = 0; i < 64; i++) {
+				final Person person = getMario("Fusco" + i);
+				futures.add(executorService.submit(new Callable<Reference>() {
+					@Override
+					public Reference call() throws Exception {
+						entityStore.store(person);
+						return References.identify(person);
+					}
+				}));
+			}
+			for (final Future<Reference> future : futures) {
+				assertEquals(1, Versions.version(entityStore.find(Person.class, future.get())));
+			}
+		} finally {
+			executorService.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testExclusiveRoot() {
+		final Person mario = getMario();
+		entityStore.store(mario);
+		final Reference reference = References.identify(mario);
+		final File root = root((FileEntityStore) entityStore, reference);
+		try {
+			new FileEntityStore(root, entityMapper);
+			fail();
+		} catch (final IllegalStateException e) {
+			// ok
+		}
+		// owner is not disturbed
+		assertEquals(1, Versions.version(entityStore.find(Person.class, reference)));
+		// released on close
+		((FileEntityStore) entityStore).close();
+		final FileEntityStore reopened = new FileEntityStore(root, entityMapper);
+		try {
+			assertEquals(1, Versions.version(reopened.find(Person.class, reference)));
+		} finally {
+			reopened.close();
+		}
+	}
+
+	private static File root(final FileEntityStore fileEntityStore, final Reference reference) {
+		// ${root}/${entity class name}/.../${identity}
+		File file = fileEntityStore.getFile(reference, false);
+		while (!file.getName().equals(reference.getEntityClassName())) {
+			file = file.getParentFile();
+		}
+		return file.getParentFile();
+	}
+
 	public static File getRoot() {
 		// Calculates the root directory of the demo project.
 		URI uri;
@@ -0,0 +1,93 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.google.common.collect.Iterables;
+import com.intelligentsia.dowsers.entity.model.Person;
+import com.intelligentsia.dowsers.entity.reference.Reference;
+import com.intelligentsia.dowsers.entity.reference.References;
+import com.intelligentsia.dowsers.entity.store.memory.InMemoryEntityStore;
+
+/**
+ * <code>IndexedEntityStoreTest</code>.
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com">Jerome Guibert</a>
+ * 
+ */
+public class IndexedEntityStoreTest extends StoreBaseTest {
+
+	private InMemoryAttributeIndex attributeIndex;
+
+	@Override
+	public EntityStore instanciateEntityStore() {
+		attributeIndex = new InMemoryAttributeIndex().declare(Person.class, "lastName");
+		return new IndexedEntityStore(new InMemoryEntityStore(entityMapper), attributeIndex);
+	}
+
+	@Test
+	public void testIndexMaintenance() {
+		final Person mario = getMario("A");
+		entityStore.store(mario);
+		entityStore.store(getMario("B"));
+		final Reference lastNameA = new Reference(Person.class, "lastName", "A");
+		assertTrue(attributeIndex.isIndexed(lastNameA));
+		assertEquals(References.identify(mario), Iterables.getOnlyElement(entityStore.find(lastNameA)));
+		// update
+		mario.setLastName("C");
+		entityStore.store(mario);
+		assertTrue(Iterables.isEmpty(entityStore.find(lastNameA)));
+		assertEquals(References.identify(mario), Iterables.getOnlyElement(entityStore.find(new Reference(Person.class, "lastName", "C"))));
+		// remove
+		entityStore.remove(mario);
+		assertTrue(Iterables.isEmpty(entityStore.find(new Reference(Person.class, "lastName", "C"))));
+		assertEquals(1, Iterables.size(entityStore.find(new Reference(Person.class, "lastName", "B"))));
+	}
+
+	@Test
+	public void testIndexBuiltFromDelegate() {
+		final EntityStore delegate = new InMemoryEntityStore(entityMapper);
+		delegate.store(getMario("A"));
+		delegate.store(getMario("A"));
+		delegate.store(getMario("B"));
+		final EntityStore indexed = new IndexedEntityStore(delegate, new InMemoryAttributeIndex().declare(Person.class, "lastName"));
+		assertEquals(2, Iterables.size(indexed.find(new Reference(Person.class, "lastName", "A"))));
+		indexed.store(getMario("B"));
+		assertEquals(2, Iterables.size(indexed.find(new Reference(Person.class, "lastName", "B"))));
+	}
+
+	@Test
+	public void testAttributeIndexedLater() {
+		entityStore.store(getMario("A"));
+		entityStore.store(getMario("B"));
+		// lastName index is built
+		assertEquals(1, Iterables.size(entityStore.find(new Reference(Person.class, "lastName", "A"))));
+		final Reference firstName = new Reference(Person.class, "firstName", "Mario");
+		assertEquals(2, Iterables.size(entityStore.find(firstName)));
+		// indexed once entities are stored
+		attributeIndex.declare(Person.class, "firstName");
+		entityStore.store(getMario("C"));
+		assertEquals(3, Iterables.size(entityStore.find(firstName)));
+	}
+}
@@ -0,0 +1,107 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.collect.Iterables;
+import com.google.common.io.Files;
+import com.intelligentsia.dowsers.entity.model.Person;
+import com.intelligentsia.dowsers.entity.reference.Reference;
+import com.intelligentsia.dowsers.entity.reference.References;
+import com.intelligentsia.dowsers.entity.store.log.LogEntityStore;
+
+/**
+ * <code>LogEntityStoreTest</code>.
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com">Jerome Guibert</a>
+ * 
+ */
+public class LogEntityStoreTest extends StoreBaseTest {
+
+	private File directory;
+
+	@Override
+	public EntityStore instanciateEntityStore() {
+		directory = Files.createTempDir();
+		return open();
+	}
+
+	private LogEntityStore open() {
+		// small segments in order to roll often
+		return new LogEntityStore(directory, entityMapper, 4096, 0.5d, 0, TimeUnit.SECONDS);
+	}
+
+	@After
+	public void close() {
+		((LogEntityStore) entityStore).close();
+	}
+
+	@Test
+	public void testRecovery() {
+		final Person mario = getMario();
+		final Person luigi = getMario("Luigi");
+		entityStore.store(mario);
+		entityStore.store(luigi);
+		entityStore.remove(luigi);
+		((LogEntityStore) entityStore).close();
+
+		entityStore = open();
+		assertEquals("Fusco", entityStore.find(Person.class, References.identify(mario)).getLastName());
+		try {
+			entityStore.find(Person.class, References.identify(luigi));
+			fail();
+		} catch (final EntityNotFoundException e) {
+			// ok
+		}
+		assertEquals(1, Iterables.size(entityStore.find(Person.class)));
+	}
+
+	@Test
+	public void testCompaction() {
+		final Person mario = getMario();
+		final Person luigi = getMario("Luigi");
+		final Reference id = References.identify(mario);
+		entityStore.store(luigi);
+		entityStore.remove(luigi);
+		for (int i = 0; i < 100; i++) {
+			mario.setYearOld(i);
+			entityStore.store(mario);
+		}
+		final int segments = directory.list().length;
+		assertTrue(segments > 2);
+		assertTrue(((LogEntityStore) entityStore).compact() > 0);
+		assertTrue(directory.list().length < segments);
+		assertEquals((Integer) 99, entityStore.find(Person.class, id).getYearOld());
+		((LogEntityStore) entityStore).close();
+
+		entityStore = open();
+		assertEquals((Integer) 99, entityStore.find(Person.class, id).getYearOld());
+		assertEquals(1, Iterables.size(entityStore.find(Person.class)));
+	}
+}
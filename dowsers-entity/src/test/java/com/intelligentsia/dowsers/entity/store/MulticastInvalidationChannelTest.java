@@ -0,0 +1,133 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.intelligentsia.dowsers.core.DowsersException;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.intelligentsia.dowsers.entity.model.Person;
+import com.intelligentsia.dowsers.entity.reference.Reference;
+
+/**
+ * <code>MulticastInvalidationChannelTest</code> run two channels on loopback
+ * interface.
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
+ */
+public class MulticastInvalidationChannelTest {
+
+	private static final int PORT = 45678;
+
+	private MulticastInvalidationChannel first;
+
+	private MulticastInvalidationChannel second;
+
+	private final BlockingQueue<List<Reference>> firstReceived = new LinkedBlockingQueue<List<Reference>>();
+
+	private final BlockingQueue<List<Reference>> secondReceived = new LinkedBlockingQueue<List<Reference>>();
+
+	@Before
+	public void open() throws Exception {
+		final InetAddress group = InetAddress.getByName("239.255.27.1");
+		final NetworkInterface loopback = NetworkInterface.getByInetAddress(InetAddress.getByName("127.0.0.1"));
+		try {
+			first = new MulticastInvalidationChannel(group, PORT, loopback, 20, 512);
+			second = new MulticastInvalidationChannel(group, PORT, loopback, 20, 512);
+		} catch (final DowsersException e) {
+			// no multicast support
+			Assume.assumeNoException(e);
+		}
+		first.addListener(new Collector(firstReceived));
+		second.addListener(new Collector(secondReceived));
+		// probe: some hosts have no multicast route on loopback
+		first.publish(new Reference(Person.class, "probe"));
+		Assume.assumeNotNull(secondReceived.poll(2, TimeUnit.SECONDS));
+	}
+
+	@After
+	public void close() {
+		if (first != null) {
+			first.close();
+		}
+		if (second != null) {
+			second.close();
+		}
+	}
+
+	@Test
+	public void testPublish() throws InterruptedException {
+		final Reference reference = new Reference(Person.class, "mario");
+		second.publish(reference);
+		final List<Reference> received = firstReceived.poll(2, TimeUnit.SECONDS);
+		assertEquals(Lists.newArrayList(reference), received);
+		// our own messages are ignored
+		assertTrue(secondReceived.poll(100, TimeUnit.MILLISECONDS) == null);
+	}
+
+	@Test
+	public void testBatch() throws InterruptedException {
+		final List<Reference> references = Lists.newArrayList();
+		for (int i = 0; i < 100; i++) {
+			references.add(new Reference(Person.class, "person-" + i));
+		}
+		first.publishAll(references);
+		final List<Reference> received = Lists.newArrayList();
+		int datagrams = 0;
+		while (received.size() < references.size()) {
+			final List<Reference> batch = secondReceived.poll(2, TimeUnit.SECONDS);
+			if (batch == null) {
+				break;
+			}
+			datagrams++;
+			received.addAll(batch);
+		}
+		assertEquals(references, received);
+		// many references per datagram
+		assertTrue(datagrams < references.size() / 4);
+	}
+
+	private static class Collector implements InvalidationChannel.Listener {
+		private final BlockingQueue<List<Reference>> queue;
+
+		public Collector(final BlockingQueue<List<Reference>> queue) {
+			super();
+			this.queue = queue;
+		}
+
+		@Override
+		public void invalidated(final Iterable<Reference> references) {
+			queue.add(Lists.newArrayList(references));
+		}
+	}
+}
@@ -0,0 +1,79 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.intelligentsia.dowsers.entity.model.Person;
+import com.intelligentsia.dowsers.entity.reference.Reference;
+import com.intelligentsia.dowsers.entity.reference.References;
+
+/**
+ * <code>OffHeapEntityCacheTest</code>.
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com">Jerome Guibert</a>
+ * 
+ */
+public class OffHeapEntityCacheTest {
+
+	@Test
+	public void testPutGet() {
+		final OffHeapEntityCache cache = new OffHeapEntityCache(1024, 16);
+		final Reference reference = References.newReference(Person.class);
+		final byte[] payload = new byte[100];
+		for (int i = 0; i < payload.length; i++) {
+			payload[i] = (byte) i;
+		}
+		assertTrue(cache.put(reference, payload));
+		assertArrayEquals(payload, cache.get(reference));
+		assertEquals(112, cache.usedBytes());
+		cache.invalidate(reference);
+		assertNull(cache.get(reference));
+		assertEquals(0, cache.usedBytes());
+		assertEquals(1, cache.stats().hitCount());
+		assertEquals(1, cache.stats().missCount());
+		// too large
+		assertFalse(cache.put(reference, new byte[2048]));
+	}
+
+	@Test
+	public void testLeastRecentlyUsedEviction() {
+		final OffHeapEntityCache cache = new OffHeapEntityCache(256, 16);
+		final Reference first = References.newReference(Person.class);
+		final Reference second = References.newReference(Person.class);
+		final Reference third = References.newReference(Person.class);
+		cache.put(first, new byte[100]);
+		cache.put(second, new byte[100]);
+		// first become the most recently used
+		cache.get(first);
+		cache.put(third, new byte[100]);
+		assertEquals(2, cache.size());
+		assertNull(cache.get(second));
+		assertEquals(100, cache.get(first).length);
+		assertEquals(100, cache.get(third).length);
+		assertEquals(1, cache.stats().evictionCount());
+	}
+}
@@ -0,0 +1,198 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.intelligentsia.dowsers.core.DowsersException;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import com.intelligentsia.dowsers.entity.EntityFactories;
+import com.intelligentsia.dowsers.entity.EntityFactories.EntityFactory;
+import com.intelligentsia.dowsers.entity.model.MetaDataUtil;
+import com.intelligentsia.dowsers.entity.model.Person;
+import com.intelligentsia.dowsers.entity.reference.Reference;
+import com.intelligentsia.dowsers.entity.reference.References;
+import com.intelligentsia.dowsers.entity.serializer.EntityMapper;
+import com.intelligentsia.dowsers.entity.store.fs.FileEntityStore;
+import com.intelligentsia.dowsers.entity.store.log.LogEntityStore;
+
+/**
+ * <code>PayloadDictionariesTest</code>.
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com">Jerome Guibert</a>
+ * 
+ */
+public class PayloadDictionariesTest {
+
+	private static final String PERSON = Person.class.getName();
+
+	private EntityFactory<Person> factory;
+	private EntityMapper entityMapper;
+	private File root;
+	private PayloadDictionaries dictionaries;
+
+	@Before
+	public void initialize() {
+		factory = EntityFactories.newEntityProxyDynamicFactory(Person.class, MetaDataUtil.getMetaEntityContextProvider().find(Reference.newReferenceOnEntityClass(Person.class)));
+		entityMapper = new EntityMapper(MetaDataUtil.getMetaEntityContextProvider());
+		root = Files.createTempDir();
+		dictionaries = new PayloadDictionaries(root);
+	}
+
+	@Test
+	public void testTrainAndCompress() {
+		final byte[] payload = serialize(newPerson("Fusco"));
+		// no dictionary: plain payload
+		assertArrayEquals(payload, dictionaries.compress(PERSON, payload));
+
+		final int identifier = dictionaries.train(PERSON, samples(20));
+		assertTrue(identifier != 0);
+		assertTrue(new File(new File(root, PERSON), "payload-0000000001.dict").exists());
+		final byte[] compressed = dictionaries.compress(PERSON, payload);
+		assertTrue(PayloadDictionaries.isCompressed(compressed));
+		assertTrue(compressed.length * 2 < payload.length);
+		assertArrayEquals(payload, dictionaries.decompress(PERSON, compressed));
+		// plain payload are read as is
+		assertArrayEquals(payload, dictionaries.decompress(PERSON, payload));
+
+		// retrain: previous payloads remain readable, also after reload
+		final List<byte[]> others = Lists.newArrayList();
+		for (int i = 0; i < 10; i++) {
+			final Person person = newPerson("Other" + i);
+			person.setFirstName("Luigi");
+			others.add(serialize(person));
+		}
+		assertTrue(dictionaries.train(PERSON, others) != identifier);
+		final PayloadDictionaries reloaded = new PayloadDictionaries(root);
+		assertArrayEquals(payload, reloaded.decompress(PERSON, compressed));
+		assertArrayEquals(payload, reloaded.decompress(PERSON, reloaded.compress(PERSON, payload)));
+
+		// unknown dictionary
+		try {
+			new PayloadDictionaries(Files.createTempDir()).decompress(PERSON, compressed);
+			fail("unknown dictionary must be detected");
+		} catch (final DowsersException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testFileEntityStore() {
+		final File directory = Files.createTempDir();
+		FileEntityStore entityStore = new FileEntityStore(directory, entityMapper);
+		final Person plain = newPerson("Plain");
+		entityStore.store(plain);
+		entityStore.close();
+
+		dictionaries.train(PERSON, samples(20));
+		entityStore = new FileEntityStore(directory, entityMapper, CacheBuilder.newBuilder(), FileEntityStore.DEFAULT_CHECKPOINT_SIZE, dictionaries);
+		try {
+			final Person compressed = newPerson("Compressed");
+			entityStore.store(compressed);
+			compressed.setYearOld(36);
+			entityStore.store(compressed);
+			assertEquals(Integer.valueOf(36), entityStore.find(Person.class, References.identify(compressed)).getYearOld());
+			assertEquals("Plain", entityStore.find(Person.class, References.identify(plain)).getLastName());
+			assertEquals(2, Lists.newArrayList(entityStore.find(Person.class)).size());
+		} finally {
+			entityStore.close();
+		}
+	}
+
+	@Test
+	public void testReopenAfterTrain() {
+		final File directory = Files.createTempDir();
+		FileEntityStore entityStore = new FileEntityStore(directory, entityMapper, CacheBuilder.newBuilder(), FileEntityStore.DEFAULT_CHECKPOINT_SIZE, dictionaries);
+		final Person person = newPerson("Compressed");
+		try {
+			// trained while store is open, used by next write
+			dictionaries.train(PERSON, samples(20));
+			entityStore.store(person);
+		} finally {
+			entityStore.close();
+		}
+		// complete dictionary, no temporary file left
+		final String[] names = new File(root, PERSON).list();
+		assertArrayEquals(new String[] { "payload-0000000001.dict" }, names);
+
+		// reopened with dictionaries read from disk
+		entityStore = new FileEntityStore(directory, entityMapper, CacheBuilder.newBuilder(), FileEntityStore.DEFAULT_CHECKPOINT_SIZE, new PayloadDictionaries(root));
+		try {
+			assertEquals("Compressed", entityStore.find(Person.class, References.identify(person)).getLastName());
+		} finally {
+			entityStore.close();
+		}
+	}
+
+	@Test
+	public void testLogEntityStore() {
+		dictionaries.train(PERSON, samples(20));
+		final File directory = Files.createTempDir();
+		LogEntityStore entityStore = new LogEntityStore(directory, entityMapper, LogEntityStore.DEFAULT_SEGMENT_SIZE, LogEntityStore.DEFAULT_COMPACTION_THRESHOLD, 0, TimeUnit.SECONDS, dictionaries);
+		final Person person = newPerson("Compressed");
+		entityStore.store(person);
+		entityStore.store(person);
+		entityStore.close();
+
+		entityStore = new LogEntityStore(directory, entityMapper, LogEntityStore.DEFAULT_SEGMENT_SIZE, LogEntityStore.DEFAULT_COMPACTION_THRESHOLD, 0, TimeUnit.SECONDS, new PayloadDictionaries(root));
+		try {
+			final Person found = entityStore.find(Person.class, References.identify(person));
+			assertEquals("Compressed", found.getLastName());
+			assertEquals(2, Versions.version(found));
+		} finally {
+			entityStore.close();
+		}
+	}
+
+	private List<byte[]> samples(final int count) {
+		final List<byte[]> samples = Lists.newArrayList();
+		for (int i = 0; i < count; i++) {
+			samples.add(serialize(newPerson("Sample" + i)));
+		}
+		return samples;
+	}
+
+	private byte[] serialize(final Object entity) {
+		final StringWriter writer = new StringWriter();
+		entityMapper.writeValue(writer, entity);
+		return writer.toString().getBytes();
+	}
+
+	private Person newPerson(final String lastName) {
+		final Person person = factory.newInstance();
+		person.setFirstName("Mario");
+		person.setLastName(lastName);
+		person.setYearOld(35);
+		return person;
+	}
+}
@@ -0,0 +1,59 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+
+import com.google.common.collect.Lists;
+import com.intelligentsia.dowsers.entity.model.Person;
+import com.intelligentsia.dowsers.entity.store.memory.InMemoryEntityStore;
+
+/**
+ * <code>ScatterGatherShardingEntityStoreTest</code> run sharding tests with
+ * parallel queries.
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com">Jerome Guibert</a>
+ * 
+ */
+public class ScatterGatherShardingEntityStoreTest extends ConsistentHashShardingEntityStoreTest {
+
+	private ExecutorService executorService;
+
+	@Override
+	public EntityStore instanciateEntityStore() {
+		executorService = Executors.newFixedThreadPool(3);
+		shards = Lists.<EntityStore> newArrayList(new InMemoryEntityStore(entityMapper), new InMemoryEntityStore(entityMapper), new InMemoryEntityStore(entityMapper));
+		return ShardingEntityStore.builder().//
+				shard(Person.class, "shard-0", shards.get(0)).//
+				shard(Person.class, "shard-1", shards.get(1)).//
+				shard(Person.class, "shard-2", shards.get(2)).//
+				scatterGather(executorService, 5, TimeUnit.SECONDS).//
+				build(new InMemoryEntityStore(entityMapper));
+	}
+
+	@After
+	public void close() {
+		executorService.shutdownNow();
+	}
+}
@@ -0,0 +1,186 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.intelligentsia.dowsers.core.DowsersException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/**
+ * <code>ScatterGatherTest</code>.
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com">Jerome Guibert</a>
+ * 
+ */
+public class ScatterGatherTest {
+
+	private ExecutorService executorService;
+
+	@Before
+	public void open() {
+		executorService = Executors.newFixedThreadPool(4);
+	}
+
+	@After
+	public void close() {
+		executorService.shutdownNow();
+	}
+
+	@Test
+	public void testParallel() {
+		final ScatterGather scatterGather = new ScatterGather(executorService, 5, TimeUnit.SECONDS);
+		final List<Iterable<Integer>> sources = Lists.newArrayList();
+		for (int i = 0; i < 4; i++) {
+			sources.add(slow(i * 10, 10, 20));
+		}
+		final long start = System.currentTimeMillis();
+		final List<Integer> result = Lists.newArrayList(scatterGather.gather(sources));
+		final long elapsed = System.currentTimeMillis() - start;
+		assertEquals(40, result.size());
+		assertEquals(40, Sets.newHashSet(result).size());
+		// serial would take 4 * 10 * 20 ms
+		assertTrue(Long.toString(elapsed), elapsed < 600);
+	}
+
+	@Test
+	public void testTimeout() {
+		final ScatterGather scatterGather = new ScatterGather(executorService, 100, TimeUnit.MILLISECONDS);
+		final Iterator<Integer> iterator = scatterGather.gather(ImmutableList.of(slow(0, 1, 0), slow(10, 1, 1000))).iterator();
+		assertEquals(Integer.valueOf(0), iterator.next());
+		try {
+			iterator.next();
+			fail();
+		} catch (final DowsersException e) {
+			assertTrue(e.getCause() instanceof TimeoutException);
+		}
+	}
+
+	@Test
+	public void testFailure() {
+		final ScatterGather scatterGather = new ScatterGather(executorService, 1, TimeUnit.SECONDS);
+		final Iterable<Integer> failing = new Iterable<Integer>() {
+			@Override
+			public Iterator<Integer> iterator() {
+				throw new IllegalStateException("shard down");
+			}
+		};
+		try {
+			Lists.newArrayList(scatterGather.gather(ImmutableList.of(slow(0, 1, 0), failing)));
+			fail();
+		} catch (final IllegalStateException e) {
+			assertEquals("shard down", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testDeadlinePerSource() {
+		final ScatterGather scatterGather = new ScatterGather(executorService, 150, TimeUnit.MILLISECONDS);
+		// each element arrives within timeout, but not the whole source
+		final Iterator<Integer> iterator = scatterGather.gather(ImmutableList.of(slow(0, 10, 60))).iterator();
+		try {
+			while (iterator.hasNext()) {
+				iterator.next();
+			}
+			fail();
+		} catch (final DowsersException e) {
+			assertTrue(e.getCause() instanceof TimeoutException);
+		}
+	}
+
+	@Test
+	public void testSlowConsumer() throws InterruptedException {
+		final ScatterGather scatterGather = new ScatterGather(executorService, 200, TimeUnit.MILLISECONDS, 2);
+		final Iterator<Integer> iterator = scatterGather.gather(ImmutableList.of(slow(0, 10, 0), slow(10, 10, 0))).iterator();
+		int count = 0;
+		while (iterator.hasNext()) {
+			iterator.next();
+			count++;
+			// waiting consumer does not count in deadline of sources
+			Thread.sleep(25);
+		}
+		assertEquals(20, count);
+	}
+
+	@Test
+	public void testError() {
+		final ScatterGather scatterGather = new ScatterGather(executorService, 5, TimeUnit.SECONDS);
+		final Iterable<Integer> failing = new Iterable<Integer>() {
+			@Override
+			public Iterator<Integer> iterator() {
+				throw new OutOfMemoryError("shard broken");
+			}
+		};
+		final long start = System.currentTimeMillis();
+		try {
+			Lists.newArrayList(scatterGather.gather(ImmutableList.of(slow(0, 1, 0), failing)));
+			fail();
+		} catch (final OutOfMemoryError e) {
+			assertEquals("shard broken", e.getMessage());
+		}
+		// end is always sent, no wait for timeout
+		assertTrue(System.currentTimeMillis() - start < 1000);
+	}
+
+	/**
+	 * @return an {@link Iterable} of count integers from first, waiting delay
+	 *         milliseconds before each one.
+	 */
+	private static Iterable<Integer> slow(final int first, final int count, final long delay) {
+		return new Iterable<Integer>() {
+			@Override
+			public Iterator<Integer> iterator() {
+				return new AbstractIterator<Integer>() {
+					private int next = first;
+
+					@Override
+					protected Integer computeNext() {
+						if (next >= first + count) {
+							return endOfData();
+						}
+						try {
+							Thread.sleep(delay);
+						} catch (final InterruptedException e) {
+							Thread.currentThread().interrupt();
+							return endOfData();
+						}
+						return next++;
+					}
+				};
+			}
+		};
+	}
+}
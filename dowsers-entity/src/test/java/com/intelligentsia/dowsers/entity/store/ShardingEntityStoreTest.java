@@ -21,6 +21,7 @@ package com.intelligentsia.dowsers.entity.store;
 
 import junit.framework.Assert;
 
+import org.junit.After;
 import org.junit.Test;
 
 import com.intelligentsia.dowsers.entity.model.Person;
@@ -48,6 +49,11 @@ public class ShardingEntityStoreTest extends StoreBaseTest {
 				add(Reference.newReferenceOnEntityClass(Person.class), personStore).build(defaultEntityStore);
 	}
 
+	@After
+	public void close() {
+		((FileEntityStore) defaultEntityStore).close();
+	}
+
 	@Test
 	public void testSharding() {
 		final Person mario = getMario();
@@ -0,0 +1,180 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.intelligentsia.dowsers.core.DowsersException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Iterables;
+import com.intelligentsia.dowsers.entity.EntityFactories;
+import com.intelligentsia.dowsers.entity.EntityFactories.EntityFactory;
+import com.intelligentsia.dowsers.entity.model.MetaDataUtil;
+import com.intelligentsia.dowsers.entity.model.Person;
+import com.intelligentsia.dowsers.entity.reference.Reference;
+import com.intelligentsia.dowsers.entity.reference.References;
+import com.intelligentsia.dowsers.entity.serializer.EntityMapper;
+import com.intelligentsia.dowsers.entity.store.memory.InMemoryEntityStore;
+import com.intelligentsia.dowsers.entity.store.snapshot.SnapshotReader;
+import com.intelligentsia.dowsers.entity.store.snapshot.Snapshots;
+
+/**
+ * <code>SnapshotsTest</code>.
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com">Jerome Guibert</a>
+ * 
+ */
+public class SnapshotsTest {
+
+	private EntityFactory<Person> factory;
+	private EntityMapper entityMapper;
+	private EntityStore source;
+	private ExecutorService executorService;
+
+	@Before
+	public void initialize() {
+		factory = EntityFactories.newEntityProxyDynamicFactory(Person.class, MetaDataUtil.getMetaEntityContextProvider().find(Reference.newReferenceOnEntityClass(Person.class)));
+		entityMapper = new EntityMapper(MetaDataUtil.getMetaEntityContextProvider());
+		source = new InMemoryEntityStore(entityMapper);
+		executorService = Executors.newFixedThreadPool(4);
+		for (int i = 0; i < 250; i++) {
+			source.store(newPerson("Fusco" + i));
+		}
+	}
+
+	@After
+	public void shutdown() {
+		executorService.shutdownNow();
+	}
+
+	@Test
+	public void testExportAndParallelRestore() {
+		final ByteArrayOutputStream archive = new ByteArrayOutputStream();
+		assertEquals(250, Snapshots.export(source, entityMapper, archive, Person.class));
+
+		final EntityStore target = new InMemoryEntityStore(entityMapper);
+		assertEquals(250, Snapshots.restore(new ByteArrayInputStream(archive.toByteArray()), target, entityMapper, executorService, 16));
+		assertEquals(250, Iterables.size(target.find(Person.class)));
+		for (final Reference reference : source.find(Person.class)) {
+			assertEquals(source.find(Person.class, reference).getLastName(), target.find(Person.class, reference).getLastName());
+		}
+	}
+
+	@Test
+	public void testIncremental() {
+		final ByteArrayOutputStream full = new ByteArrayOutputStream();
+		Snapshots.export(source, entityMapper, full, Person.class);
+		final EntityStore target = new InMemoryEntityStore(entityMapper);
+		Snapshots.restore(new ByteArrayInputStream(full.toByteArray()), target, entityMapper, executorService, 32);
+
+		final Reference updated = Iterables.get(source.find(Person.class), 0);
+		final Reference removed = Iterables.get(source.find(Person.class), 1);
+		final Person person = source.find(Person.class, updated);
+		person.setLastName("Updated");
+		source.store(person);
+		source.remove(removed);
+		final Person added = newPerson("Added");
+		source.store(added);
+
+		final Map<Reference, Long> base = Snapshots.versions(new ByteArrayInputStream(full.toByteArray()));
+		assertEquals(250, base.size());
+		final ByteArrayOutputStream incremental = new ByteArrayOutputStream();
+		assertEquals(3, Snapshots.export(source, entityMapper, base, incremental, Person.class));
+		assertTrue(incremental.size() < full.size());
+
+		assertEquals(3, Snapshots.restore(new ByteArrayInputStream(incremental.toByteArray()), target, entityMapper, executorService, 32));
+		assertEquals("Updated", target.find(Person.class, updated).getLastName());
+		assertEquals("Added", target.find(Person.class, References.identify(added)).getLastName());
+		assertFalse(Iterables.contains(target.find(Person.class), removed));
+		assertEquals(250, Iterables.size(target.find(Person.class)));
+
+		// chain versions
+		assertEquals(250, Snapshots.versions(new ByteArrayInputStream(full.toByteArray()), new ByteArrayInputStream(incremental.toByteArray())).size());
+	}
+
+	@Test
+	public void testCorruption() {
+		final ByteArrayOutputStream archive = new ByteArrayOutputStream();
+		Snapshots.export(source, entityMapper, archive, Person.class);
+		final byte[] bytes = archive.toByteArray();
+
+		// truncated archive
+		final byte[] truncated = new byte[bytes.length / 2];
+		System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+		try {
+			Snapshots.restore(new ByteArrayInputStream(truncated), new InMemoryEntityStore(entityMapper), entityMapper, executorService, 16);
+			fail("truncated archive must be detected");
+		} catch (final DowsersException e) {
+			// expected
+		}
+
+		// not an archive
+		try {
+			new SnapshotReader(new ByteArrayInputStream("not a snapshot".getBytes()));
+			fail("invalid archive must be detected");
+		} catch (final DowsersException e) {
+			// expected
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testFailedBatch() {
+		final ByteArrayOutputStream archive = new ByteArrayOutputStream();
+		Snapshots.export(source, entityMapper, archive, Person.class);
+		final AtomicInteger batches = new AtomicInteger();
+		final EntityStore target = new InMemoryEntityStore(entityMapper) {
+			@Override
+			public <T> void storeAll(final Iterable<T> entities) {
+				if (batches.incrementAndGet() == 3) {
+					throw new DowsersException("failed batch");
+				}
+				super.storeAll(entities);
+			}
+		};
+		// many more batches than pending ones
+		try {
+			Snapshots.restore(new ByteArrayInputStream(archive.toByteArray()), target, entityMapper, executorService, 2);
+			fail("failed batch must be reported");
+		} catch (final DowsersException e) {
+			assertEquals("failed batch", e.getMessage());
+		}
+	}
+
+	private Person newPerson(final String lastName) {
+		final Person person = factory.newInstance();
+		person.setFirstName("Mario");
+		person.setLastName(lastName);
+		person.setYearOld(35);
+		return person;
+	}
+}
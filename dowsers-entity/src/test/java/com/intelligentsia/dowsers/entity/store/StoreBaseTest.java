@@ -25,14 +25,22 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.fail;
 
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+import org.intelligentsia.dowsers.core.Sequence;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.intelligentsia.dowsers.entity.EntityFactories;
 import com.intelligentsia.dowsers.entity.EntityFactories.EntityFactory;
+import com.intelligentsia.dowsers.entity.model.CustomizableSampleEntity;
 import com.intelligentsia.dowsers.entity.model.MetaDataUtil;
 import com.intelligentsia.dowsers.entity.model.Person;
 import com.intelligentsia.dowsers.entity.reference.Reference;
@@ -188,6 +196,97 @@ public abstract class StoreBaseTest {
 		assertEquals(4, count);
 	}
 
+	@Test
+	public void testFindByType() {
+		final Set<Reference> references = Sets.newHashSet();
+		for (int i = 0; i < 2; i++) {
+			final Person mario = getMario();
+			references.add(References.identify(mario));
+			entityStore.store(mario);
+		}
+		entityStore.store(MetaDataUtil.getCustomizableSampleEntity());
+		assertEquals(references, Sets.newHashSet(entityStore.find(Person.class)));
+		assertEquals(Sets.newHashSet(MetaDataUtil.IDENTIFIER), Sets.newHashSet(entityStore.find(CustomizableSampleEntity.class)));
+		// removed reference is no more listed
+		final Reference reference = references.iterator().next();
+		entityStore.remove(reference);
+		references.remove(reference);
+		assertEquals(references, Sets.newHashSet(entityStore.find(Person.class)));
+	}
+
+	@Test
+	public void testBatch() {
+		final List<Person> persons = Lists.newArrayList(getMario("A"), getMario("B"), getMario("C"));
+		final List<Reference> references = Lists.newArrayList();
+		for (final Person person : persons) {
+			references.add(References.identify(person));
+		}
+		entityStore.storeAll(persons);
+		// unknown reference is not included
+		final List<Reference> query = Lists.newArrayList(references);
+		query.add(1, References.newReference(Person.class));
+		final Map<Reference, Person> found = entityStore.findAll(Person.class, query);
+		assertEquals(references, Lists.newArrayList(found.keySet()));
+		assertEquals("B", found.get(references.get(1)).getLastName());
+		// remove
+		entityStore.removeAll(references.subList(0, 2));
+		assertEquals(Lists.newArrayList(references.get(2)), Lists.newArrayList(entityStore.findAll(Person.class, references).keySet()));
+	}
+
+	@Test
+	public void testOptimisticConcurrency() {
+		final Person mario = getMario("A");
+		final Reference reference = References.identify(mario);
+		entityStore.store(mario);
+		assertEquals(1, Versions.version(mario));
+		assertEquals(1, Versions.version(entityStore.find(Person.class, reference)));
+		// a copy read by an other process
+		final StringWriter writer = new StringWriter();
+		entityMapper.writeValue(writer, mario);
+		final Person stale = entityMapper.readValue(new StringReader(writer.toString()), Person.class);
+		mario.setLastName("B");
+		entityStore.store(mario);
+		assertEquals(2, Versions.version(mario));
+		stale.setLastName("C");
+		try {
+			entityStore.store(stale);
+			fail();
+		} catch (final ConcurrencyException e) {
+			// ok
+		}
+		assertEquals(1, Versions.version(stale));
+		assertEquals("B", entityStore.find(Person.class, reference).getLastName());
+		// latest version overwrite
+		Versions.version(stale, Sequence.forLatestSequence());
+		entityStore.store(stale);
+		assertEquals(3, Versions.version(stale));
+		assertEquals("C", entityStore.find(Person.class, reference).getLastName());
+	}
+
+	@Test
+	public void testRestore() {
+		Assume.assumeTrue(entityStore instanceof VersionedEntityStore);
+		final Person mario = getMario("A");
+		final Reference reference = References.identify(mario);
+		Versions.version(mario, 5);
+		((VersionedEntityStore) entityStore).restore(mario);
+		assertEquals(5, Versions.version(mario));
+		assertEquals(5, Versions.version(entityStore.find(Person.class, reference)));
+		// next store is checked against restored version
+		final Person stale = entityStore.find(Person.class, reference);
+		Versions.version(stale, 1);
+		try {
+			entityStore.store(stale);
+			fail();
+		} catch (final ConcurrencyException e) {
+			// ok
+		}
+		mario.setLastName("B");
+		entityStore.store(mario);
+		assertEquals(6, Versions.version(mario));
+		assertEquals("B", entityStore.find(Person.class, reference).getLastName());
+	}
+
 	public Person getMario(final String lastName) {
 		final Person person = factory.newInstance();
 		person.setFirstName("Mario");
@@ -0,0 +1,216 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.intelligentsia.dowsers.entity.model.Person;
+import com.intelligentsia.dowsers.entity.reference.Reference;
+import com.intelligentsia.dowsers.entity.reference.References;
+import com.intelligentsia.dowsers.entity.store.memory.InMemoryEntityStore;
+
+/**
+ * <code>TieredEntityStoreTest</code>.
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com">Jerome Guibert</a>
+ * 
+ */
+public class TieredEntityStoreTest extends StoreBaseTest {
+
+	@Override
+	public EntityStore instanciateEntityStore() {
+		return new TieredEntityStore(new InMemoryEntityStore(entityMapper), new InMemoryEntityStore(entityMapper), 1, 0, TimeUnit.SECONDS);
+	}
+
+	@After
+	public void close() {
+		((TieredEntityStore) entityStore).close();
+	}
+
+	@Test
+	public void testDemotionAndPromotion() {
+		final TieredEntityStore tiered = (TieredEntityStore) entityStore;
+		final Person hot = getMario("Hot");
+		final Person cold = getMario("Cold");
+		entityStore.store(hot);
+		entityStore.store(cold);
+		final Reference hotReference = References.identify(hot);
+		final Reference coldReference = References.identify(cold);
+
+		// both accessed once by store: counters are halved
+		assertEquals(0, tiered.demote());
+		entityStore.find(Person.class, hotReference);
+		assertEquals(1, tiered.demote());
+		assertEquals(1, tiered.hotCount());
+		assertFalse(Iterables.contains(tiered.getHot().find(Person.class), coldReference));
+		assertTrue(Iterables.contains(tiered.getCold().find(Person.class), coldReference));
+
+		// both tiers, no duplicate
+		final List<Reference> references = Lists.newArrayList(entityStore.find(Person.class));
+		assertEquals(2, references.size());
+		assertTrue(references.contains(hotReference));
+		assertTrue(references.contains(coldReference));
+
+		// promotion on read
+		final Person promoted = entityStore.find(Person.class, coldReference);
+		assertEquals("Cold", promoted.getLastName());
+		assertTrue(Iterables.contains(tiered.getHot().find(Person.class), coldReference));
+		assertFalse(Iterables.contains(tiered.getCold().find(Person.class), coldReference));
+		assertEquals(2, tiered.hotCount());
+
+		// promoted instance can be updated
+		promoted.setLastName("Warm");
+		entityStore.store(promoted);
+		assertEquals("Warm", entityStore.find(Person.class, coldReference).getLastName());
+	}
+
+	@Test
+	public void testWriteOnColdEntity() {
+		final TieredEntityStore tiered = (TieredEntityStore) entityStore;
+		final Person person = getMario();
+		entityStore.store(person);
+		final Reference reference = References.identify(person);
+		assertEquals(0, tiered.demote());
+		assertEquals(1, tiered.demote());
+		assertEquals(0, tiered.hotCount());
+
+		// version is checked against cold tier
+		final Person stale = tiered.getCold().find(Person.class, reference);
+		final Person current = tiered.getCold().find(Person.class, reference);
+		current.setLastName("Current");
+		tiered.getCold().store(current);
+		try {
+			stale.setLastName("Stale");
+			entityStore.store(stale);
+			fail("stale instance must be rejected");
+		} catch (final ConcurrencyException e) {
+			// expected
+		}
+		assertEquals(0, tiered.hotCount());
+
+		// write promotes
+		current.setLastName("Promoted");
+		entityStore.store(current);
+		assertEquals(1, tiered.hotCount());
+		assertEquals("Promoted", entityStore.find(Person.class, reference).getLastName());
+		assertEquals(0, Iterables.size(tiered.getCold().find(Person.class)));
+
+		entityStore.remove(reference);
+		assertEquals(0, tiered.hotCount());
+		assertEquals(0, Iterables.size(entityStore.find(Person.class)));
+	}
+
+	@Test
+	public void testMoveKeepVersion() {
+		final TieredEntityStore tiered = (TieredEntityStore) entityStore;
+		final Person person = getMario();
+		entityStore.store(person);
+		entityStore.store(person);
+		final Reference reference = References.identify(person);
+		for (int i = 0; i < 3; i++) {
+			tiered.demote();
+		}
+		assertEquals(0, tiered.hotCount());
+		assertEquals(2, Versions.version(tiered.getCold().find(Person.class, reference)));
+
+		// promoted with its version
+		final Person stale = entityStore.find(Person.class, reference);
+		assertEquals(2, Versions.version(stale));
+		final Person current = entityStore.find(Person.class, reference);
+		current.setLastName("Current");
+		entityStore.store(current);
+		assertEquals(3, Versions.version(current));
+
+		// demoted again, an instance read before is still checked
+		for (int i = 0; i < 3; i++) {
+			tiered.demote();
+		}
+		assertEquals(0, tiered.hotCount());
+		try {
+			stale.setLastName("Stale");
+			entityStore.store(stale);
+			fail("stale instance must be rejected");
+		} catch (final ConcurrencyException e) {
+			// expected
+		}
+		assertEquals("Current", entityStore.find(Person.class, reference).getLastName());
+	}
+
+	@Test
+	public void testSeedFromHotTier() {
+		final EntityStore hot = new InMemoryEntityStore(entityMapper);
+		final Person person = getMario();
+		hot.store(person);
+		final TieredEntityStore tiered = new TieredEntityStore(hot, new InMemoryEntityStore(entityMapper), 1, 0, TimeUnit.SECONDS, Person.class);
+		try {
+			assertEquals(1, tiered.hotCount());
+			assertEquals(1, tiered.demote());
+			assertTrue(Iterables.contains(tiered.getCold().find(Person.class), References.identify(person)));
+		} finally {
+			tiered.close();
+		}
+	}
+
+	@Test
+	public void testDemotionWhileReading() {
+		final AtomicBoolean demoting = new AtomicBoolean();
+		final TieredEntityStore[] tiered = new TieredEntityStore[1];
+		tiered[0] = new TieredEntityStore(new InMemoryEntityStore(entityMapper) {
+			@Override
+			public <T> T find(final Class<T> expectedType, final Reference reference) {
+				final T entity = super.find(expectedType, reference);
+				// demoted after hot read, before access is counted
+				if (demoting.compareAndSet(true, false)) {
+					assertEquals(1, tiered[0].demote());
+				}
+				return entity;
+			}
+		}, new InMemoryEntityStore(entityMapper), 1, 0, TimeUnit.SECONDS);
+		try {
+			final Person person = getMario();
+			tiered[0].store(person);
+			final Reference reference = References.identify(person);
+			assertEquals(0, tiered[0].demote());
+			demoting.set(true);
+			tiered[0].find(Person.class, reference);
+			// not tracked again as hot
+			assertEquals(0, tiered[0].hotCount());
+			assertTrue(Iterables.contains(tiered[0].getCold().find(Person.class), reference));
+			// next read promotes
+			assertEquals("Fusco", tiered[0].find(Person.class, reference).getLastName());
+			assertEquals(1, tiered[0].hotCount());
+			assertEquals(0, Iterables.size(tiered[0].getCold().find(Person.class)));
+		} finally {
+			tiered[0].close();
+		}
+	}
+}
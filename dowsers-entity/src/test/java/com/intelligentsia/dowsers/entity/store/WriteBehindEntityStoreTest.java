@@ -0,0 +1,245 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.intelligentsia.dowsers.core.DowsersException;
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.intelligentsia.dowsers.entity.model.Person;
+import com.intelligentsia.dowsers.entity.reference.Reference;
+import com.intelligentsia.dowsers.entity.reference.References;
+import com.intelligentsia.dowsers.entity.store.memory.InMemoryEntityStore;
+
+/**
+ * <code>WriteBehindEntityStoreTest</code>.
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com">Jerome Guibert</a>
+ * 
+ */
+public class WriteBehindEntityStoreTest extends StoreBaseTest {
+
+	@Override
+	public EntityStore instanciateEntityStore() {
+		return new WriteBehindEntityStore(new InMemoryEntityStore(entityMapper), entityMapper);
+	}
+
+	@After
+	public void close() {
+		((WriteBehindEntityStore) entityStore).close();
+	}
+
+	/**
+	 * Versions are assigned by delegate, when writes are flushed.
+	 */
+	@Override
+	@Test
+	public void testOptimisticConcurrency() {
+		final WriteBehindEntityStore writeBehindEntityStore = (WriteBehindEntityStore) entityStore;
+		final Person mario = getMario("A");
+		final Reference reference = References.identify(mario);
+		writeBehindEntityStore.store(mario);
+		writeBehindEntityStore.flush();
+		assertEquals(1, Versions.version(mario));
+		// a copy read by an other process
+		final StringWriter writer = new StringWriter();
+		entityMapper.writeValue(writer, mario);
+		final Person stale = entityMapper.readValue(new StringReader(writer.toString()), Person.class);
+		mario.setLastName("B");
+		writeBehindEntityStore.store(mario);
+		writeBehindEntityStore.flush();
+		assertEquals(2, Versions.version(mario));
+		stale.setLastName("C");
+		writeBehindEntityStore.store(stale);
+		try {
+			writeBehindEntityStore.flush();
+			fail();
+		} catch (final ConcurrencyException e) {
+			// ok
+		}
+		assertEquals("B", writeBehindEntityStore.find(Person.class, reference).getLastName());
+	}
+
+	@Test
+	public void testStoreWhileFlushing() throws InterruptedException {
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final WriteBehindEntityStore writeBehindEntityStore = new WriteBehindEntityStore(new InMemoryEntityStore(entityMapper) {
+			@Override
+			public <T> void storeAll(final Iterable<T> entities) throws NullPointerException, ConcurrencyException, IllegalArgumentException {
+				blocked.countDown();
+				try {
+					release.await();
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				super.storeAll(entities);
+			}
+		}, entityMapper, 1, 10, 1, TimeUnit.HOURS);
+		try {
+			final Person mario = getMario("A");
+			final Reference reference = References.identify(mario);
+			writeBehindEntityStore.store(mario);
+			assertTrue(blocked.await(5, TimeUnit.SECONDS));
+			// stored again before first write reach delegate
+			mario.setLastName("B");
+			writeBehindEntityStore.store(mario);
+			assertEquals(0, Versions.version(mario));
+			release.countDown();
+			writeBehindEntityStore.flush();
+			assertEquals(2, Versions.version(mario));
+			final Person stored = writeBehindEntityStore.getEntityStore().find(Person.class, reference);
+			assertEquals("B", stored.getLastName());
+			assertEquals(2, Versions.version(stored));
+		} finally {
+			writeBehindEntityStore.close();
+		}
+	}
+
+	@Test
+	public void testCoalescing() {
+		final AtomicInteger stores = new AtomicInteger();
+		final WriteBehindEntityStore writeBehindEntityStore = new WriteBehindEntityStore(new InMemoryEntityStore(entityMapper) {
+			@Override
+			public <T> void store(final T entity) throws NullPointerException, ConcurrencyException, IllegalArgumentException {
+				stores.incrementAndGet();
+				super.store(entity);
+			}
+		}, entityMapper, 100, 1000, 1, TimeUnit.HOURS);
+		try {
+			final Person mario = getMario("A");
+			final Reference reference = References.identify(mario);
+			for (int i = 0; i < 10; i++) {
+				mario.setYearOld(i);
+				writeBehindEntityStore.store(mario);
+			}
+			assertEquals(1, writeBehindEntityStore.pendingCount());
+			// read your writes
+			assertEquals(Integer.valueOf(9), writeBehindEntityStore.find(Person.class, reference).getYearOld());
+			assertEquals(Lists.newArrayList(reference), Lists.newArrayList(writeBehindEntityStore.find(Person.class)));
+			assertEquals(0, stores.get());
+			writeBehindEntityStore.flush();
+			assertEquals(1, stores.get());
+			assertEquals(0, writeBehindEntityStore.pendingCount());
+			// pending remove
+			writeBehindEntityStore.remove(reference);
+			assertTrue(Lists.newArrayList(writeBehindEntityStore.find(Person.class)).isEmpty());
+			try {
+				writeBehindEntityStore.find(Person.class, reference);
+				fail();
+			} catch (final EntityNotFoundException e) {
+				// ok
+			}
+			assertEquals(1, Lists.newArrayList(writeBehindEntityStore.getEntityStore().find(Person.class)).size());
+		} finally {
+			writeBehindEntityStore.close();
+		}
+		assertTrue(Lists.newArrayList(writeBehindEntityStore.getEntityStore().find(Person.class)).isEmpty());
+	}
+
+	@Test
+	public void testFlushBySizeAndTime() throws InterruptedException {
+		final CountDownLatch latch = new CountDownLatch(2);
+		final List<Integer> batches = Lists.newCopyOnWriteArrayList();
+		final WriteBehindEntityStore writeBehindEntityStore = new WriteBehindEntityStore(new InMemoryEntityStore(entityMapper) {
+			@Override
+			public <T> void storeAll(final Iterable<T> entities) throws NullPointerException, ConcurrencyException, IllegalArgumentException {
+				batches.add(Lists.newArrayList(entities).size());
+				super.storeAll(entities);
+				latch.countDown();
+			}
+		}, entityMapper, 10, 100, 200, TimeUnit.MILLISECONDS);
+		try {
+			for (int i = 0; i < 10; i++) {
+				writeBehindEntityStore.store(getMario("Fusco" + i));
+			}
+			writeBehindEntityStore.store(getMario("Last"));
+			assertTrue(latch.await(5, TimeUnit.SECONDS));
+			int count = 0;
+			for (final Integer size : batches) {
+				assertTrue(size <= 10);
+				count += size;
+			}
+			assertEquals(11, count);
+		} finally {
+			writeBehindEntityStore.close();
+		}
+	}
+
+	@Test
+	public void testBackpressureAndFailure() throws InterruptedException {
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final WriteBehindEntityStore writeBehindEntityStore = new WriteBehindEntityStore(new InMemoryEntityStore(entityMapper) {
+			@Override
+			public <T> void storeAll(final Iterable<T> entities) throws NullPointerException, ConcurrencyException, IllegalArgumentException {
+				blocked.countDown();
+				try {
+					release.await();
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				throw new DowsersException("unavailable");
+			}
+		}, entityMapper, 2, 2, 10, TimeUnit.MILLISECONDS);
+		writeBehindEntityStore.store(getMario("A"));
+		writeBehindEntityStore.store(getMario("B"));
+		assertTrue(blocked.await(5, TimeUnit.SECONDS));
+		writeBehindEntityStore.store(getMario("C"));
+		writeBehindEntityStore.store(getMario("D"));
+		final CountDownLatch stored = new CountDownLatch(1);
+		final Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeBehindEntityStore.store(getMario("E"));
+				stored.countDown();
+			}
+		});
+		writer.start();
+		// queue is full
+		assertEquals(false, stored.await(100, TimeUnit.MILLISECONDS));
+		release.countDown();
+		assertTrue(stored.await(5, TimeUnit.SECONDS));
+		try {
+			writeBehindEntityStore.close();
+			fail();
+		} catch (final DowsersException e) {
+			// ok
+		}
+		try {
+			writeBehindEntityStore.store(getMario("F"));
+			fail();
+		} catch (final IllegalStateException e) {
+			// ok
+		}
+	}
+}
@@ -0,0 +1,110 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.store.btree;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+
+/**
+ * <code>BTreeTest</code>.
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com">Jerome Guibert</a>
+ * 
+ */
+public class BTreeTest {
+
+	private File file;
+
+	private BTree tree;
+
+	@Before
+	public void open() throws IOException {
+		file = File.createTempFile("dowsers", ".btree");
+		file.delete();
+		file.deleteOnExit();
+		tree = new BTree(file, 16);
+	}
+
+	@After
+	public void close() {
+		tree.close();
+		file.delete();
+	}
+
+	@Test
+	public void testMaximumKeySize() {
+		// a small entry, then two entries of maximum key and inline value
+		tree.put(key(0), new byte[0]);
+		tree.put(key(1), new byte[Pager.PAGE_SIZE / 4]);
+		tree.put(key(2), new byte[Pager.PAGE_SIZE / 4]);
+		tree.commit();
+		assertEquals(Pager.PAGE_SIZE / 4, tree.get(key(2)).length);
+
+		final List<Integer> entries = Lists.newArrayList();
+		for (int i = 0; i < 300; i++) {
+			entries.add(i);
+		}
+		Collections.shuffle(entries, new Random(42));
+		for (final Integer i : entries) {
+			tree.put(key(i), value(i));
+		}
+		tree.commit();
+		for (int i = 0; i < 300; i++) {
+			assertArrayEquals(value(i), tree.get(key(i)));
+		}
+		try {
+			tree.put(Strings.repeat("k", BTree.MAX_KEY_SIZE + 1), new byte[0]);
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// ok
+		}
+		assertEquals(null, tree.get(Strings.repeat("k", BTree.MAX_KEY_SIZE + 1)));
+	}
+
+	/**
+	 * @return a key of maximum size.
+	 */
+	private static String key(final int i) {
+		return Strings.padStart(Integer.toString(i), BTree.MAX_KEY_SIZE, '0');
+	}
+
+	/**
+	 * @return a value from empty to larger than inline limit.
+	 */
+	private static byte[] value(final int i) {
+		final byte[] value = new byte[(i * 97) % 1500];
+		new Random(i).nextBytes(value);
+		return value;
+	}
+}
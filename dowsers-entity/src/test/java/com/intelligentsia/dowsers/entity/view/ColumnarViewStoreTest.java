@@ -0,0 +1,223 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.view;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.intelligentsia.dowsers.entity.model.Organization;
+import com.intelligentsia.dowsers.entity.reference.Reference;
+import com.intelligentsia.dowsers.entity.view.ColumnarViewStore.Selection;
+import com.intelligentsia.dowsers.entity.view.ColumnarViewStore.Statistics;
+import com.intelligentsia.dowsers.entity.view.processor.Item;
+
+/**
+ * ColumnarViewStoreTest.
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
+ */
+public class ColumnarViewStoreTest {
+
+	@Test
+	public void testRoundTrip() {
+		final ColumnarViewStore store = new ColumnarViewStore();
+		final Item item = new Item();
+		item.put("name", "intelligents-ia");
+		item.put("size", 12);
+		item.put("revenue", 42L);
+		item.put("rate", 0.5d);
+		item.put("ratio", 0.25f);
+		item.put("active", Boolean.TRUE);
+		item.put("comment", null);
+		store.update(reference(1), item);
+		final Item other = new Item();
+		other.put("name", "dowsers");
+		other.put("country", "fr");
+		store.update(reference(2), other);
+
+		assertEquals(2, store.size());
+		final List<Item> items = store.items(store.equal("name", "intelligents-ia"));
+		assertEquals(1, items.size());
+		final Item read = items.get(0);
+		assertEquals(6, read.size());
+		assertEquals("intelligents-ia", read.get("name"));
+		assertEquals(Integer.valueOf(12), read.get("size"));
+		assertEquals(Long.valueOf(42L), read.get("revenue"));
+		assertEquals(Double.valueOf(0.5d), read.get("rate"));
+		assertEquals(Float.valueOf(0.25f), read.get("ratio"));
+		assertEquals(Boolean.TRUE, read.get("active"));
+		assertFalse(read.keySet().contains("country"));
+
+		final Item second = store.items(store.equal("name", "dowsers")).get(0);
+		assertEquals(2, second.size());
+		assertEquals("fr", second.get("country"));
+	}
+
+	@Test
+	public void testScan() {
+		final ColumnarViewStore store = new ColumnarViewStore();
+		for (int i = 0; i < 100; i++) {
+			store.update(reference(i), item("city-" + (i % 4), i, i / 2d));
+		}
+		// range on long column
+		assertEquals(10, store.range("size", 10, true, 20, false).cardinality());
+		assertEquals(10, store.range("size", 9.5, true, 19.5, false).cardinality());
+		assertEquals(5, store.range("size", 94, false, null, true).cardinality());
+		// range on double column
+		assertEquals(3, store.range("price", 1d, true, 2d, true).cardinality());
+		// range on dictionary column
+		assertEquals(50, store.range("city", "city-2", true, null, true).cardinality());
+		// combined filter and aggregate
+		final Selection selection = store.equal("city", "city-1").and(store.range("size", null, true, 50, false));
+		final Statistics statistics = store.statistics("size", selection);
+		assertEquals(13, statistics.getCount());
+		assertEquals(1d, statistics.getMin());
+		assertEquals(49d, statistics.getMax());
+		assertEquals(25d, statistics.getMean());
+		assertEquals(0.5d, store.statistics("price", selection).getMin());
+		// group by
+		final Map<Object, Integer> counts = store.countBy("city", store.range("size", null, true, 10, false));
+		assertEquals(4, counts.size());
+		assertEquals(Integer.valueOf(3), counts.get("city-0"));
+		assertEquals(Integer.valueOf(2), counts.get("city-3"));
+		// unknown attribute
+		assertTrue(store.equal("unknown", 1).isEmpty());
+		assertEquals(0, store.statistics("unknown", store.select()).getCount());
+		try {
+			store.statistics("city", store.select());
+			assertTrue(false);
+		} catch (final IllegalArgumentException exception) {
+		}
+	}
+
+	@Test
+	public void testDictionaryFallback() {
+		final ColumnarViewStore store = new ColumnarViewStore();
+		store.update(reference(1), item("a", 1, 1d));
+		final Item item = item("b", 2, 2d);
+		item.put("size", "large");
+		store.update(reference(2), item);
+		assertEquals(Integer.valueOf(1), store.items(store.equal("name", "a")).get(0).get("size"));
+		assertEquals("large", store.items(store.equal("name", "b")).get(0).get("size"));
+		assertEquals(1, store.equal("size", 1).cardinality());
+		assertEquals(Integer.valueOf(1), store.countBy("size", store.select()).get("large"));
+	}
+
+	@Test
+	public void testMixedNumericTypes() {
+		final ColumnarViewStore store = new ColumnarViewStore();
+		final Item first = item("a", 1, 1d);
+		first.put("ratio", 0.5f);
+		store.update(reference(1), first);
+		final Item second = item("b", 2, 2d);
+		second.put("size", 3000000000L);
+		second.put("ratio", 1.5d);
+		store.update(reference(2), second);
+		final Item third = item("c", 3, 3d);
+		third.put("size", (short) 4);
+		store.update(reference(3), third);
+		// widest type is kept
+		assertEquals(Long.valueOf(1), store.items(store.equal("name", "a")).get(0).get("size"));
+		assertEquals(Long.valueOf(3000000000L), store.items(store.equal("name", "b")).get(0).get("size"));
+		assertEquals(Double.valueOf(0.5d), store.items(store.equal("name", "a")).get(0).get("ratio"));
+		// still numeric
+		final Statistics size = store.statistics("size", store.select());
+		assertEquals(3, size.getCount());
+		assertEquals(1d, size.getMin());
+		assertEquals(3000000000d, size.getMax());
+		assertEquals(2d, store.statistics("ratio", store.select()).getSum());
+		assertEquals(1, store.equal("size", 4).cardinality());
+	}
+
+	@Test
+	public void testRemoveAndCompact() {
+		final ColumnarViewStore store = new ColumnarViewStore();
+		final int count = 3000;
+		for (int i = 0; i < count; i++) {
+			store.update(reference(i), Lists.newArrayList(item("city-" + (i % 3), i, i), item("city-" + (i % 3), -i, -i)));
+		}
+		assertEquals(2 * count, store.size());
+		for (int i = 0; i < count; i++) {
+			if ((i % 4) != 0) {
+				store.remove(reference(i));
+			}
+		}
+		assertEquals(count / 2, store.size());
+		final Statistics statistics = store.statistics("size", store.range("size", 0, false, null, true));
+		assertEquals((count / 4) - 1, statistics.getCount());
+		assertEquals(4d, statistics.getMin());
+		assertEquals(count - 4d, statistics.getMax());
+		// index is still valid after compaction
+		store.remove(reference(8));
+		assertEquals(0, store.equal("size", 8).cardinality());
+		assertEquals(0, store.equal("size", -8).cardinality());
+		store.update(reference(8), item("new", 8, 8));
+		assertEquals(1, store.equal("size", 8).cardinality());
+		assertEquals(1, store.equal("name", "new").cardinality());
+		assertEquals(count / 2 - 1, store.items().size());
+
+		// selections built before a compaction are rejected
+		final Selection before = store.equal("name", "new");
+		for (int i = 0; i < count; i += 4) {
+			if (i != 8) {
+				store.remove(reference(i));
+			}
+		}
+		assertEquals(1, store.size());
+		try {
+			store.items(before);
+			fail("stale selection");
+		} catch (final IllegalStateException exception) {
+			// expected
+		}
+		try {
+			before.and(store.select());
+			fail("stale selection");
+		} catch (final IllegalArgumentException exception) {
+			// expected
+		}
+		assertEquals("new", store.items(store.equal("name", "new")).get(0).get("name"));
+
+		store.drop();
+		assertEquals(0, store.size());
+		assertTrue(store.attributeNames().isEmpty());
+	}
+
+	private static Reference reference(final int i) {
+		return Reference.newReference(Organization.class, Integer.toString(i));
+	}
+
+	private static Item item(final String name, final int size, final double price) {
+		final Item item = new Item();
+		item.put("name", name);
+		item.put("city", name);
+		item.put("size", size);
+		item.put("price", price);
+		return item;
+	}
+}
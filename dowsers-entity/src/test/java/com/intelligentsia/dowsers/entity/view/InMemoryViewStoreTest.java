@@ -0,0 +1,232 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.view;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.intelligentsia.dowsers.entity.model.Organization;
+import com.intelligentsia.dowsers.entity.reference.Reference;
+import com.intelligentsia.dowsers.entity.view.InMemoryViewStore.Snapshot;
+import com.intelligentsia.dowsers.entity.view.processor.Item;
+
+/**
+ * InMemoryViewStoreTest.
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
+ */
+public class InMemoryViewStoreTest {
+
+	@Test
+	public void testLookup() {
+		final InMemoryViewStore store = InMemoryViewStore.builder().hashIndex("name").sortedIndex("size").build();
+		for (int i = 0; i < 10; i++) {
+			store.update(reference(i), item("organization-" + (i % 5), i));
+		}
+		assertEquals(10, store.size());
+		// hash index
+		assertEquals(2, store.find("name", "organization-3").size());
+		assertEquals(0, store.find("name", "unknown").size());
+		// sorted index
+		assertEquals(1, store.find("size", 4).size());
+		final List<Object> sizes = sizes(store.range("size", 3, true, 6, false));
+		assertEquals(Lists.<Object> newArrayList(3, 4, 5), sizes);
+		assertEquals(Lists.<Object> newArrayList(8, 9), sizes(store.range("size", 7, false, null, true)));
+		assertEquals(Lists.<Object> newArrayList(0, 1), sizes(store.range("size", null, true, 1, true)));
+		// without index
+		final InMemoryViewStore scan = new InMemoryViewStore();
+		for (final Item item : store) {
+			scan.update(Reference.newReference(Organization.class, item.get("name") + "-" + item.get("size")), item);
+		}
+		assertEquals(2, scan.find("name", "organization-3").size());
+		assertEquals(3, scan.range("size", 3, true, 6, false).size());
+	}
+
+	@Test
+	public void testRemove() {
+		final InMemoryViewStore store = InMemoryViewStore.builder().hashIndex("name").sortedIndex("size").build();
+		store.update(reference(1), Lists.newArrayList(item("a", 1), item("b", 2)));
+		store.update(reference(2), item("a", 3));
+		assertEquals(2, store.find("name", "a").size());
+		store.remove(reference(1));
+		assertEquals(1, store.size());
+		assertEquals(1, store.find("name", "a").size());
+		assertEquals(0, store.find("name", "b").size());
+		assertEquals(Lists.<Object> newArrayList(3), sizes(store.range("size", null, true, null, true)));
+		store.update(reference(2), (Item) null);
+		assertEquals(0, store.size());
+		store.update(reference(3), item("c", 3));
+		store.drop();
+		assertEquals(0, store.find("name", "c").size());
+		assertTrue(store.items().isEmpty());
+	}
+
+	@Test
+	public void testSnapshot() {
+		final InMemoryViewStore store = InMemoryViewStore.builder().hashIndex("name").sortedIndex("size").build();
+		store.update(reference(1), item("a", 1));
+		final Snapshot snapshot = store.snapshot();
+		assertSame(snapshot, store.snapshot());
+		store.update(reference(2), item("a", 2));
+		store.remove(reference(1));
+		// snapshot is not updated
+		assertEquals(1, snapshot.size());
+		assertEquals(Lists.<Object> newArrayList(1), sizes(snapshot.find("name", "a")));
+		assertEquals(Lists.<Object> newArrayList(1), sizes(snapshot.range("size", 0, true, 10, true)));
+		// a new one is
+		assertTrue(snapshot != store.snapshot());
+		assertEquals(Lists.<Object> newArrayList(2), sizes(store.snapshot().find("name", "a")));
+	}
+
+	@Test
+	public void testNumbers() {
+		final InMemoryViewStore store = InMemoryViewStore.builder().hashIndex("name").sortedIndex("size").build();
+		store.update(reference(1), item("a", 1));
+		final Item integral = item("b", 2);
+		integral.put("size", 2L);
+		store.update(reference(2), integral);
+		final Item decimal = item("b", 2);
+		decimal.put("size", 2.5d);
+		store.update(reference(3), decimal);
+		// integral numbers are equal whatever their type
+		assertEquals(1, store.find("size", 1L).size());
+		assertEquals(1, store.find("size", 2).size());
+		assertEquals(Lists.<Object> newArrayList(1, 2L, 2.5d), sizes(store.range("size", 1, true, 3L, true)));
+		assertEquals(Lists.<Object> newArrayList(2.5d), sizes(store.range("size", 2, false, null, true)));
+		// rejected before store is changed
+		try {
+			store.update(reference(4), Lists.newArrayList(item("c", 4), item("d", 5), item("e", 6)));
+			final Item invalid = item("f", 7);
+			invalid.put("size", "seven");
+			store.update(reference(4), invalid);
+			fail("value cannot be compared");
+		} catch (final IllegalArgumentException e) {
+			// expected
+		}
+		assertEquals(6, store.size());
+		assertEquals(0, store.find("name", "f").size());
+		assertEquals(6, store.snapshot().range("size", null, true, null, true).size());
+	}
+
+	@Test
+	public void testSnapshotDuringUpdates() {
+		final InMemoryViewStore store = InMemoryViewStore.builder().hashIndex("name").sortedIndex("size").build();
+		for (int i = 0; i < 10; i++) {
+			store.update(reference(i), item("a", i));
+		}
+		final Snapshot first = store.snapshot();
+		store.remove(reference(0));
+		store.update(reference(1), item("b", 1));
+		store.update(reference(10), item("a", 10));
+		final Snapshot second = store.snapshot();
+		assertEquals(10, first.size());
+		assertEquals(10, first.find("name", "a").size());
+		assertEquals(11, second.size());
+		assertEquals(10, second.find("name", "a").size());
+		assertEquals(1, second.find("name", "b").size());
+		assertEquals(Lists.<Object> newArrayList(1, 1, 2), sizes(second.range("size", 0, true, 2, true)));
+		store.drop();
+		store.update(reference(5), item("c", 5));
+		assertEquals(1, store.snapshot().size());
+		assertEquals(10, first.size());
+	}
+
+	@Test
+	public void testConcurrentUpdates() throws Exception {
+		final InMemoryViewStore store = InMemoryViewStore.builder().hashIndex("name").sortedIndex("size").build();
+		final int writers = 4;
+		final int count = 2000;
+		final ExecutorService executorService = Executors.newFixedThreadPool(writers + 1);
+		final CountDownLatch latch = new CountDownLatch(writers);
+		final AtomicBoolean failed = new AtomicBoolean(false);
+		// reader
+		final Future<?> reader = executorService.submit(new Runnable() {
+			@Override
+			public void run() {
+				while (latch.getCount() > 0) {
+					for (final Item item : store.range("size", 0, true, count, false)) {
+						if (item.get("name") == null) {
+							failed.set(true);
+						}
+					}
+					store.snapshot().find("name", "w0");
+				}
+			}
+		});
+		for (int w = 0; w < writers; w++) {
+			final int writer = w;
+			executorService.submit(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < count; i++) {
+							final Reference reference = Reference.newReference(Organization.class, writer + "-" + i);
+							store.update(reference, item("w" + writer, i));
+							if ((i % 2) == 0) {
+								store.remove(reference);
+							}
+						}
+					} finally {
+						latch.countDown();
+					}
+				}
+			});
+		}
+		latch.await(30, TimeUnit.SECONDS);
+		reader.get(30, TimeUnit.SECONDS);
+		executorService.shutdown();
+		assertTrue(!failed.get());
+		assertEquals((writers * count) / 2, store.size());
+		assertEquals(count / 2, store.find("name", "w1").size());
+		assertEquals((writers * count) / 2, store.snapshot().range("size", null, true, null, true).size());
+	}
+
+	private static Reference reference(final int i) {
+		return Reference.newReference(Organization.class, Integer.toString(i));
+	}
+
+	private static Item item(final String name, final int size) {
+		final Item item = new Item();
+		item.put("name", name);
+		item.put("size", size);
+		return item;
+	}
+
+	private static List<Object> sizes(final Iterable<Item> items) {
+		final List<Object> sizes = Lists.newArrayList();
+		for (final Item item : items) {
+			sizes.add(item.get("size"));
+		}
+		return sizes;
+	}
+}
@@ -0,0 +1,69 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.view;
+
+import static junit.framework.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+
+/**
+ * ProgressTest.
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
+ */
+public class ProgressTest {
+
+	private long now = 0;
+
+	private final Ticker ticker = new Ticker() {
+		@Override
+		public long read() {
+			return now;
+		}
+	};
+
+	@Test
+	public void testProgress() {
+		final Progress progress = new Progress("Organization", 1000, ticker);
+		assertEquals(-1, progress.eta());
+		assertEquals(0.0, progress.rate());
+
+		now = TimeUnit.SECONDS.toNanos(2);
+		assertEquals(250, progress.processed(250));
+		assertEquals(125.0, progress.rate());
+		assertEquals(6, progress.eta());
+		assertEquals(2000, progress.elapsed());
+		assertEquals("Organization: 250/1000 entities, 125 entities/sec, ETA 6s", progress.toString());
+
+		now = TimeUnit.SECONDS.toNanos(8);
+		progress.processed(750);
+		assertEquals(0, progress.eta());
+	}
+
+	@Test
+	public void testEmpty() {
+		final Progress progress = new Progress("Organization", 0, ticker);
+		assertEquals(0, progress.eta());
+	}
+}
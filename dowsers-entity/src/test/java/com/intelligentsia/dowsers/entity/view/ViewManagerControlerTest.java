@@ -0,0 +1,199 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.view;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import com.intelligentsia.dowsers.entity.EntityFactoryProvider;
+import com.intelligentsia.dowsers.entity.manager.EntityManager;
+import com.intelligentsia.dowsers.entity.manager.EntityManagerSupport;
+import com.intelligentsia.dowsers.entity.meta.MetaEntityContextProvider;
+import com.intelligentsia.dowsers.entity.model.MetaDataUtil;
+import com.intelligentsia.dowsers.entity.model.Organization;
+import com.intelligentsia.dowsers.entity.reference.References;
+import com.intelligentsia.dowsers.entity.serializer.EntityMapper;
+import com.intelligentsia.dowsers.entity.store.change.ChangeFeedEntityStore;
+import com.intelligentsia.dowsers.entity.store.change.FileChangeLog;
+import com.intelligentsia.dowsers.entity.store.memory.InMemoryEntityStore;
+import com.intelligentsia.dowsers.entity.view.ViewManagerControler.Behavior;
+import com.intelligentsia.dowsers.entity.view.processor.Item;
+
+/**
+ * ViewManagerControlerTest.
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
+ */
+public class ViewManagerControlerTest {
+
+	private EntityManager entityManager;
+
+	private FileChangeLog changeLog;
+
+	private CheckpointedInMemoryViewStore viewStore;
+
+	@Before
+	public void initialize() {
+		final MetaEntityContextProvider metaEntityContextProvider = MetaDataUtil.getMetaEntityContextProvider();
+		final EntityMapper entityMapper = new EntityMapper(metaEntityContextProvider);
+		changeLog = new FileChangeLog(Files.createTempDir());
+		entityManager = new EntityManagerSupport(new EntityFactoryProvider(metaEntityContextProvider), new ChangeFeedEntityStore(new InMemoryEntityStore(entityMapper), entityMapper, changeLog), entityMapper);
+		viewStore = new CheckpointedInMemoryViewStore();
+	}
+
+	@After
+	public void close() {
+		changeLog.close();
+	}
+
+	@Test
+	public void testIncrementalMaintenance() {
+		final Organization first = newOrganization("first");
+		final Organization second = newOrganization("second");
+
+		// first start: full rebuild
+		process(view("name"));
+		assertEquals(1, viewStore.drops);
+		assertEquals(2, viewStore.items().size());
+		assertEquals(2, viewStore.checkpoint().getSequence());
+
+		// offline changes
+		final Organization third = newOrganization("third");
+		first.name("updated");
+		entityManager.store(first);
+		entityManager.remove(second);
+
+		// restart: only changes are replayed
+		process(view("name"));
+		assertEquals(1, viewStore.drops);
+		assertEquals(5, viewStore.checkpoint().getSequence());
+		final List<Object> names = Lists.newArrayList();
+		for (final Item item : viewStore.items()) {
+			names.add(item.get("o.name"));
+		}
+		assertEquals(2, names.size());
+		assertTrue(names.contains("updated"));
+		assertTrue(names.contains(third.name()));
+
+		// nothing new
+		process(view("name"));
+		assertEquals(1, viewStore.drops);
+
+		// definition changed: full rebuild
+		process(view("identity", "name"));
+		assertEquals(2, viewStore.drops);
+		assertEquals(2, viewStore.items().size());
+		assertEquals(5, viewStore.checkpoint().getSequence());
+	}
+
+	@Test
+	public void testTruncatedChanges() {
+		newOrganization("first");
+		process(view("name"));
+		assertEquals(1, viewStore.drops);
+		// checkpoint ahead of log: log was reset
+		viewStore.checkpoint(new CheckpointedViewStore.Checkpoint(view("name").signature(), 42));
+		process(view("name"));
+		assertEquals(2, viewStore.drops);
+		assertEquals(1, viewStore.checkpoint().getSequence());
+	}
+
+	@Test
+	public void testPendingChange() {
+		final Organization first = newOrganization("first");
+		process(view("name"));
+		assertEquals(1, viewStore.drops);
+		// write of an organization interrupted before its change
+		changeLog.intend(References.identify(first));
+		process(view("name"));
+		assertEquals(2, viewStore.drops);
+		assertEquals(1, viewStore.checkpoint().getSequence());
+	}
+
+	@Test
+	public void testParallelRebuild() {
+		final int count = 1234;
+		for (int i = 0; i < count; i++) {
+			newOrganization("organization-" + i);
+		}
+		final InMemoryViewStore store = new InMemoryViewStore();
+		final View view = View.builder().name("OrganizationView").viewStore(store).processor(Organization.class, "o", "name").build().build();
+		new ViewManagerControler(entityManager, new ViewManager(Lists.newArrayList(view)), Behavior.FOREGROUND, null, 4).process();
+		assertEquals(count, store.items().size());
+		final Set<Object> names = Sets.newHashSet();
+		for (final Item item : store.items()) {
+			names.add(item.get("o.name"));
+		}
+		assertEquals(count, names.size());
+		assertTrue(names.contains("organization-0"));
+		assertTrue(names.contains("organization-" + (count - 1)));
+	}
+
+	private Organization newOrganization(final String name) {
+		final Organization organization = entityManager.newInstance(Organization.class);
+		organization.name(name);
+		entityManager.store(organization);
+		return organization;
+	}
+
+	private View view(final String... names) {
+		return View.builder().name("OrganizationView").viewStore(viewStore).processor(Organization.class, "o", names).build().build();
+	}
+
+	private void process(final View view) {
+		new ViewManagerControler(entityManager, new ViewManager(Lists.newArrayList(view)), Behavior.FOREGROUND, changeLog).process();
+	}
+
+	/**
+	 * In memory {@link CheckpointedViewStore}, kept across controller runs.
+	 */
+	private static class CheckpointedInMemoryViewStore extends InMemoryViewStore implements CheckpointedViewStore {
+
+		private Checkpoint checkpoint;
+
+		private int drops = 0;
+
+		@Override
+		public Checkpoint checkpoint() {
+			return checkpoint;
+		}
+
+		@Override
+		public void checkpoint(final Checkpoint checkpoint) throws NullPointerException {
+			this.checkpoint = checkpoint;
+		}
+
+		@Override
+		public void drop() {
+			drops++;
+			super.drop();
+		}
+	}
+}
@@ -20,6 +20,7 @@
 package com.intelligentsia.dowsers.entity.view;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertTrue;
 
@@ -155,4 +156,39 @@ public class ViewTest {
 
 	}
 
+	@Test
+	public void testSignature() {
+		final View view = organizationView("c.annotation");
+		assertEquals(view.signature(), organizationView("c.annotation").signature());
+		assertFalse(view.signature().equals(organizationView("c.name").signature()));
+		assertFalse(view.signature().equals(organizationView(null).signature()));
+	}
+
+	@Test
+	public void testComputeReplaceItems() {
+		final View view = organizationView("c.annotation");
+		final InMemoryViewStore viewStore = (InMemoryViewStore) view.viewStore();
+		final Organization organization = entityManager.newInstance(Organization.class);
+		organization.name("Intelligents-ia");
+		organization.annotation(new Description());
+		organization.annotation().add(Locale.FRANCE, "une note").add(Locale.ENGLISH, "a note");
+		view.compute(organization);
+		assertEquals(2, viewStore.size());
+		organization.annotation().add(Locale.GERMAN, "eine Notiz");
+		view.compute(organization);
+		assertEquals(3, viewStore.size());
+		// no more items
+		organization.annotation(null);
+		view.compute(organization);
+		assertEquals(0, viewStore.size());
+	}
+
+	private static View organizationView(final String splitter) {
+		final View.Builder builder = View.builder().name("OrganizationView").viewStore(new InMemoryViewStore()).processor(Organization.class, "c", "identity", "name", "annotation").build();
+		if (splitter != null) {
+			builder.splitter(splitter);
+		}
+		return builder.build();
+	}
+
 }
@@ -0,0 +1,222 @@
+/**
+ *        Licensed to the Apache Software Foundation (ASF) under one
+ *        or more contributor license agreements.  See the NOTICE file
+ *        distributed with this work for additional information
+ *        regarding copyright ownership.  The ASF licenses this file
+ *        to you under the Apache License, Version 2.0 (the
+ *        "License"); you may not use this file except in compliance
+ *        with the License.  You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing,
+ *        software distributed under the License is distributed on an
+ *        "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *        KIND, either express or implied.  See the License for the
+ *        specific language governing permissions and limitations
+ *        under the License.
+ *
+ */
+package com.intelligentsia.dowsers.entity.view.file;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import com.intelligentsia.dowsers.entity.EntityFactoryProvider;
+import com.intelligentsia.dowsers.entity.manager.EntityManager;
+import com.intelligentsia.dowsers.entity.manager.EntityManagerSupport;
+import com.intelligentsia.dowsers.entity.meta.MetaEntityContextProvider;
+import com.intelligentsia.dowsers.entity.model.MetaDataUtil;
+import com.intelligentsia.dowsers.entity.model.Organization;
+import com.intelligentsia.dowsers.entity.reference.Reference;
+import com.intelligentsia.dowsers.entity.serializer.EntityMapper;
+import com.intelligentsia.dowsers.entity.store.change.ChangeFeedEntityStore;
+import com.intelligentsia.dowsers.entity.store.change.FileChangeLog;
+import com.intelligentsia.dowsers.entity.store.memory.InMemoryEntityStore;
+import com.intelligentsia.dowsers.entity.view.CheckpointedViewStore.Checkpoint;
+import com.intelligentsia.dowsers.entity.view.View;
+import com.intelligentsia.dowsers.entity.view.ViewManager;
+import com.intelligentsia.dowsers.entity.view.ViewManagerControler;
+import com.intelligentsia.dowsers.entity.view.ViewManagerControler.Behavior;
+import com.intelligentsia.dowsers.entity.view.processor.Item;
+
+/**
+ * MappedViewStoreTest.
+ * 
+ * @author <a href="mailto:jguibert@intelligents-ia.com" >Jerome Guibert</a>
+ */
+public class MappedViewStoreTest {
+
+	private File directory;
+
+	@Before
+	public void initialize() {
+		directory = Files.createTempDir();
+	}
+
+	@Test
+	public void testReopen() {
+		MappedViewStore store = new MappedViewStore(directory);
+		store.update(reference(1), item("a", 1));
+		store.update(reference(2), Lists.newArrayList(item("b", 2), item("c", 3)));
+		store.update(reference(3), item("d", 4));
+		store.remove(reference(3));
+		assertEquals(3, store.size());
+		store.close();
+
+		store = new MappedViewStore(directory);
+		assertEquals(3, store.size());
+		assertEquals(3, store.items().size());
+		assertEquals(2, store.items(reference(2)).size());
+		assertEquals(Integer.valueOf(3), store.items(reference(2)).get(1).get("size"));
+		assertTrue(store.items(reference(3)).isEmpty());
+		store.remove(reference(2));
+		store.update(reference(4), item("e", 5));
+		store.close();
+
+		store = new MappedViewStore(directory);
+		assertEquals(2, store.size());
+		assertEquals("e", store.items(reference(4)).get(0).get("name"));
+		store.close();
+	}
+
+	@Test
+	public void testCheckpoint() {
+		MappedViewStore store = new MappedViewStore(directory);
+		assertNull(store.checkpoint());
+		store.update(reference(1), item("a", 1));
+		store.checkpoint(new Checkpoint("signature", 42));
+		store.close();
+
+		store = new MappedViewStore(directory);
+		assertEquals(new Checkpoint("signature", 42), store.checkpoint());
+		assertEquals(1, store.size());
+		store.drop();
+		assertNull(store.checkpoint());
+		assertEquals(0, store.size());
+		store.close();
+
+		store = new MappedViewStore(directory);
+		assertNull(store.checkpoint());
+		assertEquals(0, store.size());
+		store.close();
+	}
+
+	@Test
+	public void testCompaction() {
+		MappedViewStore store = new MappedViewStore(directory, 4096);
+		for (int i = 0; i < 500; i++) {
+			store.update(reference(i), item("organization-" + i, i));
+		}
+		final int pages = store.pageCount();
+		assertTrue(pages > 10);
+		for (int i = 0; i < 500; i++) {
+			if ((i % 10) != 0) {
+				store.remove(reference(i));
+			}
+		}
+		assertEquals(50, store.size());
+		assertTrue(store.pageCount() < (pages / 2));
+		store.close();
+
+		store = new MappedViewStore(directory, 4096);
+		assertEquals(50, store.size());
+		for (int i = 0; i < 500; i += 10) {
+			assertEquals("organization-" + i, store.items(reference(i)).get(0).get("name"));
+		}
+		store.close();
+	}
+
+	@Test
+	public void testTornWrite() throws IOException {
+		MappedViewStore store = new MappedViewStore(directory, 4096);
+		store.update(reference(1), item("a", 1));
+		store.update(reference(2), item("b", 2));
+		store.close();
+		// corrupt second row
+		final File page = new File(directory, RowPage.name(0));
+		final RandomAccessFile file = new RandomAccessFile(page, "rw");
+		try {
+			final int length = file.readInt();
+			file.seek(length + 8 + 20);
+			file.write(0xFF);
+		} finally {
+			file.close();
+		}
+		store = new MappedViewStore(directory, 4096);
+		assertEquals(1, store.size());
+		store.update(reference(3), item("c", 3));
+		store.close();
+		store = new MappedViewStore(directory, 4096);
+		assertEquals(2, store.size());
+		assertEquals("c", store.items(reference(3)).get(0).get("name"));
+		store.close();
+	}
+
+	@Test
+	public void testRestartReplay() {
+		final MetaEntityContextProvider metaEntityContextProvider = MetaDataUtil.getMetaEntityContextProvider();
+		final EntityMapper entityMapper = new EntityMapper(metaEntityContextProvider);
+		final FileChangeLog changeLog = new FileChangeLog(Files.createTempDir());
+		final EntityManager entityManager = new EntityManagerSupport(new EntityFactoryProvider(metaEntityContextProvider), new ChangeFeedEntityStore(new InMemoryEntityStore(entityMapper), entityMapper,
+				changeLog), entityMapper);
+		try {
+			final Organization first = newOrganization(entityManager, "first");
+			MappedViewStore store = new MappedViewStore(directory);
+			process(entityManager, changeLog, store);
+			assertEquals(1, store.size());
+			final Checkpoint checkpoint = store.checkpoint();
+			assertNotNull(checkpoint);
+			store.close();
+
+			// changes while view is closed
+			newOrganization(entityManager, "second");
+			first.name("updated");
+			entityManager.store(first);
+
+			store = new MappedViewStore(directory);
+			assertEquals(checkpoint, store.checkpoint());
+			process(entityManager, changeLog, store);
+			assertEquals(2, store.size());
+			assertEquals("updated", store.items(first.identity()).get(0).get("o.name"));
+			assertEquals(3, store.checkpoint().getSequence());
+			store.close();
+		} finally {
+			changeLog.close();
+		}
+	}
+
+	private static Organization newOrganization(final EntityManager entityManager, final String name) {
+		final Organization organization = entityManager.newInstance(Organization.class);
+		organization.name(name);
+		entityManager.store(organization);
+		return organization;
+	}
+
+	private static void process(final EntityManager entityManager, final FileChangeLog changeLog, final MappedViewStore store) {
+		final View view = View.builder().name("OrganizationView").viewStore(store).processor(Organization.class, "o", "name").build().build();
+		new ViewManagerControler(entityManager, new ViewManager(Lists.newArrayList(view)), Behavior.FOREGROUND, changeLog).process();
+	}
+
+	private static Reference reference(final int i) {
+		return Reference.newReference(Organization.class, Integer.toString(i));
+	}
+
+	private static Item item(final String name, final int size) {
+		final Item item = new Item();
+		item.put("name", name);
+		item.put("size", size);
+		return item;
+	}
+}